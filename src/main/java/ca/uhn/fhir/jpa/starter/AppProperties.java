@@ -96,6 +96,12 @@ public class AppProperties {
 	private Partitioning partitioning = null;
 	private Boolean validate_resource_status_for_package_upload = true;
 	private Boolean install_transitive_ig_dependencies = true;
+	private Integer ig_install_threads = 4;
+	private Integer ig_additional_resources_batch_size = 500;
+	private Boolean ig_skip_unchanged = true;
+	private Boolean ig_force_reinstall = false;
+	private String ig_upload_spool_dir = null;
+	private Long ig_upload_max_size = 256L * 1024 * 1024;
 
 	private List<String> install_additional_resources_from_ig_folders = new ArrayList<>();
 	private Map<String, ExtendedPackageInstallationSpec> implementationGuides = null;
@@ -637,6 +643,54 @@ public class AppProperties {
 		this.install_transitive_ig_dependencies = install_transitive_ig_dependencies;
 	}
 
+	public Integer getIg_install_threads() {
+		return ig_install_threads;
+	}
+
+	public void setIg_install_threads(Integer ig_install_threads) {
+		this.ig_install_threads = ig_install_threads;
+	}
+
+	public Integer getIg_additional_resources_batch_size() {
+		return ig_additional_resources_batch_size;
+	}
+
+	public void setIg_additional_resources_batch_size(Integer ig_additional_resources_batch_size) {
+		this.ig_additional_resources_batch_size = ig_additional_resources_batch_size;
+	}
+
+	public Boolean getIg_skip_unchanged() {
+		return ig_skip_unchanged;
+	}
+
+	public void setIg_skip_unchanged(Boolean ig_skip_unchanged) {
+		this.ig_skip_unchanged = ig_skip_unchanged;
+	}
+
+	public Boolean getIg_force_reinstall() {
+		return ig_force_reinstall;
+	}
+
+	public void setIg_force_reinstall(Boolean ig_force_reinstall) {
+		this.ig_force_reinstall = ig_force_reinstall;
+	}
+
+	public String getIg_upload_spool_dir() {
+		return ig_upload_spool_dir;
+	}
+
+	public void setIg_upload_spool_dir(String ig_upload_spool_dir) {
+		this.ig_upload_spool_dir = ig_upload_spool_dir;
+	}
+
+	public Long getIg_upload_max_size() {
+		return ig_upload_max_size;
+	}
+
+	public void setIg_upload_max_size(Long ig_upload_max_size) {
+		this.ig_upload_max_size = ig_upload_max_size;
+	}
+
 	public Boolean getValidate_resource_status_for_package_upload() {
 		return validate_resource_status_for_package_upload;
 	}
@@ -972,6 +1026,7 @@ public class AppProperties {
 
 		private Boolean requests_enabled = false;
 		private Boolean responses_enabled = false;
+		private Long outcome_cache_size = 10000L;
 
 		public Boolean getRequests_enabled() {
 			return requests_enabled;
@@ -988,6 +1043,14 @@ public class AppProperties {
 		public void setResponses_enabled(Boolean responses_enabled) {
 			this.responses_enabled = responses_enabled;
 		}
+
+		public Long getOutcome_cache_size() {
+			return outcome_cache_size;
+		}
+
+		public void setOutcome_cache_size(Long outcome_cache_size) {
+			this.outcome_cache_size = outcome_cache_size;
+		}
 	}
 
 	public static class Partitioning {
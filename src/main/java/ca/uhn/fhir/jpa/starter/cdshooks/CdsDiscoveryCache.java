@@ -0,0 +1,120 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Holds the serialized CDS Hooks discovery document, so polling EHRs are not served a fresh serialization on every
+ * GET.
+ * <p>
+ * The registry adds and removes {@link CdsServiceJson} instances on its live {@link CdsServicesJson} whenever a
+ * service is registered or unregistered, PlanDefinition-backed services included. The document is therefore only
+ * serialized again when that list no longer holds the same instances as the cached one.
+ */
+public class CdsDiscoveryCache {
+
+	private final ObjectWriter myWriter;
+	private final boolean myGzip;
+	private volatile Document myDocument;
+
+	public CdsDiscoveryCache(ObjectWriter theWriter, boolean theGzip) {
+		myWriter = theWriter;
+		myGzip = theGzip;
+	}
+
+	public Document get(CdsServicesJson theServices) throws IOException {
+		List<CdsServiceJson> services = snapshot(theServices);
+		Document document = myDocument;
+		if (document == null || !sameInstances(document.services(), services)) {
+			byte[] json = myWriter.writeValueAsBytes(theServices);
+			String hash = sha256(json);
+			document = new Document(
+					services, json, "\"" + hash + "\"", myGzip ? gzip(json) : null, "\"" + hash + "-gzip\"");
+			myDocument = document;
+		}
+		return document;
+	}
+
+	private static List<CdsServiceJson> snapshot(CdsServicesJson theServices) {
+		if (theServices == null || theServices.getServices() == null) {
+			return List.of();
+		}
+		while (true) {
+			try {
+				return new ArrayList<>(theServices.getServices());
+			} catch (ConcurrentModificationException e) {
+				// a service is being registered right now, take the list again
+			}
+		}
+	}
+
+	private static boolean sameInstances(List<CdsServiceJson> theCached, List<CdsServiceJson> theCurrent) {
+		if (theCached.size() != theCurrent.size()) {
+			return false;
+		}
+		for (int i = 0; i < theCached.size(); i++) {
+			if (theCached.get(i) != theCurrent.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String sha256(byte[] theBytes) {
+		try {
+			return Base64.getUrlEncoder()
+					.withoutPadding()
+					.encodeToString(MessageDigest.getInstance("SHA-256").digest(theBytes));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] gzip(byte[] theBytes) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(theBytes.length / 4);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+			gzip.write(theBytes);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * The serialized discovery document. The gzip variant is a different representation and so has its own strong
+	 * ETag.
+	 */
+	public record Document(
+			List<CdsServiceJson> services, byte[] json, String etag, byte[] gzipJson, String gzipEtag) {
+
+		public boolean hasGzip() {
+			return gzipJson != null;
+		}
+
+		/**
+		 * Weak comparison as used for <code>If-None-Match</code>, against either representation.
+		 */
+		public boolean matches(String theIfNoneMatch) {
+			if (StringUtils.isBlank(theIfNoneMatch)) {
+				return false;
+			}
+			for (String tag : theIfNoneMatch.split(",")) {
+				String candidate = StringUtils.removeStart(tag.trim(), "W/");
+				if ("*".equals(candidate) || etag.equals(candidate) || gzipEtag.equals(candidate)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs CDS Hooks calls off the servlet container threads, on a bounded pool with an optional limit per service.
+ * <p>
+ * A call is refused straight away when its service already has <code>perServiceLimit</code> calls queued or running,
+ * or when the queue is full. A call that waited in the queue longer than <code>maxQueueWaitMillis</code> is not run
+ * either, as the EHR has most likely given up on it.
+ */
+public class CdsHookExecutor {
+
+	public enum Rejection {
+		SATURATED,
+		SERVICE_LIMIT,
+		EXPIRED
+	}
+
+	private final CdsHooksProperties.Async mySettings;
+	private final ThreadPoolExecutor myExecutor;
+	private final Map<String, Semaphore> myServicePermits = new ConcurrentHashMap<>();
+	private final Timer myQueueWait;
+	private final Map<Rejection, Counter> myRejections = new EnumMap<>(Rejection.class);
+
+	public CdsHookExecutor(CdsHooksProperties.Async theSettings, MeterRegistry theMeterRegistry) {
+		mySettings = theSettings;
+		myExecutor = new ThreadPoolExecutor(
+				theSettings.getThreads(),
+				theSettings.getThreads(),
+				60,
+				TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(theSettings.getQueueCapacity()),
+				new BasicThreadFactory.Builder()
+						.namingPattern("cds-hooks-%d")
+						.daemon(true)
+						.build(),
+				new ThreadPoolExecutor.AbortPolicy());
+		myExecutor.allowCoreThreadTimeOut(true);
+
+		Gauge.builder("cds.hooks.executor.queue.depth", myExecutor, executor -> executor.getQueue()
+						.size())
+				.register(theMeterRegistry);
+		Gauge.builder("cds.hooks.executor.active", myExecutor, ThreadPoolExecutor::getActiveCount)
+				.register(theMeterRegistry);
+		myQueueWait = Timer.builder("cds.hooks.executor.queue.wait").register(theMeterRegistry);
+		for (Rejection rejection : Rejection.values()) {
+			myRejections.put(
+					rejection,
+					Counter.builder("cds.hooks.executor.rejected")
+							.tag("reason", rejection.name().toLowerCase(Locale.ROOT))
+							.register(theMeterRegistry));
+		}
+	}
+
+	/**
+	 * @param theService   the service id, used for the per-service limit
+	 * @param theTask      the hook call
+	 * @param theOnExpired run instead of the hook call when it waited too long in the queue
+	 * @return why the call was refused, or <code>null</code> when it was accepted
+	 */
+	public Rejection submit(String theService, Runnable theTask, Runnable theOnExpired) {
+		Semaphore permits = mySettings.getPerServiceLimit() > 0
+				? myServicePermits.computeIfAbsent(theService, k -> new Semaphore(mySettings.getPerServiceLimit()))
+				: null;
+		if (permits != null && !permits.tryAcquire()) {
+			return reject(Rejection.SERVICE_LIMIT);
+		}
+
+		long queued = System.nanoTime();
+		try {
+			myExecutor.execute(() -> {
+				try {
+					long waited = System.nanoTime() - queued;
+					myQueueWait.record(waited, TimeUnit.NANOSECONDS);
+					if (mySettings.getMaxQueueWaitMillis() > 0
+							&& waited > TimeUnit.MILLISECONDS.toNanos(mySettings.getMaxQueueWaitMillis())) {
+						reject(Rejection.EXPIRED);
+						theOnExpired.run();
+					} else {
+						theTask.run();
+					}
+				} finally {
+					if (permits != null) {
+						permits.release();
+					}
+				}
+			});
+			return null;
+		} catch (RejectedExecutionException e) {
+			if (permits != null) {
+				permits.release();
+			}
+			return reject(Rejection.SATURATED);
+		}
+	}
+
+	public void shutdown() {
+		myExecutor.shutdown();
+	}
+
+	private Rejection reject(Rejection theRejection) {
+		myRejections.get(theRejection).increment();
+		return theRejection;
+	}
+}
@@ -0,0 +1,182 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import jakarta.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings and payload sizes of one sampled CDS Hooks call. Only created by {@link CdsHookTracer} for calls that are
+ * sampled, and bound to the thread handling the call, so that code further down, such as the prefetch, can add its
+ * phase through {@link #current()}.
+ */
+public class CdsHookTrace {
+
+	public enum Phase {
+		PARSE,
+		PREFETCH,
+		SERVICE,
+		SERIALIZE
+	}
+
+	private static final ThreadLocal<CdsHookTrace> ourCurrent = new ThreadLocal<>();
+
+	private final String myService;
+	private final long myStart = System.nanoTime();
+	private final Map<Phase, Long> myPhaseNanos = new EnumMap<>(Phase.class);
+	private final ByteArrayOutputStream myRequestCapture;
+	private final ByteArrayOutputStream myResponseCapture;
+	private String myHook;
+	private String myHookInstance;
+	private long myRequestBytes;
+	private long myResponseBytes;
+
+	CdsHookTrace(String theService, boolean theCapturePayloads) {
+		myService = theService;
+		myRequestCapture = theCapturePayloads ? new ByteArrayOutputStream() : null;
+		myResponseCapture = theCapturePayloads ? new ByteArrayOutputStream() : null;
+	}
+
+	/**
+	 * @return the trace of the call handled by this thread, or <code>null</code> when it is not sampled
+	 */
+	@Nullable
+	public static CdsHookTrace current() {
+		return ourCurrent.get();
+	}
+
+	void bind() {
+		ourCurrent.set(this);
+	}
+
+	void unbind() {
+		ourCurrent.remove();
+	}
+
+	/**
+	 * Adds the time since <code>theStartNanos</code> to the given phase.
+	 */
+	public synchronized void phase(Phase thePhase, long theStartNanos) {
+		myPhaseNanos.merge(thePhase, System.nanoTime() - theStartNanos, Long::sum);
+	}
+
+	void hook(String theHook, String theHookInstance) {
+		myHook = theHook;
+		myHookInstance = theHookInstance;
+	}
+
+	InputStream wrapRequest(InputStream theInputStream) {
+		return new FilterInputStream(theInputStream) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) {
+					myRequestBytes++;
+					if (myRequestCapture != null) {
+						myRequestCapture.write(b);
+					}
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] theBuffer, int theOffset, int theLength) throws IOException {
+				int count = super.read(theBuffer, theOffset, theLength);
+				if (count > 0) {
+					myRequestBytes += count;
+					if (myRequestCapture != null) {
+						myRequestCapture.write(theBuffer, theOffset, count);
+					}
+				}
+				return count;
+			}
+		};
+	}
+
+	OutputStream wrapResponse(OutputStream theOutputStream) {
+		return new FilterOutputStream(theOutputStream) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				myResponseBytes++;
+				if (myResponseCapture != null) {
+					myResponseCapture.write(b);
+				}
+			}
+
+			@Override
+			public void write(byte[] theBuffer, int theOffset, int theLength) throws IOException {
+				out.write(theBuffer, theOffset, theLength);
+				myResponseBytes += theLength;
+				if (myResponseCapture != null) {
+					myResponseCapture.write(theBuffer, theOffset, theLength);
+				}
+			}
+		};
+	}
+
+	/**
+	 * For the buffered mode, where the payloads are already at hand.
+	 */
+	void payloads(byte[] theRequest, byte[] theResponse) {
+		if (theRequest != null) {
+			myRequestBytes = theRequest.length;
+			if (myRequestCapture != null) {
+				myRequestCapture.writeBytes(theRequest);
+			}
+		}
+		if (theResponse != null) {
+			myResponseBytes = theResponse.length;
+			if (myResponseCapture != null) {
+				myResponseCapture.writeBytes(theResponse);
+			}
+		}
+	}
+
+	boolean hasPayloads() {
+		return myRequestCapture != null;
+	}
+
+	byte[] requestPayload() {
+		return myRequestCapture.toByteArray();
+	}
+
+	byte[] responsePayload() {
+		return myResponseCapture.toByteArray();
+	}
+
+	String service() {
+		return myService;
+	}
+
+	String hook() {
+		return myHook;
+	}
+
+	String hookInstance() {
+		return myHookInstance;
+	}
+
+	long requestBytes() {
+		return myRequestBytes;
+	}
+
+	long responseBytes() {
+		return myResponseBytes;
+	}
+
+	synchronized long phaseMillis(Phase thePhase) {
+		return TimeUnit.NANOSECONDS.toMillis(myPhaseNanos.getOrDefault(thePhase, 0L));
+	}
+
+	long totalMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - myStart);
+	}
+}
@@ -0,0 +1,129 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which CDS Hooks calls are traced and writes their trace.
+ * <p>
+ * A sampled call is logged as a single line on the <code>ca.uhn.fhir.jpa.starter.cdshooks.trace</code> logger. When
+ * payload capture is enabled, at most <code>payloadCapturePerMinute</code> sampled calls also log their request and
+ * response JSON on the <code>ca.uhn.fhir.jpa.starter.cdshooks.payload</code> logger, which logback.xml routes through
+ * an async appender. The access token of the <code>fhirAuthorization</code> of the request is masked, and a request
+ * that is not a JSON object is not logged. Calls that are not sampled are neither timed nor formatted.
+ */
+public class CdsHookTracer {
+
+	private static final Logger ourTraceLog = LoggerFactory.getLogger("ca.uhn.fhir.jpa.starter.cdshooks.trace");
+	private static final Logger ourPayloadLog = LoggerFactory.getLogger("ca.uhn.fhir.jpa.starter.cdshooks.payload");
+
+	private static final long MINUTE_NANOS = TimeUnit.MINUTES.toNanos(1);
+	private static final String FHIR_AUTHORIZATION = "fhirAuthorization";
+	private static final String ACCESS_TOKEN = "access_token";
+	private static final String REDACTED = "***";
+	private static final ObjectMapper ourObjectMapper = new ObjectMapper();
+
+	private final CdsHooksProperties.Trace mySettings;
+	private final AtomicLong myCaptureWindowStart = new AtomicLong(System.nanoTime());
+	private final AtomicInteger myCapturesInWindow = new AtomicInteger();
+
+	public CdsHookTracer(CdsHooksProperties.Trace theSettings) {
+		mySettings = theSettings;
+	}
+
+	/**
+	 * @return the trace for this call, bound to the current thread, or <code>null</code> when it is not sampled
+	 */
+	@Nullable
+	public CdsHookTrace start(String theService) {
+		double sampleRate = mySettings.getSampleRate();
+		if (sampleRate <= 0 || !ourTraceLog.isInfoEnabled()) {
+			return null;
+		}
+		if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+			return null;
+		}
+		CdsHookTrace trace = new CdsHookTrace(theService, mySettings.isPayloadCapture() && tryCapture());
+		trace.bind();
+		return trace;
+	}
+
+	public void finish(@Nullable CdsHookTrace theTrace, int theStatus) {
+		if (theTrace == null) {
+			return;
+		}
+		theTrace.unbind();
+		long prefetch = theTrace.phaseMillis(CdsHookTrace.Phase.PREFETCH);
+		long service = theTrace.phaseMillis(CdsHookTrace.Phase.SERVICE);
+		ourTraceLog.info(
+				"cds-hooks trace service={} hook={} hookInstance={} status={} requestBytes={} responseBytes={}"
+						+ " parseMs={} prefetchMs={} evaluationMs={} serializeMs={} totalMs={}",
+				theTrace.service(),
+				theTrace.hook(),
+				theTrace.hookInstance(),
+				theStatus,
+				theTrace.requestBytes(),
+				theTrace.responseBytes(),
+				theTrace.phaseMillis(CdsHookTrace.Phase.PARSE),
+				prefetch,
+				Math.max(0, service - prefetch),
+				theTrace.phaseMillis(CdsHookTrace.Phase.SERIALIZE),
+				theTrace.totalMillis());
+		if (theTrace.hasPayloads()) {
+			ourPayloadLog.info(
+					"cds-hooks payload hookInstance={} request={} response={}",
+					theTrace.hookInstance(),
+					redact(theTrace.requestPayload()),
+					new String(theTrace.responsePayload(), StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * The request JSON with the access token the CDS client granted the service masked.
+	 */
+	static String redact(byte[] theRequest) {
+		String request = new String(theRequest, StandardCharsets.UTF_8);
+		if (!request.contains(FHIR_AUTHORIZATION)) {
+			return request;
+		}
+		try {
+			if (ourObjectMapper.readTree(theRequest) instanceof ObjectNode json) {
+				JsonNode authorization = json.get(FHIR_AUTHORIZATION);
+				if (authorization instanceof ObjectNode object) {
+					if (object.has(ACCESS_TOKEN)) {
+						object.put(ACCESS_TOKEN, REDACTED);
+					}
+				} else if (authorization != null) {
+					json.put(FHIR_AUTHORIZATION, REDACTED);
+				}
+				return ourObjectMapper.writeValueAsString(json);
+			}
+		} catch (IOException e) {
+			// the token may be anywhere in a request that cannot be parsed
+		}
+		return "(not logged, " + theRequest.length + " bytes that are not a JSON object)";
+	}
+
+	private boolean tryCapture() {
+		if (!ourPayloadLog.isInfoEnabled()) {
+			return false;
+		}
+		long now = System.nanoTime();
+		long windowStart = myCaptureWindowStart.get();
+		if (now - windowStart >= MINUTE_NANOS && myCaptureWindowStart.compareAndSet(windowStart, now)) {
+			myCapturesInWindow.set(0);
+		}
+		return myCapturesInWindow.incrementAndGet() <= mySettings.getPayloadCapturePerMinute();
+	}
+}
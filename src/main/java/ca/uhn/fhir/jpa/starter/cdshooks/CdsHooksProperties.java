@@ -3,6 +3,9 @@ package ca.uhn.fhir.jpa.starter.cdshooks;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Configuration
 @ConfigurationProperties(prefix = "hapi.fhir.cdshooks")
 public class CdsHooksProperties {
@@ -26,4 +29,346 @@ public class CdsHooksProperties {
 	public void setClientIdHeaderName(String clientIdHeaderName) {
 		this.clientIdHeaderName = clientIdHeaderName;
 	}
+
+	/**
+	 * Reads hook requests from and writes responses to the servlet streams in a single Jackson pass. When disabled,
+	 * the request and response JSON are buffered as strings.
+	 */
+	private boolean streaming = true;
+
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	private boolean prettyPrint = true;
+
+	public boolean isPrettyPrint() {
+		return prettyPrint;
+	}
+
+	public void setPrettyPrint(boolean prettyPrint) {
+		this.prettyPrint = prettyPrint;
+	}
+
+	/**
+	 * Also keeps a gzip compressed copy of the discovery document, served to clients that accept gzip.
+	 */
+	private boolean discoveryGzip = true;
+
+	public boolean isDiscoveryGzip() {
+		return discoveryGzip;
+	}
+
+	public void setDiscoveryGzip(boolean discoveryGzip) {
+		this.discoveryGzip = discoveryGzip;
+	}
+
+	private Async async = new Async();
+
+	public Async getAsync() {
+		return async;
+	}
+
+	public void setAsync(Async async) {
+		this.async = async;
+	}
+
+	private Trace trace = new Trace();
+
+	public Trace getTrace() {
+		return trace;
+	}
+
+	public void setTrace(Trace trace) {
+		this.trace = trace;
+	}
+
+	private Prefetch prefetch = new Prefetch();
+
+	public Prefetch getPrefetch() {
+		return prefetch;
+	}
+
+	public void setPrefetch(Prefetch prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	public static class Prefetch {
+
+		/**
+		 * Ids of the CDS services whose prefetch is the fixed set of UDS queries, run concurrently on the prefetch
+		 * pool. Every other service is prefetched from its own templates by HAPI.
+		 */
+		private List<String> serviceIds = new ArrayList<>();
+
+		/**
+		 * Number of prefetch queries of a single hook that may run at the same time, and the number of
+		 * threads in the shared prefetch pool.
+		 */
+		private int threads = 8;
+
+		/**
+		 * Prefetch queries waiting for a thread. When full, the calling thread runs the query itself.
+		 */
+		private int queueCapacity = 64;
+
+		/**
+		 * Overall budget for all prefetch queries of one hook call. Queries still running once it has
+		 * passed are abandoned and the hook continues with the prefetch that did complete.
+		 */
+		private long hookTimeoutMillis = 10000;
+
+		/**
+		 * Budget for a single prefetch query.
+		 */
+		private long templateTimeoutMillis = 5000;
+
+		/**
+		 * Codes per lab Observation query. The lab code list is split into chunks of this size which are queried
+		 * concurrently and merged into a single searchset. When 0 the size is derived from the code list size and
+		 * the number of threads.
+		 */
+		private int labCodeChunkSize = 0;
+
+		/**
+		 * Number of distinct (fhirServer, auth scheme) clients kept for reuse across hook calls.
+		 */
+		private int clientCacheSize = 16;
+
+		/**
+		 * A cached client is dropped after not being used for this long.
+		 */
+		private long clientIdleTimeoutMillis = 300000;
+
+		/**
+		 * Pooled keep-alive connections that stay idle for this long are closed.
+		 */
+		private long connectionIdleTimeoutMillis = 30000;
+
+		/**
+		 * Maximum number of prefetch results kept by the result cache.
+		 */
+		private int resultCacheSize = 1000;
+
+		/**
+		 * How long a cached prefetch result is reused, unless a change to one of its resources evicts it earlier.
+		 */
+		private long resultCacheTtlMillis = 60000;
+
+		public List<String> getServiceIds() {
+			return serviceIds;
+		}
+
+		public void setServiceIds(List<String> serviceIds) {
+			this.serviceIds = serviceIds;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		public void setThreads(int threads) {
+			this.threads = threads;
+		}
+
+		public int getQueueCapacity() {
+			return queueCapacity;
+		}
+
+		public void setQueueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+		}
+
+		public long getHookTimeoutMillis() {
+			return hookTimeoutMillis;
+		}
+
+		public void setHookTimeoutMillis(long hookTimeoutMillis) {
+			this.hookTimeoutMillis = hookTimeoutMillis;
+		}
+
+		public long getTemplateTimeoutMillis() {
+			return templateTimeoutMillis;
+		}
+
+		public void setTemplateTimeoutMillis(long templateTimeoutMillis) {
+			this.templateTimeoutMillis = templateTimeoutMillis;
+		}
+
+		public int getLabCodeChunkSize() {
+			return labCodeChunkSize;
+		}
+
+		public void setLabCodeChunkSize(int labCodeChunkSize) {
+			this.labCodeChunkSize = labCodeChunkSize;
+		}
+
+		public int getClientCacheSize() {
+			return clientCacheSize;
+		}
+
+		public void setClientCacheSize(int clientCacheSize) {
+			this.clientCacheSize = clientCacheSize;
+		}
+
+		public long getClientIdleTimeoutMillis() {
+			return clientIdleTimeoutMillis;
+		}
+
+		public void setClientIdleTimeoutMillis(long clientIdleTimeoutMillis) {
+			this.clientIdleTimeoutMillis = clientIdleTimeoutMillis;
+		}
+
+		public long getConnectionIdleTimeoutMillis() {
+			return connectionIdleTimeoutMillis;
+		}
+
+		public void setConnectionIdleTimeoutMillis(long connectionIdleTimeoutMillis) {
+			this.connectionIdleTimeoutMillis = connectionIdleTimeoutMillis;
+		}
+
+		public int getResultCacheSize() {
+			return resultCacheSize;
+		}
+
+		public void setResultCacheSize(int resultCacheSize) {
+			this.resultCacheSize = resultCacheSize;
+		}
+
+		public long getResultCacheTtlMillis() {
+			return resultCacheTtlMillis;
+		}
+
+		public void setResultCacheTtlMillis(long resultCacheTtlMillis) {
+			this.resultCacheTtlMillis = resultCacheTtlMillis;
+		}
+	}
+
+	public static class Async {
+
+		/**
+		 * Runs hook calls on a dedicated executor instead of the servlet container thread.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * Number of hook calls that run at the same time.
+		 */
+		private int threads = 8;
+
+		/**
+		 * Hook calls waiting for a thread. Calls arriving when it is full are answered with 503.
+		 */
+		private int queueCapacity = 32;
+
+		/**
+		 * Hook calls a single service may have queued or running at the same time. 0 means no limit.
+		 */
+		private int perServiceLimit = 0;
+
+		/**
+		 * A hook call that waited in the queue longer than this is answered with 503 instead of being run. 0 means
+		 * no limit.
+		 */
+		private long maxQueueWaitMillis = 10000;
+
+		/**
+		 * Value of the Retry-After header sent with 503 responses.
+		 */
+		private int retryAfterSeconds = 5;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		public void setThreads(int threads) {
+			this.threads = threads;
+		}
+
+		public int getQueueCapacity() {
+			return queueCapacity;
+		}
+
+		public void setQueueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+		}
+
+		public int getPerServiceLimit() {
+			return perServiceLimit;
+		}
+
+		public void setPerServiceLimit(int perServiceLimit) {
+			this.perServiceLimit = perServiceLimit;
+		}
+
+		public long getMaxQueueWaitMillis() {
+			return maxQueueWaitMillis;
+		}
+
+		public void setMaxQueueWaitMillis(long maxQueueWaitMillis) {
+			this.maxQueueWaitMillis = maxQueueWaitMillis;
+		}
+
+		public int getRetryAfterSeconds() {
+			return retryAfterSeconds;
+		}
+
+		public void setRetryAfterSeconds(int retryAfterSeconds) {
+			this.retryAfterSeconds = retryAfterSeconds;
+		}
+	}
+
+	public static class Trace {
+
+		/**
+		 * Share of hook calls, between 0 and 1, that log a trace line with their phase timings and payload sizes.
+		 */
+		private double sampleRate = 0.1;
+
+		/**
+		 * Also logs the full request and response JSON of sampled hook calls.
+		 */
+		private boolean payloadCapture = false;
+
+		/**
+		 * Sampled hook calls per minute whose payloads are captured.
+		 */
+		private int payloadCapturePerMinute = 6;
+
+		public double getSampleRate() {
+			return sampleRate;
+		}
+
+		public void setSampleRate(double sampleRate) {
+			this.sampleRate = sampleRate;
+		}
+
+		public boolean isPayloadCapture() {
+			return payloadCapture;
+		}
+
+		public void setPayloadCapture(boolean payloadCapture) {
+			this.payloadCapture = payloadCapture;
+		}
+
+		public int getPayloadCapturePerMinute() {
+			return payloadCapturePerMinute;
+		}
+
+		public void setPayloadCapturePerMinute(int payloadCapturePerMinute) {
+			this.payloadCapturePerMinute = payloadCapturePerMinute;
+		}
+	}
 }
@@ -6,13 +6,20 @@ import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
 import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
 import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import com.fasterxml.jackson.core.util.DefaultIndenter;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.core.util.Separators;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonParser;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.http.entity.ContentType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +29,7 @@ import org.springframework.beans.factory.annotation.Qualifier;
 
 import java.io.IOException;
 import java.io.Serial;
+import java.nio.charset.StandardCharsets;
 import java.util.stream.Collectors;
 
 import static org.opencds.cqf.fhir.cr.hapi.config.test.TestCdsHooksConfig.CDS_HOOKS_OBJECT_MAPPER_FACTORY;
@@ -46,6 +54,66 @@ public class CdsHooksServlet extends HttpServlet {
 	@Qualifier(CDS_HOOKS_OBJECT_MAPPER_FACTORY)
 	ObjectMapper objectMapper;
 
+	@Autowired
+	CdsHooksProperties cdsHooksProperties;
+
+	@Autowired(required = false)
+	MeterRegistry meterRegistry;
+
+	private ObjectWriter responseWriter;
+
+	private CdsDiscoveryCache discoveryCache;
+
+	private CdsHookExecutor hookExecutor;
+
+	private CdsHookTracer hookTracer;
+
+	private ModuleConfigurationPrefetchSvc modulePrefetchSvc;
+
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		responseWriter = newResponseWriter(objectMapper, cdsHooksProperties.isPrettyPrint());
+		discoveryCache = new CdsDiscoveryCache(responseWriter, cdsHooksProperties.isDiscoveryGzip());
+		hookTracer = new CdsHookTracer(cdsHooksProperties.getTrace());
+		if (cdsHooksProperties.getAsync().isEnabled()) {
+			hookExecutor = new CdsHookExecutor(
+					cdsHooksProperties.getAsync(), meterRegistry != null ? meterRegistry : Metrics.globalRegistry);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (hookExecutor != null) {
+			hookExecutor.shutdown();
+		}
+		super.destroy();
+	}
+
+	/**
+	 * Jackson writer for responses. When pretty-printing, the layout follows the Gson output this servlet used to
+	 * produce: two space indentation, no space before a colon and empty arrays and objects printed as <code>[]</code>
+	 * and <code>{}</code>.
+	 */
+	static ObjectWriter newResponseWriter(ObjectMapper theObjectMapper, boolean thePrettyPrint) {
+		if (!thePrettyPrint) {
+			return theObjectMapper.writer().without(SerializationFeature.INDENT_OUTPUT);
+		}
+		DefaultIndenter indenter = new DefaultIndenter("  ", "\n");
+		DefaultPrettyPrinter printer = new DefaultPrettyPrinter()
+				.withSeparators(Separators.createDefaultInstance()
+						.withObjectFieldValueSpacing(Separators.Spacing.AFTER)
+						.withObjectEmptySeparator("")
+						.withArrayEmptySeparator(""));
+		printer.indentObjectsWith(indenter);
+		printer.indentArraysWith(indenter);
+		return theObjectMapper.writer(printer);
+	}
+
+	void setModulePrefetchSvc(ModuleConfigurationPrefetchSvc modulePrefetchSvc) {
+		this.modulePrefetchSvc = modulePrefetchSvc;
+	}
+
 	protected ProviderConfiguration getProviderConfiguration() {
 		return this.providerConfiguration;
 	}
@@ -62,7 +130,7 @@ public class CdsHooksServlet extends HttpServlet {
 	@Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
-		logger.info(request.getRequestURI());
+		logger.debug(request.getRequestURI());
 		if (!request.getRequestURL().toString().endsWith("/cds-services")
 				&& !request.getRequestURL().toString().endsWith("/cds-services/")) {
 			logger.error(request.getRequestURI());
@@ -70,54 +138,177 @@ public class CdsHooksServlet extends HttpServlet {
 		}
 		ErrorHandling.setAccessControlHeaders(response, appProperties);
 		response.setHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType());
-		response.getWriter()
-				.println(new GsonBuilder()
-						.setPrettyPrinting()
-						.create()
-						.toJson(JsonParser.parseString(objectMapper.writeValueAsString(getServices()))));
+
+		CdsDiscoveryCache.Document discovery = discoveryCache.get(getServices());
+		boolean gzip = discovery.hasGzip() && acceptsGzip(request);
+		response.setHeader("ETag", gzip ? discovery.gzipEtag() : discovery.etag());
+		if (discovery.hasGzip()) {
+			response.setHeader("Vary", "Accept-Encoding");
+		}
+		if (discovery.matches(request.getHeader("If-None-Match"))) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		byte[] body = gzip ? discovery.gzipJson() : discovery.json();
+		if (gzip) {
+			response.setHeader("Content-Encoding", "gzip");
+		}
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
+	}
+
+	private static boolean acceptsGzip(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
 	}
 
 	@Override
 	protected void doPost(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
+		String service = StringUtils.defaultString(request.getPathInfo()).replace("/", "");
+		if (hookExecutor != null && request.isAsyncSupported() && isRegistered(service)) {
+			dispatch(service, request, response);
+		} else {
+			handlePost(request, response);
+		}
+	}
+
+	/**
+	 * Hands the hook call over to the hook executor and frees the container thread. A call the executor refuses is
+	 * answered with 503 and Retry-After right away.
+	 */
+	private void dispatch(String service, HttpServletRequest request, HttpServletResponse response) {
+		AsyncContext asyncContext = request.startAsync(request, response);
+		// the executor bounds the queue wait; a running hook call is not cut short, as in synchronous mode
+		asyncContext.setTimeout(0);
+		CdsHookExecutor.Rejection rejection = hookExecutor.submit(
+				service,
+				() -> {
+					try {
+						handlePost(request, response);
+					} catch (Exception e) {
+						logger.error(e.toString());
+						sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+					} finally {
+						asyncContext.complete();
+					}
+				},
+				() -> {
+					sendServiceUnavailable(service, response, "waited too long in the queue");
+					asyncContext.complete();
+				});
+		if (rejection != null) {
+			sendServiceUnavailable(
+					service,
+					response,
+					rejection == CdsHookExecutor.Rejection.SERVICE_LIMIT
+							? "service limit reached"
+							: "executor saturated");
+			asyncContext.complete();
+		}
+	}
+
+	private boolean isRegistered(String service) {
+		try {
+			return cdsServiceRegistry.getCdsServiceJson(service) != null;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private void sendServiceUnavailable(String service, HttpServletResponse response, String reason) {
+		logger.warn("cds-hooks call to {} rejected: {}", service, reason);
+		ErrorHandling.setAccessControlHeaders(response, appProperties);
+		response.setHeader("Retry-After", String.valueOf(cdsHooksProperties.getAsync().getRetryAfterSeconds()));
+		sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+	}
+
+	private static void sendError(HttpServletResponse response, int status) {
+		if (!response.isCommitted()) {
+			response.setStatus(status);
+		}
+	}
+
+	private void handlePost(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		CdsHookTrace trace = null;
 		try {
 			if (request.getContentType() == null || !request.getContentType().startsWith("application/json")) {
 				throw new ServletException(String.format(
 						"Invalid content type %s. Please use application/json.", request.getContentType()));
 			}
-			logger.info(request.getRequestURI());
+			logger.debug(request.getRequestURI());
 			String service = request.getPathInfo().replace("/", "");
+			trace = hookTracer.start(service);
 
-			String requestJson = request.getReader().lines().collect(Collectors.joining());
-			CdsHooksRequest cdsHooksRequest = objectMapper.readValue(requestJson, CdsHooksRequest.class);
-			logRequestInfo(cdsHooksRequest, requestJson);
+			// streaming reads and writes the JSON in a single pass, the buffered mode keeps the payloads as strings
+			boolean streaming = cdsHooksProperties.isStreaming();
+			long start = System.nanoTime();
+			CdsHooksRequest cdsHooksRequest;
+			String requestJson = null;
+			if (streaming) {
+				cdsHooksRequest = objectMapper.readValue(
+						trace != null ? trace.wrapRequest(request.getInputStream()) : request.getInputStream(),
+						CdsHooksRequest.class);
+			} else {
+				requestJson = request.getReader().lines().collect(Collectors.joining());
+				cdsHooksRequest = objectMapper.readValue(requestJson, CdsHooksRequest.class);
+			}
+			logRequestInfo(cdsHooksRequest);
+			if (trace != null) {
+				trace.phase(CdsHookTrace.Phase.PARSE, start);
+				trace.hook(cdsHooksRequest.getHook(), cdsHooksRequest.getHookInstance());
+			}
 
+			// the registry prefetches whatever the module prefetch left missing from the templates of the service
+			if (modulePrefetchSvc != null && modulePrefetchSvc.isModuleService(service)) {
+				modulePrefetchSvc.prefetch(cdsHooksRequest, cdsServiceRegistry.getCdsServiceJson(service));
+			}
+
+			start = System.nanoTime();
 			CdsServiceResponseJson serviceResponseJson = cdsServiceRegistry.callService(service, cdsHooksRequest);
+			if (trace != null) {
+				trace.phase(CdsHookTrace.Phase.SERVICE, start);
+			}
 
-			// Using GSON pretty print format as Jackson's is ugly
-			String jsonResponse = new GsonBuilder()
-					.disableHtmlEscaping()
-					.setPrettyPrinting()
-					.create()
-					.toJson(JsonParser.parseString(objectMapper.writeValueAsString(serviceResponseJson)));
-			logger.info(jsonResponse);
+			start = System.nanoTime();
 			response.setContentType("text/json;charset=UTF-8");
-			response.getWriter().println(jsonResponse);
+			if (streaming) {
+				responseWriter.writeValue(
+						trace != null ? trace.wrapResponse(response.getOutputStream()) : response.getOutputStream(),
+						serviceResponseJson);
+			} else {
+				String jsonResponse = responseWriter.writeValueAsString(serviceResponseJson);
+				response.getWriter().println(jsonResponse);
+				if (trace != null) {
+					trace.payloads(
+							requestJson.getBytes(StandardCharsets.UTF_8),
+							jsonResponse.getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			if (trace != null) {
+				trace.phase(CdsHookTrace.Phase.SERIALIZE, start);
+			}
 		} catch (BaseServerResponseException e) {
 			ErrorHandling.handleError(response, "ERROR: Exception connecting to remote server.", e, appProperties);
 			logger.error(e.toString());
 		} catch (Exception e) {
 			logger.error(e.toString());
 			throw new ServletException("ERROR: Exception in cds-hooks processing.", e);
+		} finally {
+			hookTracer.finish(trace, response.getStatus());
 		}
 	}
 
-	private void logRequestInfo(CdsServiceRequestJson request, String jsonRequest) {
-		logger.info(jsonRequest);
-		logger.info("cds-hooks hook instance: {}", request.getHookInstance());
-		logger.info("cds-hooks local server address: {}", appProperties.getServer_address());
-		logger.info("cds-hooks fhir server address: {}", request.getFhirServer());
-		logger.info(
+	private void logRequestInfo(CdsServiceRequestJson request) {
+		if (!logger.isDebugEnabled()) {
+			return;
+		}
+		logger.debug("cds-hooks hook instance: {}", request.getHookInstance());
+		logger.debug("cds-hooks local server address: {}", appProperties.getServer_address());
+		logger.debug("cds-hooks fhir server address: {}", request.getFhirServer());
+		logger.debug(
 				"cds-hooks cql_logging_enabled: {}",
 				this.getProviderConfiguration().getCqlLoggingEnabled());
 	}
@@ -0,0 +1,105 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.i18n.Msg;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.model.valueset.BundleTypeEnum;
+import ca.uhn.fhir.rest.api.IVersionSpecificBundleFactory;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.util.UrlUtil;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchDaoSvc;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Resolves CDS Hooks prefetch URLs straight against the local DAOs when the hook's <code>fhirServer</code> is this
+ * server, so the prefetch skips the HTTP round trip and the JSON encode/parse on both ends.
+ * <p>
+ * A <code>fhirServer</code> is considered local when it matches <code>server_address</code> or one of the
+ * <code>local_base_urls</code>, or when the hook did not send one at all.
+ */
+public class LocalPrefetchResolver {
+
+	private final DaoRegistry myDaoRegistry;
+	private final MatchUrlService myMatchUrlService;
+	private final FhirContext myFhirContext;
+	private final Set<String> myLocalBaseUrls = new HashSet<>();
+
+	public LocalPrefetchResolver(
+			DaoRegistry theDaoRegistry,
+			MatchUrlService theMatchUrlService,
+			FhirContext theFhirContext,
+			Collection<String> theLocalBaseUrls) {
+		myDaoRegistry = theDaoRegistry;
+		myMatchUrlService = theMatchUrlService;
+		myFhirContext = theFhirContext;
+		theLocalBaseUrls.stream()
+				.filter(StringUtils::isNotBlank)
+				.map(LocalPrefetchResolver::normalize)
+				.forEach(myLocalBaseUrls::add);
+	}
+
+	public LocalPrefetchResolver(
+			DaoRegistry theDaoRegistry,
+			MatchUrlService theMatchUrlService,
+			FhirContext theFhirContext,
+			AppProperties theAppProperties) {
+		this(theDaoRegistry, theMatchUrlService, theFhirContext, localBaseUrls(theAppProperties));
+	}
+
+	private static Set<String> localBaseUrls(AppProperties theAppProperties) {
+		Set<String> urls = new HashSet<>(theAppProperties.getLocal_base_urls());
+		if (theAppProperties.getServer_address() != null) {
+			urls.add(theAppProperties.getServer_address());
+		}
+		return urls;
+	}
+
+	public boolean isLocal(String theFhirServer) {
+		return StringUtils.isBlank(theFhirServer) || myLocalBaseUrls.contains(normalize(theFhirServer));
+	}
+
+	public IBaseResource resourceFromUrl(String theUrl) {
+		UrlUtil.UrlParts parts = UrlUtil.parseUrl(theUrl);
+		String resourceType = parts.getResourceType();
+		if (StringUtils.isEmpty(resourceType)) {
+			throw new InvalidRequestException(
+					Msg.code(2383) + "Failed to resolve " + theUrl + ". Url does not start with a resource type.");
+		}
+
+		IFhirResourceDao<?> dao = myDaoRegistry.getResourceDao(resourceType);
+		if (parts.getResourceId() != null) {
+			return dao.read(new IdDt(resourceType, parts.getResourceId()), new SystemRequestDetails());
+		} else if (parts.getParams() != null) {
+			SearchParameterMap searchParameterMap = myMatchUrlService.translateMatchUrl(
+					parts.getParams(), myFhirContext.getResourceDefinition(resourceType));
+			searchParameterMap.setLoadSynchronousUpTo(CdsPrefetchDaoSvc.MAX_RESOURCES_IN_BUNDLE);
+			IBundleProvider results = dao.search(searchParameterMap, new SystemRequestDetails());
+			List<IBaseResource> resources = results.getResources(0, CdsPrefetchDaoSvc.MAX_RESOURCES_IN_BUNDLE);
+
+			IVersionSpecificBundleFactory bundleFactory = myFhirContext.newBundleFactory();
+			bundleFactory.addResourcesToBundle(resources, BundleTypeEnum.SEARCHSET, null, null, null);
+			return bundleFactory.getResourceBundle();
+		} else {
+			throw new InvalidRequestException(
+					Msg.code(2384) + "Unable to translate url " + theUrl + " into a resource or a bundle.");
+		}
+	}
+
+	private static String normalize(String theBaseUrl) {
+		return StringUtils.removeEnd(theBaseUrl.trim(), "/").toLowerCase(Locale.ROOT);
+	}
+}
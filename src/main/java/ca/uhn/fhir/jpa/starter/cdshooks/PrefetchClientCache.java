@@ -0,0 +1,244 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.Nullable;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpCoreContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Shares FHIR clients for CDS Hooks prefetch across hook calls, one per (fhirServer base URL, auth scheme).
+ * <p>
+ * All clients run on one keep-alive connection pool, which allows as many connections per server as there are
+ * prefetch threads and evicts idle connections in the background. HAPI clients send their requests through the
+ * client factory of their {@link FhirContext}, so the pool lives on a context owned by this cache: putting it on the
+ * server's context would send every other client of the server through the prefetch pool as well. The application
+ * has one cache, so this context is created once. Clients that are not used for
+ * <code>clientIdleTimeoutMillis</code>, or that fall out of the <code>clientCacheSize</code> bound, are dropped.
+ * Credentials are not part of a client; callers send them per request, so a new access token does not create a new
+ * client.
+ * <p>
+ * A query run through {@link Deadline#run(Supplier)} sends its requests with timeouts no longer than the time left
+ * until its deadline, and {@link Deadline#abort()} aborts the requests it still has in flight, so an abandoned query
+ * does not keep a connection and a prefetch thread busy.
+ */
+public class PrefetchClientCache {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(PrefetchClientCache.class);
+
+	private static final String NO_AUTH = "none";
+
+	private static final ThreadLocal<Deadline> ourDeadline = new ThreadLocal<>();
+
+	private final FhirContext myFhirContext;
+	private final PoolingHttpClientConnectionManager myConnectionManager;
+	private final CloseableHttpClient myHttpClient;
+	private final RequestConfig myRequestConfig;
+	private final Cache<ClientKey, IGenericClient> myClients;
+	private final Counter myHits;
+	private final Counter myMisses;
+	private final Counter myNewConnections;
+	private final Counter myReusedConnections;
+
+	public PrefetchClientCache(
+			FhirContext theFhirContext, CdsHooksProperties.Prefetch theSettings, MeterRegistry theMeterRegistry) {
+		int poolSize = Math.max(1, theSettings.getThreads());
+		myConnectionManager = new PoolingHttpClientConnectionManager();
+		myConnectionManager.setDefaultMaxPerRoute(poolSize);
+		myConnectionManager.setMaxTotal(poolSize * Math.max(1, theSettings.getClientCacheSize()));
+
+		int timeout = (int) theSettings.getTemplateTimeoutMillis();
+		myRequestConfig = RequestConfig.custom()
+				.setConnectTimeout(timeout)
+				.setConnectionRequestTimeout(timeout)
+				.setSocketTimeout(timeout)
+				.build();
+		myHttpClient = HttpClients.custom()
+				.setConnectionManager(myConnectionManager)
+				.setDefaultRequestConfig(myRequestConfig)
+				.disableCookieManagement()
+				.evictExpiredConnections()
+				.evictIdleConnections(theSettings.getConnectionIdleTimeoutMillis(), TimeUnit.MILLISECONDS)
+				.addInterceptorLast((HttpResponseInterceptor) (response, context) ->
+						countConnection(HttpCoreContext.adapt(context).getConnection()))
+				.build();
+
+		myFhirContext = new FhirContext(theFhirContext.getVersion().getVersion());
+		ApacheRestfulClientFactory clientFactory = new ApacheRestfulClientFactory(myFhirContext);
+		clientFactory.setHttpClient(myHttpClient);
+		clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+		myFhirContext.setRestfulClientFactory(clientFactory);
+
+		myClients = Caffeine.newBuilder()
+				.maximumSize(theSettings.getClientCacheSize())
+				.expireAfterAccess(Duration.ofMillis(theSettings.getClientIdleTimeoutMillis()))
+				.build();
+
+		myHits = Counter.builder("cds.prefetch.client.cache")
+				.tag("result", "hit")
+				.register(theMeterRegistry);
+		myMisses = Counter.builder("cds.prefetch.client.cache")
+				.tag("result", "miss")
+				.register(theMeterRegistry);
+		myNewConnections = Counter.builder("cds.prefetch.client.requests")
+				.tag("connection", "new")
+				.register(theMeterRegistry);
+		myReusedConnections = Counter.builder("cds.prefetch.client.requests")
+				.tag("connection", "reused")
+				.register(theMeterRegistry);
+		Gauge.builder("cds.prefetch.client.connections", myConnectionManager, cm -> cm.getTotalStats()
+						.getLeased())
+				.tag("state", "leased")
+				.register(theMeterRegistry);
+		Gauge.builder("cds.prefetch.client.connections", myConnectionManager, cm -> cm.getTotalStats()
+						.getAvailable())
+				.tag("state", "available")
+				.register(theMeterRegistry);
+	}
+
+	/**
+	 * @param theAuthScheme the authorization scheme the requests will carry, e.g. <code>Bearer</code>, or
+	 *                      <code>null</code> for unauthenticated requests
+	 */
+	public IGenericClient getClient(String theBaseUrl, @Nullable String theAuthScheme) {
+		ClientKey key = new ClientKey(
+				StringUtils.removeEnd(theBaseUrl, "/"),
+				StringUtils.defaultIfBlank(theAuthScheme, NO_AUTH).toLowerCase(Locale.ROOT));
+		boolean[] created = {false};
+		IGenericClient client = myClients.get(key, k -> {
+			created[0] = true;
+			ourLog.info("Creating CDS prefetch client for {} ({})", k.baseUrl(), k.authScheme());
+			IGenericClient newClient = myFhirContext.newRestfulGenericClient(k.baseUrl());
+			newClient.registerInterceptor(new DeadlineInterceptor());
+			return newClient;
+		});
+		(created[0] ? myMisses : myHits).increment();
+		return client;
+	}
+
+	public void close() {
+		myClients.invalidateAll();
+		try {
+			myHttpClient.close();
+		} catch (IOException e) {
+			ourLog.warn("Failed to close CDS prefetch connection pool: {}", e.toString());
+		}
+	}
+
+	private void countConnection(HttpConnection theConnection) {
+		try {
+			// the response to the first request on a connection is its request number 1
+			if (theConnection != null && theConnection.getMetrics().getRequestCount() > 1) {
+				myReusedConnections.increment();
+			} else {
+				myNewConnections.increment();
+			}
+		} catch (RuntimeException e) {
+			// connection already released, nothing to count
+		}
+	}
+
+	private record ClientKey(String baseUrl, String authScheme) {}
+
+	/**
+	 * Applies the deadline of the query running on the current thread to each request it sends.
+	 */
+	@Interceptor
+	private class DeadlineInterceptor {
+
+		@Hook(Pointcut.CLIENT_REQUEST)
+		public void clientRequest(IHttpRequest theRequest) {
+			Deadline deadline = ourDeadline.get();
+			if (deadline != null && theRequest instanceof ApacheHttpRequest apacheRequest) {
+				deadline.started(apacheRequest.getApacheRequest(), myRequestConfig);
+			}
+		}
+	}
+
+	/**
+	 * The point in time, as given by {@link System#nanoTime()}, by which a prefetch query has to be answered.
+	 */
+	public static class Deadline {
+
+		private final long myDeadlineNanos;
+		private final Set<HttpRequestBase> myRequests = ConcurrentHashMap.newKeySet();
+		private volatile boolean myAborted;
+
+		public Deadline(long theDeadlineNanos) {
+			myDeadlineNanos = theDeadlineNanos;
+		}
+
+		/**
+		 * Runs the query on the current thread, bounding the requests it sends through a prefetch client. A query
+		 * that fails once its deadline has passed or it was aborted fails with a {@link TimeoutException}, the way
+		 * {@link java.util.concurrent.CompletableFuture#orTimeout} reports it.
+		 */
+		public <T> T run(Supplier<T> theQuery) {
+			ourDeadline.set(this);
+			try {
+				return theQuery.get();
+			} catch (RuntimeException e) {
+				if (myAborted || System.nanoTime() - myDeadlineNanos >= 0) {
+					throw new CompletionException(new TimeoutException("Prefetch query did not complete in time"));
+				}
+				throw e;
+			} finally {
+				ourDeadline.remove();
+			}
+		}
+
+		/**
+		 * Aborts the requests of the query that are still in flight, and any it sends from now on.
+		 */
+		public void abort() {
+			myAborted = true;
+			myRequests.forEach(HttpRequestBase::abort);
+		}
+
+		void started(HttpRequestBase theRequest, RequestConfig theRequestConfig) {
+			myRequests.add(theRequest);
+			long remainingMillis = TimeUnit.NANOSECONDS.toMillis(myDeadlineNanos - System.nanoTime());
+			if (myAborted || remainingMillis <= 0) {
+				theRequest.abort();
+				return;
+			}
+			int timeout = (int) Math.min(remainingMillis, Math.max(1, theRequestConfig.getSocketTimeout()));
+			theRequest.setConfig(RequestConfig.copy(theRequestConfig)
+					.setConnectTimeout(timeout)
+					.setConnectionRequestTimeout(timeout)
+					.setSocketTimeout(timeout)
+					.build());
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable code list used to build prefetch queries, held as a sorted array of distinct codes.
+ * <p>
+ * The classpath format is one code per line; blank lines and lines starting with <code>#</code> are ignored.
+ */
+public class PrefetchCodeSet {
+
+	private final String[] myCodes;
+
+	public PrefetchCodeSet(String... theCodes) {
+		myCodes = Arrays.stream(theCodes)
+				.filter(StringUtils::isNotBlank)
+				.map(String::trim)
+				.distinct()
+				.sorted()
+				.toArray(String[]::new);
+	}
+
+	public static PrefetchCodeSet fromClasspath(String theResource) {
+		InputStream stream = PrefetchCodeSet.class.getClassLoader().getResourceAsStream(theResource);
+		if (stream == null) {
+			throw new ConfigurationException("Prefetch code list was not found on classpath: " + theResource);
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+			return new PrefetchCodeSet(
+					reader.lines().filter(line -> !line.startsWith("#")).toArray(String[]::new));
+		} catch (IOException e) {
+			throw new ConfigurationException("Unable to read prefetch code list " + theResource, e);
+		}
+	}
+
+	public int size() {
+		return myCodes.length;
+	}
+
+	public boolean contains(String theCode) {
+		return Arrays.binarySearch(myCodes, theCode) >= 0;
+	}
+
+	/**
+	 * @return the codes split into comma separated token lists of at most <code>theChunkSize</code> codes each
+	 */
+	public List<String> chunks(int theChunkSize) {
+		int chunkSize = Math.max(1, theChunkSize);
+		List<String> chunks = new ArrayList<>((myCodes.length + chunkSize - 1) / chunkSize);
+		for (int from = 0; from < myCodes.length; from += chunkSize) {
+			chunks.add(String.join(",", Arrays.copyOfRange(myCodes, from, Math.min(myCodes.length, from + chunkSize))));
+		}
+		return chunks;
+	}
+}
@@ -0,0 +1,194 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.util.BundleUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.Nullable;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps CDS Hooks prefetch results for a short time, so repeated hook calls for the same chart do not run the same
+ * queries again.
+ * <p>
+ * Entries are keyed by fhirServer, a digest of the authorization, service, patient, prefetch item and date bucket,
+ * so no access token is kept in memory as part of a key. They expire after
+ * <code>resultCacheTtlMillis</code>. Registered as an interceptor of the JPA server, a write of a resource of a
+ * watched type also evicts the entries of the patients it belongs to, and every entry that contains it, as the write
+ * is committed. Only writes made on this node are seen; those of other nodes and of a remote fhirServer rely on the
+ * TTL alone.
+ * <p>
+ * Hits are reported as <code>cds.prefetch.results</code> cache metrics, and the fetch time each hit avoided as
+ * <code>cds.prefetch.results.saved</code>.
+ */
+@Interceptor
+public class PrefetchResultCache {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(PrefetchResultCache.class);
+
+	private static final String PATIENT = "Patient";
+
+	private final FhirContext myFhirContext;
+	private final Set<String> myResourceTypes;
+	private final Cache<Key, CachedResult> myResults;
+	private final Timer mySavedLatency;
+
+	/**
+	 * @param theResourceTypes the types whose writes evict entries, which must cover every type the prefetch queries
+	 *                         can return
+	 */
+	public PrefetchResultCache(
+			FhirContext theFhirContext,
+			Collection<String> theResourceTypes,
+			CdsHooksProperties.Prefetch theSettings,
+			MeterRegistry theMeterRegistry) {
+		myFhirContext = theFhirContext;
+		myResourceTypes = Set.copyOf(theResourceTypes);
+		myResults = Caffeine.newBuilder()
+				.maximumSize(theSettings.getResultCacheSize())
+				.expireAfterWrite(Duration.ofMillis(theSettings.getResultCacheTtlMillis()))
+				.recordStats()
+				.build();
+		CaffeineCacheMetrics.monitor(theMeterRegistry, myResults, "cds.prefetch.results");
+		mySavedLatency = Timer.builder("cds.prefetch.results.saved")
+				.description("Prefetch fetch time avoided by cache hits")
+				.register(theMeterRegistry);
+	}
+
+	@Nullable
+	public IBaseResource get(Key theKey) {
+		CachedResult cached = myResults.getIfPresent(theKey);
+		if (cached == null) {
+			return null;
+		}
+		mySavedLatency.record(cached.fetchNanos(), TimeUnit.NANOSECONDS);
+		return myFhirContext.newTerser().clone(cached.resource());
+	}
+
+	public void put(Key theKey, IBaseResource theResource, long theFetchNanos) {
+		myResults.put(
+				theKey,
+				new CachedResult(myFhirContext.newTerser().clone(theResource), theFetchNanos, resourceIds(theResource)));
+	}
+
+	public void clear() {
+		myResults.invalidateAll();
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		evict(Set.of(), theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		// the resource may have moved to another patient
+		evict(Set.of(versionlessId(theNewResource)), theOldResource, theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		evict(Set.of(versionlessId(theResource)), theResource);
+	}
+
+	/**
+	 * Evicts the entries that contain one of the changed resources or belong to a patient of the written resources.
+	 * The patients are taken from the written resources themselves, so nothing is read.
+	 */
+	private void evict(Set<String> theChangedIds, IBaseResource... theResources) {
+		String resourceType = myFhirContext.getResourceType(theResources[0]);
+		if (!myResourceTypes.contains(resourceType) || myResults.estimatedSize() == 0) {
+			return;
+		}
+		Set<String> patientIds = new HashSet<>();
+		for (IBaseResource resource : theResources) {
+			if (PATIENT.equals(resourceType)) {
+				patientIds.add(resource.getIdElement().getIdPart());
+			} else {
+				for (IIdType owner :
+						myFhirContext.newTerser().getCompartmentOwnersForResource(PATIENT, resource, Set.of())) {
+					patientIds.add(owner.getIdPart());
+				}
+			}
+		}
+
+		int before = myResults.asMap().size();
+		myResults
+				.asMap()
+				.entrySet()
+				.removeIf(entry -> patientIds.contains(entry.getKey().patientId())
+						|| entry.getValue().resourceIds().stream().anyMatch(theChangedIds::contains));
+		ourLog.debug("Evicted {} cached prefetch results", before - myResults.asMap().size());
+	}
+
+	private static String versionlessId(IBaseResource theResource) {
+		return theResource.getIdElement().toUnqualifiedVersionless().getValue();
+	}
+
+	private Set<String> resourceIds(IBaseResource theResource) {
+		List<IBaseResource> resources = theResource instanceof IBaseBundle
+				? BundleUtil.toListOfResources(myFhirContext, (IBaseBundle) theResource)
+				: List.of(theResource);
+		Set<String> ids = new HashSet<>();
+		for (IBaseResource resource : resources) {
+			IIdType id = resource.getIdElement();
+			if (id != null && id.hasIdPart()) {
+				ids.add(id.toUnqualifiedVersionless().getValue());
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * @param authorization the <code>Authorization</code> header the result was fetched with, since what a token may
+	 *                      see differs; only its SHA-256 digest is kept
+	 * @param dateBucket    the date the date-bound templates were resolved against
+	 */
+	public record Key(
+			String fhirServer,
+			String authorization,
+			String serviceId,
+			String patientId,
+			String prefetchKey,
+			String dateBucket) {
+
+		public Key {
+			fhirServer = StringUtils.removeEnd(StringUtils.defaultString(fhirServer), "/");
+			authorization = authorization == null ? "" : sha256(authorization);
+			patientId = StringUtils.removeStart(patientId, "Patient/");
+		}
+	}
+
+	private static String sha256(String theValue) {
+		try {
+			return HexFormat.of()
+					.formatHex(MessageDigest.getInstance("SHA-256").digest(theValue.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private record CachedResult(IBaseResource resource, long fetchNanos, Set<String> resourceIds) {}
+}
@@ -1,13 +1,26 @@
 package ca.uhn.fhir.jpa.starter.cdshooks;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
+import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.cr.*;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsHooksDaoAuthorizationSvc;
 import ca.uhn.hapi.fhir.cdshooks.config.CdsHooksConfig;
 import ca.uhn.hapi.fhir.cdshooks.svc.CdsHooksContextBooter;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchDaoSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchFhirClientSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsResolutionStrategySvc;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.fhir.cr.hapi.cdshooks.CdsCrSettings;
 import org.opencds.cqf.fhir.cr.hapi.config.CrCdsHooksConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.RepositoryConfig;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
@@ -15,6 +28,8 @@ import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 
+import java.util.concurrent.ExecutorService;
+
 @Configuration
 @Conditional({CdsHooksConfigCondition.class, CrConfigCondition.class})
 @Import({RepositoryConfig.class, CrCdsHooksConfig.class, CrCommonConfig.class, CdsHooksConfig.class})
@@ -49,16 +64,93 @@ public class StarterCdsHooksConfig {
 		return new CdsHooksDaoAuthorizationSvc();
 	}
 
+	@Bean(destroyMethod = "shutdown")
+	public ExecutorService cdsPrefetchExecutor(CdsHooksProperties theCdsHooksProperties) {
+		return ModuleConfigurationPrefetchSvc.newPrefetchExecutor(theCdsHooksProperties.getPrefetch());
+	}
+
+	@Bean(destroyMethod = "close")
+	public PrefetchClientCache prefetchClientCache(
+			CdsHooksProperties theCdsHooksProperties,
+			FhirContext theFhirContext,
+			ObjectProvider<MeterRegistry> theMeterRegistry) {
+		return new PrefetchClientCache(
+				theFhirContext,
+				theCdsHooksProperties.getPrefetch(),
+				theMeterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+	}
+
+	/**
+	 * Watches the writes of every resource type the prefetch templates can return, so a write on this node evicts the
+	 * results it affects before their TTL.
+	 */
+	@Bean
+	public PrefetchResultCache prefetchResultCache(
+			CdsHooksProperties theCdsHooksProperties,
+			FhirContext theFhirContext,
+			IInterceptorService theInterceptorService,
+			ObjectProvider<MeterRegistry> theMeterRegistry) {
+		PrefetchResultCache resultCache = new PrefetchResultCache(
+				theFhirContext,
+				ModuleConfigurationPrefetchSvc.PREFETCH_RESOURCE_TYPES,
+				theCdsHooksProperties.getPrefetch(),
+				theMeterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+		theInterceptorService.registerInterceptor(resultCache);
+		return resultCache;
+	}
+
+	@Bean
+	public LocalPrefetchResolver localPrefetchResolver(
+			DaoRegistry theDaoRegistry,
+			MatchUrlService theMatchUrlService,
+			FhirContext theFhirContext,
+			AppProperties theAppProperties) {
+		return new LocalPrefetchResolver(theDaoRegistry, theMatchUrlService, theFhirContext, theAppProperties);
+	}
+
+	/**
+	 * Prefetches the hook calls of the configured module services before they reach the CDS service registry, which
+	 * keeps the <code>cdsPrefetchSvc</code> of {@link CdsHooksConfig} for the prefetch templates of every service.
+	 * Not an autowire candidate, so that it does not compete with that <code>cdsPrefetchSvc</code>.
+	 */
+	@Bean(autowireCandidate = false)
+	public ModuleConfigurationPrefetchSvc moduleConfigurationPrefetchSvc(
+			CdsResolutionStrategySvc theCdsResolutionStrategySvc,
+			CdsPrefetchDaoSvc theResourcePrefetchDao,
+			CdsPrefetchFhirClientSvc theResourcePrefetchFhirClient,
+			ICdsHooksDaoAuthorizationSvc theCdsHooksDaoAuthorizationSvc,
+			IInterceptorBroadcaster theInterceptorBroadcaster,
+			CdsHooksProperties theCdsHooksProperties,
+			@Qualifier("cdsPrefetchExecutor") ExecutorService thePrefetchExecutor,
+			PrefetchClientCache thePrefetchClientCache,
+			PrefetchResultCache thePrefetchResultCache,
+			LocalPrefetchResolver theLocalPrefetchResolver) {
+		return new ModuleConfigurationPrefetchSvc(
+				theCdsResolutionStrategySvc,
+				theResourcePrefetchDao,
+				theResourcePrefetchFhirClient,
+				theCdsHooksDaoAuthorizationSvc,
+				theInterceptorBroadcaster,
+				theCdsHooksProperties.getPrefetch(),
+				thePrefetchExecutor,
+				thePrefetchClientCache,
+				thePrefetchResultCache,
+				theLocalPrefetchResolver);
+	}
+
 	@Bean
 	public ServletRegistrationBean<CdsHooksServlet> cdsHooksRegistrationBean(AutowireCapableBeanFactory beanFactory) {
 		CdsHooksServlet cdsHooksServlet = new CdsHooksServlet();
 		beanFactory.autowireBean(cdsHooksServlet);
+		cdsHooksServlet.setModulePrefetchSvc(
+				beanFactory.getBean("moduleConfigurationPrefetchSvc", ModuleConfigurationPrefetchSvc.class));
 
 		ServletRegistrationBean<CdsHooksServlet> registrationBean = new ServletRegistrationBean<>();
 		registrationBean.setName("cds-hooks servlet");
 		registrationBean.setServlet(cdsHooksServlet);
 		registrationBean.addUrlMappings("/cds-services/*");
 		registrationBean.setLoadOnStartup(1);
+		registrationBean.setAsyncSupported(true);
 		return registrationBean;
 	}
 }
@@ -9,7 +9,6 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.context.support.IValidationSupport;
 import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
-import ca.uhn.fhir.interceptor.model.RequestPartitionId;
 import ca.uhn.fhir.jpa.api.IDaoRegistry;
 import ca.uhn.fhir.jpa.api.config.JpaStorageSettings;
 import ca.uhn.fhir.jpa.api.config.ThreadPoolFactoryConfig;
@@ -30,9 +29,9 @@ import ca.uhn.fhir.jpa.interceptor.UserRequestRetryVersionConflictsInterceptor;
 import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingInterceptor;
 import ca.uhn.fhir.jpa.ips.provider.IpsOperationProvider;
 import ca.uhn.fhir.jpa.model.config.SubscriptionSettings;
-import ca.uhn.fhir.jpa.packages.AdditionalResourcesParser;
 import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
 import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
+import ca.uhn.fhir.jpa.partition.IRequestPartitionHelperSvc;
 import ca.uhn.fhir.jpa.provider.DaoRegistryResourceSupportedSvc;
 import ca.uhn.fhir.jpa.provider.DiffProvider;
 import ca.uhn.fhir.jpa.provider.IJpaSystemProvider;
@@ -51,14 +50,18 @@ import ca.uhn.fhir.jpa.starter.annotations.OnImplementationGuidesPresent;
 import ca.uhn.fhir.jpa.starter.common.validation.IRepositoryValidationInterceptorFactory;
 import ca.uhn.fhir.jpa.starter.elastic.ElasticsearchBootSvcImpl;
 import ca.uhn.fhir.jpa.starter.ig.ExtendedPackageInstallationSpec;
+import ca.uhn.fhir.jpa.starter.ig.ImplementationGuideFingerprints;
+import ca.uhn.fhir.jpa.starter.ig.ImplementationGuideInstaller;
+import ca.uhn.fhir.jpa.starter.ig.ImplementationGuideStartupInstaller;
 import ca.uhn.fhir.jpa.starter.ig.IImplementationGuideOperationProvider;
+import ca.uhn.fhir.jpa.starter.validation.ValidationOutcomeCache;
 import ca.uhn.fhir.jpa.subscription.util.SubscriptionDebugLogInterceptor;
 import ca.uhn.fhir.jpa.util.ResourceCountCache;
 import ca.uhn.fhir.mdm.provider.MdmProviderLoader;
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
 import ca.uhn.fhir.narrative2.NullNarrativeGenerator;
 import ca.uhn.fhir.rest.api.IResourceSupportedSvc;
-import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.openapi.OpenApiInterceptor;
 import ca.uhn.fhir.rest.server.ApacheProxyAddressStrategy;
 import ca.uhn.fhir.rest.server.ETagSupportEnum;
@@ -76,12 +79,13 @@ import ca.uhn.fhir.rest.server.provider.ResourceProviderFactory;
 import ca.uhn.fhir.rest.server.util.ISearchParamRegistry;
 import ca.uhn.fhir.validation.IValidatorModule;
 import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.ValidationResult;
 import com.google.common.base.Strings;
 import jakarta.persistence.EntityManagerFactory;
 import org.hibernate.boot.model.naming.CamelCaseToUnderscoresNamingStrategy;
 import org.hibernate.cfg.AvailableSettings;
 import org.hibernate.search.mapper.orm.cfg.HibernateOrmMapperSettings;
-import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
@@ -102,6 +106,7 @@ import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
 import org.springframework.web.cors.CorsConfiguration;
 
 import java.util.*;
+import java.util.function.Supplier;
 import javax.sql.DataSource;
 
 import static ca.uhn.fhir.jpa.starter.common.validation.IRepositoryValidationInterceptorFactory.ENABLE_REPOSITORY_VALIDATING_INTERCEPTOR;
@@ -227,50 +232,38 @@ public class StarterJpaConfig {
 		return loggingInterceptor;
 	}
 
-	@Bean("packageInstaller")
-	@Primary
+	@Bean
 	@Conditional(OnImplementationGuidesPresent.class)
-	public IPackageInstallerSvc packageInstaller(
+	public ImplementationGuideStartupInstaller implementationGuideStartupInstaller(
 			AppProperties appProperties,
 			IPackageInstallerSvc packageInstallerSvc,
 			Batch2JobRegisterer batch2JobRegisterer,
 			FhirContext fhirContext,
 			TransactionProcessor transactionProcessor,
-			IHapiPackageCacheManager iHapiPackageCacheManager) {
-
-		batch2JobRegisterer.start();
-
-		if (appProperties.getImplementationGuides() != null) {
-			Map<String, ExtendedPackageInstallationSpec> guides = appProperties.getImplementationGuides();
-			for (Map.Entry<String, ExtendedPackageInstallationSpec> guidesEntry : guides.entrySet()) {
-				ExtendedPackageInstallationSpec packageInstallationSpec = guidesEntry.getValue();
-				if (appProperties.getInstall_transitive_ig_dependencies()) {
-
-					packageInstallationSpec
-							.addDependencyExclude("hl7.fhir.r2.core")
-							.addDependencyExclude("hl7.fhir.r3.core")
-							.addDependencyExclude("hl7.fhir.r4.core")
-							.addDependencyExclude("hl7.fhir.r5.core");
-				}
-
-				packageInstallerSvc.install(packageInstallationSpec);
-
-				Set<String> extraResources = packageInstallationSpec.getAdditionalResourceFolders();
-				packageInstallationSpec.setPackageContents(iHapiPackageCacheManager
-						.loadPackageContents(packageInstallationSpec.getName(), packageInstallationSpec.getVersion())
-						.getBytes());
-
-				if (extraResources != null && !extraResources.isEmpty()) {
-					IBaseBundle transaction = AdditionalResourcesParser.bundleAdditionalResources(
-							extraResources, packageInstallationSpec, fhirContext);
-					transactionProcessor.transaction(
-							new SystemRequestDetails().setRequestPartitionId(RequestPartitionId.defaultPartition()),
-							transaction,
-							false);
-				}
+			IHapiPackageCacheManager iHapiPackageCacheManager,
+			DaoRegistry daoRegistry) {
+
+		Map<String, ExtendedPackageInstallationSpec> guides = appProperties.getImplementationGuides();
+		if (appProperties.getInstall_transitive_ig_dependencies()) {
+			for (ExtendedPackageInstallationSpec packageInstallationSpec : guides.values()) {
+				packageInstallationSpec
+						.addDependencyExclude("hl7.fhir.r2.core")
+						.addDependencyExclude("hl7.fhir.r3.core")
+						.addDependencyExclude("hl7.fhir.r4.core")
+						.addDependencyExclude("hl7.fhir.r5.core");
 			}
 		}
-		return packageInstallerSvc;
+
+		ImplementationGuideInstaller installer = new ImplementationGuideInstaller(
+				packageInstallerSvc,
+				iHapiPackageCacheManager,
+				transactionProcessor,
+				fhirContext,
+				appProperties.getIg_install_threads(),
+				appProperties.getIg_additional_resources_batch_size(),
+				appProperties.getIg_skip_unchanged() ? new ImplementationGuideFingerprints(daoRegistry) : null,
+				appProperties.getIg_force_reinstall());
+		return new ImplementationGuideStartupInstaller(batch2JobRegisterer, installer, guides.values());
 	}
 
 	@Bean
@@ -334,7 +327,9 @@ public class StarterJpaConfig {
 			ApplicationContext appContext,
 			Optional<IpsOperationProvider> theIpsOperationProvider,
 			Optional<IImplementationGuideOperationProvider> implementationGuideOperationProvider,
-			DiffProvider diffProvider) {
+			DiffProvider diffProvider,
+			Optional<ValidationOutcomeCache> validationOutcomeCache,
+			IRequestPartitionHelperSvc requestPartitionHelperSvc) {
 		RestfulServer fhirServer = new RestfulServer(fhirSystemDao.getContext());
 
 		List<String> supportedResourceTypes = appProperties.getSupported_resource_types();
@@ -458,16 +453,37 @@ public class StarterJpaConfig {
 		// Validation
 
 		if (validatorModule != null) {
+			// identical resources are validated once until the conformance resources change
+			IValidatorModule validator =
+					validationOutcomeCache.map(cache -> cache.cached(validatorModule)).orElse(validatorModule);
 			if (appProperties.getValidation().getRequests_enabled()) {
-				RequestValidatingInterceptor interceptor = new RequestValidatingInterceptor();
+				RequestValidatingInterceptor interceptor = new RequestValidatingInterceptor() {
+					@Override
+					protected ValidationResult validate(String theRequest, RequestDetails theRequestDetails) {
+						return validateInPartition(
+								validationOutcomeCache,
+								requestPartitionHelperSvc,
+								theRequestDetails,
+								() -> super.validate(theRequest, theRequestDetails));
+					}
+				};
 				interceptor.setFailOnSeverity(ResultSeverityEnum.ERROR);
-				interceptor.setValidatorModules(Collections.singletonList(validatorModule));
+				interceptor.setValidatorModules(Collections.singletonList(validator));
 				fhirServer.registerInterceptor(interceptor);
 			}
 			if (appProperties.getValidation().getResponses_enabled()) {
-				ResponseValidatingInterceptor interceptor = new ResponseValidatingInterceptor();
+				ResponseValidatingInterceptor interceptor = new ResponseValidatingInterceptor() {
+					@Override
+					protected ValidationResult validate(IBaseResource theResponse, RequestDetails theRequestDetails) {
+						return validateInPartition(
+								validationOutcomeCache,
+								requestPartitionHelperSvc,
+								theRequestDetails,
+								() -> super.validate(theResponse, theRequestDetails));
+					}
+				};
 				interceptor.setFailOnSeverity(ResultSeverityEnum.ERROR);
-				interceptor.setValidatorModules(Collections.singletonList(validatorModule));
+				interceptor.setValidatorModules(Collections.singletonList(validator));
 				fhirServer.registerInterceptor(interceptor);
 			}
 		}
@@ -521,6 +537,24 @@ public class StarterJpaConfig {
 		return fhirServer;
 	}
 
+	/**
+	 * Validates with the outcomes cached for the partition of the request, if validation outcomes are cached.
+	 */
+	private static ValidationResult validateInPartition(
+			Optional<ValidationOutcomeCache> theValidationOutcomeCache,
+			IRequestPartitionHelperSvc theRequestPartitionHelperSvc,
+			RequestDetails theRequestDetails,
+			Supplier<ValidationResult> theValidation) {
+		if (theValidationOutcomeCache.isEmpty()) {
+			return theValidation.get();
+		}
+		return theValidationOutcomeCache
+				.get()
+				.inPartition(
+						theRequestPartitionHelperSvc.determineGenericPartitionForRequest(theRequestDetails),
+						theValidation);
+	}
+
 	/**
 	 * check the properties for custom interceptor classes and registers them.
 	 */
@@ -0,0 +1,90 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.interceptor.executor.InterceptorService;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.interceptor.validation.IRepositoryValidatingRule;
+import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingInterceptor;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.storage.TransactionDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.List;
+
+/**
+ * A {@link RepositoryValidatingInterceptor} whose rules can be replaced while it is registered.
+ * <p>
+ * {@link RepositoryValidatingInterceptor#setRules(List)} clears and refills the rules in place, so a resource stored
+ * meanwhile may be checked against some of them only. Here each set of rules is kept by an interceptor of its own,
+ * which the hooks of this one call, and {@link #setRules(List)} replaces it in a single step: every resource is checked
+ * against either the former or the new rules, never a mix.
+ */
+public class ReloadableRepositoryValidatingInterceptor extends RepositoryValidatingInterceptor {
+
+	private final FhirContext myFhirContext;
+	private volatile Rules myRules;
+
+	public ReloadableRepositoryValidatingInterceptor(
+			FhirContext theFhirContext, List<IRepositoryValidatingRule> theRules) {
+		// the rules of the superclass stay empty, its own hooks have nothing to check
+		super.setFhirContext(theFhirContext);
+		myFhirContext = theFhirContext;
+		setRules(theRules);
+	}
+
+	@Override
+	public void setRules(List<IRepositoryValidatingRule> theRules) {
+		RepositoryValidatingInterceptor interceptor = new RepositoryValidatingInterceptor(myFhirContext, theRules);
+		IInterceptorService hooks = new InterceptorService("repository-validation");
+		hooks.registerInterceptor(interceptor);
+		myRules = new Rules(interceptor, hooks);
+	}
+
+	@Override
+	public String describeRules() {
+		return myRules.interceptor().describeRules();
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED)
+	public void validateCreate(
+			IBaseResource theResource,
+			RequestDetails theRequestDetails,
+			ServletRequestDetails theServletRequestDetails,
+			TransactionDetails theTransactionDetails,
+			RequestPartitionId theRequestPartitionId) {
+		myRules.hooks()
+				.callHooks(
+						Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED,
+						new HookParams()
+								.add(IBaseResource.class, theResource)
+								.add(RequestDetails.class, theRequestDetails)
+								.add(ServletRequestDetails.class, theServletRequestDetails)
+								.add(TransactionDetails.class, theTransactionDetails)
+								.add(RequestPartitionId.class, theRequestPartitionId));
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_UPDATED)
+	public void validateUpdate(
+			IBaseResource theOldResource,
+			IBaseResource theNewResource,
+			RequestDetails theRequestDetails,
+			ServletRequestDetails theServletRequestDetails,
+			TransactionDetails theTransactionDetails) {
+		myRules.hooks()
+				.callHooks(
+						Pointcut.STORAGE_PRESTORAGE_RESOURCE_UPDATED,
+						new HookParams()
+								.add(IBaseResource.class, theOldResource)
+								.add(IBaseResource.class, theNewResource)
+								.add(RequestDetails.class, theRequestDetails)
+								.add(ServletRequestDetails.class, theServletRequestDetails)
+								.add(TransactionDetails.class, theTransactionDetails));
+	}
+
+	private record Rules(RepositoryValidatingInterceptor interceptor, IInterceptorService hooks) {}
+}
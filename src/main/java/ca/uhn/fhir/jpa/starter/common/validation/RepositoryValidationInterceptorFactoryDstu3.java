@@ -2,22 +2,17 @@ package ca.uhn.fhir.jpa.starter.common.validation;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
-import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
 import ca.uhn.fhir.jpa.interceptor.validation.IRepositoryValidatingRule;
 import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingInterceptor;
 import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingRuleBuilder;
-import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.jpa.starter.annotations.OnDSTU3Condition;
-import ca.uhn.fhir.rest.api.server.IBundleProvider;
-import ca.uhn.fhir.rest.param.TokenParam;
-import org.hl7.fhir.dstu3.model.StructureDefinition;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 import static ca.uhn.fhir.jpa.starter.common.validation.IRepositoryValidationInterceptorFactory.ENABLE_REPOSITORY_VALIDATING_INTERCEPTOR;
 
@@ -35,35 +30,26 @@ public class RepositoryValidationInterceptorFactoryDstu3 implements IRepositoryV
 
 	private final FhirContext fhirContext;
 	private final RepositoryValidatingRuleBuilder repositoryValidatingRuleBuilder;
-	private final IFhirResourceDao structureDefinitionResourceProvider;
+	private final ObjectProvider<RepositoryValidatingRuleBuilder> repositoryValidatingRuleBuilders;
+	private final DaoRegistry daoRegistry;
+	private final IResourceChangeListenerRegistry resourceChangeListenerRegistry;
 
 	public RepositoryValidationInterceptorFactoryDstu3(
-			RepositoryValidatingRuleBuilder repositoryValidatingRuleBuilder, DaoRegistry daoRegistry) {
+			RepositoryValidatingRuleBuilder repositoryValidatingRuleBuilder,
+			ObjectProvider<RepositoryValidatingRuleBuilder> repositoryValidatingRuleBuilders,
+			DaoRegistry daoRegistry,
+			IResourceChangeListenerRegistry resourceChangeListenerRegistry) {
 		this.repositoryValidatingRuleBuilder = repositoryValidatingRuleBuilder;
+		this.repositoryValidatingRuleBuilders = repositoryValidatingRuleBuilders;
 		this.fhirContext = daoRegistry.getSystemDao().getContext();
-		structureDefinitionResourceProvider = daoRegistry.getResourceDao("StructureDefinition");
+		this.daoRegistry = daoRegistry;
+		this.resourceChangeListenerRegistry = resourceChangeListenerRegistry;
 	}
 
 	public RepositoryValidatingInterceptor buildUsingStoredStructureDefinitions() {
-
-		IBundleProvider results = structureDefinitionResourceProvider.search(new SearchParameterMap()
-				.setLoadSynchronous(true)
-				.add(StructureDefinition.SP_KIND, new TokenParam("resource")));
-		Map<String, List<StructureDefinition>> structureDefinitions = results.getResources(0, results.size()).stream()
-				.map(StructureDefinition.class::cast)
-				.collect(Collectors.groupingBy(StructureDefinition::getType));
-
-		structureDefinitions.forEach((key, value) -> {
-			String[] urls = value.stream().map(StructureDefinition::getUrl).toArray(String[]::new);
-			repositoryValidatingRuleBuilder
-					.forResourcesOfType(key)
-					.requireAtLeastOneProfileOf(urls)
-					.and()
-					.requireValidationToDeclaredProfiles();
-		});
-
-		List<IRepositoryValidatingRule> rules = repositoryValidatingRuleBuilder.build();
-		return new RepositoryValidatingInterceptor(fhirContext, rules);
+		// the rules follow the stored StructureDefinitions as they are created, updated and deleted
+		return StoredProfileRuleRegistry.start(
+				daoRegistry, repositoryValidatingRuleBuilders::getObject, resourceChangeListenerRegistry);
 	}
 
 	public RepositoryValidatingInterceptor build() {
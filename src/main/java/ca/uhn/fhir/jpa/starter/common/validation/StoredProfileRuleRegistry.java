@@ -0,0 +1,201 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.interceptor.validation.IRepositoryValidatingRule;
+import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingRuleBuilder;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the rules of a {@link ReloadableRepositoryValidatingInterceptor} in line with the StructureDefinitions of
+ * kind <code>resource</code> stored on this server: a resource of a type with stored profiles must declare and
+ * conform to at least one of them.
+ * <p>
+ * The StructureDefinitions are read page by page, and only the type and url of each one is kept. Afterwards every
+ * created, updated or deleted StructureDefinition is read on its own, and only the rules of the resource types whose
+ * profiles changed are built again before all rules are swapped into the interceptor at once.
+ */
+public class StoredProfileRuleRegistry implements IResourceChangeListener {
+	private static final Logger ourLog = LoggerFactory.getLogger(StoredProfileRuleRegistry.class);
+
+	static final int PAGE_SIZE = 100;
+	private static final String STRUCTURE_DEFINITION = "StructureDefinition";
+
+	private final IFhirResourceDao<?> myStructureDefinitionDao;
+	private final FhirTerser myTerser;
+	private final Supplier<RepositoryValidatingRuleBuilder> myRuleBuilders;
+	private final ReloadableRepositoryValidatingInterceptor myInterceptor;
+	// StructureDefinition resource id -> the profile it declares
+	private final Map<String, Profile> myProfiles = new HashMap<>();
+	// resource type -> the rules built from its profiles
+	private final Map<String, List<IRepositoryValidatingRule>> myRules = new TreeMap<>();
+
+	public StoredProfileRuleRegistry(
+			DaoRegistry theDaoRegistry,
+			Supplier<RepositoryValidatingRuleBuilder> theRuleBuilders,
+			ReloadableRepositoryValidatingInterceptor theInterceptor) {
+		myStructureDefinitionDao = theDaoRegistry.getResourceDao(STRUCTURE_DEFINITION);
+		myTerser = theDaoRegistry.getFhirContext().newTerser();
+		myRuleBuilders = theRuleBuilders;
+		myInterceptor = theInterceptor;
+	}
+
+	/**
+	 * Builds the rules of all stored profiles into a new interceptor, and keeps them up to date from then on.
+	 */
+	public static ReloadableRepositoryValidatingInterceptor start(
+			DaoRegistry theDaoRegistry,
+			Supplier<RepositoryValidatingRuleBuilder> theRuleBuilders,
+			IResourceChangeListenerRegistry theResourceChangeListenerRegistry) {
+		ReloadableRepositoryValidatingInterceptor interceptor =
+				new ReloadableRepositoryValidatingInterceptor(theDaoRegistry.getFhirContext(), List.of());
+		StoredProfileRuleRegistry registry =
+				new StoredProfileRuleRegistry(theDaoRegistry, theRuleBuilders, interceptor);
+		registry.load();
+		theResourceChangeListenerRegistry.registerResourceResourceChangeListener(
+				STRUCTURE_DEFINITION, SearchParameterMap.newSynchronous(), registry, 1000);
+		return interceptor;
+	}
+
+	/**
+	 * Reads the stored profiles a page at a time and builds the rules of all of them.
+	 */
+	public synchronized void load() {
+		IBundleProvider results = myStructureDefinitionDao.search(
+				new SearchParameterMap().add("kind", new TokenParam("resource")), new SystemRequestDetails());
+		int count = 0;
+		for (int from = 0; ; from += PAGE_SIZE) {
+			List<IBaseResource> page = results.getResources(from, from + PAGE_SIZE);
+			for (IBaseResource structureDefinition : page) {
+				Profile profile = profile(structureDefinition);
+				if (profile != null) {
+					myProfiles.put(
+							structureDefinition.getIdElement().toUnqualifiedVersionless().getValue(), profile);
+				}
+			}
+			count += page.size();
+			if (page.size() < PAGE_SIZE) {
+				break;
+			}
+		}
+		rebuild(myProfiles.values().stream().map(Profile::type).collect(Collectors.toCollection(TreeSet::new)));
+		ourLog.info(
+				"Built repository validation rules from {} stored profiles of {} resource types",
+				count,
+				myRules.size());
+	}
+
+	/**
+	 * The profiles present at startup were already read by {@link #load()}.
+	 */
+	@Override
+	public void handleInit(Collection<IIdType> theResourceIds) {}
+
+	@Override
+	public synchronized void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+		if (theResourceChangeEvent == null) {
+			return;
+		}
+		Set<String> changedTypes = new TreeSet<>();
+		theResourceChangeEvent.getCreatedResourceIds().forEach(id -> changed(id, false, changedTypes));
+		theResourceChangeEvent.getUpdatedResourceIds().forEach(id -> changed(id, false, changedTypes));
+		theResourceChangeEvent.getDeletedResourceIds().forEach(id -> changed(id, true, changedTypes));
+		if (!changedTypes.isEmpty()) {
+			rebuild(changedTypes);
+			ourLog.info("Rebuilt the repository validation rules of {}", changedTypes);
+		}
+	}
+
+	private void changed(IIdType theId, boolean theDeleted, Set<String> theChangedTypes) {
+		if (!STRUCTURE_DEFINITION.equals(theId.getResourceType())) {
+			return;
+		}
+		String id = theId.toUnqualifiedVersionless().getValue();
+		Profile current = theDeleted ? null : currentProfile(theId);
+		Profile previous = current == null ? myProfiles.remove(id) : myProfiles.put(id, current);
+		if (Objects.equals(current, previous)) {
+			return;
+		}
+		if (previous != null) {
+			theChangedTypes.add(previous.type());
+		}
+		if (current != null) {
+			theChangedTypes.add(current.type());
+		}
+	}
+
+	/**
+	 * Builds the rules of the given resource types again, and swaps all rules into the interceptor.
+	 */
+	private void rebuild(Set<String> theResourceTypes) {
+		for (String resourceType : theResourceTypes) {
+			String[] urls = myProfiles.values().stream()
+					.filter(profile -> profile.type().equals(resourceType))
+					.map(Profile::url)
+					.sorted()
+					.toArray(String[]::new);
+			if (urls.length == 0) {
+				myRules.remove(resourceType);
+				continue;
+			}
+			RepositoryValidatingRuleBuilder builder = myRuleBuilders.get();
+			builder.forResourcesOfType(resourceType)
+					.requireAtLeastOneProfileOf(urls)
+					.and()
+					.requireValidationToDeclaredProfiles();
+			myRules.put(resourceType, builder.build());
+		}
+		List<IRepositoryValidatingRule> rules = new ArrayList<>();
+		myRules.values().forEach(rules::addAll);
+		myInterceptor.setRules(rules);
+	}
+
+	private Profile currentProfile(IIdType theId) {
+		try {
+			return profile(
+					myStructureDefinitionDao.read(theId.toUnqualifiedVersionless(), new SystemRequestDetails()));
+		} catch (ResourceGoneException | ResourceNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The type and url of a StructureDefinition of kind <code>resource</code>, or null for any other.
+	 */
+	Profile profile(IBaseResource theStructureDefinition) {
+		if (theStructureDefinition == null
+				|| !"resource".equals(myTerser.getSinglePrimitiveValueOrNull(theStructureDefinition, "kind"))) {
+			return null;
+		}
+		String type = myTerser.getSinglePrimitiveValueOrNull(theStructureDefinition, "type");
+		String url = myTerser.getSinglePrimitiveValueOrNull(theStructureDefinition, "url");
+		return type == null || url == null ? null : new Profile(type, url);
+	}
+
+	record Profile(String type, String url) {}
+}
@@ -0,0 +1,369 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.UriParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.opencds.cqf.fhir.cr.hapi.r4.R4MeasureEvaluatorSingleFactory;
+import org.opencds.cqf.fhir.cr.measure.r4.R4MeasureEvaluatorSingle;
+import org.opencds.cqf.fhir.utility.monad.Either3;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiFunction;
+
+/**
+ * Evaluates R4 population reports in batches of patients.
+ * <p>
+ * The patients of the population, all Patients or the members of the Group subject, are read page by page and
+ * split into batches of <code>batch_size</code>. Each batch is evaluated on the CQL executor, one individual report
+ * per patient, and the reports are summed by a {@link MeasureReportMerger} as they come in, so no more than
+ * <code>max_pending_batches</code> batches are held at any time. The batch totals are summed into the population
+ * report when each batch completes.
+ * <p>
+ * When a batch evaluator factory is set, each batch is evaluated by an evaluator created for its patients, such as
+ * one reading through a {@link PatientBatchRepository}.
+ * <p>
+ * Each batch reads with its own copy of the request details of the caller, so authorization, consent and
+ * partitioning apply to them as they do to the CR evaluator.
+ * <p>
+ * Individual, subject-list and practitioner reports, evaluations against remote endpoints or additional data, and
+ * measures with supplemental data or a scoring other than proportion or cohort, are passed to the CR evaluator
+ * unchanged. Supplemental data is reported as contained resources of each subject, and continuous variable and
+ * ratio scores are aggregates of the observations of each subject, neither of which can be summed.
+ */
+public class BatchedMeasureEvaluatorFactory implements R4MeasureEvaluatorSingleFactory {
+	private static final Logger ourLog = LoggerFactory.getLogger(BatchedMeasureEvaluatorFactory.class);
+
+	private static final String POPULATION = "population";
+	private static final String SUBJECT = "subject";
+	private static final String CQFM_SCORING = "http://hl7.org/fhir/us/cqfmeasures/StructureDefinition/cqfm-scoring";
+	private static final Set<String> SUMMABLE_SCORINGS = Set.of("proportion", "cohort");
+
+	private final R4MeasureEvaluatorSingleFactory myDelegate;
+	private final DaoRegistry myDaoRegistry;
+	private final ExecutorService myExecutor;
+	private final MeasureBatchProperties mySettings;
+	private final BiFunction<RequestDetails, List<String>, R4MeasureEvaluatorSingle> myBatchEvaluatorFactory;
+
+	public BatchedMeasureEvaluatorFactory(
+			R4MeasureEvaluatorSingleFactory theDelegate,
+			DaoRegistry theDaoRegistry,
+			ExecutorService theExecutor,
+			MeasureBatchProperties theSettings) {
+		this(theDelegate, theDaoRegistry, theExecutor, theSettings, null);
+	}
+
+	public BatchedMeasureEvaluatorFactory(
+			R4MeasureEvaluatorSingleFactory theDelegate,
+			DaoRegistry theDaoRegistry,
+			ExecutorService theExecutor,
+			MeasureBatchProperties theSettings,
+			BiFunction<RequestDetails, List<String>, R4MeasureEvaluatorSingle> theBatchEvaluatorFactory) {
+		myDelegate = theDelegate;
+		myDaoRegistry = theDaoRegistry;
+		myExecutor = theExecutor;
+		mySettings = theSettings;
+		myBatchEvaluatorFactory = theBatchEvaluatorFactory;
+	}
+
+	@Override
+	public R4MeasureEvaluatorSingle create(RequestDetails theRequestDetails) {
+		R4MeasureEvaluatorSingle delegate = myDelegate.create(theRequestDetails);
+		return (measure,
+				periodStart,
+				periodEnd,
+				reportType,
+				subjectId,
+				lastReceivedOn,
+				contentEndpoint,
+				terminologyEndpoint,
+				dataEndpoint,
+				additionalData,
+				parameters,
+				productLine,
+				practitioner) -> {
+			boolean batched = isPopulation(reportType, subjectId)
+					&& practitioner == null
+					&& contentEndpoint == null
+					&& terminologyEndpoint == null
+					&& dataEndpoint == null
+					&& additionalData == null
+					&& isCopyable(theRequestDetails)
+					&& isSummable(theRequestDetails, measure);
+			if (!batched) {
+				return delegate.evaluate(
+						measure,
+						periodStart,
+						periodEnd,
+						reportType,
+						subjectId,
+						lastReceivedOn,
+						contentEndpoint,
+						terminologyEndpoint,
+						dataEndpoint,
+						additionalData,
+						parameters,
+						productLine,
+						practitioner);
+			}
+			MeasureReport report = evaluateInBatches(
+					theRequestDetails,
+					new Evaluation(measure, periodStart, periodEnd, lastReceivedOn, parameters, productLine),
+					patients(theRequestDetails, subjectId));
+			if (report != null) {
+				// the individual reports are of the patients, the population report is of the Group
+				return report.setSubject(subjectId == null ? null : new Reference(subjectId));
+			}
+			// no patients, let CR build the empty report
+			return delegate.evaluate(
+					measure,
+					periodStart,
+					periodEnd,
+					reportType,
+					subjectId,
+					lastReceivedOn,
+					null,
+					null,
+					null,
+					null,
+					parameters,
+					productLine,
+					null);
+		};
+	}
+
+	MeasureReport evaluateInBatches(
+			RequestDetails theRequestDetails, Evaluation theEvaluation, Iterator<String> thePatients) {
+		long start = System.nanoTime();
+		MeasureReportMerger total = new MeasureReportMerger();
+		Semaphore pending = new Semaphore(Math.max(1, mySettings.getMax_pending_batches()));
+		List<CompletableFuture<Void>> batches = new ArrayList<>();
+		try {
+			while (thePatients.hasNext()) {
+				List<String> batch = new ArrayList<>(mySettings.getBatch_size());
+				while (thePatients.hasNext() && batch.size() < mySettings.getBatch_size()) {
+					batch.add(thePatients.next());
+				}
+				pending.acquire();
+				CompletableFuture<MeasureReportMerger> future;
+				try {
+					future = CompletableFuture.supplyAsync(
+							() -> evaluateBatch(theRequestDetails, theEvaluation, batch), myExecutor);
+				} catch (RejectedExecutionException e) {
+					future = CompletableFuture.completedFuture(
+							evaluateBatch(theRequestDetails, theEvaluation, batch));
+				}
+				batches.add(future.thenAccept(total::addAll).whenComplete((result, error) -> pending.release()));
+				batches.removeIf(f -> f.isDone() && !f.isCompletedExceptionally());
+				if (batches.stream().anyMatch(CompletableFuture::isCompletedExceptionally)) {
+					break;
+				}
+			}
+			CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while evaluating the measure", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException runtimeException) {
+				throw runtimeException;
+			}
+			throw new InternalErrorException(e.getCause());
+		}
+		ourLog.debug(
+				"Evaluated {} patients in batches of {} in {} ms",
+				total.size(),
+				mySettings.getBatch_size(),
+				(System.nanoTime() - start) / 1_000_000);
+		return total.toReport();
+	}
+
+	private MeasureReportMerger evaluateBatch(
+			RequestDetails theRequestDetails, Evaluation theEvaluation, List<String> thePatients) {
+		// request details are not thread-safe, the batches evaluate concurrently
+		RequestDetails requestDetails = copyOf(theRequestDetails);
+		R4MeasureEvaluatorSingle evaluator = myBatchEvaluatorFactory == null
+				? myDelegate.create(requestDetails)
+				: myBatchEvaluatorFactory.apply(requestDetails, thePatients);
+		MeasureReportMerger merger = new MeasureReportMerger();
+		for (String patient : thePatients) {
+			merger.add(evaluator.evaluate(
+					theEvaluation.measure(),
+					theEvaluation.periodStart(),
+					theEvaluation.periodEnd(),
+					SUBJECT,
+					patient,
+					theEvaluation.lastReceivedOn(),
+					null,
+					null,
+					null,
+					null,
+					theEvaluation.parameters(),
+					theEvaluation.productLine(),
+					null));
+		}
+		return merger;
+	}
+
+	private Iterator<String> patients(RequestDetails theRequestDetails, String theSubjectId) {
+		if (theSubjectId != null && theSubjectId.startsWith("Group/")) {
+			Group group = (Group) myDaoRegistry
+					.getResourceDao("Group")
+					.read(new IdType(theSubjectId), theRequestDetails);
+			return group.getMember().stream()
+					.filter(member -> !member.getInactive())
+					.map(member -> member.getEntity().getReference())
+					.filter(reference -> reference != null && reference.startsWith("Patient/"))
+					.iterator();
+		}
+		IBundleProvider results = myDaoRegistry
+				.getResourceDao("Patient")
+				.search(new SearchParameterMap(), theRequestDetails);
+		return new PagingIterator(results, Math.max(mySettings.getBatch_size(), 100));
+	}
+
+	private boolean isSummable(RequestDetails theRequestDetails, Either3<CanonicalType, IdType, Measure> theMeasure) {
+		if (theMeasure.isRight()) {
+			return isSummable(theMeasure.rightOrThrow());
+		}
+		if (theMeasure.isMiddle()) {
+			return isSummable((Measure)
+					myDaoRegistry.getResourceDao("Measure").read(theMeasure.middleOrThrow(), theRequestDetails));
+		}
+		String url = theMeasure.leftOrThrow().getValue();
+		String version = null;
+		if (url.contains("|")) {
+			version = url.substring(url.indexOf('|') + 1);
+			url = url.substring(0, url.indexOf('|'));
+		}
+		SearchParameterMap parameters = SearchParameterMap.newSynchronous(Measure.SP_URL, new UriParam(url));
+		if (version != null) {
+			parameters.add(Measure.SP_VERSION, new TokenParam(version));
+		}
+		List<IBaseResource> measures = myDaoRegistry
+				.getResourceDao("Measure")
+				.search(parameters, theRequestDetails)
+				.getAllResources();
+		// an unknown or ambiguous canonical is reported by the CR evaluator
+		return measures.size() == 1 && isSummable((Measure) measures.get(0));
+	}
+
+	/**
+	 * Whether the population report of the measure is the sum of its individual reports: it has no supplemental
+	 * data, and the measure and each group that overrides it are scored as proportion or cohort.
+	 */
+	private static boolean isSummable(Measure theMeasure) {
+		if (theMeasure.hasSupplementalData()) {
+			return false;
+		}
+		boolean scored = theMeasure.hasScoring();
+		if (scored && !SUMMABLE_SCORINGS.contains(theMeasure.getScoring().getCodingFirstRep().getCode())) {
+			return false;
+		}
+		for (Measure.MeasureGroupComponent group : theMeasure.getGroup()) {
+			Extension scoring = group.getExtensionByUrl(CQFM_SCORING);
+			if (scoring == null) {
+				continue;
+			}
+			if (!(scoring.getValue() instanceof CodeableConcept code)
+					|| !SUMMABLE_SCORINGS.contains(code.getCodingFirstRep().getCode())) {
+				return false;
+			}
+			scored = true;
+		}
+		return scored;
+	}
+
+	private static boolean isCopyable(RequestDetails theRequestDetails) {
+		return theRequestDetails instanceof ServletRequestDetails || theRequestDetails instanceof SystemRequestDetails;
+	}
+
+	private static RequestDetails copyOf(RequestDetails theRequestDetails) {
+		if (theRequestDetails instanceof ServletRequestDetails servletRequestDetails) {
+			return new ServletRequestDetails(servletRequestDetails);
+		}
+		return new SystemRequestDetails((SystemRequestDetails) theRequestDetails);
+	}
+
+	private static boolean isPopulation(String theReportType, String theSubjectId) {
+		if (theReportType != null) {
+			return POPULATION.equals(theReportType) && (theSubjectId == null || theSubjectId.startsWith("Group/"));
+		}
+		// CR reports on a population when there is no subject or the subject is a Group
+		return theSubjectId == null || theSubjectId.startsWith("Group/");
+	}
+
+	record Evaluation(
+			Either3<CanonicalType, IdType, Measure> measure,
+			ZonedDateTime periodStart,
+			ZonedDateTime periodEnd,
+			String lastReceivedOn,
+			Parameters parameters,
+			String productLine) {}
+
+	/**
+	 * The ids of the resources of a search result, read one page at a time.
+	 */
+	private static class PagingIterator implements Iterator<String> {
+		private final IBundleProvider myResults;
+		private final int myPageSize;
+		private List<IBaseResource> myPage = List.of();
+		private int myPageIndex;
+		private int myOffset;
+		private boolean myExhausted;
+
+		PagingIterator(IBundleProvider theResults, int thePageSize) {
+			myResults = theResults;
+			myPageSize = thePageSize;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (myPageIndex < myPage.size()) {
+				return true;
+			}
+			if (myExhausted) {
+				return false;
+			}
+			myPage = myResults.getResources(myOffset, myOffset + myPageSize);
+			myOffset += myPageSize;
+			myPageIndex = 0;
+			myExhausted = myPage.isEmpty();
+			return !myExhausted;
+		}
+
+		@Override
+		public String next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return myPage.get(myPageIndex++).getIdElement().toUnqualifiedVersionless().getValue();
+		}
+	}
+}
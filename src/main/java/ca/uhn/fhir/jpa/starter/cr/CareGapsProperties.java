@@ -9,6 +9,15 @@ public class CareGapsProperties {
 	private String reporter = "default";
 	private String section_author = "default";
 
+	/**
+	 * Runs <code>$care-gaps</code> requests sent with <code>Prefer: respond-async</code> as a Batch2 job, answering
+	 * 202 with the location to poll for the report.
+	 */
+	private boolean async_enabled = false;
+
+	/** Patients evaluated by one work chunk of the asynchronous job. */
+	private int async_chunk_size = 50;
+
 	public String getReporter() {
 		return reporter;
 	}
@@ -24,4 +33,20 @@ public class CareGapsProperties {
 	public void setSection_author(String section_author) {
 		this.section_author = section_author;
 	}
+
+	public boolean isAsync_enabled() {
+		return async_enabled;
+	}
+
+	public void setAsync_enabled(boolean async_enabled) {
+		this.async_enabled = async_enabled;
+	}
+
+	public int getAsync_chunk_size() {
+		return async_chunk_size;
+	}
+
+	public void setAsync_chunk_size(int async_chunk_size) {
+		this.async_chunk_size = async_chunk_size;
+	}
 }
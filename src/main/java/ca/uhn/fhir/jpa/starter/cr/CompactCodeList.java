@@ -0,0 +1,206 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * Immutable, compact form of a value set expansion for the global value set cache.
+ * <p>
+ * Instead of one {@link Code} with four strings per code, the codes and displays are kept in a single UTF-8 byte
+ * array, the code systems and versions of the expansion are interned once, and membership is answered from a sorted
+ * <code>long[]</code> of (hash of system and code, position) keys, confirmed against the stored code so hash
+ * collisions cannot produce false positives. The order of the codes is kept, so the list stays sorted the way the
+ * CR terminology provider binary searches it; {@link #get(int)} builds the {@link Code} on demand.
+ */
+public final class CompactCodeList extends AbstractList<Code> implements RandomAccess {
+
+	private static final int POSITION_BITS = 24;
+	static final int MAX_SIZE = (1 << POSITION_BITS) - 1;
+
+	private final byte[] myText;
+	// code i is myText[myOffsets[2i], myOffsets[2i+1]), its display runs up to myOffsets[2i+2]
+	private final int[] myOffsets;
+	private final int[] mySystemIndexes;
+	private final String[] mySystems;
+	private final String[] myVersions;
+	private final boolean[] myHasDisplay;
+	private final long[] myKeys;
+
+	private CompactCodeList(
+			byte[] theText,
+			int[] theOffsets,
+			int[] theSystemIndexes,
+			String[] theSystems,
+			String[] theVersions,
+			boolean[] theHasDisplay,
+			long[] theKeys) {
+		myText = theText;
+		myOffsets = theOffsets;
+		mySystemIndexes = theSystemIndexes;
+		mySystems = theSystems;
+		myVersions = theVersions;
+		myHasDisplay = theHasDisplay;
+		myKeys = theKeys;
+	}
+
+	/**
+	 * @return the compact form of the codes, or the list itself when it is already compact, too large or holds codes
+	 * without a code value
+	 */
+	public static List<Code> of(List<Code> theCodes) {
+		if (theCodes == null || theCodes instanceof CompactCodeList || theCodes.size() > MAX_SIZE) {
+			return theCodes;
+		}
+		int size = theCodes.size();
+		Map<List<String>, Integer> systemIndexes = new LinkedHashMap<>();
+		int[] indexes = new int[size];
+		boolean[] hasDisplay = new boolean[size];
+		int[] offsets = new int[2 * size + 1];
+		byte[][] parts = new byte[2 * size][];
+		int length = 0;
+		for (int i = 0; i < size; i++) {
+			Code code = theCodes.get(i);
+			if (code == null || code.getCode() == null) {
+				return theCodes;
+			}
+			indexes[i] = systemIndexes.computeIfAbsent(
+					Arrays.asList(code.getSystem(), code.getVersion()), k -> systemIndexes.size());
+			hasDisplay[i] = code.getDisplay() != null;
+			parts[2 * i] = code.getCode().getBytes(StandardCharsets.UTF_8);
+			parts[2 * i + 1] = hasDisplay[i] ? code.getDisplay().getBytes(StandardCharsets.UTF_8) : new byte[0];
+			length += parts[2 * i].length + parts[2 * i + 1].length;
+		}
+
+		byte[] text = new byte[length];
+		int offset = 0;
+		for (int i = 0; i < parts.length; i++) {
+			offsets[i] = offset;
+			System.arraycopy(parts[i], 0, text, offset, parts[i].length);
+			offset += parts[i].length;
+		}
+		offsets[parts.length] = offset;
+
+		String[] systems = new String[systemIndexes.size()];
+		String[] versions = new String[systemIndexes.size()];
+		for (Map.Entry<List<String>, Integer> entry : systemIndexes.entrySet()) {
+			systems[entry.getValue()] = intern(entry.getKey().get(0));
+			versions[entry.getValue()] = intern(entry.getKey().get(1));
+		}
+
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			Code code = theCodes.get(i);
+			keys[i] = key(hash(code.getSystem(), code.getCode()), i);
+		}
+		Arrays.sort(keys);
+		return new CompactCodeList(text, offsets, indexes, systems, versions, hasDisplay, keys);
+	}
+
+	@Override
+	public Code get(int theIndex) {
+		Objects.checkIndex(theIndex, size());
+		int system = mySystemIndexes[theIndex];
+		return new Code()
+				.withCode(code(theIndex))
+				.withSystem(mySystems[system])
+				.withVersion(myVersions[system])
+				.withDisplay(myHasDisplay[theIndex] ? string(2 * theIndex + 1) : null);
+	}
+
+	@Override
+	public int size() {
+		return mySystemIndexes.length;
+	}
+
+	/**
+	 * Membership test in O(log n), without building any {@link Code}.
+	 */
+	public boolean contains(String theSystem, String theCode) {
+		return indexOf(theSystem, theCode) >= 0;
+	}
+
+	@Override
+	public boolean contains(Object theObject) {
+		return indexOf(theObject) >= 0;
+	}
+
+	/**
+	 * {@link Code} does not implement <code>equals</code>, so a code is looked up by its system and code value; the
+	 * codes built by {@link #get(int)} could never be found by identity.
+	 */
+	@Override
+	public int indexOf(Object theObject) {
+		return theObject instanceof Code code ? indexOf(code.getSystem(), code.getCode()) : -1;
+	}
+
+	private int indexOf(String theSystem, String theCode) {
+		if (theCode == null) {
+			return -1;
+		}
+		long hash = hash(theSystem, theCode);
+		int i = Arrays.binarySearch(myKeys, key(hash, 0));
+		for (i = i < 0 ? -i - 1 : i; i < myKeys.length && myKeys[i] >>> POSITION_BITS == hash; i++) {
+			int position = (int) (myKeys[i] & MAX_SIZE);
+			if (Objects.equals(mySystems[mySystemIndexes[position]], theSystem)
+					&& theCode.equals(code(position))) {
+				return position;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the estimated heap use, for the cache weigher
+	 */
+	public long estimatedBytes() {
+		return 64L
+				+ myText.length
+				+ 4L * myOffsets.length
+				+ 4L * mySystemIndexes.length
+				+ myHasDisplay.length
+				+ 8L * myKeys.length
+				+ 16L * mySystems.length;
+	}
+
+	private String code(int theIndex) {
+		return string(2 * theIndex);
+	}
+
+	private String string(int thePart) {
+		int start = myOffsets[thePart];
+		return new String(myText, start, myOffsets[thePart + 1] - start, StandardCharsets.UTF_8);
+	}
+
+	private static String intern(String theValue) {
+		return theValue == null ? null : theValue.intern();
+	}
+
+	private static long key(long theHash, int thePosition) {
+		return theHash << POSITION_BITS | thePosition;
+	}
+
+	/**
+	 * 64-bit FNV-1a of the system and the code, truncated to the bits left next to the position.
+	 */
+	private static long hash(String theSystem, String theCode) {
+		long hash = 0xcbf29ce484222325L;
+		if (theSystem != null) {
+			for (int i = 0; i < theSystem.length(); i++) {
+				hash = (hash ^ theSystem.charAt(i)) * 0x100000001b3L;
+			}
+		}
+		hash = (hash ^ '|') * 0x100000001b3L;
+		for (int i = 0; i < theCode.length(); i++) {
+			hash = (hash ^ theCode.charAt(i)) * 0x100000001b3L;
+		}
+		return hash >>> POSITION_BITS;
+	}
+}
@@ -0,0 +1,67 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "hapi.fhir.cr.cache")
+public class CqlCacheProperties {
+
+	/** Estimated heap, in MB, the compiled libraries may take before the least valuable ones are evicted. */
+	private long library_max_mb = 256;
+
+	/** Estimated heap, in MB, the expanded value set code lists may take. */
+	private long valueset_max_mb = 256;
+
+	/**
+	 * Stores value set expansions as a {@link CompactCodeList}: far less heap than one Code object per code, at the
+	 * cost of building the codes the terminology provider reads on demand.
+	 */
+	private boolean valueset_compact = false;
+
+	/** Model infos kept, there is normally one per FHIR version in use. */
+	private long model_max_entries = 100;
+
+	/** Evicts libraries and value sets not used for this long. 0 keeps them until evicted for size. */
+	private long expire_after_access_minutes = 0;
+
+	public long getLibrary_max_mb() {
+		return library_max_mb;
+	}
+
+	public void setLibrary_max_mb(long library_max_mb) {
+		this.library_max_mb = library_max_mb;
+	}
+
+	public long getValueset_max_mb() {
+		return valueset_max_mb;
+	}
+
+	public void setValueset_max_mb(long valueset_max_mb) {
+		this.valueset_max_mb = valueset_max_mb;
+	}
+
+	public boolean isValueset_compact() {
+		return valueset_compact;
+	}
+
+	public void setValueset_compact(boolean valueset_compact) {
+		this.valueset_compact = valueset_compact;
+	}
+
+	public long getModel_max_entries() {
+		return model_max_entries;
+	}
+
+	public void setModel_max_entries(long model_max_entries) {
+		this.model_max_entries = model_max_entries;
+	}
+
+	public long getExpire_after_access_minutes() {
+		return expire_after_access_minutes;
+	}
+
+	public void setExpire_after_access_minutes(long expire_after_access_minutes) {
+		this.expire_after_access_minutes = expire_after_access_minutes;
+	}
+}
@@ -0,0 +1,244 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.cqframework.cql.cql2elm.model.Model;
+import org.hl7.cql.model.ModelIdentifier;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Builds the global CQL caches shared by all evaluations as bounded Caffeine caches. The CR code expects plain maps,
+ * so the caches are handed out through their {@link Cache#asMap()} view, with lookups going through the cache so
+ * they count as hits and misses.
+ * <p>
+ * Libraries and value sets are bounded by an estimate of their heap use and evicted by Caffeine's W-TinyLFU policy.
+ * Hits, misses and evictions of each cache are published as <code>cache.*</code> meters, tagged with the cache name.
+ */
+public class CqlCaches {
+
+	static final String LIBRARY_CACHE = "cr.cql.libraries";
+	static final String MODEL_CACHE = "cr.cql.models";
+	static final String VALUESET_CACHE = "cr.cql.valuesets";
+
+	private static final long MB = 1024 * 1024;
+
+	// rough per element heap use of the ELM tree and of the engine's Code objects, measured on typical eCQMs
+	private static final int LIBRARY_BASE_BYTES = 32 * 1024;
+	private static final int STATEMENT_BYTES = 8 * 1024;
+	private static final int DEFINITION_BYTES = 512;
+	private static final int CODE_BYTES = 96;
+
+	private CqlCaches() {}
+
+	public static Map<VersionedIdentifier, CompiledLibrary> libraryCache(
+			CqlCacheProperties theProperties, MeterRegistry theMeterRegistry) {
+		Caffeine<VersionedIdentifier, CompiledLibrary> builder = Caffeine.newBuilder()
+				.maximumWeight(theProperties.getLibrary_max_mb() * MB)
+				.weigher((VersionedIdentifier id, CompiledLibrary library) -> weigh(library));
+		return monitor(expiring(builder, theProperties).build(), LIBRARY_CACHE, theMeterRegistry);
+	}
+
+	public static Map<ModelIdentifier, Model> modelCache(
+			CqlCacheProperties theProperties, MeterRegistry theMeterRegistry) {
+		Cache<ModelIdentifier, Model> cache = Caffeine.newBuilder()
+				.maximumSize(theProperties.getModel_max_entries())
+				.recordStats()
+				.build();
+		return monitor(cache, MODEL_CACHE, theMeterRegistry);
+	}
+
+	public static Map<String, List<Code>> valueSetCache(
+			CqlCacheProperties theProperties, MeterRegistry theMeterRegistry) {
+		Caffeine<String, List<Code>> builder = Caffeine.newBuilder()
+				.maximumWeight(theProperties.getValueset_max_mb() * MB)
+				.weigher((String url, List<Code> codes) -> weigh(codes));
+		Cache<String, List<Code>> cache = expiring(builder, theProperties).build();
+		CaffeineCacheMetrics.monitor(theMeterRegistry, cache, VALUESET_CACHE);
+		return new StatsRecordingMap<>(
+				cache, theProperties.isValueset_compact() ? CompactCodeList::of : UnaryOperator.identity());
+	}
+
+	/**
+	 * Estimates the heap a compiled library takes from the number of its definitions, expression definitions
+	 * weighing the most as they hold the expression trees.
+	 */
+	static int weigh(CompiledLibrary theLibrary) {
+		Library library = theLibrary.getLibrary();
+		if (library == null) {
+			return LIBRARY_BASE_BYTES;
+		}
+		long bytes = LIBRARY_BASE_BYTES;
+		if (library.getStatements() != null) {
+			bytes += (long) STATEMENT_BYTES * library.getStatements().getDef().size();
+		}
+		if (library.getValueSets() != null) {
+			bytes += (long) DEFINITION_BYTES * library.getValueSets().getDef().size();
+		}
+		if (library.getCodes() != null) {
+			bytes += (long) DEFINITION_BYTES * library.getCodes().getDef().size();
+		}
+		if (library.getCodeSystems() != null) {
+			bytes += (long) DEFINITION_BYTES * library.getCodeSystems().getDef().size();
+		}
+		if (library.getParameters() != null) {
+			bytes += (long) DEFINITION_BYTES * library.getParameters().getDef().size();
+		}
+		return (int) Math.min(Integer.MAX_VALUE, bytes);
+	}
+
+	/**
+	 * Estimates the heap a code list takes: a fixed overhead per code plus its strings.
+	 */
+	static int weigh(Collection<Code> theCodes) {
+		if (theCodes == null) {
+			return 1;
+		}
+		if (theCodes instanceof CompactCodeList compact) {
+			return (int) Math.min(Integer.MAX_VALUE, compact.estimatedBytes());
+		}
+		long bytes = 16;
+		for (Code code : theCodes) {
+			bytes += CODE_BYTES + 2L * (length(code.getCode())
+					+ length(code.getSystem())
+					+ length(code.getDisplay())
+					+ length(code.getVersion()));
+		}
+		return (int) Math.min(Integer.MAX_VALUE, bytes);
+	}
+
+	private static int length(String theValue) {
+		return theValue == null ? 0 : theValue.length();
+	}
+
+	private static <K, V> Caffeine<K, V> expiring(Caffeine<K, V> theBuilder, CqlCacheProperties theProperties) {
+		theBuilder.recordStats();
+		if (theProperties.getExpire_after_access_minutes() > 0) {
+			theBuilder.expireAfterAccess(Duration.ofMinutes(theProperties.getExpire_after_access_minutes()));
+		}
+		return theBuilder;
+	}
+
+	private static <K, V> Map<K, V> monitor(Cache<K, V> theCache, String theName, MeterRegistry theMeterRegistry) {
+		CaffeineCacheMetrics.monitor(theMeterRegistry, theCache, theName);
+		return new StatsRecordingMap<>(theCache, UnaryOperator.identity());
+	}
+
+	/**
+	 * Calls <code>theListener</code> with every value stored in a cache built here, after its stored form is applied.
+	 */
+	public static <K, V> void onStore(Map<K, V> theCache, BiConsumer<K, V> theListener) {
+		if (!(theCache instanceof StatsRecordingMap<K, V> cache)) {
+			throw new IllegalArgumentException("Not a cache built by CqlCaches");
+		}
+		cache.myStoreListener = theListener;
+	}
+
+	/**
+	 * Lookups on {@link Cache#asMap()} are not recorded in the cache statistics, so <code>get</code> is routed
+	 * through {@link Cache#getIfPresent(Object)}. Values are passed through <code>theStoredForm</code> before they
+	 * are stored.
+	 */
+	static class StatsRecordingMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+		private final Cache<K, V> myCache;
+		private final ConcurrentMap<K, V> myMap;
+		private final UnaryOperator<V> myStoredForm;
+		private volatile BiConsumer<K, V> myStoreListener = (key, value) -> {};
+
+		StatsRecordingMap(Cache<K, V> theCache, UnaryOperator<V> theStoredForm) {
+			myCache = theCache;
+			myMap = theCache.asMap();
+			myStoredForm = theStoredForm;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V get(Object theKey) {
+			return theKey == null ? null : myCache.getIfPresent((K) theKey);
+		}
+
+		@Override
+		public boolean containsKey(Object theKey) {
+			return myMap.containsKey(theKey);
+		}
+
+		@Override
+		public V put(K theKey, V theValue) {
+			return myMap.put(theKey, stored(theKey, theValue));
+		}
+
+		@Override
+		public V remove(Object theKey) {
+			return myMap.remove(theKey);
+		}
+
+		@Override
+		public void clear() {
+			myMap.clear();
+		}
+
+		@Override
+		public int size() {
+			return myMap.size();
+		}
+
+		@Override
+		public Set<Entry<K, V>> entrySet() {
+			return myMap.entrySet();
+		}
+
+		@Override
+		public Set<K> keySet() {
+			return myMap.keySet();
+		}
+
+		@Override
+		public V putIfAbsent(K theKey, V theValue) {
+			return myMap.putIfAbsent(theKey, stored(theKey, theValue));
+		}
+
+		@Override
+		public boolean remove(Object theKey, Object theValue) {
+			return myMap.remove(theKey, theValue);
+		}
+
+		@Override
+		public boolean replace(K theKey, V theOldValue, V theNewValue) {
+			return myMap.replace(theKey, theOldValue, stored(theKey, theNewValue));
+		}
+
+		@Override
+		public V replace(K theKey, V theValue) {
+			return myMap.replace(theKey, stored(theKey, theValue));
+		}
+
+		@Override
+		public V computeIfAbsent(K theKey, Function<? super K, ? extends V> theMappingFunction) {
+			return myCache.get(theKey, key -> {
+				V value = theMappingFunction.apply(key);
+				return value == null ? null : stored(key, value);
+			});
+		}
+
+		private V stored(K theKey, V theValue) {
+			V stored = myStoredForm.apply(theValue);
+			myStoreListener.accept(theKey, stored);
+			return stored;
+		}
+	}
+}
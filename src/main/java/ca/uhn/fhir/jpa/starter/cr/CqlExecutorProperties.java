@@ -0,0 +1,87 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "hapi.fhir.cr.executor")
+public class CqlExecutorProperties {
+
+	public enum RejectionPolicy {
+		/** Fails the submission with a RejectedExecutionException. */
+		ABORT,
+		/** Runs the task on the submitting thread, which slows down the caller. */
+		CALLER_RUNS
+	}
+
+	/**
+	 * Threads started before tasks are queued. A pool only grows past this once its queue is full, so this is the
+	 * concurrency evaluations get in practice.
+	 */
+	private int core_size = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	/** Threads the pool grows to once the queue is full. */
+	private int max_size = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	/** Tasks waiting for a thread. */
+	private int queue_capacity = 100;
+
+	/** Seconds a thread stays idle before it is stopped, core threads included. */
+	private int keep_alive_seconds = 60;
+
+	private RejectionPolicy rejection_policy = RejectionPolicy.CALLER_RUNS;
+
+	/**
+	 * Runs every task on its own virtual thread, for I/O-bound retrieves. Needs Java 21 or later; the size, queue
+	 * and rejection settings do not apply.
+	 */
+	private boolean virtual_threads = false;
+
+	public int getCore_size() {
+		return core_size;
+	}
+
+	public void setCore_size(int core_size) {
+		this.core_size = core_size;
+	}
+
+	public int getMax_size() {
+		return max_size;
+	}
+
+	public void setMax_size(int max_size) {
+		this.max_size = max_size;
+	}
+
+	public int getQueue_capacity() {
+		return queue_capacity;
+	}
+
+	public void setQueue_capacity(int queue_capacity) {
+		this.queue_capacity = queue_capacity;
+	}
+
+	public int getKeep_alive_seconds() {
+		return keep_alive_seconds;
+	}
+
+	public void setKeep_alive_seconds(int keep_alive_seconds) {
+		this.keep_alive_seconds = keep_alive_seconds;
+	}
+
+	public RejectionPolicy getRejection_policy() {
+		return rejection_policy;
+	}
+
+	public void setRejection_policy(RejectionPolicy rejection_policy) {
+		this.rejection_policy = rejection_policy;
+	}
+
+	public boolean isVirtual_threads() {
+		return virtual_threads;
+	}
+
+	public void setVirtual_threads(boolean virtual_threads) {
+		this.virtual_threads = virtual_threads;
+	}
+}
@@ -0,0 +1,90 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.opencds.cqf.fhir.cr.hapi.common.CqlThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the executor clinical reasoning evaluations run on, from {@link CqlExecutorProperties}.
+ * <p>
+ * The executor is published as <code>cr.cql.executor</code> through {@link ExecutorServiceMetrics} (pool size,
+ * active, queued, completed and task timings), with rejected submissions counted in
+ * <code>cr.cql.executor.rejected</code>. The security context of the submitting thread is propagated to the tasks.
+ */
+public class CqlExecutors {
+	private static final Logger ourLog = LoggerFactory.getLogger(CqlExecutors.class);
+
+	static final String METRIC_NAME = "cr.cql.executor";
+
+	private CqlExecutors() {}
+
+	public static ExecutorService create(CqlExecutorProperties theProperties, MeterRegistry theMeterRegistry) {
+		ExecutorService executor = theProperties.isVirtual_threads() ? newVirtualThreadExecutor() : null;
+		if (executor == null) {
+			executor = newThreadPool(theProperties, theMeterRegistry);
+		}
+		executor = ExecutorServiceMetrics.monitor(theMeterRegistry, executor, METRIC_NAME);
+		return new DelegatingSecurityContextExecutorService(executor);
+	}
+
+	static ThreadPoolExecutor newThreadPool(CqlExecutorProperties theProperties, MeterRegistry theMeterRegistry) {
+		Counter rejected = Counter.builder(METRIC_NAME + ".rejected")
+				.tag("policy", theProperties.getRejection_policy().name())
+				.register(theMeterRegistry);
+		RejectedExecutionHandler policy =
+				theProperties.getRejection_policy() == CqlExecutorProperties.RejectionPolicy.CALLER_RUNS
+						? new ThreadPoolExecutor.CallerRunsPolicy()
+						: new ThreadPoolExecutor.AbortPolicy();
+		int coreSize = Math.max(1, theProperties.getCore_size());
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				coreSize,
+				Math.max(coreSize, theProperties.getMax_size()),
+				theProperties.getKeep_alive_seconds(),
+				TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, theProperties.getQueue_capacity())),
+				new CqlThreadFactory(),
+				(task, pool) -> {
+					rejected.increment();
+					policy.rejectedExecution(task, pool);
+				});
+		// an idle server gives its threads back, since core_size is sized for load
+		executor.allowCoreThreadTimeOut(true);
+		ourLog.info(
+				"CQL executor: {} to {} threads, queue of {}, {} when saturated",
+				executor.getCorePoolSize(),
+				executor.getMaximumPoolSize(),
+				theProperties.getQueue_capacity(),
+				theProperties.getRejection_policy());
+		return executor;
+	}
+
+	/**
+	 * Virtual threads are Java 21 API while this project targets Java 17, so they are looked up at runtime.
+	 *
+	 * @return the executor, or <code>null</code> when the JVM has no virtual threads
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			ExecutorService executor = (ExecutorService)
+					Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			ourLog.info("CQL executor: one virtual thread per task");
+			return executor;
+		} catch (ReflectiveOperationException e) {
+			ourLog.warn(
+					"Virtual threads need Java 21 or later, running on {}; using a thread pool for CQL evaluation",
+					Runtime.version());
+			return null;
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.repository.IRepository;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.IRepositoryFactory;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.FhirTerser;
+import kotlin.Pair;
+import kotlin.Unit;
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.elm.r1.FunctionDef;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.cql.engine.debug.DebugResult;
+import org.opencds.cqf.cql.engine.execution.CqlEngine;
+import org.opencds.cqf.cql.engine.execution.EvaluationParams;
+import org.opencds.cqf.cql.engine.execution.EvaluationResults;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.fhir.cql.CqlEngineOptions;
+import org.opencds.cqf.fhir.cql.CqlOptions;
+import org.opencds.cqf.fhir.cql.Engines;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.opencds.cqf.fhir.cr.hapi.common.StringTimePeriodHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <code>Measure/[id]/$cql-profile</code>: evaluates the primary library of a measure for a sample of patients with
+ * the engine profiler on, and returns the expressions of the measure that took the most time in themselves, over
+ * this and earlier profiles, with the searches their retrieves sent.
+ * <p>
+ * The sample is the <code>subject</code>, the active members of a Group <code>subject</code>, or the first patients
+ * of the server. <code>sampleSize=0</code> only returns what was recorded before.
+ */
+public class CqlProfileProvider {
+	private static final Logger ourLog = LoggerFactory.getLogger(CqlProfileProvider.class);
+
+	public static final String OPERATION = "$cql-profile";
+
+	private final DaoRegistry myDaoRegistry;
+	private final IRepositoryFactory myRepositoryFactory;
+	private final EvaluationSettings myEvaluationSettings;
+	private final StringTimePeriodHandler myStringTimePeriodHandler;
+	private final CqlProfiler myProfiler;
+	private final CqlProfilingProperties mySettings;
+	private final FhirTerser myTerser;
+
+	public CqlProfileProvider(
+			DaoRegistry theDaoRegistry,
+			IRepositoryFactory theRepositoryFactory,
+			EvaluationSettings theEvaluationSettings,
+			StringTimePeriodHandler theStringTimePeriodHandler,
+			CqlProfiler theProfiler,
+			CqlProfilingProperties theSettings) {
+		myDaoRegistry = theDaoRegistry;
+		myRepositoryFactory = theRepositoryFactory;
+		myEvaluationSettings = profiled(theEvaluationSettings);
+		myStringTimePeriodHandler = theStringTimePeriodHandler;
+		myProfiler = theProfiler;
+		mySettings = theSettings;
+		myTerser = theDaoRegistry.getFhirContext().newTerser();
+	}
+
+	@Operation(name = OPERATION, idempotent = true, type = Measure.class)
+	public Parameters profile(
+			@IdParam IdType theId,
+			@OperationParam(name = "periodStart") String thePeriodStart,
+			@OperationParam(name = "periodEnd") String thePeriodEnd,
+			@OperationParam(name = "subject") String theSubject,
+			@OperationParam(name = "sampleSize") IntegerType theSampleSize,
+			@OperationParam(name = "top") IntegerType theTop,
+			RequestDetails theRequestDetails) {
+		Measure measure = myDaoRegistry.getResourceDao(Measure.class).read(theId, theRequestDetails);
+		String key = "Measure/" + measure.getIdElement().getIdPart();
+		int sampleSize = theSampleSize == null ? mySettings.getSample_patients() : theSampleSize.getValue();
+		int top = theTop == null ? mySettings.getTop() : theTop.getValue();
+
+		int evaluated = 0;
+		if (sampleSize > 0) {
+			List<String> patients = patients(theSubject, sampleSize, theRequestDetails);
+			evaluated = evaluate(
+					key,
+					library(measure),
+					parameters(thePeriodStart, thePeriodEnd, theRequestDetails),
+					patients,
+					theRequestDetails);
+		}
+
+		Parameters result = new Parameters();
+		result.addParameter("measure", new StringType(key));
+		result.addParameter("patients", new IntegerType(evaluated));
+		for (CqlProfiler.Stats expression : myProfiler.slowestExpressions(key, top)) {
+			Parameters.ParametersParameterComponent parameter =
+					result.addParameter().setName("expression");
+			parameter.addPart().setName("library").setValue(new StringType(expression.getLibrary()));
+			parameter.addPart().setName("name").setValue(new StringType(expression.getName()));
+			parameter.addPart().setName("evaluations").setValue(new IntegerType(expression.getSamples()));
+			parameter.addPart().setName("count").setValue(new IntegerType(expression.getCount()));
+			addTimes(parameter, expression);
+			parameter.addPart().setName("selfMillis").setValue(millis(expression.getSelfNanos()));
+		}
+		for (CqlProfiler.Stats retrieve : myProfiler.retrieves(key)) {
+			Parameters.ParametersParameterComponent parameter =
+					result.addParameter().setName("retrieve");
+			parameter.addPart().setName("resourceType").setValue(new StringType(retrieve.getName()));
+			parameter.addPart().setName("count").setValue(new IntegerType(retrieve.getCount()));
+			parameter.addPart().setName("results").setValue(new IntegerType(retrieve.getResults()));
+			addTimes(parameter, retrieve);
+		}
+		return result;
+	}
+
+	private int evaluate(
+			String theMeasure,
+			VersionedIdentifier theLibrary,
+			Map<String, Object> theParameters,
+			List<String> thePatients,
+			RequestDetails theRequestDetails) {
+		IRepository repository =
+				new ProfilingRepository(myRepositoryFactory.create(theRequestDetails), myProfiler, theMeasure);
+		for (String patient : thePatients) {
+			// one engine per patient, so each profile holds one evaluation
+			CqlEngine engine = Engines.forRepository(repository, myEvaluationSettings);
+			EvaluationParams.Builder params = new EvaluationParams.Builder();
+			params.library(theLibrary, scope -> {
+				scope.expressions(expressions(engine, theLibrary));
+				return Unit.INSTANCE;
+			});
+			params.setContextParameter(new Pair<>("Patient", patient));
+			params.setParameters(theParameters);
+			EvaluationResults results = engine.evaluate(params.build());
+			if (results.hasExceptions()) {
+				ourLog.warn(
+						"Profiling {} for Patient/{} failed: {}",
+						theMeasure,
+						patient,
+						results.getExceptions().values());
+			}
+			DebugResult debugResult = engine.getState().getDebugResult();
+			if (debugResult != null && debugResult.getProfile() != null) {
+				myProfiler.recordProfile(
+						theMeasure,
+						debugResult.getProfile(),
+						engine.getEnvironment()
+								.getLibraryManager()
+								.getCompiledLibraries()
+								.values());
+			}
+		}
+		ourLog.info("Profiled {} for {} patients", theMeasure, thePatients.size());
+		return thePatients.size();
+	}
+
+	/** The expressions of a library, which are not evaluated unless they are named. */
+	private static List<String> expressions(CqlEngine theEngine, VersionedIdentifier theLibrary) {
+		Library library = theEngine.getEnvironment().resolveLibrary(theLibrary);
+		if (library.getStatements() == null) {
+			return List.of();
+		}
+		return library.getStatements().getDef().stream()
+				.filter(def -> !(def instanceof FunctionDef))
+				.map(ExpressionDef::getName)
+				.toList();
+	}
+
+	private VersionedIdentifier library(Measure theMeasure) {
+		if (!theMeasure.hasLibrary()) {
+			throw new InvalidRequestException("Measure " + theMeasure.getIdElement().getIdPart() + " has no library");
+		}
+		String canonical = theMeasure.getLibrary().get(0).getValue();
+		VersionedIdentifier library = CrWarmUp.resolve(myDaoRegistry, myTerser, canonical);
+		if (library == null) {
+			throw new ResourceNotFoundException("No Library found for " + canonical);
+		}
+		return library;
+	}
+
+	private Map<String, Object> parameters(String thePeriodStart, String thePeriodEnd, RequestDetails theRequestDetails) {
+		if (thePeriodStart == null || thePeriodEnd == null) {
+			// the default of the library
+			return Map.of();
+		}
+		return Map.of(
+				"Measurement Period",
+				new Interval(
+						new DateTime(myStringTimePeriodHandler
+								.getStartZonedDateTime(thePeriodStart, theRequestDetails)
+								.toOffsetDateTime()),
+						true,
+						new DateTime(myStringTimePeriodHandler
+								.getEndZonedDateTime(thePeriodEnd, theRequestDetails)
+								.toOffsetDateTime()),
+						true));
+	}
+
+	private List<String> patients(String theSubject, int theSampleSize, RequestDetails theRequestDetails) {
+		if (theSubject == null) {
+			return myDaoRegistry
+					.getResourceDao(Patient.class)
+					.search(SearchParameterMap.newSynchronous().setCount(theSampleSize), theRequestDetails)
+					.getResources(0, theSampleSize)
+					.stream()
+					.map(patient -> patient.getIdElement().getIdPart())
+					.toList();
+		}
+		IdType subject = new IdType(theSubject);
+		return switch (subject.getResourceType() == null ? "" : subject.getResourceType()) {
+			case "Patient" -> List.of(subject.getIdPart());
+			case "Group" -> myDaoRegistry.getResourceDao(Group.class).read(subject, theRequestDetails).getMember().stream()
+					.filter(member -> !member.getInactive())
+					.map(member -> member.getEntity().getReferenceElement())
+					.filter(reference -> "Patient".equals(reference.getResourceType()))
+					.map(IIdType::getIdPart)
+					.limit(theSampleSize)
+					.toList();
+			default -> throw new InvalidRequestException("Unsupported subject for " + OPERATION + ": " + theSubject);
+		};
+	}
+
+	private static void addTimes(Parameters.ParametersParameterComponent theParameter, CqlProfiler.Stats theStats) {
+		theParameter.addPart().setName("totalMillis").setValue(millis(theStats.getNanos()));
+		theParameter.addPart().setName("meanMillis").setValue(millis(theStats.getMeanNanos()));
+		theParameter.addPart().setName("p95Millis").setValue(millis(theStats.getPercentileNanos(0.95)));
+		theParameter.addPart().setName("maxMillis").setValue(millis(theStats.getMaxNanos()));
+	}
+
+	private static DecimalType millis(long theNanos) {
+		return new DecimalType(BigDecimal.valueOf(theNanos).movePointLeft(6).setScale(3, RoundingMode.HALF_UP));
+	}
+
+	/**
+	 * The settings with the profiler of the engine on. The engine options of the given settings are shared with all
+	 * other CR operations, so they are copied.
+	 */
+	static EvaluationSettings profiled(EvaluationSettings theSettings) {
+		CqlEngineOptions source = theSettings.getCqlOptions().getCqlEngineOptions();
+		Set<CqlEngine.Options> options = EnumSet.noneOf(CqlEngine.Options.class);
+		options.addAll(source.getOptions());
+		options.add(CqlEngine.Options.EnableProfiling);
+		CqlEngineOptions engineOptions = new CqlEngineOptions();
+		engineOptions.setOptions(options);
+		engineOptions.setDebugLoggingEnabled(source.isDebugLoggingEnabled());
+		engineOptions.setShouldExpandValueSets(source.shouldExpandValueSets());
+		engineOptions.setPageSize(source.getPageSize());
+		engineOptions.setMaxCodesPerQuery(source.getMaxCodesPerQuery());
+		engineOptions.setQueryBatchThreshold(source.getQueryBatchThreshold());
+		engineOptions.setEnableHedisCompatibilityMode(source.isEnableHedisCompatibilityMode());
+
+		CqlOptions cqlOptions = new CqlOptions();
+		cqlOptions.setCqlCompilerOptions(theSettings.getCqlOptions().getCqlCompilerOptions());
+		cqlOptions.setUseEmbeddedLibraries(theSettings.getCqlOptions().useEmbeddedLibraries());
+		cqlOptions.setCqlEngineOptions(engineOptions);
+		// the copy constructor copies the caches, which have to stay shared
+		EvaluationSettings settings = new EvaluationSettings(theSettings).withCqlOptions(cqlOptions);
+		settings.setLibraryCache(theSettings.getLibraryCache());
+		settings.setModelCache(theSettings.getModelCache());
+		settings.setValueSetCache(theSettings.getValueSetCache());
+		return settings;
+	}
+}
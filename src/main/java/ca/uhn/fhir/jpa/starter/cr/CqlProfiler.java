@@ -0,0 +1,251 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.Element;
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.elm.r1.FunctionDef;
+import org.opencds.cqf.cql.engine.execution.Profile;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the timings of sampled CQL evaluations in memory and publishes them to Micrometer.
+ * <p>
+ * Retrieves are recorded per resource type as the <code>cql.retrieve</code> timer and the
+ * <code>cql.retrieve.results</code> summary. Expressions are recorded per library and expression from the profile of
+ * the engine, as the <code>cql.expression</code> timer, and kept per measure so the slowest ones can be listed.
+ */
+public class CqlProfiler {
+
+	private final MeterRegistry myMeterRegistry;
+	private final double mySampleRate;
+	private final Map<String, Stats> myRetrieves = new ConcurrentHashMap<>();
+	// measure -> resource type -> stats
+	private final Map<String, Map<String, Stats>> myMeasureRetrieves = new ConcurrentHashMap<>();
+	// measure -> library and expression -> stats
+	private final Map<String, Map<String, Stats>> myExpressions = new ConcurrentHashMap<>();
+
+	public CqlProfiler(MeterRegistry theMeterRegistry, double theSampleRate) {
+		myMeterRegistry = theMeterRegistry;
+		mySampleRate = theSampleRate;
+	}
+
+	/** Whether the next evaluation should be profiled. */
+	public boolean sample() {
+		return mySampleRate >= 1 || (mySampleRate > 0 && ThreadLocalRandom.current().nextDouble() < mySampleRate);
+	}
+
+	/**
+	 * Records one search of a retrieve, also under the measure when it was sent for one.
+	 */
+	public void recordRetrieve(String theMeasure, String theResourceType, long theNanos, int theResults) {
+		Timer.builder("cql.retrieve")
+				.tag("resource_type", theResourceType)
+				.publishPercentileHistogram()
+				.register(myMeterRegistry)
+				.record(theNanos, TimeUnit.NANOSECONDS);
+		DistributionSummary.builder("cql.retrieve.results")
+				.tag("resource_type", theResourceType)
+				.publishPercentileHistogram()
+				.register(myMeterRegistry)
+				.record(theResults);
+		myRetrieves
+				.computeIfAbsent(theResourceType, type -> new Stats(null, type))
+				.record(1, theNanos, theNanos, theResults);
+		if (theMeasure != null) {
+			myMeasureRetrieves
+					.computeIfAbsent(theMeasure, measure -> new ConcurrentHashMap<>())
+					.computeIfAbsent(theResourceType, type -> new Stats(null, type))
+					.record(1, theNanos, theNanos, theResults);
+		}
+	}
+
+	/**
+	 * Records the expressions of the profile of one evaluation of a measure. Each expression is recorded once, with
+	 * its invocations and time summed over the places it was evaluated from.
+	 */
+	public void recordProfile(String theMeasure, Profile theProfile, Collection<CompiledLibrary> theLibraries) {
+		Map<Element, String> libraries = new IdentityHashMap<>();
+		for (CompiledLibrary library : theLibraries) {
+			if (library.getLibrary() == null || library.getLibrary().getStatements() == null) {
+				continue;
+			}
+			String name = library.getIdentifier().getId();
+			library.getLibrary().getStatements().getDef().forEach(def -> libraries.put(def, name));
+		}
+		Map<Element, long[]> totals = new IdentityHashMap<>();
+		walk(theProfile.getTree(), totals);
+
+		Map<String, Stats> expressions = myExpressions.computeIfAbsent(theMeasure, measure -> new ConcurrentHashMap<>());
+		// overloads of a function share a name
+		Map<String, Total> byName = new HashMap<>();
+		totals.forEach((element, sums) -> {
+			ExpressionDef def = (ExpressionDef) element;
+			String library = libraries.getOrDefault(def, "");
+			Total total = byName.computeIfAbsent(
+					library + "|" + name(def), key -> new Total(library, name(def), new long[3]));
+			for (int i = 0; i < sums.length; i++) {
+				total.sums()[i] += sums[i];
+			}
+		});
+		byName.forEach((key, total) -> {
+			expressions
+					.computeIfAbsent(key, k -> new Stats(total.library(), total.name()))
+					.record(total.sums()[0], total.sums()[1], total.sums()[2], 0);
+			Timer.builder("cql.expression")
+					.tag("library", total.library())
+					.tag("expression", total.name())
+					.register(myMeterRegistry)
+					.record(total.sums()[1], TimeUnit.NANOSECONDS);
+		});
+	}
+
+	/**
+	 * The expressions of a measure with the most time spent in themselves, rather than in the expressions they
+	 * reference.
+	 */
+	public List<Stats> slowestExpressions(String theMeasure, int theTop) {
+		return myExpressions.getOrDefault(theMeasure, Map.of()).values().stream()
+				.sorted(Comparator.comparingLong(Stats::getSelfNanos).reversed())
+				.limit(theTop)
+				.toList();
+	}
+
+	/**
+	 * The retrieves sent for a measure, or for all evaluations when the measure is null, slowest first.
+	 */
+	public List<Stats> retrieves(String theMeasure) {
+		Map<String, Stats> retrieves =
+				theMeasure == null ? myRetrieves : myMeasureRetrieves.getOrDefault(theMeasure, Map.of());
+		return retrieves.values().stream()
+				.sorted(Comparator.comparingLong(Stats::getNanos).reversed())
+				.toList();
+	}
+
+	/** Sums count, inclusive and self time per expression definition, depth first. */
+	private static void walk(Profile.Node theNode, Map<Element, long[]> theTotals) {
+		long children = 0;
+		for (Map<Element, Profile.Node> context : theNode.getChildren().values()) {
+			for (Profile.Node child : context.values()) {
+				children += child.getTime();
+				walk(child, theTotals);
+			}
+		}
+		if (theNode.getExpression() instanceof ExpressionDef) {
+			long[] total = theTotals.computeIfAbsent(theNode.getExpression(), e -> new long[3]);
+			total[0] += theNode.getCount();
+			total[1] += theNode.getTime();
+			total[2] += Math.max(0, theNode.getTime() - children);
+		}
+	}
+
+	private record Total(String library, String name, long[] sums) {}
+
+	private static String name(ExpressionDef theDef) {
+		return theDef instanceof FunctionDef ? theDef.getName() + "()" : theDef.getName();
+	}
+
+	/**
+	 * Counts, times and a histogram of power-of-two microsecond buckets, one sample per recorded evaluation or
+	 * search.
+	 */
+	public static class Stats {
+		private static final int BUCKETS = 40;
+
+		private final String myLibrary;
+		private final String myName;
+		private final LongAdder mySamples = new LongAdder();
+		private final LongAdder myCount = new LongAdder();
+		private final LongAdder myNanos = new LongAdder();
+		private final LongAdder mySelfNanos = new LongAdder();
+		private final LongAdder myResults = new LongAdder();
+		private final LongAccumulator myMaxNanos = new LongAccumulator(Long::max, 0);
+		private final AtomicLongArray myHistogram = new AtomicLongArray(BUCKETS);
+
+		Stats(String theLibrary, String theName) {
+			myLibrary = theLibrary;
+			myName = theName;
+		}
+
+		void record(long theCount, long theNanos, long theSelfNanos, long theResults) {
+			mySamples.increment();
+			myCount.add(theCount);
+			myNanos.add(theNanos);
+			mySelfNanos.add(theSelfNanos);
+			myResults.add(theResults);
+			myMaxNanos.accumulate(theNanos);
+			myHistogram.incrementAndGet(bucket(theNanos));
+		}
+
+		/** The library of an expression, or null for a retrieve. */
+		public String getLibrary() {
+			return myLibrary;
+		}
+
+		/** The expression, or the resource type of a retrieve. */
+		public String getName() {
+			return myName;
+		}
+
+		public long getSamples() {
+			return mySamples.sum();
+		}
+
+		public long getCount() {
+			return myCount.sum();
+		}
+
+		public long getNanos() {
+			return myNanos.sum();
+		}
+
+		public long getSelfNanos() {
+			return mySelfNanos.sum();
+		}
+
+		public long getResults() {
+			return myResults.sum();
+		}
+
+		public long getMaxNanos() {
+			return myMaxNanos.get();
+		}
+
+		public long getMeanNanos() {
+			long samples = getSamples();
+			return samples == 0 ? 0 : getNanos() / samples;
+		}
+
+		/** The upper bound of the histogram bucket holding the given percentile, from 0 to 1, of the samples. */
+		public long getPercentileNanos(double thePercentile) {
+			long samples = getSamples();
+			long rank = (long) Math.ceil(samples * thePercentile);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += myHistogram.get(i);
+				if (seen >= rank && seen > 0) {
+					return Math.min(1024L << i, getMaxNanos());
+				}
+			}
+			return getMaxNanos();
+		}
+
+		private static int bucket(long theNanos) {
+			return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(theNanos >> 10));
+		}
+	}
+}
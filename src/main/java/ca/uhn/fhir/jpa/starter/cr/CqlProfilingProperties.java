@@ -0,0 +1,56 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "hapi.fhir.cr.cql.profiling")
+public class CqlProfilingProperties {
+
+	/**
+	 * Times the searches CQL retrieves send to the repository and offers <code>Measure/[id]/$cql-profile</code>,
+	 * which runs the library of a measure with the engine profiler for a sample of patients.
+	 */
+	private boolean enabled = false;
+
+	/** The share of repositories created for CR operations whose retrieves are timed, from 0 to 1. */
+	private double sample_rate = 0.05;
+
+	/** Patients a <code>$cql-profile</code> evaluates when the request does not say. */
+	private int sample_patients = 10;
+
+	/** Expressions a <code>$cql-profile</code> returns when the request does not say. */
+	private int top = 10;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public double getSample_rate() {
+		return sample_rate;
+	}
+
+	public void setSample_rate(double sample_rate) {
+		this.sample_rate = sample_rate;
+	}
+
+	public int getSample_patients() {
+		return sample_patients;
+	}
+
+	public void setSample_patients(int sample_patients) {
+		this.sample_patients = sample_patients;
+	}
+
+	public int getTop() {
+		return top;
+	}
+
+	public void setTop(int top) {
+		this.top = top;
+	}
+}
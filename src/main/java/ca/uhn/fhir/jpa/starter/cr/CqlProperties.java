@@ -14,6 +14,7 @@ public class CqlProperties {
 	private CqlRuntimeProperties runtime = new CqlRuntimeProperties();
 	private TerminologySettings terminology = new TerminologySettings();
 	private CqlData data = new CqlData();
+	private CqlProfilingProperties profiling = new CqlProfilingProperties();
 
 	public Boolean getUse_embedded_libraries() {
 		return use_embedded_libraries;
@@ -55,6 +56,14 @@ public class CqlProperties {
 		this.data = data;
 	}
 
+	public CqlProfilingProperties getProfiling() {
+		return profiling;
+	}
+
+	public void setProfiling(CqlProfilingProperties profiling) {
+		this.profiling = profiling;
+	}
+
 	public RetrieveSettings getRetrieveSettings() {
 		return data.getRetrieveSettings();
 	}
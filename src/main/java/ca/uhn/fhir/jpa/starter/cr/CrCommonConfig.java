@@ -4,8 +4,13 @@ import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
 import ca.uhn.fhir.jpa.cache.ResourceChangeListenerRegistryInterceptor;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.repository.IRepository;
+import ca.uhn.fhir.rest.api.server.IRepositoryFactory;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.provider.ResourceProviderFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import org.cqframework.cql.cql2elm.CqlCompilerOptions;
 import org.cqframework.cql.cql2elm.model.CompiledLibrary;
 import org.cqframework.cql.cql2elm.model.Model;
@@ -17,25 +22,31 @@ import org.opencds.cqf.fhir.cql.EvaluationSettings;
 import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings;
 import org.opencds.cqf.fhir.cql.engine.terminology.TerminologySettings;
 import org.opencds.cqf.fhir.cr.hapi.common.CodeCacheResourceChangeListener;
-import org.opencds.cqf.fhir.cr.hapi.common.CqlThreadFactory;
 import org.opencds.cqf.fhir.cr.hapi.common.ElmCacheResourceChangeListener;
 import org.opencds.cqf.fhir.cr.measure.CareGapsProperties;
 import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
 import org.opencds.cqf.fhir.utility.ValidationProfile;
 import org.opencds.cqf.fhir.utility.client.TerminologyServerClientSettings;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.actuate.availability.ReadinessStateHealthIndicator;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.AvailabilityState;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
-import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
+import org.springframework.context.event.EventListener;
 
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 @Configuration
 @Conditional({CrConfigCondition.class})
@@ -64,7 +75,8 @@ public class CrCommonConfig {
 			TerminologySettings theTerminologySettings,
 			Map<VersionedIdentifier, CompiledLibrary> theGlobalLibraryCache,
 			Map<ModelIdentifier, Model> theGlobalModelCache,
-			Map<String, List<Code>> theGlobalValueSetCache) {
+			Map<String, List<Code>> theGlobalValueSetCache,
+			ObjectProvider<ElmDiskCache> theElmDiskCache) {
 		var evaluationSettings = EvaluationSettings.getDefault();
 		var cqlOptions = evaluationSettings.getCqlOptions();
 
@@ -138,17 +150,42 @@ public class CrCommonConfig {
 		evaluationSettings.setValueSetCache(theGlobalValueSetCache);
 		evaluationSettings.setRetrieveSettings(theRetrieveSettings);
 		evaluationSettings.setTerminologySettings(theTerminologySettings);
+		theElmDiskCache.ifAvailable(elmDiskCache -> {
+			evaluationSettings.setLibrarySourceProviders(List.of(elmDiskCache));
+			CqlCaches.onStore(theGlobalLibraryCache, elmDiskCache::stored);
+		});
 		return evaluationSettings;
 	}
 
 	@Primary
 	@Bean
-	public ExecutorService cqlExecutor() {
-		CqlThreadFactory factory = new CqlThreadFactory();
-		ExecutorService executor = Executors.newFixedThreadPool(2, factory);
-		executor = new DelegatingSecurityContextExecutorService(executor);
+	public ExecutorService cqlExecutor(
+			CrProperties theCrProperties, ObjectProvider<MeterRegistry> theMeterRegistry) {
+		return CqlExecutors.create(
+				theCrProperties.getExecutor(), theMeterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+	}
 
-		return executor;
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.cr.cql.profiling", name = "enabled", havingValue = "true")
+	public CqlProfiler cqlProfiler(CrProperties theCrProperties, ObjectProvider<MeterRegistry> theMeterRegistry) {
+		return new CqlProfiler(
+				theMeterRegistry.getIfAvailable(() -> Metrics.globalRegistry),
+				theCrProperties.getCql().getProfiling().getSample_rate());
+	}
+
+	/**
+	 * Times the retrieves of a sample of CR operations.
+	 */
+	@Bean
+	@Primary
+	@ConditionalOnProperty(prefix = "hapi.fhir.cr.cql.profiling", name = "enabled", havingValue = "true")
+	IRepositoryFactory profilingRepositoryFactory(
+			@Qualifier("repositoryFactory") IRepositoryFactory theRepositoryFactory,
+			CqlProfiler theProfiler) {
+		return requestDetails -> {
+			IRepository repository = theRepositoryFactory.create(requestDetails);
+			return theProfiler.sample() ? new ProfilingRepository(repository, theProfiler, null) : repository;
+		};
 	}
 
 	@Bean(name = "measure.CareGapsProperties")
@@ -181,18 +218,72 @@ public class CrCommonConfig {
 	}
 
 	@Bean
-	public Map<VersionedIdentifier, CompiledLibrary> globalLibraryCache() {
-		return new ConcurrentHashMap<>();
+	public Map<VersionedIdentifier, CompiledLibrary> globalLibraryCache(
+			CrProperties theCrProperties, ObjectProvider<MeterRegistry> theMeterRegistry) {
+		return CqlCaches.libraryCache(
+				theCrProperties.getCache(), theMeterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+	}
+
+	@Bean
+	public Map<ModelIdentifier, Model> globalModelCache(
+			CrProperties theCrProperties, ObjectProvider<MeterRegistry> theMeterRegistry) {
+		return CqlCaches.modelCache(
+				theCrProperties.getCache(), theMeterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
 	}
 
 	@Bean
-	public Map<ModelIdentifier, Model> globalModelCache() {
-		return new ConcurrentHashMap<>();
+	public Map<String, List<Code>> globalValueSetCache(
+			CrProperties theCrProperties, ObjectProvider<MeterRegistry> theMeterRegistry) {
+		return CqlCaches.valueSetCache(
+				theCrProperties.getCache(), theMeterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+	}
+
+	@Bean(destroyMethod = "shutdown")
+	@ConditionalOnProperty(prefix = "hapi.fhir.cr.elm-cache", name = "enabled", havingValue = "true")
+	public ElmDiskCache elmDiskCache(
+			CrProperties theCrProperties, DaoRegistry theDaoRegistry, ObjectProvider<MeterRegistry> theMeterRegistry) {
+		return new ElmDiskCache(
+				theCrProperties.getElm_cache(),
+				theDaoRegistry,
+				theMeterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
 	}
 
 	@Bean
-	public Map<String, List<Code>> globalValueSetCache() {
-		return new ConcurrentHashMap<>();
+	@ConditionalOnProperty(prefix = "hapi.fhir.cr.warm-up", name = "enabled", havingValue = "true")
+	public CrWarmUp crWarmUp(
+			CrProperties theCrProperties,
+			DaoRegistry theDaoRegistry,
+			EvaluationSettings theEvaluationSettings,
+			IRepositoryFactory theRepositoryFactory) {
+		return new CrWarmUp(
+				theCrProperties.getWarm_up(),
+				theDaoRegistry,
+				theEvaluationSettings,
+				() -> theRepositoryFactory.create(new SystemRequestDetails()));
+	}
+
+	/**
+	 * Replaces the <code>readinessState</code> health indicator, so the readiness probe refuses traffic until the
+	 * CR warm-up is done.
+	 */
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.cr.warm-up", name = "enabled", havingValue = "true")
+	public ReadinessStateHealthIndicator readinessStateHealthIndicator(
+			ApplicationAvailability theApplicationAvailability, CrWarmUp theCrWarmUp) {
+		return new ReadinessStateHealthIndicator(theApplicationAvailability) {
+			@Override
+			protected AvailabilityState getState(ApplicationAvailability theAvailability) {
+				return theCrWarmUp.isDone() ? super.getState(theAvailability) : ReadinessState.REFUSING_TRAFFIC;
+			}
+		};
+	}
+
+	@EventListener(classes = {ApplicationReadyEvent.class})
+	public void warmUp(ApplicationReadyEvent theEvent) {
+		ApplicationContext context = theEvent.getApplicationContext();
+		context.getBeanProvider(ElmDiskCache.class)
+				.ifAvailable(elmDiskCache -> elmDiskCache.warmUp(context.getBean(EvaluationSettings.class)));
+		context.getBeanProvider(CrWarmUp.class).ifAvailable(CrWarmUp::start);
 	}
 
 	@Bean
@@ -200,8 +291,8 @@ public class CrCommonConfig {
 			IResourceChangeListenerRegistry theResourceChangeListenerRegistry,
 			DaoRegistry theDaoRegistry,
 			EvaluationSettings theEvaluationSettings) {
-		ElmCacheResourceChangeListener listener =
-				new ElmCacheResourceChangeListener(theDaoRegistry, theEvaluationSettings.getLibraryCache());
+		ElmCacheResourceChangeListener listener = new IncrementalElmCacheResourceChangeListener(
+				theDaoRegistry, theEvaluationSettings.getLibraryCache());
 		theResourceChangeListenerRegistry.registerResourceResourceChangeListener(
 				"Library", SearchParameterMap.newSynchronous(), listener, 1000);
 		return listener;
@@ -213,8 +304,8 @@ public class CrCommonConfig {
 			EvaluationSettings theEvaluationSettings,
 			DaoRegistry theDaoRegistry) {
 
-		CodeCacheResourceChangeListener listener =
-				new CodeCacheResourceChangeListener(theDaoRegistry, theEvaluationSettings.getValueSetCache());
+		CodeCacheResourceChangeListener listener = new IncrementalCodeCacheResourceChangeListener(
+				theDaoRegistry, theEvaluationSettings.getValueSetCache());
 		// registry
 		theResourceChangeListenerRegistry.registerResourceResourceChangeListener(
 				"ValueSet", SearchParameterMap.newSynchronous(), listener, 1000);
@@ -11,6 +11,11 @@ public class CrProperties {
 
 	private CareGapsProperties careGaps = new CareGapsProperties();
 	private CqlProperties cql = new CqlProperties();
+	private CqlExecutorProperties executor = new CqlExecutorProperties();
+	private CqlCacheProperties cache = new CqlCacheProperties();
+	private ElmCacheProperties elm_cache = new ElmCacheProperties();
+	private CrWarmUpProperties warm_up = new CrWarmUpProperties();
+	private MeasureBatchProperties measure_batch = new MeasureBatchProperties();
 	private TerminologyServerClientSettings terminologyServerClientSettings =
 			TerminologyServerClientSettings.getDefault();
 
@@ -38,6 +43,46 @@ public class CrProperties {
 		this.cql = cql;
 	}
 
+	public CqlExecutorProperties getExecutor() {
+		return executor;
+	}
+
+	public void setExecutor(CqlExecutorProperties executor) {
+		this.executor = executor;
+	}
+
+	public CqlCacheProperties getCache() {
+		return cache;
+	}
+
+	public void setCache(CqlCacheProperties cache) {
+		this.cache = cache;
+	}
+
+	public ElmCacheProperties getElm_cache() {
+		return elm_cache;
+	}
+
+	public void setElm_cache(ElmCacheProperties elm_cache) {
+		this.elm_cache = elm_cache;
+	}
+
+	public CrWarmUpProperties getWarm_up() {
+		return warm_up;
+	}
+
+	public void setWarm_up(CrWarmUpProperties warm_up) {
+		this.warm_up = warm_up;
+	}
+
+	public MeasureBatchProperties getMeasure_batch() {
+		return measure_batch;
+	}
+
+	public void setMeasure_batch(MeasureBatchProperties measure_batch) {
+		this.measure_batch = measure_batch;
+	}
+
 	public TerminologyServerClientSettings getTerminologyServerClientSettings() {
 		return terminologyServerClientSettings;
 	}
@@ -0,0 +1,258 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.repository.IRepository;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.UriParam;
+import ca.uhn.fhir.util.FhirTerser;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.IncludeDef;
+import org.hl7.elm.r1.ValueSetDef;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.cql.engine.execution.CqlEngine;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.opencds.cqf.fhir.cql.Engines;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Compiles the libraries of the active Measures and PlanDefinitions, with everything they include, into the global
+ * library cache and expands the value sets they use into the global value set cache, on a pool of
+ * <code>threads</code> threads. Until it is done, or <code>timeout_seconds</code> have passed, {@link #isDone()}
+ * is false and the readiness probe reports <code>REFUSING_TRAFFIC</code>.
+ * <p>
+ * Libraries and value sets that fail are logged and left to the first request that needs them.
+ */
+public class CrWarmUp {
+	private static final Logger ourLog = LoggerFactory.getLogger(CrWarmUp.class);
+
+	private static final List<String> ARTIFACT_TYPES = List.of("Measure", "PlanDefinition");
+
+	private final CrWarmUpProperties mySettings;
+	private final DaoRegistry myDaoRegistry;
+	private final EvaluationSettings myEvaluationSettings;
+	private final Supplier<IRepository> myRepository;
+	private final FhirTerser myTerser;
+	private volatile boolean myDone;
+	private volatile boolean myStarted;
+	private volatile long myDeadlineNanos;
+
+	public CrWarmUp(
+			CrWarmUpProperties theSettings,
+			DaoRegistry theDaoRegistry,
+			EvaluationSettings theEvaluationSettings,
+			Supplier<IRepository> theRepository) {
+		mySettings = theSettings;
+		myDaoRegistry = theDaoRegistry;
+		myEvaluationSettings = theEvaluationSettings;
+		myRepository = theRepository;
+		myTerser = theDaoRegistry.getFhirContext().newTerser();
+	}
+
+	public boolean isDone() {
+		return myDone || (myStarted && System.nanoTime() - myDeadlineNanos > 0);
+	}
+
+	/**
+	 * Runs the warm-up on a background thread.
+	 */
+	public void start() {
+		myDeadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(mySettings.getTimeout_seconds());
+		myStarted = true;
+		Thread thread = new Thread(this::run, "cr-warm-up");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void run() {
+		long start = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, mySettings.getThreads()),
+				new BasicThreadFactory.Builder()
+						.namingPattern("cr-warm-up-%d")
+						.daemon(true)
+						.build());
+		AtomicInteger libraries = new AtomicInteger();
+		AtomicInteger valueSets = new AtomicInteger();
+		AtomicInteger failures = new AtomicInteger();
+		try {
+			Set<String> seenLibraries = ConcurrentHashMap.newKeySet();
+			Map<String, ValueSetInfo> valueSetInfos = new ConcurrentHashMap<>();
+			List<CompletableFuture<Void>> compilations = new ArrayList<>();
+			for (VersionedIdentifier identifier : discoverLibraries()) {
+				compilations.add(CompletableFuture.runAsync(
+						() -> {
+							try {
+								LibraryManager libraryManager = engine().getEnvironment().getLibraryManager();
+								libraries.addAndGet(
+										compile(libraryManager, identifier, seenLibraries, valueSetInfos));
+							} catch (Exception e) {
+								failures.incrementAndGet();
+								ourLog.warn(
+										"Failed to compile library {} during warm-up: {}", key(identifier), e.toString());
+							}
+						},
+						executor));
+			}
+			await(compilations);
+
+			List<CompletableFuture<Void>> expansions = new ArrayList<>();
+			for (ValueSetInfo valueSet : valueSetInfos.values()) {
+				expansions.add(CompletableFuture.runAsync(
+						() -> {
+							try {
+								engine().getEnvironment().getTerminologyProvider().expand(valueSet);
+								valueSets.incrementAndGet();
+							} catch (Exception e) {
+								failures.incrementAndGet();
+								ourLog.warn(
+										"Failed to expand value set {} during warm-up: {}", valueSet.getId(), e.toString());
+							}
+						},
+						executor));
+			}
+			await(expansions);
+			ourLog.info(
+					"CR warm-up compiled {} libraries and expanded {} value sets in {} ms, {} failed",
+					libraries.get(),
+					valueSets.get(),
+					Duration.ofNanos(System.nanoTime() - start).toMillis(),
+					failures.get());
+		} catch (TimeoutException e) {
+			ourLog.warn("CR warm-up did not finish within {} seconds", mySettings.getTimeout_seconds());
+		} catch (Exception e) {
+			ourLog.warn("CR warm-up failed: {}", e.toString());
+		} finally {
+			executor.shutdownNow();
+			myDone = true;
+		}
+	}
+
+	/**
+	 * The libraries referenced by active Measures and PlanDefinitions.
+	 */
+	Set<VersionedIdentifier> discoverLibraries() {
+		Set<String> canonicals = new LinkedHashSet<>();
+		for (String type : ARTIFACT_TYPES) {
+			if (!myDaoRegistry.isResourceTypeSupported(type)) {
+				continue;
+			}
+			SearchParameterMap map = SearchParameterMap.newSynchronous().add("status", new TokenParam("active"));
+			for (IBaseResource artifact : myDaoRegistry
+					.getResourceDao(type)
+					.search(map, new SystemRequestDetails())
+					.getAllResources()) {
+				for (IBase library : myTerser.getValues(artifact, "library")) {
+					if (library instanceof IPrimitiveType<?> canonical && canonical.getValueAsString() != null) {
+						canonicals.add(canonical.getValueAsString());
+					}
+				}
+			}
+		}
+		Map<String, VersionedIdentifier> identifiers = new LinkedHashMap<>();
+		for (String canonical : canonicals) {
+			VersionedIdentifier identifier = resolve(myDaoRegistry, myTerser, canonical);
+			if (identifier != null) {
+				identifiers.putIfAbsent(key(identifier), identifier);
+			}
+		}
+		return new LinkedHashSet<>(identifiers.values());
+	}
+
+	/**
+	 * The name and version of the Library with a canonical URL, optionally with a <code>|version</code>, or null.
+	 */
+	static VersionedIdentifier resolve(DaoRegistry theDaoRegistry, FhirTerser theTerser, String theCanonical) {
+		int bar = theCanonical.indexOf('|');
+		SearchParameterMap map = SearchParameterMap.newSynchronous()
+				.add("url", new UriParam(bar < 0 ? theCanonical : theCanonical.substring(0, bar)));
+		if (bar >= 0) {
+			map.add("version", new TokenParam(theCanonical.substring(bar + 1)));
+		}
+		List<IBaseResource> libraries = theDaoRegistry
+				.getResourceDao("Library")
+				.search(map, new SystemRequestDetails())
+				.getAllResources();
+		if (libraries.isEmpty()) {
+			ourLog.debug("No Library found for {}", theCanonical);
+			return null;
+		}
+		IBaseResource library = libraries.get(0);
+		String name = theTerser.getSinglePrimitiveValueOrNull(library, "name");
+		return name == null
+				? null
+				: new VersionedIdentifier()
+						.withId(name)
+						.withVersion(theTerser.getSinglePrimitiveValueOrNull(library, "version"));
+	}
+
+	/**
+	 * Compiles a library and the libraries it includes, collecting the value sets they declare.
+	 */
+	private int compile(
+			LibraryManager theLibraryManager,
+			VersionedIdentifier theIdentifier,
+			Set<String> theSeenLibraries,
+			Map<String, ValueSetInfo> theValueSets) {
+		if (!theSeenLibraries.add(key(theIdentifier))) {
+			return 0;
+		}
+		CompiledLibrary library = theLibraryManager.resolveLibrary(theIdentifier);
+		int compiled = 1;
+		if (library.getLibrary().getValueSets() != null) {
+			for (ValueSetDef valueSet : library.getLibrary().getValueSets().getDef()) {
+				theValueSets.putIfAbsent(
+						valueSet.getId() + "|" + valueSet.getVersion(),
+						new ValueSetInfo().withId(valueSet.getId()).withVersion(valueSet.getVersion()));
+			}
+		}
+		if (library.getLibrary().getIncludes() != null) {
+			for (IncludeDef include : library.getLibrary().getIncludes().getDef()) {
+				compiled += compile(
+						theLibraryManager,
+						new VersionedIdentifier().withId(include.getPath()).withVersion(include.getVersion()),
+						theSeenLibraries,
+						theValueSets);
+			}
+		}
+		return compiled;
+	}
+
+	private CqlEngine engine() {
+		return Engines.forRepository(myRepository.get(), myEvaluationSettings);
+	}
+
+	private void await(List<CompletableFuture<Void>> theFutures) throws Exception {
+		long remaining = myDeadlineNanos - System.nanoTime();
+		CompletableFuture.allOf(theFutures.toArray(new CompletableFuture[0]))
+				.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+	}
+
+	private static String key(VersionedIdentifier theIdentifier) {
+		return theIdentifier.getId() + "|" + theIdentifier.getVersion();
+	}
+}
@@ -0,0 +1,44 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "hapi.fhir.cr.warm-up")
+public class CrWarmUpProperties {
+
+	/**
+	 * At startup, compiles the libraries of the active Measures and PlanDefinitions and expands the value sets they
+	 * use. Readiness is held until this is done.
+	 */
+	private boolean enabled = false;
+
+	private int threads = 2;
+
+	/** Readiness is no longer held after this many seconds, even if the warm-up is still running. */
+	private int timeout_seconds = 300;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getTimeout_seconds() {
+		return timeout_seconds;
+	}
+
+	public void setTimeout_seconds(int timeout_seconds) {
+		this.timeout_seconds = timeout_seconds;
+	}
+}
@@ -0,0 +1,45 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "hapi.fhir.cr.elm-cache")
+public class ElmCacheProperties {
+
+	/**
+	 * Keeps the ELM of every library translated from a Library resource on disk, so it is not translated again
+	 * after a restart. Library resources are looked up without a partition, so leave this off on partitioned
+	 * servers.
+	 */
+	private boolean enabled = false;
+
+	private String directory = "elm-cache";
+
+	/** At startup, loads the libraries used in this many past hours in the background. 0 disables. */
+	private int warm_hours = 24;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public String getDirectory() {
+		return directory;
+	}
+
+	public void setDirectory(String directory) {
+		this.directory = directory;
+	}
+
+	public int getWarm_hours() {
+		return warm_hours;
+	}
+
+	public void setWarm_hours(int warm_hours) {
+		this.warm_hours = warm_hours;
+	}
+}
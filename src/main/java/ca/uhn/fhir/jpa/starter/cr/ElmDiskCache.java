@@ -0,0 +1,324 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.FhirTerser;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import kotlinx.io.CoreKt;
+import kotlinx.io.JvmCoreKt;
+import kotlinx.io.Source;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.cqframework.cql.cql2elm.LibraryContentType;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.LibrarySourceProvider;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.cqframework.cql.cql2elm.quick.FhirLibrarySourceProvider;
+import org.cqframework.cql.elm.serializing.ElmJsonLibraryWriter;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Second level, on-disk cache of the ELM translated from Library resources.
+ * <p>
+ * The cache is registered as the first library source provider of the engine. When the engine asks for the ELM of
+ * a library, the Library resource is looked up and its ELM is served, memory-mapped, from
+ * <code>&lt;directory&gt;/&lt;name&gt;/&lt;version&gt;/&lt;hash of the CQL&gt;.json</code> when that file exists, so
+ * stale ELM is never served for changed CQL. The hash is only computed again when the <code>meta.versionId</code> of
+ * the Library differs from the one it was computed for. Otherwise the provider serves the CQL of that same Library
+ * resource, and the ELM it is translated to is written to disk in the background once the engine stores it in the
+ * global library cache. Writes that do not fit the queue of the writer are dropped and counted by the
+ * <code>cr.elm.cache.writes.dropped</code> metric.
+ * <p>
+ * The modification time of a file is its last use; at startup the libraries used within <code>warm_hours</code> are
+ * loaded into the global library cache in the background, and files unused for 30 days are deleted.
+ */
+public class ElmDiskCache implements LibrarySourceProvider {
+	private static final Logger ourLog = LoggerFactory.getLogger(ElmDiskCache.class);
+
+	private static final String NO_VERSION = "_";
+	private static final Duration PRUNE_AFTER = Duration.ofDays(30);
+	static final String DROPPED_WRITES = "cr.elm.cache.writes.dropped";
+
+	private final ElmCacheProperties mySettings;
+	private final Path myDirectory;
+	private final IFhirResourceDao<?> myLibraryDao;
+	private final FhirTerser myTerser;
+	// the Library version an identifier resolved to, until its compiled library is stored
+	private final Map<String, LibraryVersion> myPending = new ConcurrentHashMap<>();
+	// content hash per resource version, so the CQL is only hashed again when the Library changed
+	private final Map<String, LibraryVersion> myVersions = new ConcurrentHashMap<>();
+	private final ThreadPoolExecutor myWriter;
+
+	public ElmDiskCache(ElmCacheProperties theSettings, DaoRegistry theDaoRegistry, MeterRegistry theMeterRegistry) {
+		mySettings = theSettings;
+		myDirectory = Path.of(theSettings.getDirectory());
+		myLibraryDao = theDaoRegistry.getResourceDao("Library");
+		myTerser = theDaoRegistry.getFhirContext().newTerser();
+		Counter dropped = Counter.builder(DROPPED_WRITES).register(theMeterRegistry);
+		myWriter = new ThreadPoolExecutor(
+				1,
+				1,
+				0,
+				TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(64),
+				new BasicThreadFactory.Builder()
+						.namingPattern("elm-cache-%d")
+						.daemon(true)
+						.build(),
+				(task, pool) -> {
+					// the library is translated again after the next restart, which is all a dropped write costs
+					dropped.increment();
+					ourLog.debug("Dropped writing ELM to disk, {} writes are queued", pool.getQueue().size());
+				});
+	}
+
+	@Override
+	public Source getLibrarySource(VersionedIdentifier theIdentifier) {
+		return getLibraryContent(theIdentifier, LibraryContentType.CQL);
+	}
+
+	@Override
+	public Source getLibraryContent(VersionedIdentifier theIdentifier, LibraryContentType theType) {
+		if (theType == LibraryContentType.JSON) {
+			LibraryVersion library = lookup(theIdentifier);
+			if (library == null) {
+				return null;
+			}
+			myPending.put(key(theIdentifier), library);
+			Path file = elmFile(theIdentifier, library.contentHash());
+			return Files.isRegularFile(file) ? map(file) : null;
+		}
+		if (theType == LibraryContentType.CQL) {
+			LibraryVersion library = myPending.computeIfAbsent(key(theIdentifier), k -> lookup(theIdentifier));
+			return library == null ? null : source(library.cql());
+		}
+		return null;
+	}
+
+	/**
+	 * Called when the engine stores a compiled library in the global library cache.
+	 */
+	public void stored(VersionedIdentifier theIdentifier, CompiledLibrary theLibrary) {
+		LibraryVersion library = myPending.remove(key(theIdentifier));
+		if (library == null || theLibrary == null || theLibrary.getLibrary() == null) {
+			return;
+		}
+		Path file = elmFile(theIdentifier, library.contentHash());
+		if (Files.isRegularFile(file)) {
+			return;
+		}
+		myWriter.execute(() -> write(file, theLibrary));
+	}
+
+	/**
+	 * Loads the libraries used within <code>warm_hours</code> into the global library cache, on a background
+	 * thread.
+	 */
+	public void warmUp(EvaluationSettings theEvaluationSettings) {
+		if (mySettings.getWarm_hours() <= 0 || !Files.isDirectory(myDirectory)) {
+			return;
+		}
+		Thread thread = new Thread(() -> warmUpNow(theEvaluationSettings), "elm-cache-warm-up");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void warmUpNow(EvaluationSettings theEvaluationSettings) {
+		Instant usedSince = Instant.now().minus(Duration.ofHours(mySettings.getWarm_hours()));
+		Instant pruneBefore = Instant.now().minus(PRUNE_AFTER);
+		LibraryManager libraryManager = new LibraryManager(
+				new ModelManager(theEvaluationSettings.getModelCache()),
+				theEvaluationSettings.getCqlOptions().getCqlCompilerOptions(),
+				theEvaluationSettings.getLibraryCache());
+		libraryManager.getLibrarySourceLoader().registerProvider(this);
+		libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
+
+		int loaded = 0;
+		try (Stream<Path> files = Files.find(myDirectory, 3, (path, attributes) -> attributes.isRegularFile()
+				&& path.getFileName().toString().endsWith(".json"))) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Instant lastUsed = Files.getLastModifiedTime(file).toInstant();
+				if (lastUsed.isBefore(pruneBefore)) {
+					Files.deleteIfExists(file);
+				} else if (lastUsed.isAfter(usedSince)) {
+					VersionedIdentifier identifier = identifier(file);
+					if (!theEvaluationSettings.getLibraryCache().containsKey(identifier)) {
+						try {
+							libraryManager.resolveLibrary(identifier);
+							loaded++;
+						} catch (Exception e) {
+							ourLog.debug("Could not load {} from the ELM cache: {}", file, e.toString());
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			ourLog.warn("Failed to read the ELM cache in {}: {}", myDirectory, e.toString());
+		}
+		ourLog.info("Loaded {} libraries from the ELM cache in {}", loaded, myDirectory);
+	}
+
+	public void shutdown() {
+		myWriter.shutdown();
+	}
+
+	private LibraryVersion lookup(VersionedIdentifier theIdentifier) {
+		if (theIdentifier.getId() == null || theIdentifier.getVersion() == null) {
+			// the repository provider picks the version, leave unversioned includes to it
+			return null;
+		}
+		SearchParameterMap map = SearchParameterMap.newSynchronous()
+				.add("name", new StringParam(theIdentifier.getId(), true))
+				.add("version", new TokenParam(theIdentifier.getVersion()));
+		List<IBaseResource> libraries =
+				myLibraryDao.search(map, new SystemRequestDetails()).getAllResources();
+		if (libraries.size() != 1) {
+			return null;
+		}
+		IBaseResource resource = libraries.get(0);
+		String resourceId = resource.getIdElement().toUnqualifiedVersionless().getValue();
+		String versionId = resource.getIdElement().getVersionIdPart();
+		byte[] cql = cql(resource);
+		if (cql == null) {
+			return null;
+		}
+		LibraryVersion known = myVersions.get(resourceId);
+		if (known != null && versionId != null && versionId.equals(known.versionId())) {
+			return known;
+		}
+		LibraryVersion library = new LibraryVersion(resourceId, versionId, sha256(cql), cql);
+		myVersions.put(resourceId, library);
+		return library;
+	}
+
+	private byte[] cql(IBaseResource theLibrary) {
+		for (IBase content : myTerser.getValues(theLibrary, "content")) {
+			if ("text/cql".equals(myTerser.getSinglePrimitiveValueOrNull(content, "contentType"))) {
+				String data = myTerser.getSinglePrimitiveValueOrNull(content, "data");
+				return data == null ? null : Base64.getDecoder().decode(data);
+			}
+		}
+		return null;
+	}
+
+	private void write(Path theFile, CompiledLibrary theLibrary) {
+		try {
+			Files.createDirectories(theFile.getParent());
+			Path temp = Files.createTempFile(theFile.getParent(), "elm", ".tmp");
+			Files.writeString(temp, new ElmJsonLibraryWriter().writeAsString(theLibrary.getLibrary()));
+			Files.move(temp, theFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			ourLog.debug("Stored the ELM of {} in {}", theLibrary.getIdentifier(), theFile);
+		} catch (Exception e) {
+			ourLog.warn("Failed to store the ELM of {}: {}", theLibrary.getIdentifier(), e.toString());
+		}
+	}
+
+	private static Source map(Path theFile) {
+		try (FileChannel channel = FileChannel.open(theFile, StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			Files.setLastModifiedTime(theFile, FileTime.from(Instant.now()));
+			return CoreKt.buffered(JvmCoreKt.asSource(new ByteBufferInputStream(buffer)));
+		} catch (IOException e) {
+			ourLog.warn("Failed to read {}: {}", theFile, e.toString());
+			return null;
+		}
+	}
+
+	private static Source source(byte[] theBytes) {
+		return CoreKt.buffered(JvmCoreKt.asSource(new ByteArrayInputStream(theBytes)));
+	}
+
+	Path elmFile(VersionedIdentifier theIdentifier, String theContentHash) {
+		return myDirectory
+				.resolve(encode(theIdentifier.getId()))
+				.resolve(theIdentifier.getVersion() == null ? NO_VERSION : encode(theIdentifier.getVersion()))
+				.resolve(theContentHash + ".json");
+	}
+
+	private static VersionedIdentifier identifier(Path theElmFile) {
+		Path versionDirectory = theElmFile.getParent();
+		String version = versionDirectory.getFileName().toString();
+		return new VersionedIdentifier()
+				.withId(URLDecoder.decode(
+						versionDirectory.getParent().getFileName().toString(), StandardCharsets.UTF_8))
+				.withVersion(NO_VERSION.equals(version) ? null : URLDecoder.decode(version, StandardCharsets.UTF_8));
+	}
+
+	private static String key(VersionedIdentifier theIdentifier) {
+		return theIdentifier.getId() + "|" + theIdentifier.getVersion();
+	}
+
+	private static String encode(String theValue) {
+		return URLEncoder.encode(theValue, StandardCharsets.UTF_8);
+	}
+
+	private static String sha256(byte[] theBytes) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(theBytes));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private record LibraryVersion(String resourceId, String versionId, String contentHash, byte[] cql) {}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer myBuffer;
+
+		ByteBufferInputStream(ByteBuffer theBuffer) {
+			myBuffer = theBuffer;
+		}
+
+		@Override
+		public int read() {
+			return myBuffer.hasRemaining() ? myBuffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] theBytes, int theOffset, int theLength) {
+			if (!myBuffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(theLength, myBuffer.remaining());
+			myBuffer.get(theBytes, theOffset, count);
+			return count;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.repository.IRepository;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import com.google.common.collect.Multimap;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseConformance;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A repository passing all operations to another repository, for decorators that only change some of them.
+ */
+public abstract class ForwardingRepository implements IRepository {
+
+	protected final IRepository myRepository;
+
+	protected ForwardingRepository(IRepository theRepository) {
+		myRepository = theRepository;
+	}
+
+	@Override
+	public <B extends IBaseBundle, T extends IBaseResource> B search(
+			Class<B> theBundleType,
+			Class<T> theResourceType,
+			Multimap<String, List<IQueryParameterType>> theSearchParameters,
+			Map<String, String> theHeaders) {
+		return myRepository.search(theBundleType, theResourceType, theSearchParameters, theHeaders);
+	}
+
+	@Override
+	public <T extends IBaseResource, I extends IIdType> T read(
+			Class<T> theResourceType, I theId, Map<String, String> theHeaders) {
+		return myRepository.read(theResourceType, theId, theHeaders);
+	}
+
+	@Override
+	public <T extends IBaseResource> MethodOutcome create(T theResource, Map<String, String> theHeaders) {
+		return myRepository.create(theResource, theHeaders);
+	}
+
+	@Override
+	public <I extends IIdType, P extends IBaseParameters> MethodOutcome patch(
+			I theId, P thePatchParameters, Map<String, String> theHeaders) {
+		return myRepository.patch(theId, thePatchParameters, theHeaders);
+	}
+
+	@Override
+	public <T extends IBaseResource> MethodOutcome update(T theResource, Map<String, String> theHeaders) {
+		return myRepository.update(theResource, theHeaders);
+	}
+
+	@Override
+	public <T extends IBaseResource, I extends IIdType> MethodOutcome delete(
+			Class<T> theResourceType, I theId, Map<String, String> theHeaders) {
+		return myRepository.delete(theResourceType, theId, theHeaders);
+	}
+
+	@Override
+	public <B extends IBaseBundle> B link(Class<B> theBundleType, String theUrl, Map<String, String> theHeaders) {
+		return myRepository.link(theBundleType, theUrl, theHeaders);
+	}
+
+	@Override
+	public <C extends IBaseConformance> C capabilities(Class<C> theResourceType, Map<String, String> theHeaders) {
+		return myRepository.capabilities(theResourceType, theHeaders);
+	}
+
+	@Override
+	public <B extends IBaseBundle> B transaction(B theBundle, Map<String, String> theHeaders) {
+		return myRepository.transaction(theBundle, theHeaders);
+	}
+
+	@Override
+	public <R extends IBaseResource, P extends IBaseParameters> R invoke(
+			String theName, P theParameters, Class<R> theReturnType, Map<String, String> theHeaders) {
+		return myRepository.invoke(theName, theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public <P extends IBaseParameters> MethodOutcome invoke(
+			String theName, P theParameters, Map<String, String> theHeaders) {
+		return myRepository.invoke(theName, theParameters, theHeaders);
+	}
+
+	@Override
+	public <R extends IBaseResource, P extends IBaseParameters, T extends IBaseResource> R invoke(
+			Class<T> theResourceType,
+			String theName,
+			P theParameters,
+			Class<R> theReturnType,
+			Map<String, String> theHeaders) {
+		return myRepository.invoke(theResourceType, theName, theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public <P extends IBaseParameters, T extends IBaseResource> MethodOutcome invoke(
+			Class<T> theResourceType, String theName, P theParameters, Map<String, String> theHeaders) {
+		return myRepository.invoke(theResourceType, theName, theParameters, theHeaders);
+	}
+
+	@Override
+	public <R extends IBaseResource, P extends IBaseParameters, I extends IIdType> R invoke(
+			I theId, String theName, P theParameters, Class<R> theReturnType, Map<String, String> theHeaders) {
+		return myRepository.invoke(theId, theName, theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public <P extends IBaseParameters, I extends IIdType> MethodOutcome invoke(
+			I theId, String theName, P theParameters, Map<String, String> theHeaders) {
+		return myRepository.invoke(theId, theName, theParameters, theHeaders);
+	}
+
+	@Override
+	public <B extends IBaseBundle, P extends IBaseParameters> B history(
+			P theParameters, Class<B> theReturnType, Map<String, String> theHeaders) {
+		return myRepository.history(theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public <B extends IBaseBundle, P extends IBaseParameters, T extends IBaseResource> B history(
+			Class<T> theResourceType, P theParameters, Class<B> theReturnType, Map<String, String> theHeaders) {
+		return myRepository.history(theResourceType, theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public <B extends IBaseBundle, P extends IBaseParameters, I extends IIdType> B history(
+			I theId, P theParameters, Class<B> theReturnType, Map<String, String> theHeaders) {
+		return myRepository.history(theId, theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public FhirContext fhirContext() {
+		return myRepository.fhirContext();
+	}
+}
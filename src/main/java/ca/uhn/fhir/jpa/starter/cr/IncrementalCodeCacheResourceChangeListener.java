@@ -0,0 +1,130 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.fhir.cr.hapi.common.CodeCacheResourceChangeListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the global value set cache up to date one ValueSet at a time.
+ * <p>
+ * The CR listener clears the whole cache whenever a changed ValueSet can no longer be read, which is the case for
+ * every delete, and evicts any expansion whose key merely contains the changed url. This one remembers the url of
+ * each ValueSet it has seen, starting with the ValueSets stored when it is registered, and, for a ValueSet deleted
+ * before it was seen, reads the url from the version before the delete. Only the expansions of that url, with or
+ * without a version, are evicted; the next evaluation expands it again. The cache is only cleared when the url
+ * cannot be found at all.
+ */
+public class IncrementalCodeCacheResourceChangeListener extends CodeCacheResourceChangeListener {
+	private static final Logger ourLog = LoggerFactory.getLogger(IncrementalCodeCacheResourceChangeListener.class);
+
+	private final IFhirResourceDao<?> myValueSetDao;
+	private final Map<String, List<Code>> myValueSetCache;
+	private final FhirTerser myTerser;
+	private final Map<String, String> myUrls = new ConcurrentHashMap<>();
+
+	public IncrementalCodeCacheResourceChangeListener(
+			DaoRegistry theDaoRegistry, Map<String, List<Code>> theValueSetCache) {
+		super(theDaoRegistry, theValueSetCache);
+		myValueSetDao = theDaoRegistry.getResourceDao("ValueSet");
+		myValueSetCache = theValueSetCache;
+		myTerser = theDaoRegistry.getFhirContext().newTerser();
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> theResourceIds) {
+		for (IIdType id : theResourceIds) {
+			String url = currentUrl(id);
+			if (url != null) {
+				myUrls.put(id.toUnqualifiedVersionless().getValue(), url);
+			}
+		}
+		ourLog.debug("Tracking the urls of {} value sets", myUrls.size());
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+		if (theResourceChangeEvent == null) {
+			return;
+		}
+		theResourceChangeEvent.getCreatedResourceIds().forEach(id -> evict(id, false));
+		theResourceChangeEvent.getUpdatedResourceIds().forEach(id -> evict(id, false));
+		theResourceChangeEvent.getDeletedResourceIds().forEach(id -> evict(id, true));
+	}
+
+	private void evict(IIdType theId, boolean theDeleted) {
+		if (!"ValueSet".equals(theId.getResourceType())) {
+			return;
+		}
+		String id = theId.toUnqualifiedVersionless().getValue();
+		// the url may have changed on update, so evict the expansions of the former one as well
+		String previousUrl = theDeleted ? myUrls.remove(id) : myUrls.get(id);
+		String url = theDeleted ? (previousUrl != null ? previousUrl : urlBeforeDelete(theId)) : currentUrl(theId);
+		if (url == null && previousUrl == null) {
+			ourLog.debug("Failed to look up the url of {}, clearing all codes from cache", id);
+			myValueSetCache.clear();
+			return;
+		}
+		if (!theDeleted && url != null) {
+			myUrls.put(id, url);
+		}
+		removeExpansions(url);
+		if (previousUrl != null && !previousUrl.equals(url)) {
+			removeExpansions(previousUrl);
+		}
+	}
+
+	private void removeExpansions(String theUrl) {
+		if (theUrl == null) {
+			return;
+		}
+		myValueSetCache.keySet().removeIf(key -> key.equals(theUrl) || key.startsWith(theUrl + "|"));
+		ourLog.debug("Removed the expansions of {} from the value set cache", theUrl);
+	}
+
+	private String currentUrl(IIdType theId) {
+		try {
+			return url(myValueSetDao.read(theId.toUnqualifiedVersionless(), new SystemRequestDetails()));
+		} catch (ResourceGoneException | ResourceNotFoundException e) {
+			return urlBeforeDelete(theId);
+		}
+	}
+
+	/**
+	 * A deleted resource is read back as the delete marker; the url is in the version before it.
+	 */
+	private String urlBeforeDelete(IIdType theId) {
+		try {
+			IBaseResource deleted =
+					myValueSetDao.read(theId.toUnqualifiedVersionless(), new SystemRequestDetails(), true);
+			String url = url(deleted);
+			IIdType deletedId = deleted.getIdElement();
+			if (url == null && deletedId.hasVersionIdPart() && deletedId.getVersionIdPartAsLong() > 1) {
+				url = url(myValueSetDao.read(
+						deletedId.withVersion(String.valueOf(deletedId.getVersionIdPartAsLong() - 1)),
+						new SystemRequestDetails()));
+			}
+			return url;
+		} catch (ResourceGoneException | ResourceNotFoundException e) {
+			return null;
+		}
+	}
+
+	private String url(IBaseResource theValueSet) {
+		return theValueSet == null ? null : myTerser.getSinglePrimitiveValueOrNull(theValueSet, "url");
+	}
+}
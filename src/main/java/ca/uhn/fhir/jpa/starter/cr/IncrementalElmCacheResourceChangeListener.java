@@ -0,0 +1,242 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.FhirTerser;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.IncludeDef;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.fhir.cr.hapi.common.ElmCacheResourceChangeListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the global library cache up to date one Library at a time, and only when its logic changed.
+ * <p>
+ * The CR listener evicts the compiled library of every created or updated Library, even when it is PUT again
+ * unchanged as an IG is reinstalled, leaves the libraries including it compiled against the former version, and
+ * clears the whole cache on delete. This one remembers the name, version and a hash of the CQL and ELM attachments
+ * of each Library. A change that keeps all three evicts nothing. Otherwise the compiled library of the former and of
+ * the new name and version is evicted, with the cached libraries that include it, directly or through other
+ * libraries. The cache is only cleared when the name of a changed Library cannot be found at all.
+ */
+public class IncrementalElmCacheResourceChangeListener extends ElmCacheResourceChangeListener {
+	private static final Logger ourLog = LoggerFactory.getLogger(IncrementalElmCacheResourceChangeListener.class);
+
+	private final IFhirResourceDao<?> myLibraryDao;
+	private final Map<VersionedIdentifier, CompiledLibrary> myLibraryCache;
+	private final FhirTerser myTerser;
+	// Library resource id -> what the compiled library was built from
+	private final Map<String, LibraryLogic> myLibraries = new ConcurrentHashMap<>();
+
+	public IncrementalElmCacheResourceChangeListener(
+			DaoRegistry theDaoRegistry, Map<VersionedIdentifier, CompiledLibrary> theLibraryCache) {
+		super(theDaoRegistry, theLibraryCache);
+		myLibraryDao = theDaoRegistry.getResourceDao("Library");
+		myLibraryCache = theLibraryCache;
+		myTerser = theDaoRegistry.getFhirContext().newTerser();
+	}
+
+	/**
+	 * Remembers the logic of the Libraries present at startup, so the first unchanged PUT of each of them is already
+	 * recognized.
+	 */
+	@Override
+	public void handleInit(Collection<IIdType> theResourceIds) {
+		for (IIdType id : theResourceIds) {
+			LibraryLogic logic = currentLogic(id);
+			if (logic != null) {
+				myLibraries.put(id.toUnqualifiedVersionless().getValue(), logic);
+			}
+		}
+		ourLog.debug("Tracking the logic of {} libraries", myLibraries.size());
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+		if (theResourceChangeEvent == null) {
+			return;
+		}
+		Set<VersionedIdentifier> changed = new LinkedHashSet<>();
+		theResourceChangeEvent.getCreatedResourceIds().forEach(id -> changed(id, false, changed));
+		theResourceChangeEvent.getUpdatedResourceIds().forEach(id -> changed(id, false, changed));
+		theResourceChangeEvent.getDeletedResourceIds().forEach(id -> changed(id, true, changed));
+		if (!changed.isEmpty()) {
+			evictWithDependents(changed);
+		}
+	}
+
+	/**
+	 * Collects the names and versions whose compiled library is stale because of a change to one Library.
+	 */
+	private void changed(IIdType theId, boolean theDeleted, Set<VersionedIdentifier> theChanged) {
+		if (!"Library".equals(theId.getResourceType())) {
+			return;
+		}
+		String id = theId.toUnqualifiedVersionless().getValue();
+		LibraryLogic previous = theDeleted ? myLibraries.remove(id) : myLibraries.get(id);
+		LibraryLogic current = theDeleted ? null : currentLogic(theId);
+		if (current != null && current.equals(previous)) {
+			ourLog.debug("Logic of {} is unchanged, keeping its compiled library", id);
+			return;
+		}
+		if (current == null && previous == null) {
+			LibraryLogic deleted = logicBeforeDelete(theId);
+			if (deleted == null) {
+				ourLog.debug("Failed to look up the name of {}, clearing all libraries from cache", id);
+				myLibraryCache.clear();
+				return;
+			}
+			previous = deleted;
+		}
+		if (current != null) {
+			myLibraries.put(id, current);
+			theChanged.add(current.identifier());
+		}
+		if (previous != null) {
+			theChanged.add(previous.identifier());
+		}
+	}
+
+	/**
+	 * Evicts the compiled libraries of the given names and versions and, transitively, of the cached libraries that
+	 * include them.
+	 */
+	void evictWithDependents(Collection<VersionedIdentifier> theIdentifiers) {
+		Set<VersionedIdentifier> evicted = new LinkedHashSet<>();
+		Deque<VersionedIdentifier> pending = new ArrayDeque<>(theIdentifiers);
+		while (!pending.isEmpty()) {
+			VersionedIdentifier identifier = pending.poll();
+			// a copy of the entries, so looking at the cache does not count as hits
+			for (Map.Entry<VersionedIdentifier, CompiledLibrary> cached : Map.copyOf(myLibraryCache).entrySet()) {
+				if (matches(cached.getKey(), identifier)) {
+					if (myLibraryCache.remove(cached.getKey()) != null) {
+						evicted.add(cached.getKey());
+					}
+				} else if (includes(cached.getValue(), identifier)) {
+					pending.add(cached.getKey());
+				}
+			}
+		}
+		ourLog.debug("Evicted {} compiled libraries for changes to {}", evicted.size(), theIdentifiers);
+	}
+
+	private static boolean includes(CompiledLibrary theLibrary, VersionedIdentifier theIdentifier) {
+		if (theLibrary == null
+				|| theLibrary.getLibrary() == null
+				|| theLibrary.getLibrary().getIncludes() == null) {
+			return false;
+		}
+		for (IncludeDef include : theLibrary.getLibrary().getIncludes().getDef()) {
+			if (matches(new VersionedIdentifier().withId(include.getPath()).withVersion(include.getVersion()), theIdentifier)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether a reference to a library, which may leave out the version, is satisfied by the given name and version.
+	 */
+	private static boolean matches(VersionedIdentifier theReference, VersionedIdentifier theIdentifier) {
+		return Objects.equals(theReference.getId(), theIdentifier.getId())
+				&& (theReference.getVersion() == null
+						|| theIdentifier.getVersion() == null
+						|| theReference.getVersion().equals(theIdentifier.getVersion()));
+	}
+
+	private LibraryLogic currentLogic(IIdType theId) {
+		try {
+			return logic(myLibraryDao.read(theId.toUnqualifiedVersionless(), new SystemRequestDetails()));
+		} catch (ResourceGoneException | ResourceNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * A deleted resource is read back as the delete marker; the name is in the version before it.
+	 */
+	private LibraryLogic logicBeforeDelete(IIdType theId) {
+		try {
+			IBaseResource deleted =
+					myLibraryDao.read(theId.toUnqualifiedVersionless(), new SystemRequestDetails(), true);
+			LibraryLogic logic = logic(deleted);
+			IIdType deletedId = deleted.getIdElement();
+			if (logic == null && deletedId.hasVersionIdPart() && deletedId.getVersionIdPartAsLong() > 1) {
+				logic = logic(myLibraryDao.read(
+						deletedId.withVersion(String.valueOf(deletedId.getVersionIdPartAsLong() - 1)),
+						new SystemRequestDetails()));
+			}
+			return logic;
+		} catch (ResourceGoneException | ResourceNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The name, version and a hash of the CQL and ELM attachments of a Library, or null when it has no name.
+	 */
+	LibraryLogic logic(IBaseResource theLibrary) {
+		String name = theLibrary == null ? null : myTerser.getSinglePrimitiveValueOrNull(theLibrary, "name");
+		if (name == null) {
+			return null;
+		}
+		// sorted, so reordering the attachments is not a change
+		Map<String, String> attachments = new TreeMap<>();
+		for (IBase content : myTerser.getValues(theLibrary, "content")) {
+			String contentType = myTerser.getSinglePrimitiveValueOrNull(content, "contentType");
+			if (contentType != null && (contentType.startsWith("text/cql") || contentType.startsWith("application/elm"))) {
+				attachments.merge(
+						contentType,
+						Objects.toString(myTerser.getSinglePrimitiveValueOrNull(content, "data"), ""),
+						(a, b) -> a + "\n" + b);
+			}
+		}
+		MessageDigest digest = sha256();
+		attachments.forEach((contentType, data) -> {
+			digest.update(contentType.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(data.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+		});
+		return new LibraryLogic(
+				name,
+				myTerser.getSinglePrimitiveValueOrNull(theLibrary, "version"),
+				HexFormat.of().formatHex(digest.digest()));
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	record LibraryLogic(String name, String version, String contentHash) {
+		VersionedIdentifier identifier() {
+			return new VersionedIdentifier().withId(name).withVersion(version);
+		}
+	}
+}
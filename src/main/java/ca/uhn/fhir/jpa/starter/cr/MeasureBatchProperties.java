@@ -0,0 +1,59 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "hapi.fhir.cr.measure-batch")
+public class MeasureBatchProperties {
+
+	/**
+	 * Evaluates population reports of R4 <code>$evaluate-measure</code> in batches of patients on the CQL executor
+	 * and merges the counts, instead of evaluating all patients on the request thread.
+	 */
+	private boolean enabled = false;
+
+	/** Patients evaluated one after the other by a single task. */
+	private int batch_size = 100;
+
+	/** Batches submitted to the executor and not merged yet; bounds the memory used by a request. */
+	private int max_pending_batches = 8;
+
+	/**
+	 * Reads the data of a batch with one search per resource type and filter for all its patients, instead of one
+	 * search per patient. Only applies to retrieves that CR sends as searches.
+	 */
+	private boolean bulk_retrieve = false;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public int getBatch_size() {
+		return batch_size;
+	}
+
+	public void setBatch_size(int batch_size) {
+		this.batch_size = batch_size;
+	}
+
+	public int getMax_pending_batches() {
+		return max_pending_batches;
+	}
+
+	public void setMax_pending_batches(int max_pending_batches) {
+		this.max_pending_batches = max_pending_batches;
+	}
+
+	public boolean isBulk_retrieve() {
+		return bulk_retrieve;
+	}
+
+	public void setBulk_retrieve(boolean bulk_retrieve) {
+		this.bulk_retrieve = bulk_retrieve;
+	}
+}
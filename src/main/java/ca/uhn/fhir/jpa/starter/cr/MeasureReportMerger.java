@@ -0,0 +1,222 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupComponent;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupPopulationComponent;
+import org.hl7.fhir.r4.model.MeasureReport.MeasureReportGroupStratifierComponent;
+import org.hl7.fhir.r4.model.MeasureReport.StratifierGroupComponent;
+import org.hl7.fhir.r4.model.MeasureReport.StratifierGroupComponentComponent;
+import org.hl7.fhir.r4.model.MeasureReport.StratifierGroupPopulationComponent;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Sums R4 MeasureReports of the same Measure and period into one summary report: the counts of each population of
+ * each group, and of each stratum of each stratifier, matched by code and value. The reports are not kept.
+ * <p>
+ * The evaluated resources of the reports are kept once each. References to contained resources, such as the
+ * supplemental data of a single subject, are dropped.
+ * <p>
+ * The score of proportion and ratio groups and strata is computed from the summed counts. Other scores, such as
+ * continuous variable aggregates, cannot be derived from counts and are left out.
+ */
+public class MeasureReportMerger {
+
+	private static final String NUMERATOR = "numerator";
+	private static final String NUMERATOR_EXCLUSION = "numerator-exclusion";
+	private static final String DENOMINATOR = "denominator";
+	private static final String DENOMINATOR_EXCLUSION = "denominator-exclusion";
+	private static final String DENOMINATOR_EXCEPTION = "denominator-exception";
+
+	private final Set<String> myEvaluatedResources = new LinkedHashSet<>();
+	private MeasureReport myReport;
+	private long myReports;
+
+	public synchronized void add(MeasureReport theReport) {
+		if (theReport == null) {
+			return;
+		}
+		myReports++;
+		for (Reference reference : theReport.getEvaluatedResource()) {
+			if (reference.hasReference() && !reference.getReference().startsWith("#")) {
+				myEvaluatedResources.add(reference.getReference());
+			}
+		}
+		if (myReport == null) {
+			myReport = summaryOf(theReport);
+			return;
+		}
+		for (MeasureReportGroupComponent group : theReport.getGroup()) {
+			MeasureReportGroupComponent target = find(myReport.getGroup(), group, MeasureReportMerger::groupKey);
+			if (target == null) {
+				myReport.addGroup(group.copy());
+				continue;
+			}
+			for (MeasureReportGroupPopulationComponent population : group.getPopulation()) {
+				MeasureReportGroupPopulationComponent targetPopulation =
+						find(target.getPopulation(), population, p -> code(p.getCode()));
+				if (targetPopulation == null) {
+					target.addPopulation(population.copy());
+				} else {
+					targetPopulation.setCount(targetPopulation.getCount() + population.getCount());
+				}
+			}
+			for (MeasureReportGroupStratifierComponent stratifier : group.getStratifier()) {
+				addStratifier(target, stratifier);
+			}
+		}
+	}
+
+	public synchronized void addAll(MeasureReportMerger theOther) {
+		if (theOther.myReport != null) {
+			add(theOther.myReport);
+			myReports += theOther.myReports - 1;
+			myEvaluatedResources.addAll(theOther.myEvaluatedResources);
+		}
+	}
+
+	/** The number of reports added. */
+	public synchronized long size() {
+		return myReports;
+	}
+
+	/**
+	 * The summary report with scores computed from the summed counts, or null when no report was added.
+	 */
+	public synchronized MeasureReport toReport() {
+		if (myReport == null) {
+			return null;
+		}
+		MeasureReport report = myReport.copy();
+		myEvaluatedResources.forEach(reference -> report.addEvaluatedResource(new Reference(reference)));
+		for (MeasureReportGroupComponent group : report.getGroup()) {
+			Map<String, Integer> counts = new HashMap<>();
+			group.getPopulation().forEach(p -> counts.put(code(p.getCode()), p.getCount()));
+			group.setMeasureScore(score(counts));
+			for (MeasureReportGroupStratifierComponent stratifier : group.getStratifier()) {
+				for (StratifierGroupComponent stratum : stratifier.getStratum()) {
+					Map<String, Integer> stratumCounts = new HashMap<>();
+					stratum.getPopulation().forEach(p -> stratumCounts.put(code(p.getCode()), p.getCount()));
+					stratum.setMeasureScore(score(stratumCounts));
+				}
+			}
+		}
+		return report;
+	}
+
+	private void addStratifier(
+			MeasureReportGroupComponent theTarget, MeasureReportGroupStratifierComponent theStratifier) {
+		MeasureReportGroupStratifierComponent target =
+				find(theTarget.getStratifier(), theStratifier, MeasureReportMerger::stratifierKey);
+		if (target == null) {
+			theTarget.addStratifier(theStratifier.copy());
+			return;
+		}
+		for (StratifierGroupComponent stratum : theStratifier.getStratum()) {
+			StratifierGroupComponent targetStratum =
+					find(target.getStratum(), stratum, MeasureReportMerger::stratumKey);
+			if (targetStratum == null) {
+				target.addStratum(stratum.copy());
+				continue;
+			}
+			for (StratifierGroupPopulationComponent population : stratum.getPopulation()) {
+				StratifierGroupPopulationComponent targetPopulation =
+						find(targetStratum.getPopulation(), population, p -> code(p.getCode()));
+				if (targetPopulation == null) {
+					targetStratum.addPopulation(population.copy());
+				} else {
+					targetPopulation.setCount(targetPopulation.getCount() + population.getCount());
+				}
+			}
+		}
+	}
+
+	private static MeasureReport summaryOf(MeasureReport theReport) {
+		MeasureReport summary = theReport.copy();
+		summary.setId((String) null);
+		summary.setType(MeasureReport.MeasureReportType.SUMMARY);
+		// the subject of an individual report is its patient, the caller sets the subject of the population
+		summary.setSubject(null);
+		summary.getEvaluatedResource().clear();
+		summary.getContained().clear();
+		// supplemental data and population references point at contained resources of a single subject
+		summary.getExtension()
+				.removeIf(extension -> extension.getValue() instanceof Reference reference
+						&& reference.getReference() != null
+						&& reference.getReference().startsWith("#"));
+		for (MeasureReportGroupComponent group : summary.getGroup()) {
+			group.getPopulation().forEach(population -> population.setSubjectResults(null));
+		}
+		return summary;
+	}
+
+	private static Quantity score(Map<String, Integer> theCounts) {
+		if (!theCounts.containsKey(NUMERATOR) || !theCounts.containsKey(DENOMINATOR)) {
+			return null;
+		}
+		int numerator = theCounts.get(NUMERATOR) - theCounts.getOrDefault(NUMERATOR_EXCLUSION, 0);
+		int denominator = theCounts.get(DENOMINATOR)
+				- theCounts.getOrDefault(DENOMINATOR_EXCLUSION, 0)
+				- theCounts.getOrDefault(DENOMINATOR_EXCEPTION, 0);
+		return denominator <= 0 ? null : new Quantity().setValue((double) numerator / denominator);
+	}
+
+	private static <T> T find(List<T> theCandidates, T theItem, Function<T, String> theKey) {
+		String key = theKey.apply(theItem);
+		for (T candidate : theCandidates) {
+			if (key.equals(theKey.apply(candidate))) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	private static String groupKey(MeasureReportGroupComponent theGroup) {
+		return theGroup.hasId() ? theGroup.getId() : code(theGroup.getCode());
+	}
+
+	private static String stratifierKey(MeasureReportGroupStratifierComponent theStratifier) {
+		if (theStratifier.hasId()) {
+			return theStratifier.getId();
+		}
+		StringBuilder key = new StringBuilder();
+		theStratifier.getCode().forEach(code -> key.append(code(code)).append(';'));
+		return key.toString();
+	}
+
+	private static String stratumKey(StratifierGroupComponent theStratum) {
+		StringBuilder key = new StringBuilder(value(theStratum.getValue()));
+		for (StratifierGroupComponentComponent component : theStratum.getComponent()) {
+			key.append(';').append(code(component.getCode())).append('=').append(value(component.getValue()));
+		}
+		return key.toString();
+	}
+
+	private static String value(CodeableConcept theValue) {
+		if (theValue == null || theValue.isEmpty()) {
+			return "";
+		}
+		return theValue.hasCoding() ? code(theValue) : theValue.getText();
+	}
+
+	private static String code(CodeableConcept theCode) {
+		if (theCode == null) {
+			return "";
+		}
+		for (Coding coding : theCode.getCoding()) {
+			if (coding.hasCode()) {
+				return coding.getCode();
+			}
+		}
+		return theCode.hasText() ? theCode.getText() : "";
+	}
+}
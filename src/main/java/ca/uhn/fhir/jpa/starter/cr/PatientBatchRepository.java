@@ -0,0 +1,252 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.repository.IRepository;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.BundleBuilder;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.FhirTerser;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Answers the per-patient searches of CQL retrieves for a batch of patients from one search per resource type and
+ * filter.
+ * <p>
+ * With search parameters on, a retrieve such as <code>[Observation: "X"]</code> in the Patient context searches
+ * <code>Observation?subject=Patient/1&amp;code:in=X</code>. The first such search for a patient of the batch runs
+ * once for every patient of the batch, with <code>subject=Patient/1,Patient/2,...</code>, and the results are
+ * bucketed by the patient they reference; the searches of the other patients are answered from those buckets. The
+ * buckets live as long as this repository, which is created for one batch.
+ * <p>
+ * Searches for patients outside the batch, and searches whose search parameter cannot be followed to a reference
+ * in memory, go to the repository as they are. All other operations are passed through.
+ */
+public class PatientBatchRepository extends ForwardingRepository {
+	private static final Logger ourLog = LoggerFactory.getLogger(PatientBatchRepository.class);
+
+	private static final String PATIENT = "Patient";
+	private static final String COMPARTMENT_HEADER = "X-FHIR-Compartment";
+	private static final Pattern RESOLVE_FILTER = Pattern.compile("\\.where\\(resolve\\(\\) is [A-Za-z]+\\)$");
+
+	private final FhirContext myFhirContext;
+	private final FhirTerser myTerser;
+	private final Set<String> myPatients;
+	// search key -> patient id -> resources
+	private final Map<String, Map<String, List<IBaseResource>>> myBuckets = new HashMap<>();
+	private int mySearches;
+
+	public PatientBatchRepository(IRepository theRepository, Collection<String> thePatients) {
+		super(theRepository);
+		myFhirContext = theRepository.fhirContext();
+		myTerser = myFhirContext.newTerser();
+		myPatients = thePatients.stream()
+				.map(PatientBatchRepository::idPart)
+				.collect(Collectors.toCollection(LinkedHashSet::new));
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <B extends IBaseBundle, T extends IBaseResource> B search(
+			Class<B> theBundleType,
+			Class<T> theResourceType,
+			Multimap<String, List<IQueryParameterType>> theSearchParameters,
+			Map<String, String> theHeaders) {
+		String resourceType = myFhirContext.getResourceType(theResourceType);
+		String contextParameter = contextParameter(resourceType, theSearchParameters);
+		List<String> paths = contextParameter == null ? null : referencePaths(resourceType, contextParameter);
+		if (paths == null) {
+			return myRepository.search(theBundleType, theResourceType, theSearchParameters, theHeaders);
+		}
+		String patient = idPart(theSearchParameters
+				.get(contextParameter)
+				.iterator()
+				.next()
+				.get(0)
+				.getValueAsQueryToken());
+
+		String key = key(resourceType, contextParameter, theSearchParameters);
+		Map<String, List<IBaseResource>> buckets = myBuckets.get(key);
+		if (buckets == null) {
+			buckets = searchBatch(
+					theBundleType, theResourceType, contextParameter, paths, theSearchParameters, theHeaders);
+			myBuckets.put(key, buckets);
+		}
+
+		BundleBuilder bundle = new BundleBuilder(myFhirContext);
+		bundle.setType("searchset");
+		buckets.getOrDefault(patient, List.of()).forEach(bundle::addCollectionEntry);
+		return (B) bundle.getBundle();
+	}
+
+	/** The number of searches sent to the repository for the whole batch. */
+	public int getBatchSearchCount() {
+		return mySearches;
+	}
+
+	private <B extends IBaseBundle, T extends IBaseResource> Map<String, List<IBaseResource>> searchBatch(
+			Class<B> theBundleType,
+			Class<T> theResourceType,
+			String theContextParameter,
+			List<String> thePaths,
+			Multimap<String, List<IQueryParameterType>> theSearchParameters,
+			Map<String, String> theHeaders) {
+		boolean byId = "_id".equals(theContextParameter);
+		List<IQueryParameterType> patients = new ArrayList<>(myPatients.size());
+		for (String patient : myPatients) {
+			patients.add(byId ? new TokenParam(patient) : new ReferenceParam(PATIENT + "/" + patient));
+		}
+		Multimap<String, List<IQueryParameterType>> parameters = ArrayListMultimap.create(theSearchParameters);
+		parameters.removeAll(theContextParameter);
+		parameters.put(theContextParameter, patients);
+		Map<String, String> headers = new HashMap<>(theHeaders == null ? Map.of() : theHeaders);
+		headers.remove(COMPARTMENT_HEADER);
+
+		Map<String, List<IBaseResource>> buckets = new HashMap<>();
+		IBaseBundle page = myRepository.search(theBundleType, theResourceType, parameters, headers);
+		mySearches++;
+		int count = 0;
+		while (page != null) {
+			for (IBaseResource resource : BundleUtil.toListOfResources(myFhirContext, page)) {
+				count++;
+				for (String patient : patientsOf(resource, byId, thePaths)) {
+					buckets.computeIfAbsent(patient, p -> new ArrayList<>()).add(resource);
+				}
+			}
+			String next = BundleUtil.getLinkUrlOfType(myFhirContext, page, "next");
+			page = next == null ? null : myRepository.link(theBundleType, next, headers);
+		}
+		ourLog.debug(
+				"Read {} {} resources for {} patients in one search",
+				count,
+				theResourceType.getSimpleName(),
+				myPatients.size());
+		return buckets;
+	}
+
+	private Set<String> patientsOf(IBaseResource theResource, boolean theById, List<String> thePaths) {
+		Set<String> patients = new LinkedHashSet<>();
+		if (theById) {
+			patients.add(theResource.getIdElement().getIdPart());
+			return patients;
+		}
+		for (String path : thePaths) {
+			for (IBaseReference reference : myTerser.getValues(theResource, path, IBaseReference.class)) {
+				IIdType id = reference.getReferenceElement();
+				if (id != null && PATIENT.equals(id.getResourceType()) && myPatients.contains(id.getIdPart())) {
+					patients.add(id.getIdPart());
+				}
+			}
+		}
+		return patients;
+	}
+
+	/**
+	 * The parameter restricting a search to one patient of the batch, or null.
+	 */
+	private String contextParameter(
+			String theResourceType, Multimap<String, List<IQueryParameterType>> theSearchParameters) {
+		String found = null;
+		for (Map.Entry<String, Collection<List<IQueryParameterType>>> entry :
+				theSearchParameters.asMap().entrySet()) {
+			if (entry.getValue().size() != 1 || entry.getValue().iterator().next().size() != 1) {
+				continue;
+			}
+			IQueryParameterType value = entry.getValue().iterator().next().get(0);
+			boolean patient = value instanceof ReferenceParam reference
+					? reference.getChain() == null
+							&& PATIENT.equals(reference.getResourceType())
+							&& myPatients.contains(reference.getIdPart())
+					: PATIENT.equals(theResourceType)
+							&& "_id".equals(entry.getKey())
+							&& value instanceof TokenParam token
+							&& myPatients.contains(idPart(token.getValue()));
+			if (patient) {
+				if (found != null) {
+					return null;
+				}
+				found = entry.getKey();
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * The paths of the references a reference search parameter follows, or null when they cannot be followed in
+	 * memory.
+	 */
+	private List<String> referencePaths(String theResourceType, String theParameter) {
+		if ("_id".equals(theParameter)) {
+			return List.of();
+		}
+		RuntimeSearchParam searchParam =
+				myFhirContext.getResourceDefinition(theResourceType).getSearchParam(theParameter);
+		if (searchParam == null || searchParam.getPath() == null) {
+			return null;
+		}
+		List<String> paths = new ArrayList<>();
+		for (String path : searchParam.getPath().split("\\|")) {
+			path = RESOLVE_FILTER.matcher(path.trim()).replaceFirst("");
+			if (path.startsWith(theResourceType + ".") && !path.contains("(")) {
+				paths.add(path);
+			} else if (!path.startsWith(theResourceType + ".") && path.contains(".")) {
+				// a path of another resource type of a shared parameter such as "patient"
+				continue;
+			} else {
+				return null;
+			}
+		}
+		return paths.isEmpty() ? null : paths;
+	}
+
+	private String key(
+			String theResourceType,
+			String theContextParameter,
+			Multimap<String, List<IQueryParameterType>> theSearchParameters) {
+		Map<String, String> parameters = new TreeMap<>();
+		for (Map.Entry<String, Collection<List<IQueryParameterType>>> entry :
+				theSearchParameters.asMap().entrySet()) {
+			if (!entry.getKey().equals(theContextParameter)) {
+				parameters.put(
+						entry.getKey(),
+						entry.getValue().stream()
+								.map(values -> values.stream()
+										.map(value -> value.getQueryParameterQualifier() + "="
+												+ value.getValueAsQueryToken())
+										.collect(Collectors.joining(",")))
+								.collect(Collectors.joining("&")));
+			}
+		}
+		return theResourceType + "?" + theContextParameter + "&" + parameters;
+	}
+
+	private static String idPart(String theReference) {
+		int slash = theReference.lastIndexOf('/');
+		return slash < 0 ? theReference : theReference.substring(slash + 1);
+	}
+
+	@Override
+	public FhirContext fhirContext() {
+		return myFhirContext;
+	}
+}
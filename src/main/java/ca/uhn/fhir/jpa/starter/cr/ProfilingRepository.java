@@ -0,0 +1,48 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.repository.IRepository;
+import ca.uhn.fhir.util.BundleUtil;
+import com.google.common.collect.Multimap;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the latency and the number of results of the searches an evaluation sends to the repository with a
+ * {@link CqlProfiler}: those of CQL retrieves, and those loading libraries and terminology that are not cached yet.
+ * All other operations are passed through.
+ */
+public class ProfilingRepository extends ForwardingRepository {
+
+	private final CqlProfiler myProfiler;
+	private final String myMeasure;
+
+	/**
+	 * @param theMeasure the measure the searches are recorded for, in addition to all searches, or null
+	 */
+	public ProfilingRepository(IRepository theRepository, CqlProfiler theProfiler, String theMeasure) {
+		super(theRepository);
+		myProfiler = theProfiler;
+		myMeasure = theMeasure;
+	}
+
+	@Override
+	public <B extends IBaseBundle, T extends IBaseResource> B search(
+			Class<B> theBundleType,
+			Class<T> theResourceType,
+			Multimap<String, List<IQueryParameterType>> theSearchParameters,
+			Map<String, String> theHeaders) {
+		long start = System.nanoTime();
+		B bundle = super.search(theBundleType, theResourceType, theSearchParameters, theHeaders);
+		long nanos = System.nanoTime() - start;
+		myProfiler.recordRetrieve(
+				myMeasure,
+				fhirContext().getResourceType(theResourceType),
+				nanos,
+				bundle == null ? 0 : BundleUtil.toListOfResources(fhirContext(), bundle).size());
+		return bundle;
+	}
+}
@@ -1,6 +1,17 @@
 package ca.uhn.fhir.jpa.starter.cr;
 
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobDefinition;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.partition.IRequestPartitionHelperSvc;
 import ca.uhn.fhir.jpa.starter.annotations.OnR4Condition;
+import ca.uhn.fhir.jpa.starter.cr.caregaps.CareGapsAsyncProvider;
+import ca.uhn.fhir.jpa.starter.cr.caregaps.CareGapsJob;
+import ca.uhn.fhir.jpa.starter.cr.caregaps.CareGapsJobParameters;
+import ca.uhn.fhir.rest.api.server.IRepositoryFactory;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.opencds.cqf.fhir.cr.hapi.common.StringTimePeriodHandler;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.ApplyOperationConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.CrR4Config;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.DataRequirementsOperationConfig;
@@ -9,9 +20,20 @@ import org.opencds.cqf.fhir.cr.hapi.config.r4.ExtractOperationConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.PackageOperationConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.PopulateOperationConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.QuestionnaireOperationConfig;
+import org.opencds.cqf.fhir.cr.hapi.r4.ICareGapsServiceFactory;
+import org.opencds.cqf.fhir.cr.hapi.r4.R4MeasureEvaluatorSingleFactory;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.fhir.cr.measure.common.MeasurePeriodValidator;
+import org.opencds.cqf.fhir.cr.measure.r4.R4MultiMeasureService;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
+
+import java.util.concurrent.ExecutorService;
 
 @Configuration
 @Conditional({OnR4Condition.class, CrConfigCondition.class})
@@ -26,4 +48,81 @@ import org.springframework.context.annotation.Import;
 	PopulateOperationConfig.class,
 	QuestionnaireOperationConfig.class
 })
-public class StarterCrR4Config {}
+public class StarterCrR4Config {
+
+	@Bean
+	@Primary
+	@ConditionalOnProperty(prefix = "hapi.fhir.cr.measure-batch", name = "enabled", havingValue = "true")
+	R4MeasureEvaluatorSingleFactory batchedMeasureEvaluatorFactory(
+			@Qualifier("r4MeasureServiceFactory") R4MeasureEvaluatorSingleFactory theMeasureEvaluatorFactory,
+			DaoRegistry theDaoRegistry,
+			ExecutorService theCqlExecutor,
+			CrProperties theCrProperties,
+			IRepositoryFactory theRepositoryFactory,
+			MeasureEvaluationOptions theMeasureEvaluationOptions,
+			MeasurePeriodValidator theMeasurePeriodValidator) {
+		MeasureBatchProperties settings = theCrProperties.getMeasure_batch();
+		if (!settings.isBulk_retrieve()) {
+			return new BatchedMeasureEvaluatorFactory(
+					theMeasureEvaluatorFactory, theDaoRegistry, theCqlExecutor, settings);
+		}
+		return new BatchedMeasureEvaluatorFactory(
+				theMeasureEvaluatorFactory,
+				theDaoRegistry,
+				theCqlExecutor,
+				settings,
+				(requestDetails, patients) -> new R4MultiMeasureService(
+						new PatientBatchRepository(theRepositoryFactory.create(requestDetails), patients),
+						theMeasureEvaluationOptions,
+						requestDetails.getFhirServerBase(),
+						theMeasurePeriodValidator));
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.cr.caregaps", name = "async_enabled", havingValue = "true")
+	JobDefinition<CareGapsJobParameters> careGapsJobDefinition(
+			DaoRegistry theDaoRegistry, ICareGapsServiceFactory theCareGapsServiceFactory) {
+		return CareGapsJob.definition(theDaoRegistry, theCareGapsServiceFactory);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.cr.caregaps", name = "async_enabled", havingValue = "true")
+	CareGapsAsyncProvider careGapsAsyncProvider(
+			IJobCoordinator theJobCoordinator,
+			DaoRegistry theDaoRegistry,
+			IRequestPartitionHelperSvc theRequestPartitionHelperSvc,
+			StringTimePeriodHandler theStringTimePeriodHandler,
+			CrProperties theCrProperties,
+			RestfulServer theRestfulServer) {
+		CareGapsAsyncProvider provider = new CareGapsAsyncProvider(
+				theJobCoordinator,
+				theDaoRegistry,
+				theRequestPartitionHelperSvc,
+				theStringTimePeriodHandler,
+				theCrProperties.getCareGaps().getAsync_chunk_size());
+		theRestfulServer.registerProvider(provider);
+		theRestfulServer.registerInterceptor(provider);
+		return provider;
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.cr.cql.profiling", name = "enabled", havingValue = "true")
+	CqlProfileProvider cqlProfileProvider(
+			DaoRegistry theDaoRegistry,
+			@Qualifier("repositoryFactory") IRepositoryFactory theRepositoryFactory,
+			EvaluationSettings theEvaluationSettings,
+			StringTimePeriodHandler theStringTimePeriodHandler,
+			CqlProfiler theProfiler,
+			CrProperties theCrProperties,
+			RestfulServer theRestfulServer) {
+		CqlProfileProvider provider = new CqlProfileProvider(
+				theDaoRegistry,
+				theRepositoryFactory,
+				theEvaluationSettings,
+				theStringTimePeriodHandler,
+				theProfiler,
+				theCrProperties.getCql().getProfiling());
+		theRestfulServer.registerProvider(provider);
+		return provider;
+	}
+}
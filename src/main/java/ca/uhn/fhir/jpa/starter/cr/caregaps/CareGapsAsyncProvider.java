@@ -0,0 +1,250 @@
+package ca.uhn.fhir.jpa.starter.cr.caregaps;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.batch2.model.JobInstanceStartRequest;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.batch.models.Batch2JobStartResponse;
+import ca.uhn.fhir.jpa.partition.IRequestPartitionHelperSvc;
+import ca.uhn.fhir.jpa.starter.util.AsyncRequestHelper;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.server.IPreResourceAccessDetails;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.JsonUtil;
+import ca.uhn.fhir.util.ParametersUtil;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.opencds.cqf.fhir.cr.hapi.common.StringTimePeriodHandler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs <code>$care-gaps</code> requests sent with <code>Prefer: respond-async</code> as a {@link CareGapsJob}.
+ * <p>
+ * The request is answered with 202 and a <code>Content-Location</code> of
+ * <code>$care-gaps-poll-status?_jobId=...</code>, which answers 202 with an <code>X-Progress</code> header while the
+ * job runs and the Parameters of the report once it completed. Requests without the header are left to the CR
+ * operation. The job is listed, and can be cancelled, under <code>/control/jobs</code>.
+ * <p>
+ * The job is started only once the <code>SERVER_INCOMING_REQUEST_PRE_HANDLED</code> hooks, such as authorization
+ * and consent, accepted the request. It evaluates in the partition the request reads from, and its status can only
+ * be polled by the requester that started it. The job reads as the system, so a request the server filters resource
+ * by resource, see {@link AsyncRequestHelper#isFilteredPerResource}, is left to the CR operation instead. The stored
+ * report can only be read through the poll, see {@link #hideReports}.
+ */
+@Interceptor
+public class CareGapsAsyncProvider {
+
+	public static final String OPERATION = "$care-gaps";
+	public static final String POLL_OPERATION = "$care-gaps-poll-status";
+	public static final String PARAM_JOB_ID = "_jobId";
+
+	private static final Set<String> SUBJECT_TYPES = Set.of("Patient", "Group", "Practitioner", "Organization");
+
+	private final IJobCoordinator myJobCoordinator;
+	private final DaoRegistry myDaoRegistry;
+	private final IRequestPartitionHelperSvc myRequestPartitionHelperSvc;
+	private final StringTimePeriodHandler myStringTimePeriodHandler;
+	private final int myChunkSize;
+
+	public CareGapsAsyncProvider(
+			IJobCoordinator theJobCoordinator,
+			DaoRegistry theDaoRegistry,
+			IRequestPartitionHelperSvc theRequestPartitionHelperSvc,
+			StringTimePeriodHandler theStringTimePeriodHandler,
+			int theChunkSize) {
+		myJobCoordinator = theJobCoordinator;
+		myDaoRegistry = theDaoRegistry;
+		myRequestPartitionHelperSvc = theRequestPartitionHelperSvc;
+		myStringTimePeriodHandler = theStringTimePeriodHandler;
+		myChunkSize = theChunkSize;
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean startJob(RequestDetails theRequestDetails, HttpServletResponse theResponse) {
+		if (!OPERATION.equals(theRequestDetails.getOperation())
+				|| !"Measure".equals(theRequestDetails.getResourceName())
+				|| theRequestDetails.getId() != null
+				|| !AsyncRequestHelper.isRespondAsync(theRequestDetails)
+				|| AsyncRequestHelper.isFilteredPerResource(theRequestDetails)) {
+			return true;
+		}
+		// the server calls these only when it invokes the CR operation, which this request never reaches
+		AsyncRequestHelper.callPreHandledHooks(theRequestDetails);
+		JobInstanceStartRequest startRequest =
+				new JobInstanceStartRequest(CareGapsJob.JOB_DEFINITION_ID, parameters(theRequestDetails));
+		startRequest.setUseCache(false);
+		Batch2JobStartResponse started = myJobCoordinator.startInstance(theRequestDetails, startRequest);
+
+		theResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+		theResponse.addHeader(
+				Constants.HEADER_CONTENT_LOCATION,
+				theRequestDetails.getFhirServerBase() + "/" + POLL_OPERATION + "?" + PARAM_JOB_ID + "="
+						+ started.getInstanceId());
+		return false;
+	}
+
+	/**
+	 * Hides the report Binaries of the jobs from every request but those of the system, which the poll reads them
+	 * with. Their content is only meant for the requester, which the poll checks.
+	 */
+	@Hook(Pointcut.STORAGE_PREACCESS_RESOURCES)
+	public void hideReports(IPreResourceAccessDetails theDetails, RequestDetails theRequestDetails) {
+		if (theRequestDetails instanceof SystemRequestDetails) {
+			return;
+		}
+		for (int i = 0; i < theDetails.size(); i++) {
+			if (CareGapsJob.isReport(theDetails.getResource(i))) {
+				theDetails.setDontReturnResourceAtIndex(i);
+			}
+		}
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_UPDATED)
+	public void protectReportFromUpdate(IBaseResource theOldResource, RequestDetails theRequestDetails) {
+		protectReport(theOldResource, theRequestDetails);
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_DELETED)
+	public void protectReportFromDelete(IBaseResource theResource, RequestDetails theRequestDetails) {
+		protectReport(theResource, theRequestDetails);
+	}
+
+	private static void protectReport(IBaseResource theResource, RequestDetails theRequestDetails) {
+		if (!(theRequestDetails instanceof SystemRequestDetails) && CareGapsJob.isReport(theResource)) {
+			throw new ForbiddenOperationException("Care gaps reports can only be read with " + POLL_OPERATION);
+		}
+	}
+
+	@Operation(name = POLL_OPERATION, manualResponse = true, idempotent = true)
+	public void pollStatus(
+			@OperationParam(name = PARAM_JOB_ID, typeName = "string", min = 1, max = 1) IPrimitiveType<String> theJobId,
+			ServletRequestDetails theRequestDetails)
+			throws IOException {
+		if (theJobId == null || theJobId.getValue() == null) {
+			throw new InvalidRequestException("Missing " + PARAM_JOB_ID);
+		}
+		JobInstance instance = myJobCoordinator.getInstance(theJobId.getValue());
+		if (!CareGapsJob.JOB_DEFINITION_ID.equals(instance.getJobDefinitionId())) {
+			throw new ResourceNotFoundException("Unknown care gaps job: " + theJobId.getValue());
+		}
+		CareGapsJobParameters parameters = instance.getParameters(CareGapsJobParameters.class);
+		AsyncRequestHelper.checkRequester(theRequestDetails, parameters.getRequester(), instance.getInstanceId());
+		HttpServletResponse response = theRequestDetails.getServletResponse();
+		switch (instance.getStatus()) {
+			case COMPLETED -> {
+				byte[] report = report(instance, parameters);
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setContentType(Constants.CT_FHIR_JSON_NEW);
+				response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+				response.getOutputStream().write(report);
+				response.getOutputStream().close();
+			}
+			case FAILED, CANCELLED -> throw new InternalErrorException("Care gaps job " + instance.getInstanceId()
+					+ " is " + instance.getStatus() + ": " + instance.getErrorMessage());
+			default -> {
+				response.setStatus(HttpServletResponse.SC_ACCEPTED);
+				response.addHeader(
+						Constants.HEADER_X_PROGRESS,
+						String.format("%s, %.0f%%", instance.getStatus(), instance.getProgress() * 100));
+				response.addHeader(Constants.HEADER_RETRY_AFTER, "120");
+				response.getOutputStream().close();
+			}
+		}
+	}
+
+	private byte[] report(JobInstance theInstance, CareGapsJobParameters theParameters) {
+		FhirContext fhirContext = myDaoRegistry.getFhirContext();
+		if (theInstance.getReport() == null) {
+			// no patients, so no chunks to reduce
+			return fhirContext
+					.newJsonParser()
+					.encodeResourceToString(new Parameters())
+					.getBytes(StandardCharsets.UTF_8);
+		}
+		CareGapsReportJson report = JsonUtil.deserialize(theInstance.getReport(), CareGapsReportJson.class);
+		Binary binary = myDaoRegistry
+				.getResourceDao(Binary.class)
+				.read(new IdType(report.getBinaryId()), CareGapsJob.requestDetails(theParameters));
+		return binary.getData();
+	}
+
+	CareGapsJobParameters parameters(RequestDetails theRequestDetails) {
+		Parameters body = body(theRequestDetails);
+		String periodStart = value(theRequestDetails, body, "periodStart");
+		String periodEnd = value(theRequestDetails, body, "periodEnd");
+		if (periodStart == null || periodEnd == null) {
+			throw new InvalidRequestException("periodStart and periodEnd are required");
+		}
+		String subject = value(theRequestDetails, body, "subject");
+		if (subject != null && !SUBJECT_TYPES.contains(new IdType(subject).getResourceType())) {
+			throw new InvalidRequestException("Unsupported subject for an asynchronous $care-gaps: " + subject);
+		}
+		ZonedDateTime start = myStringTimePeriodHandler.getStartZonedDateTime(periodStart, theRequestDetails);
+		ZonedDateTime end = myStringTimePeriodHandler.getEndZonedDateTime(periodEnd, theRequestDetails);
+		return new CareGapsJobParameters()
+				.setPeriodStart(start.format(DateTimeFormatter.ISO_ZONED_DATE_TIME))
+				.setPeriodEnd(end.format(DateTimeFormatter.ISO_ZONED_DATE_TIME))
+				.setSubject(subject)
+				.setStatus(values(theRequestDetails, body, "status"))
+				.setMeasureId(values(theRequestDetails, body, "measureId"))
+				.setMeasureIdentifier(values(theRequestDetails, body, "measureIdentifier"))
+				.setMeasureUrl(values(theRequestDetails, body, "measureUrl"))
+				.setNonDocument(Boolean.parseBoolean(value(theRequestDetails, body, "nonDocument")))
+				.setFhirServerBase(theRequestDetails.getFhirServerBase())
+				.setTenantId(theRequestDetails.getTenantId())
+				.setRequestPartitionId(myRequestPartitionHelperSvc.determineReadPartitionForRequestForServerOperation(
+						theRequestDetails, OPERATION))
+				.setRequester(AsyncRequestHelper.requester(theRequestDetails))
+				.setChunkSize(myChunkSize);
+	}
+
+	private Parameters body(RequestDetails theRequestDetails) {
+		EncodingEnum encoding = EncodingEnum.forContentType(theRequestDetails.getHeader(Constants.HEADER_CONTENT_TYPE));
+		if (encoding == null) {
+			// GET, or a form post whose parameters are already parsed
+			return null;
+		}
+		byte[] contents = theRequestDetails.loadRequestContents();
+		if (contents == null || contents.length == 0) {
+			return null;
+		}
+		return encoding.newParser(myDaoRegistry.getFhirContext())
+				.parseResource(Parameters.class, new String(contents, StandardCharsets.UTF_8));
+	}
+
+	private String value(RequestDetails theRequestDetails, Parameters theBody, String theName) {
+		List<String> values = values(theRequestDetails, theBody, theName);
+		return values.isEmpty() ? null : values.get(0);
+	}
+
+	private List<String> values(RequestDetails theRequestDetails, Parameters theBody, String theName) {
+		if (theBody != null) {
+			return ParametersUtil.getNamedParameterValuesAsString(myDaoRegistry.getFhirContext(), theBody, theName);
+		}
+		String[] values = theRequestDetails.getParameters().get(theName);
+		return values == null ? List.of() : List.of(values);
+	}
+}
@@ -0,0 +1,66 @@
+package ca.uhn.fhir.jpa.starter.cr.caregaps;
+
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.IJobStepWorker;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.opencds.cqf.fhir.cr.hapi.r4.ICareGapsServiceFactory;
+import org.opencds.cqf.fhir.cr.measure.r4.R4CareGapsServiceInterface;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+
+/**
+ * Evaluates the care gaps of the patients of a work chunk, one patient at a time, with the CR care gaps service.
+ */
+public class CareGapsEvaluateStep
+		implements IJobStepWorker<CareGapsJobParameters, CareGapsSubjectsJson, CareGapsResultJson> {
+
+	private final FhirContext myFhirContext;
+	private final ICareGapsServiceFactory myCareGapsServiceFactory;
+
+	public CareGapsEvaluateStep(FhirContext theFhirContext, ICareGapsServiceFactory theCareGapsServiceFactory) {
+		myFhirContext = theFhirContext;
+		myCareGapsServiceFactory = theCareGapsServiceFactory;
+	}
+
+	@Override
+	public RunOutcome run(
+			StepExecutionDetails<CareGapsJobParameters, CareGapsSubjectsJson> theStepExecutionDetails,
+			IJobDataSink<CareGapsResultJson> theDataSink)
+			throws JobExecutionFailedException {
+		CareGapsJobParameters parameters = theStepExecutionDetails.getParameters();
+		List<String> patients = theStepExecutionDetails.getData().getPatients();
+		R4CareGapsServiceInterface service =
+				myCareGapsServiceFactory.create(CareGapsJob.requestDetails(parameters));
+		ZonedDateTime periodStart = ZonedDateTime.parse(parameters.getPeriodStart());
+		ZonedDateTime periodEnd = ZonedDateTime.parse(parameters.getPeriodEnd());
+		List<IdType> measureIds =
+				parameters.getMeasureId().stream().map(IdType::new).toList();
+		List<CanonicalType> measureUrls =
+				parameters.getMeasureUrl().stream().map(CanonicalType::new).toList();
+
+		Parameters result = new Parameters();
+		for (String patient : patients) {
+			service.getCareGapsReport(
+							periodStart,
+							periodEnd,
+							patient,
+							parameters.getStatus(),
+							measureIds,
+							parameters.getMeasureIdentifier(),
+							measureUrls,
+							parameters.isNonDocument())
+					.getParameter()
+					.forEach(result::addParameter);
+		}
+		theDataSink.accept(new CareGapsResultJson(
+				patients.size(), myFhirContext.newJsonParser().encodeResourceToString(result)));
+		return new RunOutcome(patients.size());
+	}
+}
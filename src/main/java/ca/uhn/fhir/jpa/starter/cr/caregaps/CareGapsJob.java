@@ -0,0 +1,72 @@
+package ca.uhn.fhir.jpa.starter.cr.caregaps;
+
+import ca.uhn.fhir.batch2.model.JobDefinition;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.fhir.cr.hapi.r4.ICareGapsServiceFactory;
+
+/**
+ * The Batch2 job behind asynchronous <code>$care-gaps</code> requests.
+ * <p>
+ * The first step finds the patients of the subject and splits them into work chunks, which are evaluated in
+ * parallel by the nodes of the cluster. The care gaps of each chunk are stored with the chunk, so a failed chunk is
+ * retried on its own, and the final reduction step assembles them into one Parameters resource, stored as a Binary
+ * labelled {@link #REPORT_SECURITY_CODE} and named by the job report.
+ */
+public final class CareGapsJob {
+
+	public static final String JOB_DEFINITION_ID = "CARE_GAPS";
+
+	/**
+	 * Security label of the report Binaries, which {@link CareGapsAsyncProvider} hides from regular requests.
+	 */
+	public static final String REPORT_SECURITY_SYSTEM = "https://hapifhir.io/fhir/CodeSystem/care-gaps";
+
+	public static final String REPORT_SECURITY_CODE = "report";
+
+	private CareGapsJob() {}
+
+	public static JobDefinition<CareGapsJobParameters> definition(
+			DaoRegistry theDaoRegistry, ICareGapsServiceFactory theCareGapsServiceFactory) {
+		return JobDefinition.newBuilder()
+				.setJobDefinitionId(JOB_DEFINITION_ID)
+				.setJobDescription("$care-gaps report")
+				.setJobDefinitionVersion(1)
+				.setParametersType(CareGapsJobParameters.class)
+				.gatedExecution()
+				.addFirstStep(
+						"find-patients",
+						"Find the patients of the subject",
+						CareGapsSubjectsJson.class,
+						new CareGapsSubjectsStep(theDaoRegistry))
+				.addIntermediateStep(
+						"evaluate-care-gaps",
+						"Evaluate the care gaps of a chunk of patients",
+						CareGapsResultJson.class,
+						new CareGapsEvaluateStep(theDaoRegistry.getFhirContext(), theCareGapsServiceFactory))
+				.addFinalReducerStep(
+						"assemble-report",
+						"Assemble the care gaps of all chunks into one report",
+						CareGapsReportJson.class,
+						new CareGapsReportReducer(theDaoRegistry))
+				.build();
+	}
+
+	static boolean isReport(IBaseResource theResource) {
+		return theResource != null
+				&& theResource.getMeta().getSecurity(REPORT_SECURITY_SYSTEM, REPORT_SECURITY_CODE) != null;
+	}
+
+	/**
+	 * The request details the steps read and evaluate with, on the server base, tenant and partition of the request
+	 * that started the job. The request itself was authorized when the job was started.
+	 */
+	static SystemRequestDetails requestDetails(CareGapsJobParameters theParameters) {
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		requestDetails.setFhirServerBase(theParameters.getFhirServerBase());
+		requestDetails.setTenantId(theParameters.getTenantId());
+		requestDetails.setRequestPartitionId(theParameters.getRequestPartitionId());
+		return requestDetails;
+	}
+}
@@ -0,0 +1,174 @@
+package ca.uhn.fhir.jpa.starter.cr.caregaps;
+
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.model.api.IModelJson;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parameters of a <code>$care-gaps</code> request, as the job stores them. The period is resolved to zoned
+ * date-times when the job is started, with the time zone of the request.
+ */
+public class CareGapsJobParameters implements IModelJson {
+
+	@JsonProperty("periodStart")
+	private String myPeriodStart;
+
+	@JsonProperty("periodEnd")
+	private String myPeriodEnd;
+
+	@JsonProperty("subject")
+	private String mySubject;
+
+	@JsonProperty("status")
+	private List<String> myStatus = new ArrayList<>();
+
+	@JsonProperty("measureId")
+	private List<String> myMeasureId = new ArrayList<>();
+
+	@JsonProperty("measureIdentifier")
+	private List<String> myMeasureIdentifier = new ArrayList<>();
+
+	@JsonProperty("measureUrl")
+	private List<String> myMeasureUrl = new ArrayList<>();
+
+	@JsonProperty("nonDocument")
+	private boolean myNonDocument;
+
+	@JsonProperty("fhirServerBase")
+	private String myFhirServerBase;
+
+	@JsonProperty("tenantId")
+	private String myTenantId;
+
+	@JsonProperty("partitionId")
+	private RequestPartitionId myRequestPartitionId;
+
+	@JsonProperty("requester")
+	private String myRequester;
+
+	@JsonProperty("chunkSize")
+	private int myChunkSize;
+
+	public String getPeriodStart() {
+		return myPeriodStart;
+	}
+
+	public CareGapsJobParameters setPeriodStart(String thePeriodStart) {
+		myPeriodStart = thePeriodStart;
+		return this;
+	}
+
+	public String getPeriodEnd() {
+		return myPeriodEnd;
+	}
+
+	public CareGapsJobParameters setPeriodEnd(String thePeriodEnd) {
+		myPeriodEnd = thePeriodEnd;
+		return this;
+	}
+
+	public String getSubject() {
+		return mySubject;
+	}
+
+	public CareGapsJobParameters setSubject(String theSubject) {
+		mySubject = theSubject;
+		return this;
+	}
+
+	public List<String> getStatus() {
+		return myStatus;
+	}
+
+	public CareGapsJobParameters setStatus(List<String> theStatus) {
+		myStatus = theStatus;
+		return this;
+	}
+
+	public List<String> getMeasureId() {
+		return myMeasureId;
+	}
+
+	public CareGapsJobParameters setMeasureId(List<String> theMeasureId) {
+		myMeasureId = theMeasureId;
+		return this;
+	}
+
+	public List<String> getMeasureIdentifier() {
+		return myMeasureIdentifier;
+	}
+
+	public CareGapsJobParameters setMeasureIdentifier(List<String> theMeasureIdentifier) {
+		myMeasureIdentifier = theMeasureIdentifier;
+		return this;
+	}
+
+	public List<String> getMeasureUrl() {
+		return myMeasureUrl;
+	}
+
+	public CareGapsJobParameters setMeasureUrl(List<String> theMeasureUrl) {
+		myMeasureUrl = theMeasureUrl;
+		return this;
+	}
+
+	public boolean isNonDocument() {
+		return myNonDocument;
+	}
+
+	public CareGapsJobParameters setNonDocument(boolean theNonDocument) {
+		myNonDocument = theNonDocument;
+		return this;
+	}
+
+	public String getFhirServerBase() {
+		return myFhirServerBase;
+	}
+
+	public CareGapsJobParameters setFhirServerBase(String theFhirServerBase) {
+		myFhirServerBase = theFhirServerBase;
+		return this;
+	}
+
+	public String getTenantId() {
+		return myTenantId;
+	}
+
+	public CareGapsJobParameters setTenantId(String theTenantId) {
+		myTenantId = theTenantId;
+		return this;
+	}
+
+	public RequestPartitionId getRequestPartitionId() {
+		return myRequestPartitionId;
+	}
+
+	public CareGapsJobParameters setRequestPartitionId(RequestPartitionId theRequestPartitionId) {
+		myRequestPartitionId = theRequestPartitionId;
+		return this;
+	}
+
+	/**
+	 * Who started the job, as {@link ca.uhn.fhir.jpa.starter.util.AsyncRequestHelper#requester} names them.
+	 */
+	public String getRequester() {
+		return myRequester;
+	}
+
+	public CareGapsJobParameters setRequester(String theRequester) {
+		myRequester = theRequester;
+		return this;
+	}
+
+	public int getChunkSize() {
+		return myChunkSize;
+	}
+
+	public CareGapsJobParameters setChunkSize(int theChunkSize) {
+		myChunkSize = theChunkSize;
+		return this;
+	}
+}
@@ -0,0 +1,39 @@
+package ca.uhn.fhir.jpa.starter.cr.caregaps;
+
+import ca.uhn.fhir.model.api.IModelJson;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The report of a completed care gaps job: the Binary holding the assembled <code>$care-gaps</code> Parameters.
+ */
+public class CareGapsReportJson implements IModelJson {
+
+	@JsonProperty("binaryId")
+	private String myBinaryId;
+
+	@JsonProperty("patients")
+	private int myPatients;
+
+	public CareGapsReportJson() {}
+
+	public CareGapsReportJson(String theBinaryId, int thePatients) {
+		myBinaryId = theBinaryId;
+		myPatients = thePatients;
+	}
+
+	public String getBinaryId() {
+		return myBinaryId;
+	}
+
+	public void setBinaryId(String theBinaryId) {
+		myBinaryId = theBinaryId;
+	}
+
+	public int getPatients() {
+		return myPatients;
+	}
+
+	public void setPatients(int thePatients) {
+		myPatients = thePatients;
+	}
+}
@@ -0,0 +1,70 @@
+package ca.uhn.fhir.jpa.starter.cr.caregaps;
+
+import ca.uhn.fhir.batch2.api.ChunkExecutionDetails;
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.IReductionStepWorker;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.model.ChunkOutcome;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.model.DaoMethodOutcome;
+import ca.uhn.fhir.rest.api.Constants;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Parameters;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Assembles the care gaps of all work chunks into one <code>$care-gaps</code> Parameters resource, stored as a
+ * Binary that only the poll of the job reads.
+ */
+public class CareGapsReportReducer
+		implements IReductionStepWorker<CareGapsJobParameters, CareGapsResultJson, CareGapsReportJson> {
+
+	private final DaoRegistry myDaoRegistry;
+	private final Parameters myReport = new Parameters();
+	private int myPatients;
+
+	public CareGapsReportReducer(DaoRegistry theDaoRegistry) {
+		myDaoRegistry = theDaoRegistry;
+	}
+
+	@Override
+	public IReductionStepWorker<CareGapsJobParameters, CareGapsResultJson, CareGapsReportJson> newInstance() {
+		return new CareGapsReportReducer(myDaoRegistry);
+	}
+
+	@Override
+	public ChunkOutcome consume(ChunkExecutionDetails<CareGapsJobParameters, CareGapsResultJson> theChunkDetails) {
+		CareGapsResultJson result = theChunkDetails.getData();
+		Parameters parameters = myDaoRegistry
+				.getFhirContext()
+				.newJsonParser()
+				.parseResource(Parameters.class, result.getParameters());
+		parameters.getParameter().forEach(myReport::addParameter);
+		myPatients += result.getPatients();
+		return ChunkOutcome.SUCCESS();
+	}
+
+	@Override
+	public RunOutcome run(
+			StepExecutionDetails<CareGapsJobParameters, CareGapsResultJson> theStepExecutionDetails,
+			IJobDataSink<CareGapsReportJson> theDataSink)
+			throws JobExecutionFailedException {
+		Binary binary = new Binary();
+		binary.setContentType(Constants.CT_FHIR_JSON_NEW);
+		binary.getMeta().addSecurity(CareGapsJob.REPORT_SECURITY_SYSTEM, CareGapsJob.REPORT_SECURITY_CODE, null);
+		binary.setData(myDaoRegistry
+				.getFhirContext()
+				.newJsonParser()
+				.encodeResourceToString(myReport)
+				.getBytes(StandardCharsets.UTF_8));
+		DaoMethodOutcome outcome = myDaoRegistry
+				.getResourceDao(Binary.class)
+				.create(binary, CareGapsJob.requestDetails(theStepExecutionDetails.getParameters()));
+		theDataSink.accept(new CareGapsReportJson(
+				outcome.getId().toUnqualifiedVersionless().getValue(), myPatients));
+		return new RunOutcome(myPatients);
+	}
+}
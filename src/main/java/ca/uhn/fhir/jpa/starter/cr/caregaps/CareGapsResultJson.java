@@ -0,0 +1,39 @@
+package ca.uhn.fhir.jpa.starter.cr.caregaps;
+
+import ca.uhn.fhir.model.api.IModelJson;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The care gaps of the patients of one work chunk: the <code>$care-gaps</code> Parameters, encoded as JSON.
+ */
+public class CareGapsResultJson implements IModelJson {
+
+	@JsonProperty("patients")
+	private int myPatients;
+
+	@JsonProperty("parameters")
+	private String myParameters;
+
+	public CareGapsResultJson() {}
+
+	public CareGapsResultJson(int thePatients, String theParameters) {
+		myPatients = thePatients;
+		myParameters = theParameters;
+	}
+
+	public int getPatients() {
+		return myPatients;
+	}
+
+	public void setPatients(int thePatients) {
+		myPatients = thePatients;
+	}
+
+	public String getParameters() {
+		return myParameters;
+	}
+
+	public void setParameters(String theParameters) {
+		myParameters = theParameters;
+	}
+}
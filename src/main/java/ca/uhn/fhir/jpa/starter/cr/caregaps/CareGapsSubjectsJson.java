@@ -0,0 +1,30 @@
+package ca.uhn.fhir.jpa.starter.cr.caregaps;
+
+import ca.uhn.fhir.model.api.IModelJson;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A work chunk of the care gaps job: the patients evaluated together.
+ */
+public class CareGapsSubjectsJson implements IModelJson {
+
+	@JsonProperty("patients")
+	private List<String> myPatients = new ArrayList<>();
+
+	public CareGapsSubjectsJson() {}
+
+	public CareGapsSubjectsJson(List<String> thePatients) {
+		myPatients = thePatients;
+	}
+
+	public List<String> getPatients() {
+		return myPatients;
+	}
+
+	public void setPatients(List<String> thePatients) {
+		myPatients = thePatients;
+	}
+}
@@ -0,0 +1,107 @@
+package ca.uhn.fhir.jpa.starter.cr.caregaps;
+
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.IJobStepWorker;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Finds the patients of the <code>$care-gaps</code> subject and splits them into work chunks: the patient itself,
+ * the active members of a Group, the patients of a Practitioner or Organization, or all patients when there is no
+ * subject.
+ */
+public class CareGapsSubjectsStep implements IJobStepWorker<CareGapsJobParameters, VoidModel, CareGapsSubjectsJson> {
+	private static final Logger ourLog = LoggerFactory.getLogger(CareGapsSubjectsStep.class);
+
+	private static final int PAGE_SIZE = 500;
+
+	private final DaoRegistry myDaoRegistry;
+
+	public CareGapsSubjectsStep(DaoRegistry theDaoRegistry) {
+		myDaoRegistry = theDaoRegistry;
+	}
+
+	@Override
+	public RunOutcome run(
+			StepExecutionDetails<CareGapsJobParameters, VoidModel> theStepExecutionDetails,
+			IJobDataSink<CareGapsSubjectsJson> theDataSink)
+			throws JobExecutionFailedException {
+		CareGapsJobParameters parameters = theStepExecutionDetails.getParameters();
+		int chunkSize = Math.max(1, parameters.getChunkSize());
+		List<String> chunk = new ArrayList<>(chunkSize);
+		int[] count = {0};
+		patients(parameters.getSubject(), CareGapsJob.requestDetails(parameters), patient -> {
+			chunk.add(patient);
+			count[0]++;
+			if (chunk.size() == chunkSize) {
+				theDataSink.accept(new CareGapsSubjectsJson(new ArrayList<>(chunk)));
+				chunk.clear();
+			}
+		});
+		if (!chunk.isEmpty()) {
+			theDataSink.accept(new CareGapsSubjectsJson(chunk));
+		}
+		ourLog.info(
+				"Care gaps job {}: {} patients in chunks of {}",
+				theStepExecutionDetails.getInstance().getInstanceId(),
+				count[0],
+				chunkSize);
+		return new RunOutcome(count[0]);
+	}
+
+	private void patients(String theSubject, RequestDetails theRequestDetails, Consumer<String> thePatients) {
+		if (theSubject == null) {
+			search(new SearchParameterMap(), theRequestDetails, thePatients);
+			return;
+		}
+		IdType subject = new IdType(theSubject);
+		switch (subject.getResourceType()) {
+			case "Patient" -> thePatients.accept(subject.toUnqualifiedVersionless().getValue());
+			case "Group" -> {
+				Group group = (Group) myDaoRegistry.getResourceDao("Group").read(subject, theRequestDetails);
+				group.getMember().stream()
+						.filter(member -> !member.getInactive())
+						.map(member -> member.getEntity().getReference())
+						.filter(reference -> reference != null && reference.startsWith("Patient/"))
+						.forEach(thePatients);
+			}
+			case "Practitioner" -> search(
+					new SearchParameterMap("general-practitioner", new ReferenceParam(theSubject)),
+					theRequestDetails,
+					thePatients);
+			case "Organization" -> search(
+					new SearchParameterMap("organization", new ReferenceParam(theSubject)),
+					theRequestDetails,
+					thePatients);
+			default -> throw new JobExecutionFailedException("Unsupported care gaps subject: " + theSubject);
+		}
+	}
+
+	private void search(SearchParameterMap theMap, RequestDetails theRequestDetails, Consumer<String> thePatients) {
+		IBundleProvider results = myDaoRegistry.getResourceDao("Patient").search(theMap, theRequestDetails);
+		for (int offset = 0; ; offset += PAGE_SIZE) {
+			List<IBaseResource> page = results.getResources(offset, offset + PAGE_SIZE);
+			if (page.isEmpty()) {
+				return;
+			}
+			page.forEach(patient -> thePatients.accept(
+					patient.getIdElement().toUnqualifiedVersionless().getValue()));
+		}
+	}
+}
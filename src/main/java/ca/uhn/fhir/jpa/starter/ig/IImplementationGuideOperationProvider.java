@@ -1,18 +1,21 @@
 package ca.uhn.fhir.jpa.starter.ig;
 
 import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
-import org.hl7.fhir.utilities.npm.NpmPackage;
+import ca.uhn.fhir.jpa.starter.ig.install.InstallPackageJson;
+import ca.uhn.fhir.jpa.starter.ig.install.InstallPackageStoreStep;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 
 public interface IImplementationGuideOperationProvider {
 	static PackageInstallationSpec toPackageInstallationSpec(byte[] npmPackageAsByteArray) throws IOException {
-		NpmPackage npmPackage = NpmPackage.fromPackage(new ByteArrayInputStream(npmPackageAsByteArray));
+		// only the manifest is read here, the package cache parses the package once it stores it
+		InstallPackageJson manifest =
+				InstallPackageStoreStep.readManifest(new ByteArrayInputStream(npmPackageAsByteArray));
 		return new PackageInstallationSpec()
-				.setName(npmPackage.name())
+				.setName(manifest.getName())
 				.setPackageContents(npmPackageAsByteArray)
-				.setVersion(npmPackage.version())
+				.setVersion(manifest.getVersion())
 				.setInstallMode(PackageInstallationSpec.InstallModeEnum.STORE_AND_INSTALL)
 				.setFetchDependencies(false);
 	}
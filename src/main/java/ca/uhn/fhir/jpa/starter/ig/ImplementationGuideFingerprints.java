@@ -0,0 +1,156 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.BinaryUtil;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hl7.fhir.instance.model.api.IBaseBinary;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Remembers which package contents each configured implementation guide was last installed from, so a guide whose
+ * package did not change since is not installed again on the next startup.
+ * <p>
+ * A fingerprint is the package name, version, install mode and a SHA-256 hash of all files in the package, of the
+ * additional resource folders stored from it and of the options selecting what is installed: the resource types,
+ * the excluded dependencies, and whether dependencies are fetched and existing resources reloaded. The fingerprints
+ * are kept in the database as the JSON content of the Binary <code>ig-install-fingerprints</code> in the default
+ * partition. When that Binary cannot be read or written, every guide is installed as before.
+ */
+public class ImplementationGuideFingerprints {
+	private static final Logger ourLog = LoggerFactory.getLogger(ImplementationGuideFingerprints.class);
+
+	static final String BINARY_ID = "Binary/ig-install-fingerprints";
+	private static final ObjectMapper ourObjectMapper = new ObjectMapper();
+
+	private final DaoRegistry myDaoRegistry;
+	// package name -> fingerprint of its last installation
+	private Map<String, Fingerprint> myFingerprints;
+
+	public ImplementationGuideFingerprints(DaoRegistry theDaoRegistry) {
+		myDaoRegistry = theDaoRegistry;
+	}
+
+	/**
+	 * Whether the package was already installed with exactly this content and install mode.
+	 */
+	public synchronized boolean isInstalled(Fingerprint theFingerprint) {
+		return theFingerprint.equals(fingerprints().get(theFingerprint.name()));
+	}
+
+	public synchronized void installed(Fingerprint theFingerprint) {
+		fingerprints().put(theFingerprint.name(), theFingerprint);
+		IBaseBinary binary = BinaryUtil.newBinary(myDaoRegistry.getFhirContext());
+		binary.setId(BINARY_ID);
+		try {
+			// fails when Binary is not a supported resource type, which only costs reinstalling at the next start
+			IFhirResourceDao<IBaseBinary> dao = myDaoRegistry.getResourceDao("Binary");
+			BinaryUtil.setData(
+					myDaoRegistry.getFhirContext(),
+					binary,
+					ourObjectMapper.writeValueAsBytes(myFingerprints),
+					"application/json");
+			dao.update(binary, newRequestDetails());
+		} catch (IOException | BaseServerResponseException e) {
+			ourLog.warn("Failed to store the fingerprint of {}: {}", theFingerprint.name(), e.toString());
+		}
+	}
+
+	private Map<String, Fingerprint> fingerprints() {
+		if (myFingerprints == null) {
+			myFingerprints = new TreeMap<>(load());
+		}
+		return myFingerprints;
+	}
+
+	private Map<String, Fingerprint> load() {
+		try {
+			IIdType id = myDaoRegistry.getFhirContext().getVersion().newIdType().setValue(BINARY_ID);
+			IBaseResource binary = myDaoRegistry.getResourceDao("Binary").read(id, newRequestDetails());
+			return ourObjectMapper.readValue(((IBaseBinary) binary).getContent(), new TypeReference<>() {});
+		} catch (ResourceNotFoundException | ResourceGoneException e) {
+			return Map.of();
+		} catch (IOException | BaseServerResponseException e) {
+			ourLog.warn("Failed to load the fingerprints of the installed packages, installing all: {}", e.toString());
+			return Map.of();
+		}
+	}
+
+	private static SystemRequestDetails newRequestDetails() {
+		return new SystemRequestDetails().setRequestPartitionId(RequestPartitionId.defaultPartition());
+	}
+
+	/**
+	 * The fingerprint of a package about to be installed with the given specification.
+	 */
+	public static Fingerprint of(PackageInstallationSpec theSpec, NpmPackage thePackage) throws IOException {
+		MessageDigest digest = sha256();
+		// the additional folders are stored from the same package, a change to them is a change too
+		if (theSpec.getAdditionalResourceFolders() != null) {
+			theSpec.getAdditionalResourceFolders().stream().sorted().forEach(folder -> update(digest, folder));
+		}
+		// they change what an installation of the same content stores
+		update(digest, "installResourceTypes=" + sorted(theSpec.getInstallResourceTypes()));
+		update(digest, "dependencyExcludes=" + sorted(theSpec.getDependencyExcludes()));
+		update(digest, "fetchDependencies=" + theSpec.isFetchDependencies());
+		update(digest, "reloadExisting=" + theSpec.isReloadExisting());
+		// sorted, so the order the files were packed in does not matter
+		Map<String, NpmPackage.NpmPackageFolder> folders = new TreeMap<>(thePackage.getFolders());
+		for (Map.Entry<String, NpmPackage.NpmPackageFolder> folder : folders.entrySet()) {
+			List<String> files = new ArrayList<>(folder.getValue().listFiles());
+			files.sort(null);
+			for (String file : files) {
+				update(digest, folder.getKey() + "/" + file);
+				digest.update(Objects.requireNonNullElse(folder.getValue().fetchFile(file), new byte[0]));
+				digest.update((byte) 0);
+			}
+		}
+		return new Fingerprint(
+				theSpec.getName(),
+				theSpec.getVersion(),
+				HexFormat.of().formatHex(digest.digest()),
+				Objects.toString(theSpec.getInstallMode(), null));
+	}
+
+	private static List<String> sorted(List<String> theValues) {
+		// null is the default of the option, unlike an empty list
+		return theValues == null ? null : theValues.stream().sorted().toList();
+	}
+
+	private static void update(MessageDigest theDigest, String theValue) {
+		theDigest.update(theValue.getBytes(StandardCharsets.UTF_8));
+		theDigest.update((byte) 0);
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public record Fingerprint(String name, String version, String contentHash, String installMode) {}
+}
@@ -0,0 +1,326 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.dao.TransactionProcessor;
+import ca.uhn.fhir.jpa.packages.AdditionalResourcesParser;
+import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
+import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.util.BundleBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Installs the implementation guides configured under <code>hapi.fhir.implementationguides</code> at startup.
+ * <p>
+ * Each package is fetched into the package cache once, in parallel, and the parsed package is kept for the rest of
+ * the installation. Their dependencies are then fetched one at a time. The dependencies of the packages order the
+ * guides: a guide is installed after the configured guides it depends on, and after the earlier configured guides it
+ * shares dependencies with when those are installed as well, so no package is ever installed by two threads at
+ * once. All other guides are installed concurrently, in waves. The resources of the additional folders of a guide
+ * are stored in transactions of a bounded size.
+ * <p>
+ * With {@link ImplementationGuideFingerprints}, a guide whose package is unchanged since its last installation is
+ * skipped, unless a reinstall is forced. The time spent on each guide is logged once all are done.
+ */
+public class ImplementationGuideInstaller {
+	private static final Logger ourLog = LoggerFactory.getLogger(ImplementationGuideInstaller.class);
+
+	private final IPackageInstallerSvc myPackageInstallerSvc;
+	private final IHapiPackageCacheManager myPackageCacheManager;
+	private final TransactionProcessor myTransactionProcessor;
+	private final FhirContext myFhirContext;
+	private final int myThreads;
+	private final int myBatchSize;
+	private final ImplementationGuideFingerprints myFingerprints;
+	private final boolean myForceReinstall;
+	private final Queue<String> myReport = new ConcurrentLinkedQueue<>();
+
+	public ImplementationGuideInstaller(
+			IPackageInstallerSvc thePackageInstallerSvc,
+			IHapiPackageCacheManager thePackageCacheManager,
+			TransactionProcessor theTransactionProcessor,
+			FhirContext theFhirContext,
+			int theThreads,
+			int theBatchSize,
+			ImplementationGuideFingerprints theFingerprints,
+			boolean theForceReinstall) {
+		myPackageInstallerSvc = thePackageInstallerSvc;
+		myPackageCacheManager = thePackageCacheManager;
+		myTransactionProcessor = theTransactionProcessor;
+		myFhirContext = theFhirContext;
+		myThreads = Math.max(1, theThreads);
+		myBatchSize = Math.max(1, theBatchSize);
+		myFingerprints = theFingerprints;
+		myForceReinstall = theForceReinstall;
+	}
+
+	public void install(Collection<? extends ExtendedPackageInstallationSpec> theGuides) {
+		if (theGuides.isEmpty()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		ExecutorService executor =
+				Executors.newFixedThreadPool(Math.min(myThreads, theGuides.size()), newThreadFactory());
+		try {
+			List<Guide> guides = runAll(
+							executor,
+							theGuides.stream()
+									.map(spec -> (Task<Guide>) () -> fetch(spec))
+									.toList())
+					.stream()
+					.map(this::resolveDependencies)
+					.toList();
+			List<List<Guide>> waves = waves(guides);
+			for (List<Guide> wave : waves) {
+				runAll(executor, wave.stream().map(guide -> (Task<Guide>) () -> install(guide)).toList());
+			}
+			ourLog.info(
+					"Processed {} implementation guides in {} waves in {}ms:\n{}",
+					guides.size(),
+					waves.size(),
+					System.currentTimeMillis() - start,
+					String.join("\n", myReport));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Fetches the package of a guide into the package cache.
+	 */
+	private Guide fetch(ExtendedPackageInstallationSpec theSpec) throws IOException {
+		NpmPackage npmPackage = StringUtils.isNotBlank(theSpec.getPackageUrl())
+				? myPackageCacheManager.installPackage(theSpec)
+				: myPackageCacheManager.loadPackage(theSpec.getName(), theSpec.getVersion());
+		return new Guide(theSpec, npmPackage, Set.of());
+	}
+
+	/**
+	 * Collects the dependencies of a fetched guide, fetching them into the package cache when those are installed too.
+	 * Runs on the calling thread, so guides sharing a dependency never fetch it concurrently.
+	 */
+	private Guide resolveDependencies(Guide theGuide) {
+		Set<String> dependencies = new LinkedHashSet<>();
+		ExtendedPackageInstallationSpec spec = theGuide.spec();
+		collectDependencies(spec, theGuide.npmPackage(), spec.isFetchDependencies(), dependencies);
+		return new Guide(spec, theGuide.npmPackage(), dependencies);
+	}
+
+	private void collectDependencies(
+			ExtendedPackageInstallationSpec theSpec, NpmPackage thePackage, boolean theTransitive, Set<String> theNames) {
+		for (String dependency : thePackage.dependencies()) {
+			String name = StringUtils.substringBefore(dependency, "#");
+			String version = StringUtils.substringAfter(dependency, "#");
+			if (isExcluded(theSpec, name) || !theNames.add(name) || !theTransitive) {
+				continue;
+			}
+			try {
+				collectDependencies(theSpec, myPackageCacheManager.loadPackage(name, version), true, theNames);
+			} catch (IOException | RuntimeException e) {
+				// the installation fails on it too, unless it is not needed there
+				ourLog.warn("Failed to load dependency {} of {}: {}", dependency, theSpec.getName(), e.toString());
+			}
+		}
+	}
+
+	private static boolean isExcluded(ExtendedPackageInstallationSpec theSpec, String theName) {
+		return theSpec.getDependencyExcludes().stream().anyMatch(theName::matches);
+	}
+
+	/**
+	 * Groups the guides into waves whose guides can be installed concurrently, each after all previous waves.
+	 */
+	static List<List<Guide>> waves(List<Guide> theGuides) {
+		Map<Guide, Set<Guide>> predecessors = new LinkedHashMap<>();
+		for (int i = 0; i < theGuides.size(); i++) {
+			Guide guide = theGuides.get(i);
+			predecessors.put(guide, new HashSet<>());
+			for (int j = 0; j < theGuides.size(); j++) {
+				Guide other = theGuides.get(j);
+				if (i == j) {
+					continue;
+				}
+				boolean dependsOn = guide.dependencies().contains(other.name());
+				boolean dependedOn = other.dependencies().contains(guide.name());
+				// guides depending on each other, or installing the same dependencies, go in the configured order
+				if (dependsOn && !dependedOn
+						|| dependsOn == dependedOn && j < i && (dependsOn || guide.sharesInstalledDependencies(other))) {
+					predecessors.get(guide).add(other);
+				}
+			}
+		}
+		List<List<Guide>> waves = new ArrayList<>();
+		Set<Guide> installed = new HashSet<>();
+		while (installed.size() < theGuides.size()) {
+			List<Guide> wave = new ArrayList<>();
+			predecessors.forEach((guide, before) -> {
+				if (!installed.contains(guide) && installed.containsAll(before)) {
+					wave.add(guide);
+				}
+			});
+			if (wave.isEmpty()) {
+				// a cycle through three or more guides, break it in the configured order
+				predecessors.keySet().stream()
+						.filter(guide -> !installed.contains(guide))
+						.findFirst()
+						.ifPresent(wave::add);
+			}
+			installed.addAll(wave);
+			waves.add(wave);
+		}
+		return waves;
+	}
+
+	private Guide install(Guide theGuide) throws IOException {
+		long start = System.currentTimeMillis();
+		ExtendedPackageInstallationSpec spec = theGuide.spec();
+		ImplementationGuideFingerprints.Fingerprint fingerprint =
+				myFingerprints == null ? null : ImplementationGuideFingerprints.of(spec, theGuide.npmPackage());
+		if (fingerprint != null && !myForceReinstall && myFingerprints.isInstalled(fingerprint)) {
+			report(theGuide, "unchanged, skipped", start);
+			return theGuide;
+		}
+		if (StringUtils.isNotBlank(spec.getPackageUrl())) {
+			// already downloaded into the package cache, install it from there
+			spec = copyWithoutUrl(spec);
+		}
+		myPackageInstallerSvc.install(spec);
+		Set<String> folders = spec.getAdditionalResourceFolders();
+		if (folders != null && !folders.isEmpty()) {
+			storeAdditionalResources(theGuide, folders);
+		}
+		if (fingerprint != null) {
+			myFingerprints.installed(fingerprint);
+		}
+		report(theGuide, "installed", start);
+		return theGuide;
+	}
+
+	private void report(Guide theGuide, String theOutcome, long theStart) {
+		myReport.add(String.format(
+				"  %s#%s: %s in %dms",
+				theGuide.name(),
+				theGuide.spec().getVersion(),
+				theOutcome,
+				System.currentTimeMillis() - theStart));
+	}
+
+	private void storeAdditionalResources(Guide theGuide, Set<String> theFolders) {
+		List<IBaseResource> resources =
+				AdditionalResourcesParser.getAdditionalResources(theFolders, theGuide.npmPackage(), myFhirContext);
+		for (int from = 0; from < resources.size(); from += myBatchSize) {
+			BundleBuilder builder = new BundleBuilder(myFhirContext);
+			resources.subList(from, Math.min(from + myBatchSize, resources.size()))
+					.forEach(builder::addTransactionUpdateEntry);
+			myTransactionProcessor.transaction(
+					new SystemRequestDetails().setRequestPartitionId(RequestPartitionId.defaultPartition()),
+					builder.getBundle(),
+					false);
+		}
+		ourLog.info(
+				"Stored {} additional resources of {} in batches of {}",
+				resources.size(),
+				theGuide.name(),
+				myBatchSize);
+	}
+
+	private static ExtendedPackageInstallationSpec copyWithoutUrl(ExtendedPackageInstallationSpec theSpec) {
+		ExtendedPackageInstallationSpec copy = new ExtendedPackageInstallationSpec();
+		copy.setName(theSpec.getName());
+		copy.setVersion(theSpec.getVersion());
+		copy.setInstallMode(theSpec.getInstallMode());
+		copy.setInstallResourceTypes(theSpec.getInstallResourceTypes());
+		copy.setFetchDependencies(theSpec.isFetchDependencies());
+		copy.setReloadExisting(theSpec.isReloadExisting());
+		copy.setDependencyExcludes(theSpec.getDependencyExcludes());
+		copy.setAdditionalResourceFolders(theSpec.getAdditionalResourceFolders());
+		return copy;
+	}
+
+	private static <T> List<T> runAll(ExecutorService theExecutor, List<Task<T>> theTasks) {
+		List<Future<T>> futures = new ArrayList<>();
+		for (Task<T> task : theTasks) {
+			futures.add(theExecutor.submit(task::run));
+		}
+		List<T> results = new ArrayList<>();
+		try {
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while installing implementation guides", e);
+		} catch (ExecutionException e) {
+			futures.forEach(future -> future.cancel(true));
+			if (e.getCause() instanceof RuntimeException runtimeException) {
+				throw runtimeException;
+			}
+			throw new InternalErrorException("Failed to install implementation guides", e.getCause());
+		}
+		return results;
+	}
+
+	private static ThreadFactory newThreadFactory() {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, "ig-install-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	@FunctionalInterface
+	private interface Task<T> {
+		T run() throws Exception;
+	}
+
+	record Guide(ExtendedPackageInstallationSpec spec, NpmPackage npmPackage, Set<String> dependencies) {
+		String name() {
+			return spec.getName();
+		}
+
+		/**
+		 * Whether both guides install a dependency they have in common.
+		 */
+		boolean sharesInstalledDependencies(Guide theOther) {
+			return spec.isFetchDependencies()
+					&& theOther.spec().isFetchDependencies()
+					&& dependencies.stream().anyMatch(theOther.dependencies()::contains);
+		}
+
+		// identity, the specs and packages have none of their own
+		@Override
+		public boolean equals(Object theOther) {
+			return this == theOther;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(this);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
+import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
+import ca.uhn.fhir.jpa.partition.IRequestPartitionHelperSvc;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.ig.install.InstallPackageAsyncProvider;
+import ca.uhn.fhir.jpa.starter.ig.install.InstallPackageJob;
+import ca.uhn.fhir.jpa.starter.ig.install.InstallPackageJobParameters;
+import ca.uhn.fhir.jpa.starter.ig.install.UninstallPackageJob;
+import ca.uhn.fhir.jpa.starter.ig.install.UninstallPackageJobParameters;
+import ca.uhn.fhir.jpa.starter.validation.ValidationOutcomeCache;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * The Batch2 jobs and the provider behind streamed or asynchronous <code>ImplementationGuide/$install</code> and
+ * <code>$uninstall</code> requests, available along with the runtime upload operations.
+ */
+@Configuration
+@ConditionalOnProperty(name = "hapi.fhir.ig_runtime_upload_enabled", havingValue = "true")
+public class ImplementationGuideJobConfig {
+
+	@Bean
+	JobDefinition<InstallPackageJobParameters> installPackageJobDefinition(
+			DaoRegistry theDaoRegistry,
+			IHapiPackageCacheManager thePackageCacheManager,
+			IPackageInstallerSvc thePackageInstallerSvc,
+			IValidationSupport theValidationSupport,
+			Optional<ValidationOutcomeCache> theValidationOutcomeCache) {
+		return InstallPackageJob.definition(
+				theDaoRegistry,
+				thePackageCacheManager,
+				thePackageInstallerSvc,
+				theValidationSupport,
+				theValidationOutcomeCache.orElse(null));
+	}
+
+	@Bean
+	JobDefinition<UninstallPackageJobParameters> uninstallPackageJobDefinition(
+			IPackageInstallerSvc thePackageInstallerSvc,
+			IValidationSupport theValidationSupport,
+			Optional<ValidationOutcomeCache> theValidationOutcomeCache) {
+		return UninstallPackageJob.definition(
+				thePackageInstallerSvc, theValidationSupport, theValidationOutcomeCache.orElse(null));
+	}
+
+	@Bean
+	InstallPackageAsyncProvider installPackageAsyncProvider(
+			IJobCoordinator theJobCoordinator,
+			FhirContext theFhirContext,
+			IRequestPartitionHelperSvc theRequestPartitionHelperSvc,
+			AppProperties theAppProperties,
+			RestfulServer theRestfulServer) {
+		String spoolDirectory = theAppProperties.getIg_upload_spool_dir() != null
+				? theAppProperties.getIg_upload_spool_dir()
+				: System.getProperty("java.io.tmpdir");
+		InstallPackageAsyncProvider provider = new InstallPackageAsyncProvider(
+				theJobCoordinator,
+				theFhirContext,
+				theRequestPartitionHelperSvc,
+				Path.of(spoolDirectory),
+				theAppProperties.getIg_upload_max_size());
+		theRestfulServer.registerProvider(provider);
+		theRestfulServer.registerInterceptor(provider);
+		return provider;
+	}
+}
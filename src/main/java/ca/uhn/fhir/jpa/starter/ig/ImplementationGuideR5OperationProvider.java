@@ -1,8 +1,10 @@
 package ca.uhn.fhir.jpa.starter.ig;
 
+import ca.uhn.fhir.context.support.IValidationSupport;
 import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
 import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
 import ca.uhn.fhir.jpa.starter.annotations.OnR5Condition;
+import ca.uhn.fhir.jpa.starter.validation.ValidationOutcomeCache;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import org.hl7.fhir.r5.model.Base64BinaryType;
@@ -12,6 +14,7 @@ import org.springframework.context.annotation.Conditional;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.util.Optional;
 
 @Conditional({OnR5Condition.class})
 @ConditionalOnProperty(name = "hapi.fhir.ig_runtime_upload_enabled", havingValue = "true")
@@ -19,9 +22,16 @@ import java.io.IOException;
 public class ImplementationGuideR5OperationProvider implements IImplementationGuideOperationProvider {
 
 	final IPackageInstallerSvc packageInstallerSvc;
+	final IValidationSupport validationSupport;
+	final Optional<ValidationOutcomeCache> validationOutcomeCache;
 
-	public ImplementationGuideR5OperationProvider(IPackageInstallerSvc packageInstallerSvc) {
+	public ImplementationGuideR5OperationProvider(
+			IPackageInstallerSvc packageInstallerSvc,
+			IValidationSupport validationSupport,
+			Optional<ValidationOutcomeCache> validationOutcomeCache) {
 		this.packageInstallerSvc = packageInstallerSvc;
+		this.validationSupport = validationSupport;
+		this.validationOutcomeCache = validationOutcomeCache;
 	}
 
 	@Operation(name = "$install", typeName = "ImplementationGuide")
@@ -34,6 +44,8 @@ public class ImplementationGuideR5OperationProvider implements IImplementationGu
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		validationSupport.invalidateCaches();
+		validationOutcomeCache.ifPresent(ValidationOutcomeCache::invalidate);
 		return new Parameters();
 	}
 
@@ -44,6 +56,8 @@ public class ImplementationGuideR5OperationProvider implements IImplementationGu
 
 		packageInstallerSvc.uninstall(
 				new PackageInstallationSpec().setName(name).setVersion(version));
+		validationSupport.invalidateCaches();
+		validationOutcomeCache.ifPresent(ValidationOutcomeCache::invalidate);
 		return new Parameters();
 	}
 }
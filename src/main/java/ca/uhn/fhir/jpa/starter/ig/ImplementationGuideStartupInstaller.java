@@ -0,0 +1,56 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.batch2.config.Batch2JobRegisterer;
+import org.springframework.context.SmartLifecycle;
+
+import java.util.Collection;
+
+/**
+ * Installs the configured implementation guides once the application context is refreshed, before the web server
+ * accepts requests. Installing them while a bean is created holds the singleton lock of the context, which the
+ * threads of the {@link ImplementationGuideInstaller} block on as soon as they look up a bean.
+ */
+public class ImplementationGuideStartupInstaller implements SmartLifecycle {
+
+	/**
+	 * Below the phase the web server is started in, <code>SmartLifecycle.DEFAULT_PHASE - 2048</code>.
+	 */
+	public static final int PHASE = SmartLifecycle.DEFAULT_PHASE - 4096;
+
+	private final Batch2JobRegisterer myBatch2JobRegisterer;
+	private final ImplementationGuideInstaller myInstaller;
+	private final Collection<? extends ExtendedPackageInstallationSpec> myGuides;
+	private volatile boolean myRunning;
+
+	public ImplementationGuideStartupInstaller(
+			Batch2JobRegisterer theBatch2JobRegisterer,
+			ImplementationGuideInstaller theInstaller,
+			Collection<? extends ExtendedPackageInstallationSpec> theGuides) {
+		myBatch2JobRegisterer = theBatch2JobRegisterer;
+		myInstaller = theInstaller;
+		myGuides = theGuides;
+	}
+
+	@Override
+	public void start() {
+		// the guides may start jobs, which are registered on the refresh event otherwise
+		myBatch2JobRegisterer.start();
+		myInstaller.install(myGuides);
+		myRunning = true;
+	}
+
+	@Override
+	public void stop() {
+		myRunning = false;
+	}
+
+	@Override
+	public boolean isRunning() {
+		return myRunning;
+	}
+
+	@Override
+	public int getPhase() {
+		return PHASE;
+	}
+}
@@ -0,0 +1,356 @@
+package ca.uhn.fhir.jpa.starter.ig.install;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.batch2.model.JobInstanceStartRequest;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.batch.models.Batch2JobStartResponse;
+import ca.uhn.fhir.jpa.partition.IRequestPartitionHelperSvc;
+import ca.uhn.fhir.jpa.starter.util.AsyncRequestHelper;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.JsonUtil;
+import ca.uhn.fhir.util.ParametersUtil;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Runs <code>ImplementationGuide/$install</code> and <code>$uninstall</code> requests as Batch2 jobs instead of on
+ * the request thread: an {@link InstallPackageJob} or an {@link UninstallPackageJob}.
+ * <p>
+ * An <code>$install</code> request body of type <code>application/gzip</code> (or
+ * <code>application/octet-stream</code>) is spooled to a file in the upload spool directory as it is read, a
+ * <code>binary</code> URL parameter names a Binary holding the package, and the base64 <code>npmContent</code>
+ * parameter of a request with <code>Prefer: respond-async</code> is decoded to a spooled file too. An
+ * <code>$uninstall</code> request with <code>Prefer: respond-async</code> takes its <code>name</code> and
+ * <code>version</code> from the URL or the Parameters body. Either way the request is answered with 202 and a
+ * <code>Content-Location</code> of <code>ImplementationGuide/$install-poll-status?_jobId=...</code> (or
+ * <code>$uninstall-poll-status</code>), which answers 202 with an <code>X-Progress</code> header while the job runs
+ * and Parameters describing the outcome once it completed, to the requester of the job only. All other requests are
+ * left to the synchronous operations.
+ * <p>
+ * Uploads larger than the configured maximum are rejected with 413, and a spooled upload is deleted again when its
+ * job cannot be started. The job reads a spooled upload from the node that received it, so with more than one node
+ * the spool directory must be shared by all of them.
+ */
+@Interceptor
+public class InstallPackageAsyncProvider {
+
+	public static final String OPERATION = "$install";
+	public static final String POLL_OPERATION = "$install-poll-status";
+	public static final String UNINSTALL_OPERATION = "$uninstall";
+	public static final String UNINSTALL_POLL_OPERATION = "$uninstall-poll-status";
+	public static final String PARAM_BINARY = "binary";
+	public static final String PARAM_NPM_CONTENT = "npmContent";
+	public static final String PARAM_JOB_ID = "_jobId";
+
+	private static final String RESOURCE_TYPE = "ImplementationGuide";
+	private static final Set<String> PACKAGE_CONTENT_TYPES =
+			Set.of("application/gzip", "application/x-gzip", "application/tar+gzip", "application/octet-stream");
+
+	private final IJobCoordinator myJobCoordinator;
+	private final FhirContext myFhirContext;
+	private final IRequestPartitionHelperSvc myRequestPartitionHelperSvc;
+	private final Path mySpoolDirectory;
+	private final long myMaxUploadSize;
+
+	public InstallPackageAsyncProvider(
+			IJobCoordinator theJobCoordinator,
+			FhirContext theFhirContext,
+			IRequestPartitionHelperSvc theRequestPartitionHelperSvc,
+			Path theSpoolDirectory,
+			long theMaxUploadSize) {
+		myJobCoordinator = theJobCoordinator;
+		myFhirContext = theFhirContext;
+		myRequestPartitionHelperSvc = theRequestPartitionHelperSvc;
+		mySpoolDirectory = theSpoolDirectory;
+		myMaxUploadSize = theMaxUploadSize;
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean startJob(
+			RequestDetails theRequestDetails, HttpServletRequest theRequest, HttpServletResponse theResponse)
+			throws IOException {
+		if (theRequestDetails.getRequestType() != RequestTypeEnum.POST
+				|| !RESOURCE_TYPE.equals(theRequestDetails.getResourceName())) {
+			return true;
+		}
+		if (UNINSTALL_OPERATION.equals(theRequestDetails.getOperation())) {
+			if (!AsyncRequestHelper.isRespondAsync(theRequestDetails)) {
+				return true;
+			}
+			// authorize the request before reading any of it
+			AsyncRequestHelper.callPreHandledHooks(theRequestDetails);
+			IBaseParameters body = body(theRequestDetails);
+			UninstallPackageJobParameters parameters = new UninstallPackageJobParameters()
+					.setName(requiredParameter(theRequestDetails, body, "name"))
+					.setVersion(requiredParameter(theRequestDetails, body, "version"))
+					.setRequester(AsyncRequestHelper.requester(theRequestDetails));
+			return started(
+					theRequestDetails,
+					theResponse,
+					new JobInstanceStartRequest(UninstallPackageJob.JOB_DEFINITION_ID, parameters),
+					UNINSTALL_POLL_OPERATION);
+		}
+		if (!OPERATION.equals(theRequestDetails.getOperation())) {
+			return true;
+		}
+		String[] binary = theRequestDetails.getParameters().get(PARAM_BINARY);
+		boolean isBinary = binary != null && binary.length > 0;
+		boolean isUpload = isPackageContentType(theRequestDetails.getHeader(Constants.HEADER_CONTENT_TYPE));
+		if (!isBinary && !isUpload && !AsyncRequestHelper.isRespondAsync(theRequestDetails)) {
+			return true;
+		}
+		// authorize the request before reading any of it
+		AsyncRequestHelper.callPreHandledHooks(theRequestDetails);
+		InstallPackageJobParameters parameters = new InstallPackageJobParameters()
+				.setFhirServerBase(theRequestDetails.getFhirServerBase())
+				.setTenantId(theRequestDetails.getTenantId())
+				.setRequestPartitionId(myRequestPartitionHelperSvc.determineReadPartitionForRequestForServerOperation(
+						theRequestDetails, OPERATION))
+				.setRequester(AsyncRequestHelper.requester(theRequestDetails));
+		if (isBinary) {
+			parameters.setBinaryId(binaryId(binary[0]));
+		} else if (isUpload) {
+			if (theRequest.getContentLengthLong() > myMaxUploadSize) {
+				throw tooLarge();
+			}
+			parameters.setPackageFile(spool(theRequest.getInputStream()).toString());
+		} else {
+			String npmContent = requiredParameter(theRequestDetails, body(theRequestDetails), PARAM_NPM_CONTENT);
+			parameters.setPackageFile(spool(Base64.getMimeDecoder()
+							.wrap(new ByteArrayInputStream(npmContent.getBytes(StandardCharsets.US_ASCII))))
+					.toString());
+		}
+		try {
+			return started(
+					theRequestDetails,
+					theResponse,
+					new JobInstanceStartRequest(InstallPackageJob.JOB_DEFINITION_ID, parameters),
+					POLL_OPERATION);
+		} catch (RuntimeException e) {
+			if (parameters.getPackageFile() != null) {
+				Files.deleteIfExists(Path.of(parameters.getPackageFile()));
+			}
+			throw e;
+		}
+	}
+
+	private boolean started(
+			RequestDetails theRequestDetails,
+			HttpServletResponse theResponse,
+			JobInstanceStartRequest theStartRequest,
+			String thePollOperation) {
+		theStartRequest.setUseCache(false);
+		Batch2JobStartResponse started = myJobCoordinator.startInstance(theRequestDetails, theStartRequest);
+
+		theResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+		theResponse.addHeader(
+				Constants.HEADER_CONTENT_LOCATION,
+				theRequestDetails.getFhirServerBase() + "/" + RESOURCE_TYPE + "/" + thePollOperation + "?"
+						+ PARAM_JOB_ID + "=" + started.getInstanceId());
+		return false;
+	}
+
+	@Operation(name = POLL_OPERATION, typeName = RESOURCE_TYPE, manualResponse = true, idempotent = true)
+	public void pollStatus(
+			@OperationParam(name = PARAM_JOB_ID, typeName = "string", min = 1, max = 1) IPrimitiveType<String> theJobId,
+			ServletRequestDetails theRequestDetails)
+			throws IOException {
+		poll(
+				theJobId,
+				InstallPackageJob.JOB_DEFINITION_ID,
+				OPERATION,
+				theRequestDetails,
+				instance -> instance.getParameters(InstallPackageJobParameters.class).getRequester(),
+				this::report);
+	}
+
+	@Operation(name = UNINSTALL_POLL_OPERATION, typeName = RESOURCE_TYPE, manualResponse = true, idempotent = true)
+	public void pollUninstallStatus(
+			@OperationParam(name = PARAM_JOB_ID, typeName = "string", min = 1, max = 1) IPrimitiveType<String> theJobId,
+			ServletRequestDetails theRequestDetails)
+			throws IOException {
+		poll(
+				theJobId,
+				UninstallPackageJob.JOB_DEFINITION_ID,
+				UNINSTALL_OPERATION,
+				theRequestDetails,
+				instance -> instance.getParameters(UninstallPackageJobParameters.class).getRequester(),
+				instance -> {
+					UninstallPackageJobParameters parameters =
+							instance.getParameters(UninstallPackageJobParameters.class);
+					IBaseParameters outcome = ParametersUtil.newInstance(myFhirContext);
+					ParametersUtil.addParameterToParametersString(myFhirContext, outcome, "name", parameters.getName());
+					ParametersUtil.addParameterToParametersString(
+							myFhirContext, outcome, "version", parameters.getVersion());
+					return outcome;
+				});
+	}
+
+	private void poll(
+			IPrimitiveType<String> theJobId,
+			String theJobDefinitionId,
+			String theOperation,
+			ServletRequestDetails theRequestDetails,
+			Function<JobInstance, String> theRequester,
+			Function<JobInstance, IBaseParameters> theOutcome)
+			throws IOException {
+		if (theJobId == null || theJobId.getValue() == null) {
+			throw new InvalidRequestException("Missing " + PARAM_JOB_ID);
+		}
+		JobInstance instance = myJobCoordinator.getInstance(theJobId.getValue());
+		if (!theJobDefinitionId.equals(instance.getJobDefinitionId())) {
+			throw new ResourceNotFoundException("Unknown " + theOperation + " job: " + theJobId.getValue());
+		}
+		AsyncRequestHelper.checkRequester(theRequestDetails, theRequester.apply(instance), instance.getInstanceId());
+		HttpServletResponse response = theRequestDetails.getServletResponse();
+		switch (instance.getStatus()) {
+			case COMPLETED -> {
+				byte[] outcome = myFhirContext
+						.newJsonParser()
+						.encodeResourceToString(theOutcome.apply(instance))
+						.getBytes(StandardCharsets.UTF_8);
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setContentType(Constants.CT_FHIR_JSON_NEW);
+				response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+				response.getOutputStream().write(outcome);
+				response.getOutputStream().close();
+			}
+			case FAILED, CANCELLED -> throw new InternalErrorException(theOperation + " job "
+					+ instance.getInstanceId() + " is " + instance.getStatus() + ": " + instance.getErrorMessage());
+			default -> {
+				response.setStatus(HttpServletResponse.SC_ACCEPTED);
+				response.addHeader(
+						Constants.HEADER_X_PROGRESS,
+						String.format(
+								"%s, %s, %.0f%%",
+								instance.getStatus(),
+								StringUtils.defaultString(instance.getCurrentGatedStepId(), "queued"),
+								instance.getProgress() * 100));
+				response.addHeader(Constants.HEADER_RETRY_AFTER, "10");
+				response.getOutputStream().close();
+			}
+		}
+	}
+
+	IBaseParameters report(JobInstance theInstance) {
+		IBaseParameters parameters = ParametersUtil.newInstance(myFhirContext);
+		if (theInstance.getReport() == null) {
+			return parameters;
+		}
+		InstallPackageReportJson report = JsonUtil.deserialize(theInstance.getReport(), InstallPackageReportJson.class);
+		ParametersUtil.addParameterToParametersString(myFhirContext, parameters, "name", report.getName());
+		ParametersUtil.addParameterToParametersString(myFhirContext, parameters, "version", report.getVersion());
+		for (Map.Entry<String, Integer> installed : report.getResourcesInstalled().entrySet()) {
+			IBase parameter = ParametersUtil.addParameterToParameters(myFhirContext, parameters, "resourcesInstalled");
+			ParametersUtil.addPartString(myFhirContext, parameter, "resourceType", installed.getKey());
+			ParametersUtil.addPartInteger(myFhirContext, parameter, "count", installed.getValue());
+		}
+		report.getMessages()
+				.forEach(message ->
+						ParametersUtil.addParameterToParametersString(myFhirContext, parameters, "message", message));
+		return parameters;
+	}
+
+	private String binaryId(String theReference) {
+		IIdType id = myFhirContext.getVersion().newIdType().setValue(theReference);
+		if (!"Binary".equals(id.getResourceType()) || !id.hasIdPart()) {
+			throw new InvalidRequestException(PARAM_BINARY + " must reference a Binary: " + theReference);
+		}
+		return id.toUnqualifiedVersionless().getValue();
+	}
+
+	/**
+	 * Copies an upload to a new file in the spool directory, up to the maximum upload size.
+	 */
+	private Path spool(InputStream theBody) throws IOException {
+		Files.createDirectories(mySpoolDirectory);
+		Path file = Files.createTempFile(mySpoolDirectory, "ig-install-", ".tgz");
+		try (theBody;
+				OutputStream out = Files.newOutputStream(file)) {
+			byte[] buffer = new byte[64 * 1024];
+			long size = 0;
+			for (int read = theBody.read(buffer); read != -1; read = theBody.read(buffer)) {
+				size += read;
+				if (size > myMaxUploadSize) {
+					throw tooLarge();
+				}
+				out.write(buffer, 0, read);
+			}
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+		return file;
+	}
+
+	private PayloadTooLargeException tooLarge() {
+		return new PayloadTooLargeException("The package is larger than the maximum upload size of " + myMaxUploadSize
+				+ " bytes");
+	}
+
+	/**
+	 * The Parameters the request was sent with, empty when it was sent without a FHIR body.
+	 */
+	private IBaseParameters body(RequestDetails theRequestDetails) {
+		EncodingEnum encoding = EncodingEnum.forContentType(theRequestDetails.getHeader(Constants.HEADER_CONTENT_TYPE));
+		byte[] contents = theRequestDetails.loadRequestContents();
+		if (encoding == null || contents == null || contents.length == 0) {
+			return ParametersUtil.newInstance(myFhirContext);
+		}
+		IBaseResource body = encoding.newParser(myFhirContext).parseResource(new String(contents, StandardCharsets.UTF_8));
+		if (!(body instanceof IBaseParameters parameters)) {
+			throw new InvalidRequestException("Expected Parameters, got " + myFhirContext.getResourceType(body));
+		}
+		return parameters;
+	}
+
+	private String requiredParameter(RequestDetails theRequestDetails, IBaseParameters theBody, String theName) {
+		String[] values = theRequestDetails.getParameters().get(theName);
+		if (values != null && values.length > 0 && StringUtils.isNotBlank(values[0])) {
+			return values[0];
+		}
+		return ParametersUtil.getNamedParameterValueAsString(myFhirContext, theBody, theName)
+				.filter(StringUtils::isNotBlank)
+				.orElseThrow(() -> new InvalidRequestException("Missing parameter " + theName));
+	}
+
+	private static boolean isPackageContentType(String theContentType) {
+		if (theContentType == null) {
+			return false;
+		}
+		return PACKAGE_CONTENT_TYPES.contains(
+				StringUtils.substringBefore(theContentType, ";").trim().toLowerCase());
+	}
+}
@@ -0,0 +1,65 @@
+package ca.uhn.fhir.jpa.starter.ig.install;
+
+import ca.uhn.fhir.batch2.model.JobDefinition;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
+import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
+import ca.uhn.fhir.jpa.starter.validation.ValidationOutcomeCache;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+
+/**
+ * The Batch2 job behind streamed <code>ImplementationGuide/$install</code> requests.
+ * <p>
+ * The first step stores the uploaded package in the package cache and lists the resource types to install from it,
+ * the second installs them from there in that order, and the final step reports the resources installed per type and
+ * refreshes the validation support.
+ */
+public final class InstallPackageJob {
+
+	public static final String JOB_DEFINITION_ID = "IG_INSTALL";
+
+	private InstallPackageJob() {}
+
+	public static JobDefinition<InstallPackageJobParameters> definition(
+			DaoRegistry theDaoRegistry,
+			IHapiPackageCacheManager thePackageCacheManager,
+			IPackageInstallerSvc thePackageInstallerSvc,
+			IValidationSupport theValidationSupport,
+			ValidationOutcomeCache theValidationOutcomeCache) {
+		return JobDefinition.newBuilder()
+				.setJobDefinitionId(JOB_DEFINITION_ID)
+				.setJobDescription("ImplementationGuide $install")
+				.setJobDefinitionVersion(1)
+				.setParametersType(InstallPackageJobParameters.class)
+				.gatedExecution()
+				.addFirstStep(
+						"store-package",
+						"Store the package in the package cache",
+						InstallPackageJson.class,
+						new InstallPackageStoreStep(theDaoRegistry, thePackageCacheManager))
+				.addIntermediateStep(
+						"install-resources",
+						"Install the resources of the package, one resource type after the other",
+						InstallPackageReportJson.class,
+						new InstallPackageResourcesStep(thePackageInstallerSvc))
+				.addFinalReducerStep(
+						"report",
+						"Report the resources installed and refresh the validation support",
+						InstallPackageReportJson.class,
+						new InstallPackageReducer(theValidationSupport, theValidationOutcomeCache))
+				.build();
+	}
+
+	/**
+	 * The request details the steps read with, on the server base, tenant and partition of the request that started
+	 * the job.
+	 */
+	static SystemRequestDetails requestDetails(InstallPackageJobParameters theParameters) {
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		requestDetails.setFhirServerBase(theParameters.getFhirServerBase());
+		requestDetails.setTenantId(theParameters.getTenantId());
+		requestDetails.setRequestPartitionId(theParameters.getRequestPartitionId());
+		return requestDetails;
+	}
+}
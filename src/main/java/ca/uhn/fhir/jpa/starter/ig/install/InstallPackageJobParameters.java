@@ -0,0 +1,85 @@
+package ca.uhn.fhir.jpa.starter.ig.install;
+
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.model.api.IModelJson;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Where the package of an <code>$install</code> job comes from: a <code>.tgz</code> the request was spooled to, or
+ * a Binary holding it. The partition and requester of the request are kept to read the Binary in, and to answer
+ * only the requester when polled.
+ */
+public class InstallPackageJobParameters implements IModelJson {
+
+	@JsonProperty("packageFile")
+	private String myPackageFile;
+
+	@JsonProperty("binaryId")
+	private String myBinaryId;
+
+	@JsonProperty("fhirServerBase")
+	private String myFhirServerBase;
+
+	@JsonProperty("tenantId")
+	private String myTenantId;
+
+	@JsonProperty("partitionId")
+	private RequestPartitionId myRequestPartitionId;
+
+	@JsonProperty("requester")
+	private String myRequester;
+
+	public String getPackageFile() {
+		return myPackageFile;
+	}
+
+	public InstallPackageJobParameters setPackageFile(String thePackageFile) {
+		myPackageFile = thePackageFile;
+		return this;
+	}
+
+	public String getBinaryId() {
+		return myBinaryId;
+	}
+
+	public InstallPackageJobParameters setBinaryId(String theBinaryId) {
+		myBinaryId = theBinaryId;
+		return this;
+	}
+
+	public String getFhirServerBase() {
+		return myFhirServerBase;
+	}
+
+	public InstallPackageJobParameters setFhirServerBase(String theFhirServerBase) {
+		myFhirServerBase = theFhirServerBase;
+		return this;
+	}
+
+	public String getTenantId() {
+		return myTenantId;
+	}
+
+	public InstallPackageJobParameters setTenantId(String theTenantId) {
+		myTenantId = theTenantId;
+		return this;
+	}
+
+	public RequestPartitionId getRequestPartitionId() {
+		return myRequestPartitionId;
+	}
+
+	public InstallPackageJobParameters setRequestPartitionId(RequestPartitionId theRequestPartitionId) {
+		myRequestPartitionId = theRequestPartitionId;
+		return this;
+	}
+
+	public String getRequester() {
+		return myRequester;
+	}
+
+	public InstallPackageJobParameters setRequester(String theRequester) {
+		myRequester = theRequester;
+		return this;
+	}
+}
@@ -0,0 +1,54 @@
+package ca.uhn.fhir.jpa.starter.ig.install;
+
+import ca.uhn.fhir.model.api.IModelJson;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A package stored in the package cache, ready to be installed, with the resource types to install from it. No
+ * resource types means the types installed by default.
+ */
+public class InstallPackageJson implements IModelJson {
+
+	@JsonProperty("name")
+	private String myName;
+
+	@JsonProperty("version")
+	private String myVersion;
+
+	@JsonProperty("resourceTypes")
+	private List<String> myResourceTypes = new ArrayList<>();
+
+	public InstallPackageJson() {}
+
+	public InstallPackageJson(String theName, String theVersion) {
+		myName = theName;
+		myVersion = theVersion;
+	}
+
+	public String getName() {
+		return myName;
+	}
+
+	public void setName(String theName) {
+		myName = theName;
+	}
+
+	public String getVersion() {
+		return myVersion;
+	}
+
+	public void setVersion(String theVersion) {
+		myVersion = theVersion;
+	}
+
+	public List<String> getResourceTypes() {
+		return myResourceTypes;
+	}
+
+	public void setResourceTypes(List<String> theResourceTypes) {
+		myResourceTypes = theResourceTypes;
+	}
+}
@@ -0,0 +1,66 @@
+package ca.uhn.fhir.jpa.starter.ig.install;
+
+import ca.uhn.fhir.batch2.api.ChunkExecutionDetails;
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.IReductionStepWorker;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.model.ChunkOutcome;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.jpa.starter.validation.ValidationOutcomeCache;
+
+/**
+ * Sums up the resources installed by {@link InstallPackageResourcesStep} into the report of the job, and refreshes
+ * the validation support and drops the cached validation outcomes, if any, once all of them are installed, so the
+ * validators see the new profiles and terminology without a restart.
+ */
+public class InstallPackageReducer
+		implements IReductionStepWorker<InstallPackageJobParameters, InstallPackageReportJson, InstallPackageReportJson> {
+
+	private final IValidationSupport myValidationSupport;
+	private final ValidationOutcomeCache myValidationOutcomeCache;
+	private InstallPackageReportJson myReport;
+
+	public InstallPackageReducer(
+			IValidationSupport theValidationSupport, ValidationOutcomeCache theValidationOutcomeCache) {
+		myValidationSupport = theValidationSupport;
+		myValidationOutcomeCache = theValidationOutcomeCache;
+	}
+
+	@Override
+	public IReductionStepWorker<InstallPackageJobParameters, InstallPackageReportJson, InstallPackageReportJson>
+			newInstance() {
+		return new InstallPackageReducer(myValidationSupport, myValidationOutcomeCache);
+	}
+
+	@Override
+	public ChunkOutcome consume(
+			ChunkExecutionDetails<InstallPackageJobParameters, InstallPackageReportJson> theChunkDetails) {
+		InstallPackageReportJson chunk = theChunkDetails.getData();
+		if (myReport == null) {
+			myReport = new InstallPackageReportJson().setName(chunk.getName()).setVersion(chunk.getVersion());
+		}
+		chunk.getResourcesInstalled().forEach((type, count) -> myReport.getResourcesInstalled()
+				.merge(type, count, Integer::sum));
+		myReport.getMessages().addAll(chunk.getMessages());
+		return ChunkOutcome.SUCCESS();
+	}
+
+	@Override
+	public RunOutcome run(
+			StepExecutionDetails<InstallPackageJobParameters, InstallPackageReportJson> theStepExecutionDetails,
+			IJobDataSink<InstallPackageReportJson> theDataSink)
+			throws JobExecutionFailedException {
+		if (myReport == null) {
+			throw new JobExecutionFailedException("No package was installed");
+		}
+		myValidationSupport.invalidateCaches();
+		if (myValidationOutcomeCache != null) {
+			myValidationOutcomeCache.invalidate();
+		}
+		theDataSink.accept(myReport);
+		return new RunOutcome(
+				myReport.getResourcesInstalled().values().stream().mapToInt(Integer::intValue).sum());
+	}
+}
@@ -0,0 +1,63 @@
+package ca.uhn.fhir.jpa.starter.ig.install;
+
+import ca.uhn.fhir.model.api.IModelJson;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The report of a completed <code>$install</code> job: the package and the number of resources installed per type.
+ */
+public class InstallPackageReportJson implements IModelJson {
+
+	@JsonProperty("name")
+	private String myName;
+
+	@JsonProperty("version")
+	private String myVersion;
+
+	@JsonProperty("resourcesInstalled")
+	private Map<String, Integer> myResourcesInstalled = new TreeMap<>();
+
+	@JsonProperty("messages")
+	private List<String> myMessages = new ArrayList<>();
+
+	public String getName() {
+		return myName;
+	}
+
+	public InstallPackageReportJson setName(String theName) {
+		myName = theName;
+		return this;
+	}
+
+	public String getVersion() {
+		return myVersion;
+	}
+
+	public InstallPackageReportJson setVersion(String theVersion) {
+		myVersion = theVersion;
+		return this;
+	}
+
+	public Map<String, Integer> getResourcesInstalled() {
+		return myResourcesInstalled;
+	}
+
+	public InstallPackageReportJson setResourcesInstalled(Map<String, Integer> theResourcesInstalled) {
+		myResourcesInstalled = theResourcesInstalled;
+		return this;
+	}
+
+	public List<String> getMessages() {
+		return myMessages;
+	}
+
+	public InstallPackageReportJson setMessages(List<String> theMessages) {
+		myMessages = theMessages;
+		return this;
+	}
+}
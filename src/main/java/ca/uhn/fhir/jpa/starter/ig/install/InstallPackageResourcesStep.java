@@ -0,0 +1,54 @@
+package ca.uhn.fhir.jpa.starter.ig.install;
+
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.IJobStepWorker;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
+import ca.uhn.fhir.jpa.packages.PackageInstallOutcomeJson;
+import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+/**
+ * Installs the resources of a package stored by {@link InstallPackageStoreStep}.
+ * <p>
+ * The package is loaded from the package cache once, and its resource types are installed one after the other in the
+ * order of the chunk, so that, for example, the CodeSystems are in place before the ValueSets expanding them. The
+ * resources installed are reported to {@link InstallPackageReducer}.
+ */
+public class InstallPackageResourcesStep
+		implements IJobStepWorker<InstallPackageJobParameters, InstallPackageJson, InstallPackageReportJson> {
+
+	private final IPackageInstallerSvc myPackageInstallerSvc;
+
+	public InstallPackageResourcesStep(IPackageInstallerSvc thePackageInstallerSvc) {
+		myPackageInstallerSvc = thePackageInstallerSvc;
+	}
+
+	@Override
+	public RunOutcome run(
+			StepExecutionDetails<InstallPackageJobParameters, InstallPackageJson> theStepExecutionDetails,
+			IJobDataSink<InstallPackageReportJson> theDataSink)
+			throws JobExecutionFailedException {
+		InstallPackageJson chunk = theStepExecutionDetails.getData();
+		PackageInstallationSpec spec = new PackageInstallationSpec()
+				.setName(chunk.getName())
+				.setVersion(chunk.getVersion())
+				.setInstallMode(PackageInstallationSpec.InstallModeEnum.STORE_AND_INSTALL)
+				.setFetchDependencies(false);
+		// no resource types leaves the installer to its default types
+		spec.setInstallResourceTypes(new ArrayList<>(chunk.getResourceTypes()));
+		PackageInstallOutcomeJson outcome = myPackageInstallerSvc.install(spec);
+		InstallPackageReportJson report = new InstallPackageReportJson()
+				.setName(chunk.getName())
+				.setVersion(chunk.getVersion())
+				.setResourcesInstalled(new TreeMap<>(outcome.getResourcesInstalled()))
+				.setMessages(new ArrayList<>(outcome.getMessage()));
+		theDataSink.accept(report);
+		return new RunOutcome(
+				report.getResourcesInstalled().values().stream().mapToInt(Integer::intValue).sum());
+	}
+}
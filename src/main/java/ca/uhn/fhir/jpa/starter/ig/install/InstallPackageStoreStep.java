@@ -0,0 +1,165 @@
+package ca.uhn.fhir.jpa.starter.ig.install;
+
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.IJobStepWorker;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
+import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+import ca.uhn.fhir.jpa.packages.util.PackageUtils;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.hl7.fhir.instance.model.api.IBaseBinary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stores the package of an <code>$install</code> job in the package cache, and hands the resource types to install
+ * from it to {@link InstallPackageResourcesStep} as a single chunk, in the order they are installed by default.
+ * <p>
+ * Only the <code>package/package.json</code> and <code>package/.index.json</code> entries are read to learn the name,
+ * version and resource types of the package, streaming the tarball past everything else. The package cache then loads
+ * a spooled upload from its file itself, and the spooled file is deleted once stored, or once storing it failed. A
+ * package without an index is installed with the default resource types.
+ */
+public class InstallPackageStoreStep
+		implements IJobStepWorker<InstallPackageJobParameters, VoidModel, InstallPackageJson> {
+	private static final Logger ourLog = LoggerFactory.getLogger(InstallPackageStoreStep.class);
+
+	private static final String MANIFEST = "package/package.json";
+	private static final String INDEX = "package/.index.json";
+	private static final ObjectMapper ourObjectMapper = new ObjectMapper();
+
+	private final DaoRegistry myDaoRegistry;
+	private final IHapiPackageCacheManager myPackageCacheManager;
+
+	public InstallPackageStoreStep(DaoRegistry theDaoRegistry, IHapiPackageCacheManager thePackageCacheManager) {
+		myDaoRegistry = theDaoRegistry;
+		myPackageCacheManager = thePackageCacheManager;
+	}
+
+	@Override
+	public RunOutcome run(
+			StepExecutionDetails<InstallPackageJobParameters, VoidModel> theStepExecutionDetails,
+			IJobDataSink<InstallPackageJson> theDataSink)
+			throws JobExecutionFailedException {
+		InstallPackageJobParameters parameters = theStepExecutionDetails.getParameters();
+		PackageInstallationSpec spec = new PackageInstallationSpec()
+				.setInstallMode(PackageInstallationSpec.InstallModeEnum.STORE_ONLY)
+				.setFetchDependencies(false);
+		InstallPackageJson manifest;
+		try {
+			if (parameters.getPackageFile() != null) {
+				Path file = Path.of(parameters.getPackageFile());
+				if (!Files.isRegularFile(file)) {
+					throw new JobExecutionFailedException("The uploaded package " + file + " is not on this node");
+				}
+				try (InputStream in = Files.newInputStream(file)) {
+					manifest = readPackage(in);
+				}
+				spec.setPackageUrl(file.toUri().toString());
+			} else {
+				IBaseBinary binary = (IBaseBinary) myDaoRegistry
+						.getResourceDao("Binary")
+						.read(
+								myDaoRegistry.getFhirContext().getVersion().newIdType().setValue(parameters.getBinaryId()),
+								InstallPackageJob.requestDetails(parameters));
+				manifest = readPackage(new ByteArrayInputStream(binary.getContent()));
+				spec.setPackageContents(binary.getContent());
+			}
+			spec.setName(manifest.getName()).setVersion(manifest.getVersion());
+			myPackageCacheManager.installPackage(spec);
+		} catch (IOException e) {
+			throw new JobExecutionFailedException("Failed to read the package: " + e.getMessage(), e);
+		} finally {
+			if (parameters.getPackageFile() != null) {
+				deleteQuietly(Path.of(parameters.getPackageFile()));
+			}
+		}
+		ourLog.info(
+				"Stored package {}#{} in the package cache, installing resource types {}",
+				manifest.getName(),
+				manifest.getVersion(),
+				manifest.getResourceTypes());
+		theDataSink.accept(manifest);
+		return RunOutcome.SUCCESS;
+	}
+
+	/**
+	 * The name and version of a gzipped NPM package, from the first <code>package/package.json</code> entry.
+	 */
+	public static InstallPackageJson readManifest(InputStream thePackage) throws IOException {
+		TarArchiveInputStream tar = new TarArchiveInputStream(new GZIPInputStream(thePackage));
+		for (TarArchiveEntry entry = tar.getNextEntry(); entry != null; entry = tar.getNextEntry()) {
+			if (MANIFEST.equals(entry.getName())) {
+				return manifest(tar.readAllBytes());
+			}
+		}
+		throw new IOException("No " + MANIFEST + " in the package");
+	}
+
+	/**
+	 * The name, version and resource types of a gzipped NPM package, from its <code>package/package.json</code> and
+	 * <code>package/.index.json</code> entries. The resource types are those installed by default that the index lists,
+	 * in the order they are installed by default, and are empty when the package has no index.
+	 */
+	static InstallPackageJson readPackage(InputStream thePackage) throws IOException {
+		TarArchiveInputStream tar = new TarArchiveInputStream(new GZIPInputStream(thePackage));
+		InstallPackageJson manifest = null;
+		Set<String> indexed = null;
+		for (TarArchiveEntry entry = tar.getNextEntry();
+				entry != null && (manifest == null || indexed == null);
+				entry = tar.getNextEntry()) {
+			if (MANIFEST.equals(entry.getName()) && manifest == null) {
+				manifest = manifest(tar.readAllBytes());
+			} else if (INDEX.equals(entry.getName()) && indexed == null) {
+				indexed = new HashSet<>();
+				for (JsonNode file : ourObjectMapper.readTree(tar.readAllBytes()).path("files")) {
+					indexed.add(file.path("resourceType").asText());
+				}
+			}
+		}
+		if (manifest == null) {
+			throw new IOException("No " + MANIFEST + " in the package");
+		}
+		if (indexed != null) {
+			manifest.setResourceTypes(new ArrayList<>(PackageUtils.DEFAULT_INSTALL_TYPES.stream()
+					.filter(indexed::contains)
+					.toList()));
+		}
+		return manifest;
+	}
+
+	private static InstallPackageJson manifest(byte[] theManifest) throws IOException {
+		JsonNode json = ourObjectMapper.readTree(theManifest);
+		String name = json.path("name").asText(null);
+		String version = json.path("version").asText(null);
+		if (name == null || version == null) {
+			throw new IOException(MANIFEST + " has no name or version");
+		}
+		return new InstallPackageJson(name, version);
+	}
+
+	private static void deleteQuietly(Path theFile) {
+		try {
+			Files.deleteIfExists(theFile);
+		} catch (IOException e) {
+			ourLog.warn("Failed to delete the uploaded package {}: {}", theFile, e.toString());
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package ca.uhn.fhir.jpa.starter.ig.install;
+
+import ca.uhn.fhir.batch2.model.JobDefinition;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
+import ca.uhn.fhir.jpa.starter.validation.ValidationOutcomeCache;
+
+/**
+ * The Batch2 job behind <code>ImplementationGuide/$uninstall</code> requests that prefer an asynchronous response.
+ * <p>
+ * The first step uninstalls the package, and the last step refreshes the validation support.
+ */
+public final class UninstallPackageJob {
+
+	public static final String JOB_DEFINITION_ID = "IG_UNINSTALL";
+
+	private UninstallPackageJob() {}
+
+	public static JobDefinition<UninstallPackageJobParameters> definition(
+			IPackageInstallerSvc thePackageInstallerSvc,
+			IValidationSupport theValidationSupport,
+			ValidationOutcomeCache theValidationOutcomeCache) {
+		return JobDefinition.newBuilder()
+				.setJobDefinitionId(JOB_DEFINITION_ID)
+				.setJobDescription("ImplementationGuide $uninstall")
+				.setJobDefinitionVersion(1)
+				.setParametersType(UninstallPackageJobParameters.class)
+				.gatedExecution()
+				.addFirstStep(
+						"uninstall-package",
+						"Uninstall the package and its resources",
+						InstallPackageJson.class,
+						new UninstallPackageStep(thePackageInstallerSvc))
+				.addLastStep(
+						"refresh-validation",
+						"Refresh the validation support",
+						new UninstallPackageRefreshStep(theValidationSupport, theValidationOutcomeCache))
+				.build();
+	}
+}
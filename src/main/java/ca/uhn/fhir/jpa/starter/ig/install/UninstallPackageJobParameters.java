@@ -0,0 +1,46 @@
+package ca.uhn.fhir.jpa.starter.ig.install;
+
+import ca.uhn.fhir.model.api.IModelJson;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The package an <code>$uninstall</code> job removes, and who asked for it, the only one the job is reported to.
+ */
+public class UninstallPackageJobParameters implements IModelJson {
+
+	@JsonProperty("name")
+	private String myName;
+
+	@JsonProperty("version")
+	private String myVersion;
+
+	@JsonProperty("requester")
+	private String myRequester;
+
+	public String getName() {
+		return myName;
+	}
+
+	public UninstallPackageJobParameters setName(String theName) {
+		myName = theName;
+		return this;
+	}
+
+	public String getVersion() {
+		return myVersion;
+	}
+
+	public UninstallPackageJobParameters setVersion(String theVersion) {
+		myVersion = theVersion;
+		return this;
+	}
+
+	public String getRequester() {
+		return myRequester;
+	}
+
+	public UninstallPackageJobParameters setRequester(String theRequester) {
+		myRequester = theRequester;
+		return this;
+	}
+}
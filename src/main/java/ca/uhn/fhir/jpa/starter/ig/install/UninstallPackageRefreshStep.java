@@ -0,0 +1,39 @@
+package ca.uhn.fhir.jpa.starter.ig.install;
+
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.ILastJobStepWorker;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.jpa.starter.validation.ValidationOutcomeCache;
+
+/**
+ * Refreshes the validation support and drops the cached validation outcomes, if any, once a package is uninstalled,
+ * so the validators no longer see its profiles and terminology.
+ */
+public class UninstallPackageRefreshStep
+		implements ILastJobStepWorker<UninstallPackageJobParameters, InstallPackageJson> {
+
+	private final IValidationSupport myValidationSupport;
+	private final ValidationOutcomeCache myValidationOutcomeCache;
+
+	public UninstallPackageRefreshStep(
+			IValidationSupport theValidationSupport, ValidationOutcomeCache theValidationOutcomeCache) {
+		myValidationSupport = theValidationSupport;
+		myValidationOutcomeCache = theValidationOutcomeCache;
+	}
+
+	@Override
+	public RunOutcome run(
+			StepExecutionDetails<UninstallPackageJobParameters, InstallPackageJson> theStepExecutionDetails,
+			IJobDataSink<VoidModel> theDataSink)
+			throws JobExecutionFailedException {
+		myValidationSupport.invalidateCaches();
+		if (myValidationOutcomeCache != null) {
+			myValidationOutcomeCache.invalidate();
+		}
+		return RunOutcome.SUCCESS;
+	}
+}
@@ -0,0 +1,39 @@
+package ca.uhn.fhir.jpa.starter.ig.install;
+
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.IJobStepWorker;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.RunOutcome;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
+import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes the package of an <code>$uninstall</code> job and its installed resources.
+ */
+public class UninstallPackageStep
+		implements IJobStepWorker<UninstallPackageJobParameters, VoidModel, InstallPackageJson> {
+	private static final Logger ourLog = LoggerFactory.getLogger(UninstallPackageStep.class);
+
+	private final IPackageInstallerSvc myPackageInstallerSvc;
+
+	public UninstallPackageStep(IPackageInstallerSvc thePackageInstallerSvc) {
+		myPackageInstallerSvc = thePackageInstallerSvc;
+	}
+
+	@Override
+	public RunOutcome run(
+			StepExecutionDetails<UninstallPackageJobParameters, VoidModel> theStepExecutionDetails,
+			IJobDataSink<InstallPackageJson> theDataSink)
+			throws JobExecutionFailedException {
+		UninstallPackageJobParameters parameters = theStepExecutionDetails.getParameters();
+		myPackageInstallerSvc.uninstall(
+				new PackageInstallationSpec().setName(parameters.getName()).setVersion(parameters.getVersion()));
+		ourLog.info("Uninstalled package {}#{}", parameters.getName(), parameters.getVersion());
+		theDataSink.accept(new InstallPackageJson(parameters.getName(), parameters.getVersion()));
+		return RunOutcome.SUCCESS;
+	}
+}
@@ -0,0 +1,106 @@
+package ca.uhn.fhir.jpa.starter.util;
+
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.auth.SearchNarrowingInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.consent.ConsentInterceptor;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
+import java.util.HexFormat;
+
+/**
+ * Helpers for operations that answer <code>Prefer: respond-async</code> requests with a Batch2 job, started from a
+ * <code>SERVER_INCOMING_REQUEST_POST_PROCESSED</code> hook so the request body can be read, or streamed, by the
+ * hook instead of by the server.
+ */
+public final class AsyncRequestHelper {
+
+	private AsyncRequestHelper() {}
+
+	public static boolean isRespondAsync(RequestDetails theRequestDetails) {
+		return RestfulServerUtils.parsePreferHeader(theRequestDetails.getHeader(Constants.HEADER_PREFER))
+				.getRespondAsync();
+	}
+
+	/**
+	 * Calls the <code>SERVER_INCOMING_REQUEST_PRE_HANDLED</code> hooks of the server for a request the caller is about
+	 * to answer itself. The server calls them, among them the {@link AuthorizationInterceptor} and the consent
+	 * interceptor, only when it invokes the operation, which a request answered from
+	 * <code>SERVER_INCOMING_REQUEST_POST_PROCESSED</code> never reaches. A hook that rejects the request throws, before
+	 * the caller starts any work.
+	 */
+	public static void callPreHandledHooks(RequestDetails theRequestDetails) {
+		IInterceptorBroadcaster broadcaster = theRequestDetails.getInterceptorBroadcaster();
+		if (broadcaster == null || !broadcaster.hasHooks(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)) {
+			return;
+		}
+		HookParams params = new HookParams()
+				.add(RestOperationTypeEnum.class, theRequestDetails.getRestOperationType())
+				.add(RequestDetails.class, theRequestDetails)
+				.addIfMatchesType(ServletRequestDetails.class, theRequestDetails);
+		broadcaster.callHooks(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, params);
+	}
+
+	/**
+	 * Whether the server filters what the request may read resource by resource, with the {@link
+	 * AuthorizationInterceptor}, a {@link ConsentInterceptor} or the {@link SearchNarrowingInterceptor}. Their rules
+	 * apply only to reads made with the request itself, not to a job that reads as the system.
+	 */
+	public static boolean isFilteredPerResource(RequestDetails theRequestDetails) {
+		IInterceptorBroadcaster broadcaster = theRequestDetails.getInterceptorBroadcaster();
+		if (broadcaster instanceof IInterceptorService interceptorService) {
+			return interceptorService.getAllRegisteredInterceptors().stream()
+					.anyMatch(interceptor -> interceptor instanceof AuthorizationInterceptor
+							|| interceptor instanceof ConsentInterceptor
+							|| interceptor instanceof SearchNarrowingInterceptor);
+		}
+		return broadcaster != null && broadcaster.hasHooks(Pointcut.STORAGE_PREACCESS_RESOURCES);
+	}
+
+	/**
+	 * Who sent the request: the name of the authenticated servlet user, or else a SHA-256 digest of the
+	 * <code>Authorization</code> header, so no credential is stored with the job. Empty for anonymous requests.
+	 */
+	public static String requester(RequestDetails theRequestDetails) {
+		if (theRequestDetails instanceof ServletRequestDetails servletRequestDetails
+				&& servletRequestDetails.getServletRequest() != null) {
+			Principal principal = servletRequestDetails.getServletRequest().getUserPrincipal();
+			if (principal != null && principal.getName() != null) {
+				return "user:" + principal.getName();
+			}
+		}
+		String authorization = theRequestDetails.getHeader(Constants.HEADER_AUTHORIZATION);
+		return authorization == null ? "" : "authorization:" + sha256(authorization);
+	}
+
+	/**
+	 * Rejects a request for the status of a job that was started by someone else.
+	 */
+	public static void checkRequester(RequestDetails theRequestDetails, String theRequester, String theJobId) {
+		String requester = theRequester == null ? "" : theRequester;
+		if (!requester.equals(requester(theRequestDetails))) {
+			throw new ForbiddenOperationException("Job " + theJobId + " was started by another requester");
+		}
+	}
+
+	private static String sha256(String theValue) {
+		try {
+			return HexFormat.of()
+					.formatHex(MessageDigest.getInstance("SHA-256").digest(theValue.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
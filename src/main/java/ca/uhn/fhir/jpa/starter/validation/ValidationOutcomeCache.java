@@ -0,0 +1,193 @@
+package ca.uhn.fhir.jpa.starter.validation;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.validation.IValidationContext;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the messages the validator reported for a resource, so the same resource sent again, such as a repeated
+ * device Observation or a re-sent Bundle, is not validated again.
+ * <p>
+ * Entries are keyed by a hash of the resource as sent, the profiles it is validated against, the partition of the
+ * request, since each partition may hold conformance resources of its own, and the generation of the conformance
+ * resources. JSON is hashed with its object members sorted, so formatting and member order do not matter;
+ * XML is hashed as sent. Registered as an interceptor of the JPA server, a write of any conformance resource on this
+ * node starts a new generation and drops all entries, since any of them may validate differently now. Resources that
+ * cannot be read as sent are validated without the cache.
+ * <p>
+ * Hits are reported as <code>validation.outcomes</code> cache metrics.
+ */
+@Interceptor
+public class ValidationOutcomeCache {
+	private static final Logger ourLog = LoggerFactory.getLogger(ValidationOutcomeCache.class);
+
+	/**
+	 * The resource types the validation outcome of a resource may depend on.
+	 */
+	public static final List<String> CONFORMANCE_RESOURCE_TYPES = List.of(
+			"StructureDefinition", "ValueSet", "CodeSystem", "ConceptMap", "NamingSystem", "Questionnaire");
+
+	// decimals keep their precision, since 1.0 and 1.00 are different values to the validator
+	private static final ObjectMapper ourObjectMapper = JsonMapper.builder()
+			.enable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION)
+			.enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS)
+			.enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+			.build();
+
+	private final Cache<Key, List<SingleValidationMessage>> myOutcomes;
+	private final AtomicLong myGeneration = new AtomicLong();
+	private final ThreadLocal<RequestPartitionId> myRequestPartitionId = new ThreadLocal<>();
+
+	public ValidationOutcomeCache(long theMaximumSize, MeterRegistry theMeterRegistry) {
+		myOutcomes = Caffeine.newBuilder().maximumSize(theMaximumSize).recordStats().build();
+		CaffeineCacheMetrics.monitor(theMeterRegistry, myOutcomes, "validation.outcomes");
+	}
+
+	/**
+	 * A validator module reporting the cached messages of the resources the given one already validated.
+	 */
+	public IValidatorModule cached(IValidatorModule theValidatorModule) {
+		return theContext -> {
+			Key key = key(theContext);
+			if (key == null) {
+				theValidatorModule.validateResource(theContext);
+				return;
+			}
+			List<SingleValidationMessage> cached = myOutcomes.getIfPresent(key);
+			if (cached != null) {
+				cached.forEach(theContext::addValidationMessage);
+				return;
+			}
+			int before = theContext.getMessages().size();
+			theValidatorModule.validateResource(theContext);
+			List<SingleValidationMessage> messages = theContext.getMessages();
+			myOutcomes.put(key, List.copyOf(messages.subList(before, messages.size())));
+		};
+	}
+
+	/**
+	 * Runs a validation with the outcomes cached for the given request partition. Validations run outside of this
+	 * share the outcomes of no partition.
+	 */
+	public <T> T inPartition(RequestPartitionId theRequestPartitionId, Supplier<T> theValidation) {
+		myRequestPartitionId.set(theRequestPartitionId);
+		try {
+			return theValidation.get();
+		} finally {
+			myRequestPartitionId.remove();
+		}
+	}
+
+	public void invalidate() {
+		myGeneration.incrementAndGet();
+		myOutcomes.invalidateAll();
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		resourceWritten(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		resourceWritten(theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		resourceWritten(theResource);
+	}
+
+	private void resourceWritten(IBaseResource theResource) {
+		String resourceType = theResource.fhirType();
+		if (CONFORMANCE_RESOURCE_TYPES.contains(resourceType)) {
+			invalidate();
+			ourLog.debug("{} written, dropped all cached validation outcomes", resourceType);
+		}
+	}
+
+	/**
+	 * The key of the resource being validated, or null when it is not to be cached.
+	 */
+	Key key(IValidationContext<IBaseResource> theContext) {
+		// read before the resource, so an outcome of the former generation is never stored under the current one
+		long generation = myGeneration.get();
+		String text = theContext.getResourceAsString();
+		if (text == null) {
+			return null;
+		}
+		Set<String> profiles = new TreeSet<>();
+		if (theContext.getOptions() != null) {
+			profiles.addAll(theContext.getOptions().getProfiles());
+		}
+		String canonical;
+		try {
+			if (theContext.getResourceAsStringEncoding() == EncodingEnum.JSON) {
+				Object json = ourObjectMapper.readValue(text, Object.class);
+				if (json instanceof Map<?, ?> resource
+						&& resource.get("meta") instanceof Map<?, ?> meta
+						&& meta.get("profile") instanceof List<?> declared) {
+					declared.forEach(profile -> profiles.add(String.valueOf(profile)));
+				}
+				canonical = ourObjectMapper.writeValueAsString(json);
+			} else {
+				IBaseResource resource = theContext.getResource();
+				if (resource.getMeta() != null) {
+					resource.getMeta().getProfile().stream()
+							.map(IPrimitiveType::getValueAsString)
+							.forEach(profiles::add);
+				}
+				canonical = text;
+			}
+		} catch (JsonProcessingException | DataFormatException e) {
+			return null;
+		}
+		return new Key(
+				sha256(theContext.getResourceAsStringEncoding() + "\n" + canonical),
+				List.copyOf(profiles),
+				myRequestPartitionId.get(),
+				generation);
+	}
+
+	private static String sha256(String theValue) {
+		try {
+			return HexFormat.of()
+					.formatHex(MessageDigest.getInstance("SHA-256").digest(theValue.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	record Key(String contentHash, List<String> profiles, RequestPartitionId partition, long generation) {}
+}
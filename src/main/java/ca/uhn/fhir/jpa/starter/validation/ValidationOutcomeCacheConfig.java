@@ -0,0 +1,30 @@
+package ca.uhn.fhir.jpa.starter.validation;
+
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * The cache of validation outcomes shared by the request and response validating interceptors, available when either
+ * of them is enabled and <code>validation.outcome_cache_size</code> is above zero.
+ */
+@Configuration
+@ConditionalOnExpression("(${hapi.fhir.validation.requests_enabled:false}"
+		+ " or ${hapi.fhir.validation.responses_enabled:false})"
+		+ " and ${hapi.fhir.validation.outcome_cache_size:10000} > 0")
+public class ValidationOutcomeCacheConfig {
+
+	@Bean
+	ValidationOutcomeCache validationOutcomeCache(
+			AppProperties theAppProperties,
+			MeterRegistry theMeterRegistry,
+			IInterceptorService theInterceptorService) {
+		ValidationOutcomeCache cache =
+				new ValidationOutcomeCache(theAppProperties.getValidation().getOutcome_cache_size(), theMeterRegistry);
+		theInterceptorService.registerInterceptor(cache);
+		return cache;
+	}
+}
@@ -7,7 +7,10 @@ import ca.uhn.fhir.jpa.starter.cdshooks.StarterCdsHooksConfig;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.hapi.fhir.cdshooks.api.CdsResolutionStrategyEnum;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
@@ -18,6 +21,7 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.r4.model.Patient;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
@@ -30,6 +34,8 @@ import org.springframework.boot.test.web.server.LocalServerPort;
 import org.springframework.test.context.ActiveProfiles;
 
 import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import static org.awaitility.Awaitility.await;
@@ -154,6 +160,47 @@ class CdsHooksServletIT implements IServerSupport {
 		}
 	}
 	
+	@Test
+	void templateBasedServiceGetsItsDeclaredPrefetch() throws IOException {
+		ourClient.update().resource(new Patient().setId("template-prefetch")).execute();
+		CdsServiceJson serviceJson = new CdsServiceJson();
+		serviceJson.setId("template-prefetch");
+		serviceJson.setHook("patient-view");
+		serviceJson.addPrefetch("patient", "Patient/{{context.patientId}}");
+		serviceJson.addSource("patient", CdsResolutionStrategyEnum.FHIR_CLIENT);
+		Set<String> prefetchKeys = ConcurrentHashMap.newKeySet();
+		myCdsServiceRegistry.registerService(
+				serviceJson.getId(),
+				request -> {
+					prefetchKeys.addAll(request.getPrefetchKeys());
+					return new CdsServiceResponseJson();
+				},
+				serviceJson,
+				true,
+				"TEST");
+		var cdsRequest = """
+			{
+			  "hookInstance": "67890",
+			  "hook": "patient-view",
+			  "fhirServer": "%s",
+			  "context": {
+			    "userId": "Practitioner/example",
+			    "patientId": "template-prefetch"
+			  }
+			}""".formatted(ourServerBase);
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			HttpPost request = new HttpPost(ourCdsBase + "/template-prefetch");
+			request.setEntity(new StringEntity(cdsRequest));
+			request.addHeader("Content-Type", "application/json");
+
+			CloseableHttpResponse httpResponse = httpClient.execute(request);
+			assertEquals(200, httpResponse.getStatusLine().getStatusCode());
+			assertEquals(Set.of("patient"), prefetchKeys);
+		} finally {
+			myCdsServiceRegistry.unregisterService(serviceJson.getId(), "TEST");
+		}
+	}
+
 	@Test
 	void testRec10() throws IOException {
 		loadBundle("r4/opioidcds-10-order-sign-bundle.json", ourCtx, ourClient);
@@ -0,0 +1,91 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CdsHookExecutorTest {
+
+	private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+	private final CountDownLatch myRelease = new CountDownLatch(1);
+	private CdsHookExecutor myExecutor;
+
+	@AfterEach
+	void tearDown() {
+		myRelease.countDown();
+		myExecutor.shutdown();
+	}
+
+	@Test
+	void fullQueueIsRejected() {
+		myExecutor = newExecutor(1, 1, 0, 0);
+
+		assertThat(myExecutor.submit("a", this::block, () -> {})).isNull();
+		assertThat(myExecutor.submit("a", this::block, () -> {})).isNull();
+		assertThat(myExecutor.submit("a", this::block, () -> {})).isEqualTo(CdsHookExecutor.Rejection.SATURATED);
+
+		assertThat(rejected("saturated")).isEqualTo(1);
+		assertThat(myMeterRegistry.get("cds.hooks.executor.queue.depth").gauge().value())
+				.isEqualTo(1);
+	}
+
+	@Test
+	void serviceLimitLeavesRoomForOtherServices() {
+		myExecutor = newExecutor(4, 4, 1, 0);
+
+		assertThat(myExecutor.submit("a", this::block, () -> {})).isNull();
+		assertThat(myExecutor.submit("a", this::block, () -> {})).isEqualTo(CdsHookExecutor.Rejection.SERVICE_LIMIT);
+		assertThat(myExecutor.submit("b", this::block, () -> {})).isNull();
+
+		assertThat(rejected("service_limit")).isEqualTo(1);
+	}
+
+	@Test
+	void callThatWaitedTooLongIsNotRun() throws InterruptedException {
+		myExecutor = newExecutor(1, 1, 0, 50);
+		CountDownLatch expired = new CountDownLatch(1);
+		AtomicBoolean ran = new AtomicBoolean();
+
+		myExecutor.submit("a", this::block, () -> {});
+		myExecutor.submit("a", () -> ran.set(true), expired::countDown);
+		Thread.sleep(100);
+		myRelease.countDown();
+
+		assertThat(expired.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(ran).isFalse();
+		assertThat(rejected("expired")).isEqualTo(1);
+		assertThat(myMeterRegistry.get("cds.hooks.executor.queue.wait").timer().count())
+				.isEqualTo(2);
+	}
+
+	private CdsHookExecutor newExecutor(int theThreads, int theQueueCapacity, int thePerServiceLimit, long theMaxWait) {
+		CdsHooksProperties.Async settings = new CdsHooksProperties.Async();
+		settings.setThreads(theThreads);
+		settings.setQueueCapacity(theQueueCapacity);
+		settings.setPerServiceLimit(thePerServiceLimit);
+		settings.setMaxQueueWaitMillis(theMaxWait);
+		return new CdsHookExecutor(settings, myMeterRegistry);
+	}
+
+	private double rejected(String theReason) {
+		return myMeterRegistry
+				.get("cds.hooks.executor.rejected")
+				.tag("reason", theReason)
+				.counter()
+				.count();
+	}
+
+	private void block() {
+		try {
+			myRelease.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,350 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import ca.uhn.hapi.fhir.cdshooks.module.CdsHooksObjectMapperFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParser;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares the streaming request/response path of {@link CdsHooksServlet} with the former buffered path that
+ * re-parsed every response with Gson, for a patient-view call returning a few cards.
+ */
+class CdsHooksServletTest {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(CdsHooksServletTest.class);
+	private static final org.slf4j.Logger ourServletLog = org.slf4j.LoggerFactory.getLogger(CdsHooksServlet.class);
+
+	private static final String REQUEST = """
+			{
+			  "hookInstance": "d1577c69-dfbe-44ad-ba6d-3e05e953b2ea",
+			  "hook": "patient-view",
+			  "fhirServer": "http://localhost:8080/fhir",
+			  "context": {"userId": "Practitioner/example", "patientId": "123"},
+			  "prefetch": {
+			    "item1": {"resourceType": "Patient", "id": "123", "gender": "female", "birthDate": "1970-01-01",
+			      "name": [{"family": "Doe", "given": ["Jane"]}]}
+			  }
+			}""";
+
+	private static final String CARD = """
+			{
+			  "summary": "Recommend an annual screening",
+			  "indicator": "warning",
+			  "detail": "The patient has not had a screening in the past year. Consider ordering one today.",
+			  "source": {"label": "Clinical guideline", "url": "https://example.org/guideline"},
+			  "links": [{"label": "Guideline", "url": "https://example.org/guideline", "type": "absolute"}],
+			  "selectionBehavior": "any"
+			}""";
+
+	private final ObjectMapper myObjectMapper =
+			new CdsHooksObjectMapperFactory(FhirContext.forR4Cached()).newMapper();
+	private final ICdsServiceRegistry myCdsServiceRegistry = mock(ICdsServiceRegistry.class);
+	private final CdsHooksProperties myCdsHooksProperties = new CdsHooksProperties();
+	private final CdsServicesJson myServices = new CdsServicesJson();
+
+	@BeforeEach
+	void setUp() throws Exception {
+		CdsServiceResponseJson response = myObjectMapper.readValue(
+				"{\"cards\": [" + CARD + "," + CARD + "," + CARD + "], \"systemActions\": []}",
+				CdsServiceResponseJson.class);
+		when(myCdsServiceRegistry.callService(eq("screening"), any())).thenReturn(response);
+		CdsServiceJson service = new CdsServiceJson().setId("screening").setHook("patient-view");
+		myServices.addService(service);
+		when(myCdsServiceRegistry.getCdsServicesJson()).thenReturn(myServices);
+		when(myCdsServiceRegistry.getCdsServiceJson("screening")).thenReturn(service);
+	}
+
+	@Test
+	void streamingResponseMatchesBufferedResponse() throws Exception {
+		String streamed = post(newServlet(true)).getContentAsString();
+		String buffered = post(newServlet(false)).getContentAsString();
+		String legacy = postLegacy().getContentAsString();
+
+		assertThat(myObjectMapper.readTree(streamed)).isEqualTo(myObjectMapper.readTree(legacy));
+		assertThat(buffered.trim()).isEqualTo(streamed);
+		// same layout as the Gson pretty printer
+		assertThat(streamed).contains("\"summary\": \"Recommend an annual screening\"").doesNotContain(" : ");
+		assertThat(streamed).contains("\"systemActions\": []");
+	}
+
+	@Test
+	void prettyPrintCanBeDisabled() throws Exception {
+		myCdsHooksProperties.setPrettyPrint(false);
+
+		assertThat(post(newServlet(true)).getContentAsString()).doesNotContain("\n");
+	}
+
+	@Test
+	void discoveryIsServedWithEtagAndRevalidated() throws Exception {
+		CdsHooksServlet servlet = newServlet(true);
+
+		MockHttpServletResponse first = get(servlet, null, null);
+		String etag = first.getHeader("ETag");
+		assertThat(first.getStatus()).isEqualTo(200);
+		assertThat(myObjectMapper.readTree(first.getContentAsByteArray()).get("services")).hasSize(1);
+		assertThat(etag).startsWith("\"").endsWith("\"");
+
+		MockHttpServletResponse notModified = get(servlet, "W/" + etag, null);
+		assertThat(notModified.getStatus()).isEqualTo(304);
+		assertThat(notModified.getContentAsByteArray()).isEmpty();
+
+		// registering a service changes the document
+		myServices.addService(new CdsServiceJson().setId("other").setHook("patient-view"));
+		MockHttpServletResponse changed = get(servlet, etag, null);
+		assertThat(changed.getStatus()).isEqualTo(200);
+		assertThat(changed.getHeader("ETag")).isNotEqualTo(etag);
+		assertThat(myObjectMapper.readTree(changed.getContentAsByteArray()).get("services")).hasSize(2);
+	}
+
+	@Test
+	void discoveryIsServedGzipped() throws Exception {
+		CdsHooksServlet servlet = newServlet(true);
+		byte[] plain = get(servlet, null, null).getContentAsByteArray();
+
+		MockHttpServletResponse gzipped = get(servlet, null, "gzip, deflate");
+		assertThat(gzipped.getHeader("Content-Encoding")).isEqualTo("gzip");
+		assertThat(gzipped.getHeader("Vary")).isEqualTo("Accept-Encoding");
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped.getContentAsByteArray()))) {
+			assertThat(in.readAllBytes()).isEqualTo(plain);
+		}
+
+		myCdsHooksProperties.setDiscoveryGzip(false);
+		assertThat(get(newServlet(true), null, "gzip").getHeader("Content-Encoding"))
+				.isNull();
+	}
+
+	@Test
+	void asyncModeRunsHookOnExecutorAndShedsLoad() throws Exception {
+		myCdsHooksProperties.getAsync().setEnabled(true);
+		myCdsHooksProperties.getAsync().setThreads(1);
+		myCdsHooksProperties.getAsync().setQueueCapacity(1);
+		CdsHooksServlet servlet = newServlet(true);
+
+		MockHttpServletRequest request = newRequest();
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		servlet.doPost(request, response);
+		await().atMost(10, TimeUnit.SECONDS).until(() -> !request.isAsyncStarted());
+		assertThat(response.getStatus()).isEqualTo(200);
+		assertThat(response.getContentAsString()).contains("Recommend an annual screening");
+
+		CountDownLatch release = new CountDownLatch(1);
+		when(myCdsServiceRegistry.callService(eq("screening"), any())).thenAnswer(invocation -> {
+			release.await(10, TimeUnit.SECONDS);
+			return new CdsServiceResponseJson();
+		});
+		servlet.doPost(newRequest(), new MockHttpServletResponse());
+		servlet.doPost(newRequest(), new MockHttpServletResponse());
+		MockHttpServletResponse rejected = new MockHttpServletResponse();
+		servlet.doPost(newRequest(), rejected);
+		release.countDown();
+		servlet.destroy();
+
+		assertThat(rejected.getStatus()).isEqualTo(503);
+		assertThat(rejected.getHeader("Retry-After")).isEqualTo("5");
+	}
+
+	@Test
+	void sampledCallsAreTracedAndPayloadCaptureIsRateLimited() throws Exception {
+		ListAppender<ILoggingEvent> traces = attach("ca.uhn.fhir.jpa.starter.cdshooks.trace");
+		ListAppender<ILoggingEvent> payloads = attach("ca.uhn.fhir.jpa.starter.cdshooks.payload");
+		try {
+			myCdsHooksProperties.getTrace().setSampleRate(0);
+			myCdsHooksProperties.getTrace().setPayloadCapture(true);
+			myCdsHooksProperties.getTrace().setPayloadCapturePerMinute(1);
+			CdsHooksServlet servlet = newServlet(true);
+			post(servlet);
+			assertThat(traces.list).isEmpty();
+			assertThat(payloads.list).isEmpty();
+
+			myCdsHooksProperties.getTrace().setSampleRate(1);
+			servlet = newServlet(true);
+			String body = post(servlet).getContentAsString();
+			post(servlet);
+
+			assertThat(traces.list).hasSize(2);
+			assertThat(traces.list.get(0).getFormattedMessage())
+					.contains("service=screening")
+					.contains("hook=patient-view")
+					.contains("status=200")
+					.contains("requestBytes=" + REQUEST.getBytes(StandardCharsets.UTF_8).length)
+					.contains("responseBytes=" + body.getBytes(StandardCharsets.UTF_8).length)
+					.contains("prefetchMs=0");
+			assertThat(payloads.list).hasSize(1);
+			assertThat(payloads.list.get(0).getFormattedMessage())
+					.contains("d1577c69-dfbe-44ad-ba6d-3e05e953b2ea")
+					.contains("Recommend an annual screening");
+		} finally {
+			detach("ca.uhn.fhir.jpa.starter.cdshooks.trace", traces);
+			detach("ca.uhn.fhir.jpa.starter.cdshooks.payload", payloads);
+		}
+	}
+
+	@Test
+	void capturedRequestsDoNotLogTheAccessToken() {
+		String request = """
+				{
+				  "hook": "patient-view",
+				  "fhirAuthorization": {"access_token": "secret-token", "scope": "patient/*.read"}
+				}""";
+
+		assertThat(CdsHookTracer.redact(request.getBytes(StandardCharsets.UTF_8)))
+				.doesNotContain("secret-token")
+				.contains("\"access_token\":\"***\"")
+				.contains("patient/*.read");
+		String truncated = "{\"fhirAuthorization\": {\"access_token\": \"secret-token\"";
+		assertThat(CdsHookTracer.redact(truncated.getBytes(StandardCharsets.UTF_8)))
+				.doesNotContain("secret-token");
+		assertThat(CdsHookTracer.redact(REQUEST.getBytes(StandardCharsets.UTF_8))).isEqualTo(REQUEST);
+	}
+
+	private static ListAppender<ILoggingEvent> attach(String theLogger) {
+		ListAppender<ILoggingEvent> appender = new ListAppender<>();
+		appender.start();
+		((Logger) LoggerFactory.getLogger(theLogger)).addAppender(appender);
+		return appender;
+	}
+
+	private static void detach(String theLogger, ListAppender<ILoggingEvent> theAppender) {
+		((Logger) LoggerFactory.getLogger(theLogger)).detachAppender(theAppender);
+	}
+
+	/**
+	 * Stands in for a JMH benchmark: measures allocation and latency per call of both paths on this thread.
+	 */
+	@Test
+	void streamingAllocatesLessThanLegacyPath() throws Exception {
+		CdsHooksServlet streaming = newServlet(true);
+		int iterations = 2000;
+		for (int i = 0; i < iterations; i++) {
+			post(streaming);
+			postLegacy();
+		}
+
+		long[] legacy = measure(iterations, () -> postLegacy());
+		long[] streamed = measure(iterations, () -> post(streaming));
+		ourLog.info(
+				"Per hook call, including logging: legacy {} bytes / {} us, streaming {} bytes / {} us",
+				legacy[0],
+				legacy[1] / 1000,
+				streamed[0],
+				streamed[1] / 1000);
+		assertThat(streamed[0]).isLessThan(legacy[0]);
+	}
+
+	private long[] measure(int theIterations, ThrowingRunnable theCall) throws Exception {
+		com.sun.management.ThreadMXBean threadMXBean =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long allocatedBefore = threadMXBean.getCurrentThreadAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < theIterations; i++) {
+			theCall.run();
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = threadMXBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+		return new long[] {allocated / theIterations, elapsed / theIterations};
+	}
+
+	private CdsHooksServlet newServlet(boolean theStreaming) throws Exception {
+		myCdsHooksProperties.setStreaming(theStreaming);
+		CdsHooksServlet servlet = new CdsHooksServlet();
+		ReflectionTestUtils.setField(servlet, "appProperties", new AppProperties());
+		ReflectionTestUtils.setField(servlet, "providerConfiguration", new ProviderConfiguration(false, null));
+		servlet.cdsServiceRegistry = myCdsServiceRegistry;
+		servlet.objectMapper = myObjectMapper;
+		servlet.cdsHooksProperties = myCdsHooksProperties;
+		servlet.init();
+		return servlet;
+	}
+
+	private MockHttpServletResponse post(CdsHooksServlet theServlet) throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		theServlet.doPost(newRequest(), response);
+		return response;
+	}
+
+	/**
+	 * The request/response handling and logging of the servlet before streaming was introduced.
+	 */
+	private MockHttpServletResponse postLegacy() throws Exception {
+		HttpServletRequest request = newRequest();
+		HttpServletResponse response = new MockHttpServletResponse();
+		ourServletLog.info(request.getRequestURI());
+		String requestJson = request.getReader().lines().collect(Collectors.joining());
+		CdsHooksRequest cdsHooksRequest = myObjectMapper.readValue(requestJson, CdsHooksRequest.class);
+		ourServletLog.info(requestJson);
+		ourServletLog.info("cds-hooks hook instance: {}", cdsHooksRequest.getHookInstance());
+		ourServletLog.info("cds-hooks local server address: {}", (Object) null);
+		ourServletLog.info("cds-hooks fhir server address: {}", cdsHooksRequest.getFhirServer());
+		ourServletLog.info("cds-hooks cql_logging_enabled: {}", false);
+		CdsServiceResponseJson serviceResponseJson = myCdsServiceRegistry.callService("screening", cdsHooksRequest);
+		String jsonResponse = new GsonBuilder()
+				.disableHtmlEscaping()
+				.setPrettyPrinting()
+				.create()
+				.toJson(JsonParser.parseString(myObjectMapper.writeValueAsString(serviceResponseJson)));
+		ourServletLog.info(jsonResponse);
+		response.setContentType("text/json;charset=UTF-8");
+		response.getWriter().println(jsonResponse);
+		return (MockHttpServletResponse) response;
+	}
+
+	private static MockHttpServletResponse get(
+			CdsHooksServlet theServlet, String theIfNoneMatch, String theAcceptEncoding) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cds-services");
+		if (theIfNoneMatch != null) {
+			request.addHeader("If-None-Match", theIfNoneMatch);
+		}
+		if (theAcceptEncoding != null) {
+			request.addHeader("Accept-Encoding", theAcceptEncoding);
+		}
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		theServlet.doGet(request, response);
+		return response;
+	}
+
+	private static MockHttpServletRequest newRequest() {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/cds-services/screening");
+		request.setPathInfo("/screening");
+		request.setContentType("application/json");
+		request.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		request.setContent(REQUEST.getBytes(StandardCharsets.UTF_8));
+		request.setAsyncSupported(true);
+		return request;
+	}
+
+	@FunctionalInterface
+	private interface ThrowingRunnable {
+		void run() throws Exception;
+	}
+}
@@ -0,0 +1,78 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchDaoSvc;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class LocalPrefetchResolverTest {
+
+	private LocalPrefetchResolver newResolver(AppProperties theAppProperties) {
+		return new LocalPrefetchResolver(
+				mock(DaoRegistry.class), mock(MatchUrlService.class), FhirContext.forR4Cached(), theAppProperties);
+	}
+
+	@Test
+	void serverAddressIsLocalRegardlessOfTrailingSlashAndCase() {
+		AppProperties props = new AppProperties();
+		props.setServer_address("http://localhost:8080/fhir/");
+
+		LocalPrefetchResolver resolver = newResolver(props);
+
+		assertThat(resolver.isLocal("http://localhost:8080/fhir")).isTrue();
+		assertThat(resolver.isLocal("HTTP://LOCALHOST:8080/fhir/")).isTrue();
+		assertThat(resolver.isLocal("http://localhost:8080/other")).isFalse();
+	}
+
+	@Test
+	void localBaseUrlsAreLocal() {
+		AppProperties props = new AppProperties();
+		props.getLocal_base_urls().add("https://ehr.example.org/fhir");
+
+		LocalPrefetchResolver resolver = newResolver(props);
+
+		assertThat(resolver.isLocal("https://ehr.example.org/fhir/")).isTrue();
+		assertThat(resolver.isLocal("https://remote.example.org/fhir")).isFalse();
+	}
+
+	@Test
+	void missingFhirServerIsLocal() {
+		LocalPrefetchResolver resolver = newResolver(new AppProperties());
+
+		assertThat(resolver.isLocal(null)).isTrue();
+		assertThat(resolver.isLocal("")).isTrue();
+	}
+
+	@Test
+	void searchLoadsNoMoreThanFitInTheBundle() {
+		FhirContext fhirContext = FhirContext.forR4Cached();
+		DaoRegistry daoRegistry = mock(DaoRegistry.class);
+		IFhirResourceDao<?> dao = mock(IFhirResourceDao.class);
+		MatchUrlService matchUrlService = mock(MatchUrlService.class);
+		when(daoRegistry.getResourceDao("Observation")).thenReturn((IFhirResourceDao) dao);
+		when(matchUrlService.translateMatchUrl(anyString(), any())).thenReturn(new SearchParameterMap());
+		when(dao.search(any(), any())).thenReturn(new SimpleBundleProvider());
+
+		new LocalPrefetchResolver(daoRegistry, matchUrlService, fhirContext, new AppProperties())
+				.resourceFromUrl("Observation?subject=123");
+
+		ArgumentCaptor<SearchParameterMap> map = ArgumentCaptor.forClass(SearchParameterMap.class);
+		verify(dao).search(map.capture(), any(RequestDetails.class));
+		assertThat(map.getValue().isLoadSynchronous()).isTrue();
+		assertThat(map.getValue().getLoadSynchronousUpTo()).isEqualTo(CdsPrefetchDaoSvc.MAX_RESOURCES_IN_BUNDLE);
+	}
+}
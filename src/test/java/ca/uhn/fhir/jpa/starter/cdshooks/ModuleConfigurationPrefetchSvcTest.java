@@ -0,0 +1,358 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestAuthorizationJson;
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestJson;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsHooksDaoAuthorizationSvc;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceMethod;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchDaoSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchFhirClientSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsResolutionStrategySvc;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs {@link ModuleConfigurationPrefetchSvc} against a local stub FHIR server that answers every query after a
+ * fixed delay, and reports the hook latency for a sequential and a parallel configuration.
+ */
+class ModuleConfigurationPrefetchSvcTest {
+	private static final org.slf4j.Logger ourLog =
+			org.slf4j.LoggerFactory.getLogger(ModuleConfigurationPrefetchSvcTest.class);
+
+	private static final long QUERY_DELAY_MILLIS = 200;
+	private static final String SERVICE_ID = "uds-service";
+
+	private final FhirContext myFhirContext = FhirContext.forR4();
+	private final Map<String, Long> myDelayByResourceType = new ConcurrentHashMap<>();
+	private final AtomicInteger myStubRequestCount = new AtomicInteger();
+	private final Set<String> myAuthorizationHeaders = ConcurrentHashMap.newKeySet();
+	private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+	private final List<ExecutorService> myExecutors = new ArrayList<>();
+	private LocalPrefetchResolver myLocalPrefetchResolver;
+	private PrefetchClientCache myClientCache;
+	private PrefetchResultCache myResultCache;
+	private HttpServer myStubServer;
+	private String myStubBase;
+
+	@BeforeEach
+	void startStubServer() throws IOException {
+		myStubServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		myStubServer.createContext("/fhir", this::handle);
+		myStubServer.setExecutor(Executors.newCachedThreadPool());
+		myStubServer.start();
+		myStubBase = "http://localhost:" + myStubServer.getAddress().getPort() + "/fhir";
+		myClientCache = new PrefetchClientCache(myFhirContext, new CdsHooksProperties.Prefetch(), myMeterRegistry);
+	}
+
+	@AfterEach
+	void stopStubServer() {
+		myExecutors.forEach(ExecutorService::shutdownNow);
+		myClientCache.close();
+		myStubServer.stop(0);
+	}
+
+	@Test
+	void prefetchQueriesRunConcurrently() {
+		long sequential = timeHook(newSvc(1, 30000, 30000), 6);
+		long parallel = timeHook(newSvc(8, 30000, 30000), 6);
+
+		ourLog.info(
+				"Prefetch latency with {} ms per query: sequential {} ms, parallel {} ms",
+				QUERY_DELAY_MILLIS,
+				sequential,
+				parallel);
+		assertThat(sequential).isGreaterThanOrEqualTo(6 * QUERY_DELAY_MILLIS);
+		assertThat(parallel).isLessThan(sequential / 3);
+	}
+
+	@Test
+	void slowTemplateIsSkippedAndRemainingPrefetchReturned() {
+		warmUp();
+		myDelayByResourceType.put("Encounter", 5000L);
+
+		CdsServiceRequestJson request = newRequest();
+		newSvc(8, 10000, 1000).prefetch(request, newServiceJson());
+
+		assertThat(request.getPrefetchKeys()).containsExactlyInAnyOrder("item1", "item2", "item3", "item5", "item6");
+	}
+
+	@Test
+	void hookDeadlineBoundsTotalLatency() {
+		warmUp();
+		myDelayByResourceType.put("Observation", 5000L);
+
+		CdsServiceRequestJson request = newRequest();
+		long start = System.currentTimeMillis();
+		newSvc(8, 1000, 30000).prefetch(request, newServiceJson());
+
+		assertThat(System.currentTimeMillis() - start).isLessThan(3000);
+		assertThat(request.getPrefetchKeys()).containsExactlyInAnyOrder("item1", "item2", "item3", "item4", "item5");
+	}
+
+	@Test
+	void abandonedQueriesReleaseTheirConnections() {
+		warmUp();
+		myDelayByResourceType.put("Observation", 30000L);
+
+		newSvc(8, 1000, 30000).prefetch(newRequest(), newServiceJson());
+
+		// without a deadline on the client, the lab queries would hold their connections until the stub server answers
+		await().atMost(2, TimeUnit.SECONDS)
+				.until(() -> myMeterRegistry
+								.get("cds.prefetch.client.connections")
+								.tag("state", "leased")
+								.gauge()
+								.value()
+						== 0);
+	}
+
+	@Test
+	void labChunksAreMergedIntoOneDeduplicatedSearchSet() {
+		CdsServiceRequestJson request = newRequest();
+		newSvc(8, 30000, 30000).prefetch(request, newServiceJson());
+
+		Bundle labs = (Bundle) request.getPrefetch("item6");
+		assertThat(labs.getType()).isEqualTo(Bundle.BundleType.SEARCHSET);
+		assertThat(labs.getEntry()).hasSize(1);
+		assertThat(labs.getTotal()).isEqualTo(1);
+		// every lab code chunk is its own query
+		assertThat(myStubRequestCount.get()).isEqualTo(5 + 14);
+	}
+
+	@Test
+	void localFhirServerIsResolvedWithoutHttp() {
+		myLocalPrefetchResolver = mock(LocalPrefetchResolver.class);
+		when(myLocalPrefetchResolver.isLocal(myStubBase)).thenReturn(true);
+		when(myLocalPrefetchResolver.resourceFromUrl(anyString()))
+				.thenAnswer(t -> ((String) t.getArgument(0)).startsWith("Patient/")
+						? new Patient().setId("123")
+						: new Bundle().setType(Bundle.BundleType.SEARCHSET));
+
+		CdsServiceRequestJson request = newRequest();
+		newSvc(8, 10000, 10000).prefetch(request, newServiceJson());
+
+		assertThat(request.getPrefetchKeys()).hasSize(6);
+		assertThat(myStubRequestCount.get()).isZero();
+		verify(myLocalPrefetchResolver).resourceFromUrl("Patient/123");
+	}
+
+	@Test
+	void repeatedHookIsServedFromResultCache() {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		myResultCache = new PrefetchResultCache(
+				myFhirContext,
+				ModuleConfigurationPrefetchSvc.PREFETCH_RESOURCE_TYPES,
+				new CdsHooksProperties.Prefetch(),
+				meterRegistry);
+		ModuleConfigurationPrefetchSvc svc = newSvc(8, 10000, 10000);
+		svc.prefetch(newRequest(), newServiceJson());
+		int requestsForFirstHook = myStubRequestCount.get();
+
+		CdsServiceRequestJson request = newRequest();
+		long start = System.currentTimeMillis();
+		svc.prefetch(request, newServiceJson());
+
+		assertThat(System.currentTimeMillis() - start).isLessThan(QUERY_DELAY_MILLIS);
+		assertThat(myStubRequestCount.get()).isEqualTo(requestsForFirstHook);
+		assertThat(request.getPrefetchKeys()).hasSize(6);
+		assertThat(meterRegistry.get("cds.prefetch.results.saved").timer().count()).isEqualTo(6);
+		assertThat(meterRegistry
+						.get("cds.prefetch.results.saved")
+						.timer()
+						.totalTime(TimeUnit.MILLISECONDS))
+				.isGreaterThanOrEqualTo(6 * QUERY_DELAY_MILLIS);
+	}
+
+	@Test
+	void accessTokenIsSentPerRequestOnSharedClient() {
+		ModuleConfigurationPrefetchSvc svc = newSvc(8, 10000, 10000);
+
+		CdsServiceRequestJson first = newRequest();
+		first.setServiceRequestAuthorizationJson(newAuthorization("token-1"));
+		svc.prefetch(first, newServiceJson());
+		assertThat(myAuthorizationHeaders).containsExactly("Bearer token-1");
+
+		myAuthorizationHeaders.clear();
+		CdsServiceRequestJson second = newRequest();
+		second.setServiceRequestAuthorizationJson(newAuthorization("token-2"));
+		svc.prefetch(second, newServiceJson());
+		assertThat(myAuthorizationHeaders).containsExactly("Bearer token-2");
+
+		myAuthorizationHeaders.clear();
+		svc.prefetch(newRequest(), newServiceJson());
+		assertThat(myAuthorizationHeaders).containsExactly("none");
+	}
+
+	@Test
+	void onlyTheMissingDeclaredPrefetchIsQueried() {
+		CdsServiceJson serviceJson = new CdsServiceJson();
+		serviceJson.setId(SERVICE_ID);
+		serviceJson.addPrefetch("item1", "Patient/{{context.patientId}}");
+		serviceJson.addPrefetch("item3", "Condition?patient={{context.patientId}}");
+		CdsServiceRequestJson request = newRequest();
+		request.addPrefetch("item3", new Bundle().setType(Bundle.BundleType.SEARCHSET));
+
+		newSvc(8, 10000, 10000).prefetch(request, serviceJson);
+
+		assertThat(request.getPrefetchKeys()).containsExactlyInAnyOrder("item1", "item3");
+		assertThat(myStubRequestCount.get()).isEqualTo(1);
+	}
+
+	@Test
+	void hookWithoutPatientIsLeftToTemplatePrefetch() {
+		CdsServiceRequestJson request = new CdsServiceRequestJson();
+		request.setFhirServer(myStubBase);
+
+		newSvc(8, 10000, 10000).prefetch(request, newServiceJson());
+
+		assertThat(request.getPrefetchKeys()).isEmpty();
+		assertThat(myStubRequestCount.get()).isZero();
+	}
+
+	@Test
+	void otherServicesAreDelegatedToTemplatePrefetch() {
+		CdsServiceJson serviceJson = new CdsServiceJson();
+		serviceJson.setId("plain-service");
+		serviceJson.addPrefetch("patient", "Patient/{{context.patientId}}");
+		ICdsServiceMethod serviceMethod = mock(ICdsServiceMethod.class);
+		when(serviceMethod.getCdsServiceJson()).thenReturn(serviceJson);
+		CdsServiceRequestJson request = newRequest();
+		request.addPrefetch("patient", new Patient().setId("123"));
+
+		newSvc(8, 10000, 10000).augmentRequest(request, serviceMethod);
+
+		assertThat(request.getPrefetchKeys()).containsExactly("patient");
+		assertThat(myStubRequestCount.get()).isZero();
+	}
+
+	private static CdsServiceRequestAuthorizationJson newAuthorization(String theAccessToken) {
+		CdsServiceRequestAuthorizationJson authorization = new CdsServiceRequestAuthorizationJson();
+		authorization.setAccessToken(theAccessToken);
+		authorization.setTokenType("Bearer");
+		return authorization;
+	}
+
+	/**
+	 * Loads the client factory, parser and connection pool so that cold start does not count against timeouts.
+	 */
+	private void warmUp() {
+		newSvc(8, 30000, 30000).prefetch(newRequest(), newServiceJson());
+	}
+
+	private long timeHook(ModuleConfigurationPrefetchSvc theSvc, int theExpectedPrefetchCount) {
+		theSvc.prefetch(newRequest(), newServiceJson());
+
+		CdsServiceRequestJson request = newRequest();
+		long start = System.currentTimeMillis();
+		theSvc.prefetch(request, newServiceJson());
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertThat(request.getPrefetchKeys()).hasSize(theExpectedPrefetchCount);
+		return elapsed;
+	}
+
+	private ModuleConfigurationPrefetchSvc newSvc(int theThreads, long theHookTimeout, long theTemplateTimeout) {
+		CdsPrefetchDaoSvc daoSvc = mock(CdsPrefetchDaoSvc.class);
+		when(daoSvc.getFhirContext()).thenReturn(myFhirContext);
+
+		CdsHooksProperties.Prefetch settings = new CdsHooksProperties.Prefetch();
+		settings.setThreads(theThreads);
+		settings.setHookTimeoutMillis(theHookTimeout);
+		settings.setTemplateTimeoutMillis(theTemplateTimeout);
+		settings.setServiceIds(List.of(SERVICE_ID));
+		ExecutorService executor = ModuleConfigurationPrefetchSvc.newPrefetchExecutor(settings);
+		myExecutors.add(executor);
+
+		return new ModuleConfigurationPrefetchSvc(
+				mock(CdsResolutionStrategySvc.class),
+				daoSvc,
+				mock(CdsPrefetchFhirClientSvc.class),
+				mock(ICdsHooksDaoAuthorizationSvc.class),
+				mock(IInterceptorBroadcaster.class),
+				settings,
+				executor,
+				myClientCache,
+				myResultCache,
+				myLocalPrefetchResolver);
+	}
+
+	private CdsServiceRequestJson newRequest() {
+		CdsServiceRequestJson request = new CdsServiceRequestJson();
+		request.setFhirServer(myStubBase);
+		request.addContext("patientId", "123");
+		return request;
+	}
+
+	private static CdsServiceJson newServiceJson() {
+		CdsServiceJson serviceJson = new CdsServiceJson();
+		serviceJson.setId(SERVICE_ID);
+		for (int i = 1; i <= 6; i++) {
+			serviceJson.addPrefetch("item" + i, "Patient/{{context.patientId}}");
+		}
+		return serviceJson;
+	}
+
+	private void handle(HttpExchange theExchange) throws IOException {
+		myStubRequestCount.incrementAndGet();
+		String authorization = theExchange.getRequestHeaders().getFirst("Authorization");
+		myAuthorizationHeaders.add(authorization == null ? "none" : authorization);
+		String path = theExchange.getRequestURI().getPath();
+		String resourceType = path.substring("/fhir/".length()).split("/")[0];
+		try {
+			Thread.sleep(myDelayByResourceType.getOrDefault(resourceType, QUERY_DELAY_MILLIS));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		String body;
+		if ("Patient".equals(resourceType)) {
+			body = "{\"resourceType\":\"Patient\",\"id\":\"123\"}";
+		} else if ("Observation".equals(resourceType)) {
+			// the same lab result is returned for every code chunk
+			body = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":1,\"entry\":[{\"fullUrl\":\""
+					+ myStubBase + "/Observation/obs-1\",\"resource\":{\"resourceType\":\"Observation\",\"id\":\"obs-1\","
+					+ "\"status\":\"final\",\"code\":{\"text\":\"lab\"}}}]}";
+		} else {
+			body = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":0}";
+		}
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		theExchange.getResponseHeaders().add("Content-Type", "application/fhir+json;charset=utf-8");
+		try {
+			theExchange.sendResponseHeaders(200, bytes.length);
+			try (OutputStream os = theExchange.getResponseBody()) {
+				os.write(bytes);
+			}
+		} catch (IOException e) {
+			// the client gave up on this query
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PrefetchClientCacheTest {
+
+	private final FhirContext myFhirContext = FhirContext.forR4();
+	private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+	private PrefetchClientCache myClientCache;
+	private HttpServer myStubServer;
+	private String myStubBase;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		myClientCache = new PrefetchClientCache(myFhirContext, new CdsHooksProperties.Prefetch(), myMeterRegistry);
+		myStubServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		myStubServer.createContext("/fhir", PrefetchClientCacheTest::handle);
+		myStubServer.start();
+		myStubBase = "http://localhost:" + myStubServer.getAddress().getPort() + "/fhir";
+	}
+
+	@AfterEach
+	void tearDown() {
+		myClientCache.close();
+		myStubServer.stop(0);
+	}
+
+	@Test
+	void clientsAreSharedPerBaseUrlAndAuthScheme() {
+		IGenericClient client = myClientCache.getClient("http://example.org/fhir", "Bearer");
+
+		assertThat(myClientCache.getClient("http://example.org/fhir/", "bearer")).isSameAs(client);
+		assertThat(myClientCache.getClient("http://example.org/fhir", null)).isNotSameAs(client);
+		assertThat(myClientCache.getClient("http://example.com/fhir", "Bearer")).isNotSameAs(client);
+
+		assertThat(count("cds.prefetch.client.cache", "result", "hit")).isEqualTo(1);
+		assertThat(count("cds.prefetch.client.cache", "result", "miss")).isEqualTo(3);
+	}
+
+	@Test
+	void serverContextKeepsItsOwnClientFactory() {
+		IRestfulClientFactory serverClientFactory = myFhirContext.getRestfulClientFactory();
+
+		IGenericClient client = myClientCache.getClient(myStubBase, null);
+
+		assertThat(client.getFhirContext().getVersion().getVersion()).isEqualTo(myFhirContext.getVersion().getVersion());
+		assertThat(myFhirContext.getRestfulClientFactory()).isSameAs(serverClientFactory);
+	}
+
+	@Test
+	void connectionsAreReusedAcrossRequests() {
+		for (int i = 0; i < 5; i++) {
+			myClientCache.getClient(myStubBase, null).read().resource("Patient").withId("123").execute();
+		}
+
+		assertThat(count("cds.prefetch.client.requests", "connection", "new")).isEqualTo(1);
+		assertThat(count("cds.prefetch.client.requests", "connection", "reused")).isEqualTo(4);
+		assertThat(myMeterRegistry
+						.get("cds.prefetch.client.connections")
+						.tag("state", "available")
+						.gauge()
+						.value())
+				.isEqualTo(1);
+	}
+
+	private double count(String theName, String theTag, String theValue) {
+		return myMeterRegistry.get(theName).tag(theTag, theValue).counter().count();
+	}
+
+	private static void handle(HttpExchange theExchange) throws IOException {
+		byte[] bytes = "{\"resourceType\":\"Patient\",\"id\":\"123\"}".getBytes(StandardCharsets.UTF_8);
+		theExchange.getResponseHeaders().add("Content-Type", "application/fhir+json;charset=utf-8");
+		theExchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream os = theExchange.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+}
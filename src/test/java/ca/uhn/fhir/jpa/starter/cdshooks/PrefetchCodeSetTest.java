@@ -0,0 +1,40 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PrefetchCodeSetTest {
+
+	@Test
+	void codesAreSortedAndDistinct() {
+		PrefetchCodeSet codes = new PrefetchCodeSet("3-c", "1-a", " 2-b ", "1-a", "");
+
+		assertThat(codes.size()).isEqualTo(3);
+		assertThat(codes.contains("2-b")).isTrue();
+		assertThat(codes.contains("4-d")).isFalse();
+		assertThat(codes.chunks(2)).containsExactly("1-a,2-b", "3-c");
+	}
+
+	@Test
+	void udsLabCodesAreLoadedFromClasspath() {
+		PrefetchCodeSet codes = PrefetchCodeSet.fromClasspath("cdshooks/uds-lab-codes.txt");
+
+		assertThat(codes.size()).isEqualTo(1669);
+		assertThat(codes.contains("58397-1")).isTrue();
+		assertThat(String.join(",", codes.chunks(128)).split(",")).hasSize(1669);
+	}
+
+	@Test
+	void chunkSizeIsDerivedFromThreadsWhenNotConfigured() {
+		CdsHooksProperties.Prefetch settings = new CdsHooksProperties.Prefetch();
+		settings.setThreads(16);
+		assertThat(ModuleConfigurationPrefetchSvc.labCodeChunkSize(settings, 1669)).isEqualTo(105);
+
+		settings.setThreads(2);
+		assertThat(ModuleConfigurationPrefetchSvc.labCodeChunkSize(settings, 1669)).isEqualTo(128);
+
+		settings.setLabCodeChunkSize(300);
+		assertThat(ModuleConfigurationPrefetchSvc.labCodeChunkSize(settings, 1669)).isEqualTo(300);
+	}
+}
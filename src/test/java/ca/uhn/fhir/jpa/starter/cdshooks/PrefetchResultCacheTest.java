@@ -0,0 +1,111 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PrefetchResultCacheTest {
+
+	private final FhirContext myFhirContext = FhirContext.forR4Cached();
+	private PrefetchResultCache myResultCache;
+
+	@BeforeEach
+	void setUp() {
+		myResultCache = new PrefetchResultCache(
+				myFhirContext,
+				ModuleConfigurationPrefetchSvc.PREFETCH_RESOURCE_TYPES,
+				new CdsHooksProperties.Prefetch(),
+				new SimpleMeterRegistry());
+		myResultCache.put(key("123", "item1"), new Patient().setId("Patient/123"), 1000);
+		myResultCache.put(key("123", "item6"), labs("obs-1"), 1000);
+		myResultCache.put(key("456", "item6"), labs("obs-2"), 1000);
+	}
+
+	@Test
+	void cachedResultIsCopiedAndScopedToServer() {
+		Patient cached = (Patient) myResultCache.get(key("Patient/123", "item1"));
+		cached.setActive(true);
+
+		assertThat(((Patient) myResultCache.get(key("123", "item1"))).hasActive()).isFalse();
+		assertThat(myResultCache.get(otherServerKey())).isNull();
+	}
+
+	@Test
+	void authorizationIsKeptAsDigestAndScopesTheResult() {
+		PrefetchResultCache.Key key = new PrefetchResultCache.Key(
+				"http://example.org/fhir", "Bearer secret-token", "service", "123", "item1", "2025-10-17");
+		myResultCache.put(key, new Patient().setId("Patient/123"), 1000);
+
+		assertThat(key.authorization()).doesNotContain("secret-token").hasSize(64);
+		assertThat(key.toString()).doesNotContain("secret-token");
+		assertThat(myResultCache.get(new PrefetchResultCache.Key(
+						"http://example.org/fhir", "Bearer secret-token", "service", "123", "item1", "2025-10-17")))
+				.isNotNull();
+		assertThat(myResultCache.get(new PrefetchResultCache.Key(
+						"http://example.org/fhir", "Bearer other-token", "service", "123", "item1", "2025-10-17")))
+				.isNull();
+	}
+
+	@Test
+	void createdResourceEvictsItsPatient() {
+		myResultCache.resourceCreated(
+				new Observation().setSubject(new Reference("Patient/123")).setId("Observation/obs-9"));
+
+		assertThat(myResultCache.get(key("123", "item1"))).isNull();
+		assertThat(myResultCache.get(key("123", "item6"))).isNull();
+		assertThat(myResultCache.get(key("456", "item6"))).isNotNull();
+	}
+
+	@Test
+	void updatedResourceEvictsTheEntriesOfItsFormerPatient() {
+		myResultCache.resourceUpdated(
+				new Observation().setSubject(new Reference("Patient/456")).setId("Observation/obs-9/_history/1"),
+				new Observation().setSubject(new Reference("Patient/789")).setId("Observation/obs-9/_history/2"));
+
+		assertThat(myResultCache.get(key("123", "item6"))).isNotNull();
+		assertThat(myResultCache.get(key("456", "item6"))).isNull();
+	}
+
+	@Test
+	void deletedResourceEvictsEntriesContainingIt() {
+		myResultCache.resourceDeleted(new Observation().setId("Observation/obs-2/_history/3"));
+
+		assertThat(myResultCache.get(key("123", "item6"))).isNotNull();
+		assertThat(myResultCache.get(key("456", "item6"))).isNull();
+	}
+
+	@Test
+	void writesOfUnwatchedTypesAreIgnored() {
+		myResultCache.resourceCreated(new Group()
+				.addMember(new Group.GroupMemberComponent(new Reference("Patient/123")))
+				.setId("Group/g"));
+
+		assertThat(myResultCache.get(key("123", "item1"))).isNotNull();
+	}
+
+	private static PrefetchResultCache.Key key(String thePatientId, String thePrefetchKey) {
+		return new PrefetchResultCache.Key(
+				"http://example.org/fhir", null, "service", thePatientId, thePrefetchKey, "2025-10-17");
+	}
+
+	private static PrefetchResultCache.Key otherServerKey() {
+		return new PrefetchResultCache.Key(
+				"http://example.com/fhir", null, "service", "123", "item1", "2025-10-17");
+	}
+
+	private static Bundle labs(String theObservationId) {
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+		bundle.addEntry()
+				.setFullUrl("http://example.org/fhir/Observation/" + theObservationId)
+				.setResource(new Observation().setId("Observation/" + theObservationId));
+		return bundle;
+	}
+}
@@ -0,0 +1,134 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.cache.ResourceChangeEvent;
+import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingRuleBuilder;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StoredProfileRuleRegistryTest {
+
+	private static final IdType OBSERVATION_PROFILE_ID = new IdType("StructureDefinition/observation-profile");
+
+	private final FhirContext myFhirContext = FhirContext.forR4Cached();
+	private final DaoRegistry myDaoRegistry = mock(DaoRegistry.class);
+	private final IFhirResourceDao<StructureDefinition> myStructureDefinitionDao = mock(IFhirResourceDao.class);
+	private final AtomicInteger myRuleBuilds = new AtomicInteger();
+	private ReloadableRepositoryValidatingInterceptor myInterceptor;
+	private StoredProfileRuleRegistry myRegistry;
+
+	@BeforeEach
+	void setUp() {
+		when(myDaoRegistry.getFhirContext()).thenReturn(myFhirContext);
+		doReturn(myStructureDefinitionDao).when(myDaoRegistry).getResourceDao("StructureDefinition");
+		List<IBaseResource> stored = new ArrayList<>();
+		// more than a page, so the profiles are read in more than one
+		for (int i = 0; i < StoredProfileRuleRegistry.PAGE_SIZE + 1; i++) {
+			stored.add(profile("patient-" + i, "Patient", StructureDefinition.StructureDefinitionKind.RESOURCE));
+		}
+		stored.add(profile("address", "Address", StructureDefinition.StructureDefinitionKind.COMPLEXTYPE));
+		when(myStructureDefinitionDao.search(any(SearchParameterMap.class), any(RequestDetails.class)))
+				.thenReturn(new SimpleBundleProvider(stored));
+		myInterceptor = new ReloadableRepositoryValidatingInterceptor(myFhirContext, List.of());
+		myRegistry = new StoredProfileRuleRegistry(
+				myDaoRegistry,
+				() -> {
+					myRuleBuilds.incrementAndGet();
+					RepositoryValidatingRuleBuilder builder =
+							new RepositoryValidatingRuleBuilder(new DefaultProfileValidationSupport(myFhirContext));
+					ReflectionTestUtils.setField(builder, "myFhirContext", myFhirContext);
+					return builder;
+				},
+				myInterceptor);
+		myRegistry.load();
+	}
+
+	@Test
+	void storedProfilesAreRequiredOfTheirResourceType() {
+		assertThatThrownBy(() -> create(new Patient())).isInstanceOf(PreconditionFailedException.class);
+		assertThatCode(() -> create(new Observation())).doesNotThrowAnyException();
+	}
+
+	@Test
+	void onlyTheRulesOfTheChangedResourceTypeAreBuiltAgain() {
+		int builds = myRuleBuilds.get();
+		when(myStructureDefinitionDao.read(id(OBSERVATION_PROFILE_ID), any(RequestDetails.class)))
+				.thenReturn(profile("observation-profile", "Observation", StructureDefinition.StructureDefinitionKind.RESOURCE));
+
+		myRegistry.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+				List.of(OBSERVATION_PROFILE_ID), List.of(), List.of()));
+
+		assertThat(myRuleBuilds.get() - builds).isEqualTo(1);
+		assertThatThrownBy(() -> create(new Observation())).isInstanceOf(PreconditionFailedException.class);
+		assertThatThrownBy(() -> create(new Patient())).isInstanceOf(PreconditionFailedException.class);
+
+		when(myStructureDefinitionDao.read(id(OBSERVATION_PROFILE_ID), any(RequestDetails.class)))
+				.thenThrow(new ResourceGoneException(OBSERVATION_PROFILE_ID));
+		myRegistry.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+				List.of(), List.of(), List.of(OBSERVATION_PROFILE_ID)));
+
+		assertThatCode(() -> create(new Observation())).doesNotThrowAnyException();
+	}
+
+	@Test
+	void unchangedProfilesBuildNoRules() {
+		int builds = myRuleBuilds.get();
+		IIdType id = new IdType("StructureDefinition/patient-0");
+		when(myStructureDefinitionDao.read(id(id), any(RequestDetails.class)))
+				.thenReturn(profile("patient-0", "Patient", StructureDefinition.StructureDefinitionKind.RESOURCE));
+
+		myRegistry.handleChange(
+				ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(List.of(), List.of(id), List.of()));
+
+		assertThat(myRuleBuilds.get()).isEqualTo(builds);
+	}
+
+	private static IIdType id(IIdType theId) {
+		// the ids of a change event are not necessarily of the same class
+		return argThat(id -> id != null && theId.getValue().equals(id.getValue()));
+	}
+
+	private void create(IBaseResource theResource) {
+		myInterceptor.validateCreate(theResource, null, null, null, null);
+	}
+
+	private static StructureDefinition profile(
+			String theId, String theType, StructureDefinition.StructureDefinitionKind theKind) {
+		StructureDefinition structureDefinition = new StructureDefinition();
+		structureDefinition.setId("StructureDefinition/" + theId);
+		structureDefinition.setUrl("http://example.org/StructureDefinition/" + theId);
+		structureDefinition.setType(theType);
+		structureDefinition.setKind(theKind);
+		structureDefinition.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		return structureDefinition;
+	}
+}
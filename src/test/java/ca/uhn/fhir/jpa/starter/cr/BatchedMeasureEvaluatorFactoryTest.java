@@ -0,0 +1,295 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.cr.hapi.r4.R4MeasureEvaluatorSingleFactory;
+import org.opencds.cqf.fhir.cr.measure.r4.R4MeasureEvaluatorSingle;
+import org.opencds.cqf.fhir.utility.monad.Eithers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BatchedMeasureEvaluatorFactoryTest {
+
+	private static final String CQFM_SCORING =
+			"http://hl7.org/fhir/us/cqfmeasures/StructureDefinition/cqfm-scoring";
+
+	private final DaoRegistry myDaoRegistry = mock(DaoRegistry.class);
+	private final IFhirResourceDao<?> myPatientDao = mock(IFhirResourceDao.class);
+	private final IFhirResourceDao<?> myGroupDao = mock(IFhirResourceDao.class);
+	private final IFhirResourceDao<?> myMeasureDao = mock(IFhirResourceDao.class);
+	private final Measure myMeasure = new Measure();
+	private final SystemRequestDetails myRequestDetails = new SystemRequestDetails();
+	private final List<RequestDetails> myEvaluatorRequestDetails = new CopyOnWriteArrayList<>();
+	private final ExecutorService myExecutor = Executors.newFixedThreadPool(4);
+	private final Set<String> myThreads = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger myPopulationEvaluations = new AtomicInteger();
+
+	@BeforeEach
+	void setUp() {
+		doReturn(myMeasureDao).when(myDaoRegistry).getResourceDao("Measure");
+		when(myMeasureDao.read(any(IIdType.class), any(RequestDetails.class))).thenReturn(myMeasure);
+		myMeasure.setScoring(scoring("proportion"));
+	}
+
+	@AfterEach
+	void tearDown() {
+		myExecutor.shutdownNow();
+	}
+
+	@Test
+	void populationReportSumsTheIndividualReportsOfAllPatients() {
+		patients(1000);
+
+		MeasureReport report = evaluate(factory(myExecutor, 64), "population", null);
+
+		MeasureReport.MeasureReportGroupComponent group = report.getGroupFirstRep();
+		assertThat(report.getType()).isEqualTo(MeasureReport.MeasureReportType.SUMMARY);
+		assertThat(report.hasSubject()).isFalse();
+		assertThat(count(group.getPopulation(), "initial-population")).isEqualTo(1000);
+		assertThat(count(group.getPopulation(), "denominator")).isEqualTo(500);
+		assertThat(count(group.getPopulation(), "numerator")).isEqualTo(167);
+		assertThat(group.getMeasureScore().getValue().doubleValue()).isEqualTo(167 / 500.0);
+
+		MeasureReport.StratifierGroupComponent female = group.getStratifierFirstRep().getStratum().stream()
+				.filter(stratum -> "female".equals(stratum.getValue().getText()))
+				.findFirst()
+				.orElseThrow();
+		assertThat(group.getStratifierFirstRep().getStratum()).hasSize(2);
+		assertThat(female.getPopulation().get(0).getCount()).isEqualTo(500);
+		assertThat(report.getEvaluatedResource()).hasSize(1000);
+		assertThat(myThreads).hasSizeGreaterThan(1);
+		assertThat(myPopulationEvaluations).hasValue(0);
+	}
+
+	@Test
+	void eachBatchReadsWithItsOwnCopyOfTheRequestDetailsOfTheCaller() {
+		patients(100);
+		myRequestDetails.setTenantId("tenant-a");
+
+		evaluate(factory(myExecutor, 10), "population", null);
+
+		verify(myPatientDao).search(any(SearchParameterMap.class), same(myRequestDetails));
+		// the first is the evaluator of the caller, which the population report does not use
+		assertThat(myEvaluatorRequestDetails.get(0)).isSameAs(myRequestDetails);
+		assertThat(myEvaluatorRequestDetails.subList(1, myEvaluatorRequestDetails.size()))
+				.hasSize(10)
+				.doesNotHaveDuplicates()
+				.allSatisfy(requestDetails -> {
+					assertThat(requestDetails).isNotSameAs(myRequestDetails).isInstanceOf(SystemRequestDetails.class);
+					assertThat(requestDetails.getTenantId()).isEqualTo("tenant-a");
+				});
+	}
+
+	@Test
+	void continuousVariableAndRatioMeasuresArePassedToTheCrEvaluator() {
+		patients(100);
+
+		for (String scoring : List.of("continuous-variable", "ratio")) {
+			myMeasure.setScoring(scoring(scoring));
+			evaluate(factory(myExecutor, 10), "population", null);
+		}
+		myMeasure.setScoring(scoring("proportion"));
+		myMeasure.addGroup().addExtension(CQFM_SCORING, scoring("continuous-variable"));
+		evaluate(factory(myExecutor, 10), "population", null);
+
+		assertThat(myPopulationEvaluations).hasValue(3);
+		assertThat(myThreads).isEmpty();
+	}
+
+	@Test
+	void measureWithoutScoringIsPassedToTheCrEvaluator() {
+		patients(100);
+		myMeasure.setScoring(null);
+
+		evaluate(factory(myExecutor, 10), "population", null);
+
+		assertThat(myPopulationEvaluations).hasValue(1);
+	}
+
+	@Test
+	void measureWithSupplementalDataIsPassedToTheCrEvaluator() {
+		patients(100);
+		myMeasure.addSupplementalData().setId("sde-sex");
+
+		MeasureReport report = evaluate(factory(myExecutor, 10), "population", null);
+
+		assertThat(report.getType()).isEqualTo(MeasureReport.MeasureReportType.SUMMARY);
+		assertThat(myPopulationEvaluations).hasValue(1);
+		assertThat(myThreads).isEmpty();
+	}
+
+	@Test
+	void groupSubjectEvaluatesOnlyItsActiveMembers() {
+		Group group = new Group();
+		for (int i = 0; i < 10; i++) {
+			group.addMember().setEntity(new Reference("Patient/" + i)).setInactive(i >= 8);
+		}
+		doReturn(myGroupDao).when(myDaoRegistry).getResourceDao("Group");
+		when(myGroupDao.read(any(IIdType.class), any(RequestDetails.class))).thenReturn(group);
+
+		MeasureReport report = evaluate(factory(myExecutor, 3), null, "Group/g");
+
+		assertThat(report.getSubject().getReference()).isEqualTo("Group/g");
+		assertThat(count(report.getGroupFirstRep().getPopulation(), "initial-population"))
+				.isEqualTo(8);
+	}
+
+	@Test
+	void otherReportsArePassedToTheCrEvaluator() {
+		MeasureReport report = evaluate(factory(myExecutor, 10), "subject", "Patient/3");
+
+		assertThat(report.getType()).isEqualTo(MeasureReport.MeasureReportType.INDIVIDUAL);
+		assertThat(report.getSubject().getReference()).isEqualTo("Patient/3");
+	}
+
+	private BatchedMeasureEvaluatorFactory factory(ExecutorService theExecutor, int theBatchSize) {
+		MeasureBatchProperties settings = new MeasureBatchProperties();
+		settings.setEnabled(true);
+		settings.setBatch_size(theBatchSize);
+		return new BatchedMeasureEvaluatorFactory(new IndividualReports(), myDaoRegistry, theExecutor, settings);
+	}
+
+	private MeasureReport evaluate(
+			BatchedMeasureEvaluatorFactory theFactory, String theReportType, String theSubject) {
+		return theFactory
+				.create(myRequestDetails)
+				.evaluate(
+						Eithers.forMiddle3(new IdType("Measure/m")),
+						null,
+						null,
+						theReportType,
+						theSubject,
+						null,
+						null,
+						null,
+						null,
+						null,
+						null,
+						null,
+						null);
+	}
+
+	private void patients(int theCount) {
+		List<IBaseResource> patients = new ArrayList<>(theCount);
+		for (int i = 0; i < theCount; i++) {
+			patients.add(new Patient().setId("Patient/" + i));
+		}
+		when(myDaoRegistry.getFhirContext()).thenReturn(FhirContext.forR4Cached());
+		doReturn(myPatientDao).when(myDaoRegistry).getResourceDao("Patient");
+		when(myPatientDao.search(any(SearchParameterMap.class), any(RequestDetails.class)))
+				.thenReturn(new SimpleBundleProvider(patients));
+	}
+
+	private static int count(
+			List<MeasureReport.MeasureReportGroupPopulationComponent> thePopulations, String theCode) {
+		return thePopulations.stream()
+				.filter(population -> theCode.equals(population.getCode().getCodingFirstRep().getCode()))
+				.findFirst()
+				.orElseThrow()
+				.getCount();
+	}
+
+	/**
+	 * Stands in for the CR evaluator: every patient is in the initial population, even patients are in the
+	 * denominator and every third of those in the numerator. Patients are stratified by parity.
+	 */
+	private class IndividualReports implements R4MeasureEvaluatorSingleFactory {
+		@Override
+		public R4MeasureEvaluatorSingle create(RequestDetails theRequestDetails) {
+			myEvaluatorRequestDetails.add(theRequestDetails);
+			return (measure,
+					periodStart,
+					periodEnd,
+					reportType,
+					subjectId,
+					lastReceivedOn,
+					contentEndpoint,
+					terminologyEndpoint,
+					dataEndpoint,
+					additionalData,
+					parameters,
+					productLine,
+					practitioner) -> {
+				if (!"subject".equals(reportType)) {
+					myPopulationEvaluations.incrementAndGet();
+					return new MeasureReport().setType(MeasureReport.MeasureReportType.SUMMARY);
+				}
+				myThreads.add(Thread.currentThread().getName());
+				int patient = Integer.parseInt(new IdType(subjectId).getIdPart());
+				burn();
+				boolean denominator = patient % 2 == 0;
+				boolean numerator = denominator && patient % 3 == 0;
+				MeasureReport report = new MeasureReport()
+						.setType(MeasureReport.MeasureReportType.INDIVIDUAL)
+						.setSubject(new Reference(subjectId));
+				report.addEvaluatedResource(new Reference(subjectId));
+				report.addEvaluatedResource(new Reference("#sde-sex-" + patient));
+				MeasureReport.MeasureReportGroupComponent group = report.addGroup();
+				group.setId("group-1");
+				population(group.addPopulation().getCode(), "initial-population");
+				group.getPopulation().get(0).setCount(1);
+				population(group.addPopulation().getCode(), "denominator");
+				group.getPopulation().get(1).setCount(denominator ? 1 : 0);
+				population(group.addPopulation().getCode(), "numerator");
+				group.getPopulation().get(2).setCount(numerator ? 1 : 0);
+				MeasureReport.MeasureReportGroupStratifierComponent stratifier = group.addStratifier();
+				stratifier.setId("parity");
+				MeasureReport.StratifierGroupComponent stratum =
+						stratifier.addStratum().setValue(new CodeableConcept().setText(denominator ? "female" : "male"));
+				population(stratum.addPopulation().getCode(), "initial-population");
+				stratum.getPopulation().get(0).setCount(1);
+				return report;
+			};
+		}
+	}
+
+	private static CodeableConcept scoring(String theCode) {
+		return new CodeableConcept(new Coding("http://terminology.hl7.org/CodeSystem/measure-scoring", theCode, null));
+	}
+
+	private static void population(CodeableConcept theCode, String theValue) {
+		theCode.addCoding()
+				.setSystem("http://terminology.hl7.org/CodeSystem/measure-population")
+				.setCode(theValue);
+	}
+
+	private static void burn() {
+		long until = System.nanoTime() + 200_000;
+		while (System.nanoTime() < until) {
+			Thread.onSpinWait();
+		}
+	}
+}
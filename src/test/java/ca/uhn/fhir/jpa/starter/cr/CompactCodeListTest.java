@@ -0,0 +1,84 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompactCodeListTest {
+
+	private static final String SNOMED = "http://snomed.info/sct";
+	private static final String LOINC = "http://loinc.org";
+
+	@Test
+	void keepsOrderAndContentOfTheCodes() {
+		List<Code> codes = codes(5000);
+		List<Code> compact = CompactCodeList.of(codes);
+
+		assertThat(compact).isInstanceOf(CompactCodeList.class).hasSize(codes.size());
+		for (int i = 0; i < codes.size(); i++) {
+			Code expected = codes.get(i);
+			Code actual = compact.get(i);
+			assertThat(actual.getCode()).isEqualTo(expected.getCode());
+			assertThat(actual.getSystem()).isEqualTo(expected.getSystem());
+			assertThat(actual.getVersion()).isEqualTo(expected.getVersion());
+			assertThat(actual.getDisplay()).isEqualTo(expected.getDisplay());
+		}
+		// the terminology provider binary searches the list by code
+		assertThat(compact).isSortedAccordingTo(Comparator.comparing(Code::getCode));
+	}
+
+	@Test
+	void membershipIsPerSystemAndCode() {
+		CompactCodeList compact = (CompactCodeList) CompactCodeList.of(codes(5000));
+
+		assertThat(compact.contains(SNOMED, "100002")).isTrue();
+		assertThat(compact.contains(LOINC, "100003")).isTrue();
+		assertThat(compact.contains(LOINC, "100002")).isFalse();
+		assertThat(compact.contains(SNOMED, "999999")).isFalse();
+		assertThat(compact.contains(new Code().withSystem(SNOMED).withCode("100004")))
+				.isTrue();
+		assertThat(compact.indexOf(new Code().withSystem(LOINC).withCode("104999")))
+				.isEqualTo(4999);
+	}
+
+	@Test
+	void takesLessHeapThanCodeObjects() {
+		List<Code> codes = codes(5000);
+
+		long compact = ((CompactCodeList) CompactCodeList.of(codes)).estimatedBytes();
+
+		assertThat(compact).isLessThan(CqlCaches.weigh(codes) / 2);
+	}
+
+	@Test
+	void valueSetCacheStoresCompactExpansionsWhenEnabled() {
+		CqlCacheProperties properties = new CqlCacheProperties();
+		properties.setValueset_compact(true);
+		Map<String, List<Code>> cache = CqlCaches.valueSetCache(properties, new SimpleMeterRegistry());
+
+		List<Code> stored = cache.computeIfAbsent("http://example.org/ValueSet/a", url -> codes(10));
+
+		assertThat(stored).isInstanceOf(CompactCodeList.class);
+		assertThat(cache.get("http://example.org/ValueSet/a")).isSameAs(stored);
+	}
+
+	private static List<Code> codes(int theCount) {
+		List<Code> codes = new ArrayList<>();
+		for (int i = 0; i < theCount; i++) {
+			boolean snomed = i % 2 == 0;
+			codes.add(new Code()
+					.withCode(String.valueOf(100000 + i))
+					.withSystem(snomed ? SNOMED : LOINC)
+					.withVersion(snomed ? "2024-09" : null)
+					.withDisplay(i % 10 == 0 ? null : "Finding number " + i));
+		}
+		return codes;
+	}
+}
@@ -0,0 +1,97 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.elm.r1.Library;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class CqlCachesTest {
+
+	private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+
+	@Test
+	void valueSetCacheIsBoundedByEstimatedSize() {
+		CqlCacheProperties properties = new CqlCacheProperties();
+		properties.setValueset_max_mb(1);
+		Map<String, List<Code>> cache = CqlCaches.valueSetCache(properties, myMeterRegistry);
+
+		// each list is estimated at roughly 200 KB
+		List<Code> codes = codes(1000);
+		assertThat(CqlCaches.weigh(codes)).isBetween(150 * 1024, 250 * 1024);
+		for (int i = 0; i < 20; i++) {
+			cache.put("http://example.org/ValueSet/" + i, codes);
+		}
+
+		await().untilAsserted(() -> assertThat(myMeterRegistry
+						.get("cache.evictions")
+						.tag("cache", CqlCaches.VALUESET_CACHE)
+						.functionCounter()
+						.count())
+				.isGreaterThan(0));
+		assertThat(cache.size()).isLessThan(20);
+	}
+
+	@Test
+	void lookupsAreCountedAsHitsAndMisses() {
+		Map<String, List<Code>> cache = CqlCaches.valueSetCache(new CqlCacheProperties(), myMeterRegistry);
+		cache.put("http://example.org/ValueSet/a", codes(1));
+
+		assertThat(cache.get("http://example.org/ValueSet/a")).hasSize(1);
+		assertThat(cache.get("http://example.org/ValueSet/b")).isNull();
+
+		assertThat(myMeterRegistry
+						.get("cache.gets")
+						.tag("cache", CqlCaches.VALUESET_CACHE)
+						.tag("result", "hit")
+						.functionCounter()
+						.count())
+				.isEqualTo(1);
+		assertThat(myMeterRegistry
+						.get("cache.gets")
+						.tag("cache", CqlCaches.VALUESET_CACHE)
+						.tag("result", "miss")
+						.functionCounter()
+						.count())
+				.isEqualTo(1);
+	}
+
+	@Test
+	void librariesWeighByTheirDefinitions() {
+		CompiledLibrary small = library(1);
+		CompiledLibrary large = library(100);
+
+		assertThat(CqlCaches.weigh(large)).isGreaterThan(CqlCaches.weigh(small) * 10);
+	}
+
+	private static CompiledLibrary library(int theStatements) {
+		Library library = new Library();
+		Library.Statements statements = new Library.Statements();
+		IntStream.range(0, theStatements)
+				.forEach(i -> statements.getDef().add(new ExpressionDef().withName("Define " + i)));
+		library.setStatements(statements);
+		CompiledLibrary compiledLibrary = new CompiledLibrary();
+		compiledLibrary.setLibrary(library);
+		return compiledLibrary;
+	}
+
+	private static List<Code> codes(int theCount) {
+		List<Code> codes = new ArrayList<>();
+		for (int i = 0; i < theCount; i++) {
+			codes.add(new Code()
+					.withCode(String.valueOf(100000 + i))
+					.withSystem("http://snomed.info/sct")
+					.withDisplay("A clinical finding of moderate length"));
+		}
+		return codes;
+	}
+}
@@ -0,0 +1,99 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CqlExecutorsTest {
+
+	private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+	private ExecutorService myExecutor;
+
+	@AfterEach
+	void tearDown() {
+		SecurityContextHolder.clearContext();
+		if (myExecutor != null) {
+			myExecutor.shutdownNow();
+		}
+	}
+
+	@Test
+	void poolGrowsToMaxThenAppliesRejectionPolicy() throws Exception {
+		CqlExecutorProperties properties = new CqlExecutorProperties();
+		properties.setCore_size(1);
+		properties.setMax_size(2);
+		properties.setQueue_capacity(1);
+		properties.setRejection_policy(CqlExecutorProperties.RejectionPolicy.ABORT);
+		myExecutor = CqlExecutors.create(properties, myMeterRegistry);
+
+		CountDownLatch release = new CountDownLatch(1);
+		Runnable blocking = () -> {
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		};
+		// one on the core thread, one queued, one on the extra thread
+		myExecutor.submit(blocking);
+		myExecutor.submit(blocking);
+		myExecutor.submit(blocking);
+		assertThatThrownBy(() -> myExecutor.submit(blocking)).isInstanceOf(RejectedExecutionException.class);
+		release.countDown();
+
+		assertThat(myMeterRegistry
+						.get(CqlExecutors.METRIC_NAME + ".rejected")
+						.counter()
+						.count())
+				.isEqualTo(1);
+		assertThat(myMeterRegistry.get("executor.pool.max").gauge().value()).isEqualTo(2);
+	}
+
+	@Test
+	void defaultPoolRunsOneTaskPerProcessorWithoutQueueing() throws Exception {
+		CqlExecutorProperties properties = new CqlExecutorProperties();
+		ThreadPoolExecutor pool = CqlExecutors.newThreadPool(properties, myMeterRegistry);
+		myExecutor = pool;
+
+		CountDownLatch started = new CountDownLatch(properties.getCore_size());
+		CountDownLatch release = new CountDownLatch(1);
+		for (int i = 0; i < properties.getCore_size(); i++) {
+			pool.submit(() -> {
+				started.countDown();
+				release.await(10, TimeUnit.SECONDS);
+				return null;
+			});
+		}
+
+		assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(pool.getActiveCount())
+				.isEqualTo(Math.max(2, Runtime.getRuntime().availableProcessors()));
+		assertThat(pool.getQueue()).isEmpty();
+		assertThat(pool.allowsCoreThreadTimeOut()).isTrue();
+		release.countDown();
+	}
+
+	@Test
+	void securityContextIsPropagated() throws Exception {
+		Authentication authentication = new TestingAuthenticationToken("user", "password");
+		SecurityContextHolder.getContext().setAuthentication(authentication);
+		myExecutor = CqlExecutors.create(new CqlExecutorProperties(), myMeterRegistry);
+
+		assertThat(myExecutor
+						.submit(() -> SecurityContextHolder.getContext().getAuthentication())
+						.get(10, TimeUnit.SECONDS))
+				.isSameAs(authentication);
+	}
+}
@@ -0,0 +1,157 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.execution.Profile;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.opencds.cqf.fhir.cr.hapi.common.StringTimePeriodHandler;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class CqlProfilerTest {
+
+	private static final String CQL = "library Simple version '1.0.0'\n\n"
+			+ "using FHIR version '4.0.1'\n\n"
+			+ "context Patient\n\n"
+			+ "define \"Observations\": [Observation]\n\n"
+			+ "define \"Has Observation\": exists \"Observations\"\n";
+
+	private final FhirContext myFhirContext = FhirContext.forR4Cached();
+	private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+	private final CqlProfiler myProfiler = new CqlProfiler(myMeterRegistry, 1);
+
+	@Test
+	void expressionsAreRankedByTheTimeSpentInThemselves() {
+		ExpressionDef outer = new ExpressionDef().withName("Numerator");
+		ExpressionDef inner = new ExpressionDef().withName("Encounters");
+		CompiledLibrary library = new CompiledLibrary();
+		library.setIdentifier(new VersionedIdentifier().withId("Lib").withVersion("1"));
+		library.setLibrary(new Library()
+				.withIdentifier(library.getIdentifier())
+				.withStatements(new Library.Statements().withDef(List.of(outer, inner))));
+		Profile profile = new Profile();
+		Profile.Node outerNode = profile.getTree().ensureChild(outer, "Patient");
+		outerNode.setCount(1);
+		outerNode.setTime(100_000);
+		Profile.Node innerNode = outerNode.ensureChild(inner, "Patient");
+		innerNode.setCount(2);
+		innerNode.setTime(70_000);
+
+		myProfiler.recordProfile("Measure/m", profile, List.of(library));
+		myProfiler.recordProfile("Measure/m", profile, List.of(library));
+
+		assertThat(myProfiler.slowestExpressions("Measure/m", 10))
+				.extracting(CqlProfiler.Stats::getLibrary, CqlProfiler.Stats::getName, CqlProfiler.Stats::getSelfNanos)
+				.containsExactly(
+						tuple("Lib", "Encounters", 140_000L),
+						tuple("Lib", "Numerator", 60_000L));
+		assertThat(myProfiler.slowestExpressions("Measure/m", 1).get(0).getCount())
+				.isEqualTo(4);
+		assertThat(myMeterRegistry
+						.get("cql.expression")
+						.tag("expression", "Numerator")
+						.timer()
+						.count())
+				.isEqualTo(2);
+	}
+
+	@Test
+	void histogramPercentilesAreBucketUpperBounds() {
+		CqlProfiler.Stats stats = new CqlProfiler.Stats(null, "Observation");
+		for (int i = 0; i < 19; i++) {
+			stats.record(1, 1_000, 1_000, 0);
+		}
+		stats.record(1, 5_000_000, 5_000_000, 0);
+
+		assertThat(stats.getPercentileNanos(0.5)).isEqualTo(1_024);
+		assertThat(stats.getPercentileNanos(0.95)).isEqualTo(1_024);
+		assertThat(stats.getPercentileNanos(1)).isEqualTo(5_000_000);
+		assertThat(stats.getMeanNanos()).isEqualTo((19 * 1_000 + 5_000_000) / 20);
+	}
+
+	@Test
+	void profileOperationEvaluatesTheMeasureLibraryForTheSubject() {
+		org.hl7.fhir.r4.model.Library library = new org.hl7.fhir.r4.model.Library();
+		library.setId("Library/simple");
+		library.setUrl("http://example.org/Library/Simple");
+		library.setName("Simple");
+		library.setVersion("1.0.0");
+		library.addContent(
+				new Attachment().setContentType("text/cql").setData(CQL.getBytes(StandardCharsets.UTF_8)));
+		Measure measure = new Measure();
+		measure.setId("Measure/m");
+		measure.addLibrary("http://example.org/Library/Simple|1.0.0");
+		Patient patient = new Patient();
+		patient.setId("Patient/p1");
+		Observation observation = new Observation();
+		observation.setId("Observation/o1");
+		observation.setSubject(new Reference("Patient/p1"));
+
+		InMemoryFhirRepository repository = new InMemoryFhirRepository(myFhirContext);
+		repository.update(library);
+		repository.update(patient);
+		repository.update(observation);
+		DaoRegistry daoRegistry = mock(DaoRegistry.class);
+		when(daoRegistry.getFhirContext()).thenReturn(myFhirContext);
+		IFhirResourceDao<Measure> measureDao = mock(IFhirResourceDao.class);
+		when(daoRegistry.getResourceDao(Measure.class)).thenReturn(measureDao);
+		when(measureDao.read(any(IIdType.class), any(RequestDetails.class))).thenReturn(measure);
+		IFhirResourceDao<?> libraryDao = mock(IFhirResourceDao.class);
+		doReturn(libraryDao).when(daoRegistry).getResourceDao("Library");
+		when(libraryDao.search(any(SearchParameterMap.class), any(RequestDetails.class)))
+				.thenReturn(new SimpleBundleProvider(library));
+
+		CqlProfileProvider provider = new CqlProfileProvider(
+				daoRegistry,
+				requestDetails -> repository,
+				EvaluationSettings.getDefault(),
+				new StringTimePeriodHandler(ZoneOffset.UTC),
+				myProfiler,
+				new CqlProfilingProperties());
+
+		Parameters result = provider.profile(
+				new IdType("Measure/m"), null, null, "Patient/p1", null, null, mock(RequestDetails.class));
+
+		assertThat(((StringType) result.getParameter("measure").getValue()).getValue())
+				.isEqualTo("Measure/m");
+		assertThat(result.getParameters("expression"))
+				.extracting(expression -> expression.getPart().get(1).getValue().primitiveValue())
+				.contains("Observations", "Has Observation");
+		assertThat(result.getParameters("retrieve"))
+				.filteredOn(retrieve -> "Observation".equals(retrieve.getPart().get(0).getValue().primitiveValue()))
+				.singleElement()
+				.satisfies(retrieve -> assertThat(retrieve.getPart().get(2).getValue().primitiveValue())
+						.isEqualTo("1"));
+		assertThat(myMeterRegistry.get("cql.retrieve").tag("resource_type", "Observation").timer().count())
+				.isEqualTo(1);
+	}
+}
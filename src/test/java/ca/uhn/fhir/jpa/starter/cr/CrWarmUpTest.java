@@ -0,0 +1,86 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class CrWarmUpTest {
+
+	private static final String VALUE_SET = "http://example.org/ValueSet/diabetes";
+	private static final String CQL = "library Simple version '1.0.0'\n\n"
+			+ "using FHIR version '4.0.1'\n\n"
+			+ "valueset \"Diabetes\": '" + VALUE_SET + "'\n\n"
+			+ "define X: 1\n";
+
+	private final FhirContext myFhirContext = FhirContext.forR4Cached();
+	private final DaoRegistry myDaoRegistry = mock(DaoRegistry.class);
+	private final IFhirResourceDao<?> myMeasureDao = mock(IFhirResourceDao.class);
+	private final IFhirResourceDao<?> myLibraryDao = mock(IFhirResourceDao.class);
+
+	@Test
+	void compilesLibrariesAndExpandsValueSetsOfActiveMeasures() {
+		Library library = new Library();
+		library.setId("Library/simple");
+		library.setUrl("http://example.org/Library/Simple");
+		library.setName("Simple");
+		library.setVersion("1.0.0");
+		library.addContent(
+				new Attachment().setContentType("text/cql").setData(CQL.getBytes(StandardCharsets.UTF_8)));
+		ValueSet valueSet = new ValueSet();
+		valueSet.setId("ValueSet/diabetes");
+		valueSet.setUrl(VALUE_SET);
+		valueSet.getExpansion().addContains().setSystem("http://snomed.info/sct").setCode("44054006");
+		Measure measure = new Measure();
+		measure.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		measure.addLibrary("http://example.org/Library/Simple|1.0.0");
+
+		when(myDaoRegistry.getFhirContext()).thenReturn(myFhirContext);
+		when(myDaoRegistry.isResourceTypeSupported("Measure")).thenReturn(true);
+		doReturn(myMeasureDao).when(myDaoRegistry).getResourceDao("Measure");
+		doReturn(myLibraryDao).when(myDaoRegistry).getResourceDao("Library");
+		when(myMeasureDao.search(any(SearchParameterMap.class), any(RequestDetails.class)))
+				.thenReturn(new SimpleBundleProvider(measure));
+		when(myLibraryDao.search(any(SearchParameterMap.class), any(RequestDetails.class)))
+				.thenReturn(new SimpleBundleProvider(library));
+
+		InMemoryFhirRepository repository = new InMemoryFhirRepository(myFhirContext);
+		repository.update(library);
+		repository.update(valueSet);
+		EvaluationSettings evaluationSettings = EvaluationSettings.getDefault();
+		CqlCacheProperties cacheProperties = new CqlCacheProperties();
+		evaluationSettings.setLibraryCache(CqlCaches.libraryCache(cacheProperties, new SimpleMeterRegistry()));
+		evaluationSettings.setValueSetCache(CqlCaches.valueSetCache(cacheProperties, new SimpleMeterRegistry()));
+
+		CrWarmUp warmUp = new CrWarmUp(new CrWarmUpProperties(), myDaoRegistry, evaluationSettings, () -> repository);
+		assertThat(warmUp.isDone()).isFalse();
+		warmUp.start();
+		await().atMost(60, TimeUnit.SECONDS).until(warmUp::isDone);
+
+		assertThat(evaluationSettings.getLibraryCache())
+				.containsKey(new VersionedIdentifier().withId("Simple").withVersion("1.0.0"));
+		assertThat(evaluationSettings.getValueSetCache().keySet()).anyMatch(key -> key.startsWith(VALUE_SET));
+	}
+}
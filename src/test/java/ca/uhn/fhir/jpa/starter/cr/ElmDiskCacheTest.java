@@ -0,0 +1,150 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cqframework.cql.cql2elm.CqlCompilerOptions;
+import org.cqframework.cql.cql2elm.LibraryContentType;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ElmDiskCacheTest {
+
+	private static final VersionedIdentifier SIMPLE = new VersionedIdentifier().withId("Simple").withVersion("1.0.0");
+
+	@TempDir
+	Path myDirectory;
+
+	private final DaoRegistry myDaoRegistry = mock(DaoRegistry.class);
+	private final IFhirResourceDao<?> myLibraryDao = mock(IFhirResourceDao.class);
+	private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+	private ElmCacheProperties mySettings;
+	private ElmDiskCache myElmDiskCache;
+
+	@BeforeEach
+	void setUp() {
+		when(myDaoRegistry.getFhirContext()).thenReturn(FhirContext.forR4Cached());
+		doReturn(myLibraryDao).when(myDaoRegistry).getResourceDao("Library");
+		mySettings = new ElmCacheProperties();
+		mySettings.setEnabled(true);
+		mySettings.setDirectory(myDirectory.toString());
+		myElmDiskCache = new ElmDiskCache(mySettings, myDaoRegistry, myMeterRegistry);
+	}
+
+	@AfterEach
+	void tearDown() {
+		myElmDiskCache.shutdown();
+	}
+
+	@Test
+	void translatedLibrariesAreServedFromDiskAfterARestart() {
+		libraryInRepository("1", "define X: 1");
+		resolve(myElmDiskCache);
+		await().atMost(10, TimeUnit.SECONDS).until(() -> elmFiles() == 1);
+
+		// a new cache and empty memory caches, as after a restart
+		ElmDiskCache restarted = spy(new ElmDiskCache(mySettings, myDaoRegistry, myMeterRegistry));
+		CompiledLibrary library = resolve(restarted);
+
+		assertThat(library.resolveExpressionRef("X")).isNotNull();
+		verify(restarted, never()).getLibrarySource(any());
+		restarted.shutdown();
+	}
+
+	@Test
+	void changedCqlIsNotServedFromDisk() {
+		libraryInRepository("1", "define X: 1");
+		resolve(myElmDiskCache);
+		await().atMost(10, TimeUnit.SECONDS).until(() -> elmFiles() == 1);
+
+		libraryInRepository("2", "define Y: 2");
+		ElmDiskCache restarted = new ElmDiskCache(mySettings, myDaoRegistry, myMeterRegistry);
+
+		assertThat(restarted.getLibraryContent(SIMPLE, LibraryContentType.JSON)).isNull();
+		assertThat(resolve(restarted).resolveExpressionRef("Y")).isNotNull();
+		await().atMost(10, TimeUnit.SECONDS).until(() -> elmFiles() == 2);
+		restarted.shutdown();
+	}
+
+	@Test
+	void writesTheWriterCannotTakeAreCounted() {
+		libraryInRepository("1", "define X: 1");
+		myElmDiskCache.shutdown();
+
+		resolve(myElmDiskCache);
+
+		assertThat(myMeterRegistry.counter(ElmDiskCache.DROPPED_WRITES).count()).isEqualTo(1);
+	}
+
+	@Test
+	void warmUpLoadsRecentlyUsedLibraries() {
+		libraryInRepository("1", "define X: 1");
+		resolve(myElmDiskCache);
+		await().atMost(10, TimeUnit.SECONDS).until(() -> elmFiles() == 1);
+
+		Map<VersionedIdentifier, CompiledLibrary> libraryCache =
+				CqlCaches.libraryCache(new CqlCacheProperties(), new SimpleMeterRegistry());
+		var evaluationSettings = EvaluationSettings.getDefault();
+		evaluationSettings.setLibraryCache(libraryCache);
+		new ElmDiskCache(mySettings, myDaoRegistry, myMeterRegistry).warmUpNow(evaluationSettings);
+
+		assertThat(libraryCache).containsKey(SIMPLE);
+	}
+
+	private CompiledLibrary resolve(ElmDiskCache theElmDiskCache) {
+		Map<VersionedIdentifier, CompiledLibrary> libraryCache =
+				CqlCaches.libraryCache(new CqlCacheProperties(), new SimpleMeterRegistry());
+		CqlCaches.onStore(libraryCache, theElmDiskCache::stored);
+		LibraryManager libraryManager =
+				new LibraryManager(new ModelManager(), CqlCompilerOptions.defaultOptions(), libraryCache);
+		libraryManager.getLibrarySourceLoader().registerProvider(theElmDiskCache);
+		return libraryManager.resolveLibrary(SIMPLE);
+	}
+
+	private void libraryInRepository(String theVersionId, String theDefinition) {
+		String cql = "library Simple version '1.0.0'\n\n" + theDefinition + "\n";
+		Library library = new Library();
+		library.setId("Library/simple/_history/" + theVersionId);
+		library.setName("Simple");
+		library.setVersion("1.0.0");
+		library.addContent(
+				new Attachment().setContentType("text/cql").setData(cql.getBytes(StandardCharsets.UTF_8)));
+		when(myLibraryDao.search(any(SearchParameterMap.class), any(RequestDetails.class)))
+				.thenReturn(new SimpleBundleProvider(library));
+	}
+
+	private long elmFiles() throws Exception {
+		try (var files = Files.walk(myDirectory)) {
+			return files.filter(file -> file.toString().endsWith(".json")).count();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.cache.ResourceChangeEvent;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class IncrementalCodeCacheResourceChangeListenerTest {
+
+	private static final String URL = "http://example.org/ValueSet/diabetes";
+
+	private final DaoRegistry myDaoRegistry = mock(DaoRegistry.class);
+	private final IFhirResourceDao<?> myValueSetDao = mock(IFhirResourceDao.class);
+	private final Map<String, List<Code>> myCache = new ConcurrentHashMap<>();
+	private IncrementalCodeCacheResourceChangeListener myListener;
+
+	@BeforeEach
+	void setUp() {
+		when(myDaoRegistry.getFhirContext()).thenReturn(FhirContext.forR4Cached());
+		doReturn(myValueSetDao).when(myDaoRegistry).getResourceDao("ValueSet");
+		myListener = new IncrementalCodeCacheResourceChangeListener(myDaoRegistry, myCache);
+		myCache.put(URL, List.of(new Code().withCode("1")));
+		myCache.put(URL + "|2024", List.of(new Code().withCode("1")));
+		myCache.put(URL + "-type-2", List.of(new Code().withCode("2")));
+		myCache.put("http://example.org/ValueSet/other", List.of(new Code().withCode("3")));
+	}
+
+	@Test
+	void updateEvictsOnlyThatUrl() {
+		when(myValueSetDao.read(any(IIdType.class), any(RequestDetails.class)))
+				.thenReturn(new ValueSet().setUrl(URL));
+
+		myListener.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+				List.of(), List.of(new IdType("ValueSet/vs-1")), List.of()));
+
+		assertThat(myCache).containsOnlyKeys(URL + "-type-2", "http://example.org/ValueSet/other");
+	}
+
+	@Test
+	void deleteEvictsOnlyThatUrlInsteadOfClearing() {
+		when(myValueSetDao.read(any(IIdType.class), any(RequestDetails.class), eq(true)))
+				.thenReturn(new ValueSet().setId("ValueSet/vs-1/_history/3"));
+		when(myValueSetDao.read(
+						argThat(id -> "ValueSet/vs-1/_history/2".equals(id.getValue())), any(RequestDetails.class)))
+				.thenReturn(new ValueSet().setUrl(URL));
+
+		myListener.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+				List.of(), List.of(), List.of(new IdType("ValueSet/vs-1"))));
+
+		assertThat(myCache).containsOnlyKeys(URL + "-type-2", "http://example.org/ValueSet/other");
+	}
+
+	@Test
+	void urlChangedByTheFirstUpdateAfterInitEvictsTheFormerUrl() {
+		when(myValueSetDao.read(any(IIdType.class), any(RequestDetails.class)))
+				.thenReturn(new ValueSet().setUrl(URL));
+		myListener.handleInit(List.of(new IdType("ValueSet/vs-1")));
+		when(myValueSetDao.read(any(IIdType.class), any(RequestDetails.class)))
+				.thenReturn(new ValueSet().setUrl("http://example.org/ValueSet/renamed"));
+
+		myListener.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+				List.of(), List.of(new IdType("ValueSet/vs-1")), List.of()));
+
+		assertThat(myCache).containsOnlyKeys(URL + "-type-2", "http://example.org/ValueSet/other");
+	}
+
+	@Test
+	void deleteAfterInitEvictsTheSeededUrlWithoutReading() {
+		when(myValueSetDao.read(any(IIdType.class), any(RequestDetails.class)))
+				.thenReturn(new ValueSet().setUrl(URL));
+		myListener.handleInit(List.of(new IdType("ValueSet/vs-1")));
+
+		myListener.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+				List.of(), List.of(), List.of(new IdType("ValueSet/vs-1"))));
+
+		verify(myValueSetDao, never()).read(any(IIdType.class), any(RequestDetails.class), eq(true));
+		assertThat(myCache).containsOnlyKeys(URL + "-type-2", "http://example.org/ValueSet/other");
+	}
+
+	@Test
+	void unknownUrlClearsTheCache() {
+		when(myValueSetDao.read(any(IIdType.class), any(RequestDetails.class), eq(true)))
+				.thenThrow(new ResourceGoneException("gone"));
+
+		myListener.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+				List.of(), List.of(), List.of(new IdType("ValueSet/vs-1"))));
+
+		assertThat(myCache).isEmpty();
+	}
+}
@@ -0,0 +1,128 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.cache.ResourceChangeEvent;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.IncludeDef;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class IncrementalElmCacheResourceChangeListenerTest {
+
+	private static final IdType HELPERS_ID = new IdType("Library/helpers");
+
+	private final DaoRegistry myDaoRegistry = mock(DaoRegistry.class);
+	private final IFhirResourceDao<?> myLibraryDao = mock(IFhirResourceDao.class);
+	private final Map<VersionedIdentifier, CompiledLibrary> myCache = new ConcurrentHashMap<>();
+	private IncrementalElmCacheResourceChangeListener myListener;
+
+	@BeforeEach
+	void setUp() {
+		when(myDaoRegistry.getFhirContext()).thenReturn(FhirContext.forR4Cached());
+		doReturn(myLibraryDao).when(myDaoRegistry).getResourceDao("Library");
+		myListener = new IncrementalElmCacheResourceChangeListener(myDaoRegistry, myCache);
+		// Measure includes Common, which includes Helpers without a version
+		cache("Helpers", "1.0.0");
+		cache("Common", "2.0.0", include("Helpers", null));
+		cache("Measure", "3.0.0", include("Common", "2.0.0"));
+		cache("Other", "1.0.0");
+		readReturns(library("define X: 1"));
+		myListener.handleInit(List.of(HELPERS_ID));
+	}
+
+	@Test
+	void unchangedLogicKeepsTheCompiledLibraries() {
+		Library republished = library("define X: 1");
+		republished.setDescription("reinstalled");
+		readReturns(republished);
+
+		myListener.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+				List.of(), List.of(HELPERS_ID), List.of()));
+
+		assertThat(myCache).hasSize(4);
+	}
+
+	@Test
+	void changedLogicEvictsTheLibraryAndItsIncludersTransitively() {
+		readReturns(library("define X: 2"));
+
+		myListener.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+				List.of(), List.of(HELPERS_ID), List.of()));
+
+		assertThat(myCache).containsOnlyKeys(identifier("Other", "1.0.0"));
+	}
+
+	@Test
+	void deleteEvictsOnlyTheDependencyClosureInsteadOfClearing() {
+		myListener.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+				List.of(), List.of(), List.of(HELPERS_ID)));
+
+		assertThat(myCache).containsOnlyKeys(identifier("Other", "1.0.0"));
+	}
+
+	@Test
+	void logicHashIgnoresTheOrderOfAttachments() {
+		Library cqlFirst = library("define X: 1");
+		cqlFirst.addContent(new Attachment().setContentType("application/elm+json").setData(bytes("{}")));
+		Library elmFirst = new Library().setName("Helpers").setVersion("1.0.0");
+		elmFirst.addContent(new Attachment().setContentType("application/elm+json").setData(bytes("{}")));
+		elmFirst.addContent(new Attachment().setContentType("text/cql").setData(bytes("define X: 1")));
+
+		assertThat(myListener.logic(cqlFirst)).isEqualTo(myListener.logic(elmFirst));
+		assertThat(myListener.logic(cqlFirst)).isNotEqualTo(myListener.logic(library("define X: 1")));
+	}
+
+	private void readReturns(Library theLibrary) {
+		doReturn(theLibrary).when(myLibraryDao).read(any(IIdType.class), any(RequestDetails.class));
+		doReturn(theLibrary).when(myLibraryDao).read(any(IIdType.class), any(RequestDetails.class), anyBoolean());
+	}
+
+	private static Library library(String theCql) {
+		Library library = new Library().setName("Helpers").setVersion("1.0.0");
+		library.addContent(new Attachment().setContentType("text/cql").setData(bytes(theCql)));
+		return library;
+	}
+
+	private void cache(String theName, String theVersion, IncludeDef... theIncludes) {
+		org.hl7.elm.r1.Library elm = new org.hl7.elm.r1.Library().withIdentifier(identifier(theName, theVersion));
+		if (theIncludes.length > 0) {
+			elm.setIncludes(new org.hl7.elm.r1.Library.Includes().withDef(List.of(theIncludes)));
+		}
+		CompiledLibrary compiled = new CompiledLibrary();
+		compiled.setIdentifier(elm.getIdentifier());
+		compiled.setLibrary(elm);
+		myCache.put(elm.getIdentifier(), compiled);
+	}
+
+	private static IncludeDef include(String theName, String theVersion) {
+		return new IncludeDef().withPath(theName).withVersion(theVersion);
+	}
+
+	private static VersionedIdentifier identifier(String theName, String theVersion) {
+		return new VersionedIdentifier().withId(theName).withVersion(theVersion);
+	}
+
+	private static byte[] bytes(String theValue) {
+		return theValue.getBytes(StandardCharsets.UTF_8);
+	}
+}
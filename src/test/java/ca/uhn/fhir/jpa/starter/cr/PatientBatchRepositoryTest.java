@@ -0,0 +1,127 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.repository.IRepository;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.BundleUtil;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PatientBatchRepositoryTest {
+
+	private static final Map<String, String> COMPARTMENT = Map.of("X-FHIR-Compartment", "Patient/1");
+
+	private final FhirContext myFhirContext = FhirContext.forR4Cached();
+	private final IRepository myRepository = mock(IRepository.class);
+	private final List<Observation> myObservations = new ArrayList<>();
+	private final List<Map<String, String>> myHeaders = new ArrayList<>();
+
+	@BeforeEach
+	void setUp() {
+		for (int i = 0; i < 30; i++) {
+			Observation observation = new Observation();
+			observation.setId("Observation/o" + i);
+			observation.setSubject(new Reference("Patient/" + i % 3));
+			myObservations.add(observation);
+		}
+		when(myRepository.fhirContext()).thenReturn(myFhirContext);
+		when(myRepository.search(eq(Bundle.class), eq(Observation.class), any(Multimap.class), anyMap()))
+				.thenAnswer(invocation -> {
+					Multimap<String, List<IQueryParameterType>> parameters = invocation.getArgument(2);
+					myHeaders.add(invocation.getArgument(3));
+					Set<String> subjects = parameters.get("subject").iterator().next().stream()
+							.map(value -> value.getValueAsQueryToken())
+							.collect(Collectors.toSet());
+					Bundle bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+					myObservations.stream()
+							.filter(observation -> subjects.contains(observation.getSubject().getReference()))
+							.forEach(observation -> bundle.addEntry().setResource(observation));
+					return bundle;
+				});
+	}
+
+	@Test
+	void searchesOnceForAllPatientsOfTheBatchAndBucketsBySubject() {
+		PatientBatchRepository repository = new PatientBatchRepository(myRepository, List.of("Patient/0", "Patient/1"));
+
+		List<IBaseResource> first = search(repository, "0");
+		List<IBaseResource> second = search(repository, "1");
+
+		assertThat(first).hasSize(10).allMatch(resource -> subject(resource).equals("Patient/0"));
+		assertThat(second).hasSize(10).allMatch(resource -> subject(resource).equals("Patient/1"));
+		assertThat(repository.getBatchSearchCount()).isEqualTo(1);
+		verify(myRepository, times(1)).search(eq(Bundle.class), eq(Observation.class), any(Multimap.class), anyMap());
+		assertThat(myHeaders.get(0)).doesNotContainKey("X-FHIR-Compartment");
+	}
+
+	@Test
+	void otherFiltersAreSearchedSeparately() {
+		PatientBatchRepository repository = new PatientBatchRepository(myRepository, List.of("Patient/0", "Patient/1"));
+
+		search(repository, "0");
+		Multimap<String, List<IQueryParameterType>> parameters = parameters("1");
+		parameters.put("code", List.of(new TokenParam("http://loinc.org", "1234-5")));
+		repository.search(Bundle.class, Observation.class, parameters, COMPARTMENT);
+		search(repository, "1");
+
+		assertThat(repository.getBatchSearchCount()).isEqualTo(2);
+	}
+
+	@Test
+	void patientsOutsideTheBatchArePassedThroughAndPatientsAreReadById() {
+		PatientBatchRepository repository = new PatientBatchRepository(myRepository, List.of("Patient/0"));
+
+		assertThat(search(repository, "2")).hasSize(10);
+		Multimap<String, List<IQueryParameterType>> patients = ArrayListMultimap.create();
+		patients.put("_id", List.of(new TokenParam("0")));
+		when(myRepository.search(eq(Bundle.class), eq(Patient.class), any(Multimap.class), anyMap()))
+				.thenReturn(new Bundle()
+						.addEntry(new Bundle.BundleEntryComponent().setResource(new Patient().setId("0"))));
+		assertThat(BundleUtil.toListOfResources(
+						myFhirContext, repository.search(Bundle.class, Patient.class, patients, COMPARTMENT)))
+				.hasSize(1);
+
+		assertThat(repository.getBatchSearchCount()).isEqualTo(1);
+		assertThat(myHeaders.get(0)).containsKey("X-FHIR-Compartment");
+	}
+
+	private List<IBaseResource> search(PatientBatchRepository theRepository, String thePatient) {
+		return BundleUtil.toListOfResources(
+				myFhirContext,
+				theRepository.search(Bundle.class, Observation.class, parameters(thePatient), COMPARTMENT));
+	}
+
+	private static Multimap<String, List<IQueryParameterType>> parameters(String thePatient) {
+		Multimap<String, List<IQueryParameterType>> parameters = ArrayListMultimap.create();
+		parameters.put("subject", List.of(new ReferenceParam("Patient/" + thePatient)));
+		return parameters;
+	}
+
+	private static String subject(IBaseResource theResource) {
+		return ((Observation) theResource).getSubject().getReference();
+	}
+}
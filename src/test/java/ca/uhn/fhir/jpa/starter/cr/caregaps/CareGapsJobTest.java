@@ -0,0 +1,304 @@
+package ca.uhn.fhir.jpa.starter.cr.caregaps;
+
+import ca.uhn.fhir.batch2.api.ChunkExecutionDetails;
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.IWarningProcessor;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.batch2.model.JobDefinition;
+import ca.uhn.fhir.batch2.model.JobDefinitionStep;
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.batch2.model.JobInstanceStartRequest;
+import ca.uhn.fhir.batch2.model.WorkChunk;
+import ca.uhn.fhir.batch2.model.WorkChunkData;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.interceptor.executor.InterceptorService;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.model.DaoMethodOutcome;
+import ca.uhn.fhir.jpa.batch.models.Batch2JobStartResponse;
+import ca.uhn.fhir.jpa.partition.IRequestPartitionHelperSvc;
+import ca.uhn.fhir.model.api.IModelJson;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SimplePreResourceAccessDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.auth.PolicyEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.opencds.cqf.fhir.cr.hapi.common.StringTimePeriodHandler;
+import org.opencds.cqf.fhir.cr.hapi.r4.ICareGapsServiceFactory;
+import org.opencds.cqf.fhir.cr.measure.r4.R4CareGapsServiceInterface;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CareGapsJobTest {
+
+	private final FhirContext myFhirContext = FhirContext.forR4Cached();
+	private final DaoRegistry myDaoRegistry = mock(DaoRegistry.class);
+	private final IJobCoordinator myJobCoordinator = mock(IJobCoordinator.class);
+	private final IRequestPartitionHelperSvc myRequestPartitionHelperSvc = mock(IRequestPartitionHelperSvc.class);
+
+	@Test
+	void definitionEndsWithTheReportReducer() {
+		when(myDaoRegistry.getFhirContext()).thenReturn(myFhirContext);
+
+		JobDefinition<CareGapsJobParameters> definition =
+				CareGapsJob.definition(myDaoRegistry, mock(ICareGapsServiceFactory.class));
+
+		assertThat(definition.isGatedExecution()).isTrue();
+		assertThat(definition.getSteps())
+				.extracting(JobDefinitionStep::getStepId)
+				.containsExactly("find-patients", "evaluate-care-gaps", "assemble-report");
+		assertThat(definition.isLastStepReduction()).isTrue();
+	}
+
+	@Test
+	void splitsTheActiveMembersOfAGroupIntoChunks() {
+		Group group = new Group();
+		for (int i = 0; i < 8; i++) {
+			group.addMember().setEntity(new Reference("Patient/" + i)).setInactive(i == 7);
+		}
+		IFhirResourceDao<?> groupDao = mock(IFhirResourceDao.class);
+		doReturn(groupDao).when(myDaoRegistry).getResourceDao("Group");
+		ArgumentCaptor<RequestDetails> requestDetails = ArgumentCaptor.forClass(RequestDetails.class);
+		when(groupDao.read(any(IIdType.class), requestDetails.capture())).thenReturn(group);
+		ListSink<CareGapsSubjectsJson> sink = new ListSink<>();
+		CareGapsJobParameters parameters =
+				parameters().setSubject("Group/g").setRequestPartitionId(RequestPartitionId.fromPartitionId(7));
+
+		new CareGapsSubjectsStep(myDaoRegistry).run(details(parameters, new VoidModel()), sink);
+
+		assertThat(sink.myData)
+				.extracting(CareGapsSubjectsJson::getPatients)
+				.containsExactly(
+						List.of("Patient/0", "Patient/1", "Patient/2"),
+						List.of("Patient/3", "Patient/4", "Patient/5"),
+						List.of("Patient/6"));
+		assertThat(((SystemRequestDetails) requestDetails.getValue()).getRequestPartitionId())
+				.isEqualTo(RequestPartitionId.fromPartitionId(7));
+	}
+
+	@Test
+	void chunksAreEvaluatedAndAssembledIntoOneReport() {
+		R4CareGapsServiceInterface service = mock(R4CareGapsServiceInterface.class);
+		ICareGapsServiceFactory serviceFactory = requestDetails -> service;
+		when(service.getCareGapsReport(any(), any(), anyString(), anyList(), anyList(), anyList(), anyList(), anyBoolean()))
+				.thenAnswer(invocation -> {
+					Parameters parameters = new Parameters();
+					parameters.addParameter().setName("return").setResource(new Bundle().setId(invocation.<String>getArgument(2)));
+					return parameters;
+				});
+		when(myDaoRegistry.getFhirContext()).thenReturn(myFhirContext);
+		IFhirResourceDao<Binary> binaryDao = mock(IFhirResourceDao.class);
+		when(myDaoRegistry.getResourceDao(Binary.class)).thenReturn(binaryDao);
+		ArgumentCaptor<Binary> binary = ArgumentCaptor.forClass(Binary.class);
+		DaoMethodOutcome created = new DaoMethodOutcome();
+		created.setId(new IdType("Binary/report/_history/1"));
+		when(binaryDao.create(binary.capture(), any(RequestDetails.class))).thenReturn(created);
+
+		CareGapsEvaluateStep evaluate = new CareGapsEvaluateStep(myFhirContext, serviceFactory);
+		ListSink<CareGapsResultJson> results = new ListSink<>();
+		evaluate.run(details(parameters(), new CareGapsSubjectsJson(List.of("Patient/0", "Patient/1"))), results);
+		evaluate.run(details(parameters(), new CareGapsSubjectsJson(List.of("Patient/2"))), results);
+
+		CareGapsReportReducer reducer = (CareGapsReportReducer) new CareGapsReportReducer(myDaoRegistry).newInstance();
+		results.myData.forEach(result -> reducer.consume(new ChunkExecutionDetails<>(result, parameters(), "i", "c")));
+		ListSink<CareGapsReportJson> report = new ListSink<>();
+		reducer.run(details(parameters(), null), report);
+
+		assertThat(CareGapsJob.isReport(binary.getValue())).isTrue();
+		assertThat(report.myData).singleElement().satisfies(json -> {
+			assertThat(json.getBinaryId()).isEqualTo("Binary/report");
+			assertThat(json.getPatients()).isEqualTo(3);
+		});
+		Parameters assembled = myFhirContext
+				.newJsonParser()
+				.parseResource(Parameters.class, new String(binary.getValue().getData(), StandardCharsets.UTF_8));
+		assertThat(assembled.getParameter())
+				.extracting(parameter -> parameter.getResource().getIdElement().getIdPart())
+				.containsExactly("0", "1", "2");
+	}
+
+	@Test
+	void respondAsyncStartsAJobAndAnswersWithThePollLocation() {
+		when(myDaoRegistry.getFhirContext()).thenReturn(myFhirContext);
+		Batch2JobStartResponse started = new Batch2JobStartResponse();
+		started.setInstanceId("job-1");
+		ArgumentCaptor<JobInstanceStartRequest> startRequest = ArgumentCaptor.forClass(JobInstanceStartRequest.class);
+		when(myJobCoordinator.startInstance(any(RequestDetails.class), startRequest.capture()))
+				.thenReturn(started);
+		when(myRequestPartitionHelperSvc.determineReadPartitionForRequestForServerOperation(any(), any()))
+				.thenReturn(RequestPartitionId.fromPartitionId(7));
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		RequestDetails request = request(Constants.HEADER_PREFER_RESPOND_ASYNC);
+		when(request.getHeader(Constants.HEADER_AUTHORIZATION)).thenReturn("Bearer a");
+
+		boolean proceed = provider().startJob(request, response);
+
+		assertThat(proceed).isFalse();
+		verify(response).setStatus(202);
+		verify(response)
+				.addHeader(Constants.HEADER_CONTENT_LOCATION, "http://localhost/fhir/$care-gaps-poll-status?_jobId=job-1");
+		CareGapsJobParameters parameters = startRequest.getValue().getParameters(CareGapsJobParameters.class);
+		assertThat(parameters.getPeriodStart()).startsWith("2024-01-01T00:00");
+		assertThat(parameters.getPeriodEnd()).startsWith("2024-12-31T23:59:59");
+		assertThat(parameters.getSubject()).isEqualTo("Group/g");
+		assertThat(parameters.getStatus()).containsExactly("open-gap", "closed-gap");
+		assertThat(parameters.getChunkSize()).isEqualTo(3);
+		assertThat(parameters.getRequestPartitionId()).isEqualTo(RequestPartitionId.fromPartitionId(7));
+		assertThat(parameters.getRequester()).startsWith("authorization:").doesNotContain("Bearer");
+	}
+
+	@Test
+	void noJobIsStartedForARequestAPreHandledHookDenies() {
+		RequestDetails request = request(Constants.HEADER_PREFER_RESPOND_ASYNC);
+		InterceptorService interceptors = new InterceptorService();
+		interceptors.registerAnonymousInterceptor(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, (pointcut, params) -> {
+			throw new ForbiddenOperationException("denied");
+		});
+		when(request.getInterceptorBroadcaster()).thenReturn(interceptors);
+		when(request.getRestOperationType()).thenReturn(RestOperationTypeEnum.EXTENDED_OPERATION_TYPE);
+
+		assertThatThrownBy(() -> provider().startJob(request, mock(HttpServletResponse.class)))
+				.isInstanceOf(ForbiddenOperationException.class);
+		verify(myJobCoordinator, never()).startInstance(any(RequestDetails.class), any());
+	}
+
+	@Test
+	void requestsTheAuthorizationInterceptorFiltersAreLeftToTheCrOperation() {
+		RequestDetails request = request(Constants.HEADER_PREFER_RESPOND_ASYNC);
+		InterceptorService interceptors = new InterceptorService();
+		interceptors.registerInterceptor(new AuthorizationInterceptor(PolicyEnum.ALLOW));
+		when(request.getInterceptorBroadcaster()).thenReturn(interceptors);
+
+		assertThat(provider().startJob(request, mock(HttpServletResponse.class))).isTrue();
+		verify(myJobCoordinator, never()).startInstance(any(RequestDetails.class), any());
+	}
+
+	@Test
+	void reportsAreOnlyAccessibleToSystemRequests() {
+		Binary report = new Binary();
+		report.getMeta().addSecurity(CareGapsJob.REPORT_SECURITY_SYSTEM, CareGapsJob.REPORT_SECURITY_CODE, null);
+		SimplePreResourceAccessDetails details = new SimplePreResourceAccessDetails(List.of(report, new Binary()));
+
+		provider().hideReports(details, new SystemRequestDetails());
+		assertThat(details.isDontReturnResourceAtIndex(0)).isFalse();
+
+		provider().hideReports(details, mock(ServletRequestDetails.class));
+		assertThat(details.isDontReturnResourceAtIndex(0)).isTrue();
+		assertThat(details.isDontReturnResourceAtIndex(1)).isFalse();
+		assertThatThrownBy(() -> provider().protectReportFromDelete(report, mock(ServletRequestDetails.class)))
+				.isInstanceOf(ForbiddenOperationException.class);
+	}
+
+	@Test
+	void onlyTheRequesterCanPollTheJob() {
+		JobInstance instance = new JobInstance();
+		instance.setInstanceId("job-1");
+		instance.setJobDefinitionId(CareGapsJob.JOB_DEFINITION_ID);
+		instance.setParameters(parameters().setRequester("user:alice"));
+		when(myJobCoordinator.getInstance("job-1")).thenReturn(instance);
+		ServletRequestDetails request = mock(ServletRequestDetails.class);
+		HttpServletRequest servletRequest = mock(HttpServletRequest.class);
+		when(request.getServletRequest()).thenReturn(servletRequest);
+		when(servletRequest.getUserPrincipal()).thenReturn(() -> "mallory");
+
+		assertThatThrownBy(() -> provider().pollStatus(new StringType("job-1"), request))
+				.isInstanceOf(ForbiddenOperationException.class);
+	}
+
+	@Test
+	void requestsWithoutRespondAsyncAreLeftToTheCrOperation() {
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		assertThat(provider().startJob(request(null), response)).isTrue();
+		verify(myJobCoordinator, never()).startInstance(any(RequestDetails.class), any());
+	}
+
+	private CareGapsAsyncProvider provider() {
+		return new CareGapsAsyncProvider(
+				myJobCoordinator,
+				myDaoRegistry,
+				myRequestPartitionHelperSvc,
+				new StringTimePeriodHandler(ZoneOffset.UTC),
+				3);
+	}
+
+	private static RequestDetails request(String thePrefer) {
+		RequestDetails request = mock(RequestDetails.class);
+		when(request.getOperation()).thenReturn("$care-gaps");
+		when(request.getResourceName()).thenReturn("Measure");
+		when(request.getHeader(Constants.HEADER_PREFER)).thenReturn(thePrefer);
+		when(request.getFhirServerBase()).thenReturn("http://localhost/fhir");
+		when(request.getParameters())
+				.thenReturn(Map.of(
+						"periodStart", new String[] {"2024-01-01"},
+						"periodEnd", new String[] {"2024-12-31"},
+						"subject", new String[] {"Group/g"},
+						"status", new String[] {"open-gap", "closed-gap"}));
+		return request;
+	}
+
+	private static CareGapsJobParameters parameters() {
+		return new CareGapsJobParameters()
+				.setPeriodStart("2024-01-01T00:00:00Z")
+				.setPeriodEnd("2024-12-31T23:59:59Z")
+				.setChunkSize(3);
+	}
+
+	private static <T extends IModelJson> StepExecutionDetails<CareGapsJobParameters, T> details(
+			CareGapsJobParameters theParameters, T theData) {
+		JobInstance instance = new JobInstance();
+		instance.setInstanceId("i");
+		return new StepExecutionDetails<>(theParameters, theData, instance, new WorkChunk());
+	}
+
+	private static class ListSink<T extends IModelJson> implements IJobDataSink<T> {
+		private final List<T> myData = new ArrayList<>();
+
+		@Override
+		public void accept(WorkChunkData<T> theData) {
+			myData.add(theData.getData());
+		}
+
+		@Override
+		public void recoveredError(String theMessage) {}
+
+		@Override
+		public void setWarningProcessor(IWarningProcessor theWarningProcessor) {}
+	}
+}
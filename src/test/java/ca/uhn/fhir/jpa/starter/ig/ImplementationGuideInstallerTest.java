@@ -0,0 +1,226 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.TransactionProcessor;
+import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
+import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
+import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ImplementationGuideInstallerTest {
+
+	private final FhirContext myFhirContext = FhirContext.forR4Cached();
+	private final IPackageInstallerSvc myPackageInstallerSvc = mock(IPackageInstallerSvc.class);
+	private final IHapiPackageCacheManager myPackageCacheManager = mock(IHapiPackageCacheManager.class);
+	private final TransactionProcessor myTransactionProcessor = mock(TransactionProcessor.class);
+
+	@Test
+	void guidesAreInstalledAfterTheGuidesTheyDependOn() {
+		ImplementationGuideInstaller.Guide base = guide("base", false);
+		ImplementationGuideInstaller.Guide derived = guide("derived", false, "base", "other.dependency");
+		ImplementationGuideInstaller.Guide unrelated = guide("unrelated", false);
+
+		assertThat(ImplementationGuideInstaller.waves(List.of(derived, base, unrelated)))
+				.containsExactly(List.of(base, unrelated), List.of(derived));
+	}
+
+	@Test
+	void guidesInstallingTheSameDependencyAreNotInstalledConcurrently() {
+		ImplementationGuideInstaller.Guide first = guide("first", true, "shared");
+		ImplementationGuideInstaller.Guide second = guide("second", true, "shared");
+		ImplementationGuideInstaller.Guide storedOnly = guide("stored.only", false, "shared");
+
+		assertThat(ImplementationGuideInstaller.waves(List.of(first, second, storedOnly)))
+				.containsExactly(List.of(first, storedOnly), List.of(second));
+	}
+
+	@Test
+	void packagesAreLoadedOnceAndAdditionalResourcesStoredInBatches(@TempDir Path theFolder) throws Exception {
+		Files.createDirectories(theFolder.resolve("package"));
+		Files.writeString(
+				theFolder.resolve("package/package.json"), "{\"name\":\"with.examples\",\"version\":\"1.0.0\"}");
+		Files.createDirectories(theFolder.resolve("example"));
+		for (int i = 0; i < 5; i++) {
+			Files.writeString(
+					theFolder.resolve("example/Patient-" + i + ".json"),
+					"{\"resourceType\":\"Patient\",\"id\":\"p" + i + "\"}");
+		}
+		NpmPackage npmPackage = NpmPackage.fromFolder(theFolder.toString());
+		when(myPackageCacheManager.loadPackage("with.examples", "1.0.0")).thenReturn(npmPackage);
+		ExtendedPackageInstallationSpec spec = spec("with.examples");
+		spec.setAdditionalResourceFolders(Set.of("package/example"));
+
+		installer(null, false).install(List.of(spec));
+
+		verify(myPackageCacheManager, times(1)).loadPackage("with.examples", "1.0.0");
+		verify(myPackageCacheManager, never()).loadPackageContents(anyString(), anyString());
+		verify(myPackageInstallerSvc).install(spec);
+		ArgumentCaptor<IBaseBundle> transactions = ArgumentCaptor.forClass(IBaseBundle.class);
+		verify(myTransactionProcessor, times(3))
+				.transaction(any(RequestDetails.class), transactions.capture(), eq(false));
+		assertThat(transactions.getAllValues())
+				.extracting(transaction -> ((Bundle) transaction).getEntry().size())
+				.containsExactly(2, 2, 1);
+	}
+
+	@Test
+	void dependenciesAreLoadedOnTheCallingThread(@TempDir Path theFolder) throws Exception {
+		List<String> threads = new CopyOnWriteArrayList<>();
+		for (String name : List.of("first", "second")) {
+			when(myPackageCacheManager.loadPackage(name, "1.0.0"))
+					.thenReturn(npmPackage(theFolder.resolve(name), name, "\"shared\":\"1.0.0\""));
+		}
+		NpmPackage shared = npmPackage(theFolder.resolve("shared"), "shared", "");
+		when(myPackageCacheManager.loadPackage("shared", "1.0.0")).thenAnswer(invocation -> {
+			threads.add(Thread.currentThread().getName());
+			return shared;
+		});
+		ExtendedPackageInstallationSpec first = spec("first");
+		first.setFetchDependencies(true);
+		ExtendedPackageInstallationSpec second = spec("second");
+		second.setFetchDependencies(true);
+
+		installer(null, false).install(List.of(first, second));
+
+		assertThat(threads).containsExactly(Thread.currentThread().getName(), Thread.currentThread().getName());
+		verify(myPackageInstallerSvc).install(first);
+		verify(myPackageInstallerSvc).install(second);
+	}
+
+	@Test
+	void unchangedPackagesAreSkippedUnlessReinstallIsForced(@TempDir Path theFolder) throws Exception {
+		Files.createDirectories(theFolder.resolve("package"));
+		Files.writeString(
+				theFolder.resolve("package/package.json"), "{\"name\":\"stable\",\"version\":\"1.0.0\"}");
+		when(myPackageCacheManager.loadPackage("stable", "1.0.0"))
+				.thenReturn(NpmPackage.fromFolder(theFolder.toString()));
+		DaoRegistry daoRegistry = mock(DaoRegistry.class);
+		when(daoRegistry.getFhirContext()).thenReturn(myFhirContext);
+		IFhirResourceDao<Binary> binaryDao = mock(IFhirResourceDao.class);
+		doReturn(binaryDao).when(daoRegistry).getResourceDao("Binary");
+		when(binaryDao.read(any(IIdType.class), any(RequestDetails.class)))
+				.thenThrow(new ResourceNotFoundException("Binary/ig-install-fingerprints"));
+		ExtendedPackageInstallationSpec spec = spec("stable");
+
+		installer(new ImplementationGuideFingerprints(daoRegistry), false).install(List.of(spec));
+
+		ArgumentCaptor<Binary> stored = ArgumentCaptor.forClass(Binary.class);
+		verify(binaryDao).update(stored.capture(), any(RequestDetails.class));
+		when(binaryDao.read(any(IIdType.class), any(RequestDetails.class))).thenReturn(stored.getValue());
+
+		installer(new ImplementationGuideFingerprints(daoRegistry), false).install(List.of(spec));
+		verify(myPackageInstallerSvc, times(1)).install(spec);
+
+		installer(new ImplementationGuideFingerprints(daoRegistry), true).install(List.of(spec));
+		verify(myPackageInstallerSvc, times(2)).install(spec);
+	}
+
+	@Test
+	void changedInstallOptionsChangeTheFingerprint(@TempDir Path theFolder) throws Exception {
+		NpmPackage npmPackage = npmPackage(theFolder, "stable", "");
+		ExtendedPackageInstallationSpec spec = spec("stable");
+		spec.setInstallResourceTypes(List.of("StructureDefinition", "ValueSet"));
+		spec.setDependencyExcludes(List.of("hl7.fhir.r4.core"));
+		ImplementationGuideFingerprints.Fingerprint fingerprint = ImplementationGuideFingerprints.of(spec, npmPackage);
+
+		spec.setInstallResourceTypes(List.of("ValueSet", "StructureDefinition"));
+		assertThat(ImplementationGuideFingerprints.of(spec, npmPackage)).isEqualTo(fingerprint);
+
+		spec.setInstallResourceTypes(List.of("StructureDefinition"));
+		assertThat(ImplementationGuideFingerprints.of(spec, npmPackage)).isNotEqualTo(fingerprint);
+		spec.setInstallResourceTypes(List.of("StructureDefinition", "ValueSet"));
+
+		spec.setDependencyExcludes(List.of());
+		assertThat(ImplementationGuideFingerprints.of(spec, npmPackage)).isNotEqualTo(fingerprint);
+		spec.setDependencyExcludes(List.of("hl7.fhir.r4.core"));
+
+		spec.setFetchDependencies(!spec.isFetchDependencies());
+		assertThat(ImplementationGuideFingerprints.of(spec, npmPackage)).isNotEqualTo(fingerprint);
+		spec.setFetchDependencies(!spec.isFetchDependencies());
+
+		spec.setReloadExisting(!spec.isReloadExisting());
+		assertThat(ImplementationGuideFingerprints.of(spec, npmPackage)).isNotEqualTo(fingerprint);
+	}
+
+	@Test
+	void guidesAreInstalledWhenBinaryIsNotSupported(@TempDir Path theFolder) throws Exception {
+		Files.createDirectories(theFolder.resolve("package"));
+		Files.writeString(
+				theFolder.resolve("package/package.json"), "{\"name\":\"stable\",\"version\":\"1.0.0\"}");
+		when(myPackageCacheManager.loadPackage("stable", "1.0.0"))
+				.thenReturn(NpmPackage.fromFolder(theFolder.toString()));
+		DaoRegistry daoRegistry = mock(DaoRegistry.class);
+		when(daoRegistry.getFhirContext()).thenReturn(myFhirContext);
+		when(daoRegistry.getResourceDao("Binary")).thenThrow(new InvalidRequestException("Binary is not supported"));
+		ExtendedPackageInstallationSpec spec = spec("stable");
+
+		installer(new ImplementationGuideFingerprints(daoRegistry), false).install(List.of(spec));
+
+		verify(myPackageInstallerSvc).install(spec);
+	}
+
+	private ImplementationGuideInstaller installer(
+			ImplementationGuideFingerprints theFingerprints, boolean theForceReinstall) {
+		return new ImplementationGuideInstaller(
+				myPackageInstallerSvc,
+				myPackageCacheManager,
+				myTransactionProcessor,
+				myFhirContext,
+				2,
+				2,
+				theFingerprints,
+				theForceReinstall);
+	}
+
+	private static NpmPackage npmPackage(Path theFolder, String theName, String theDependencies) throws Exception {
+		Files.createDirectories(theFolder.resolve("package"));
+		Files.writeString(
+				theFolder.resolve("package/package.json"),
+				"{\"name\":\"" + theName + "\",\"version\":\"1.0.0\",\"dependencies\":{" + theDependencies + "}}");
+		return NpmPackage.fromFolder(theFolder.toString());
+	}
+
+	private static ImplementationGuideInstaller.Guide guide(
+			String theName, boolean theFetchDependencies, String... theDependencies) {
+		ExtendedPackageInstallationSpec spec = spec(theName);
+		spec.setFetchDependencies(theFetchDependencies);
+		return new ImplementationGuideInstaller.Guide(spec, mock(NpmPackage.class), Set.of(theDependencies));
+	}
+
+	private static ExtendedPackageInstallationSpec spec(String theName) {
+		ExtendedPackageInstallationSpec spec = new ExtendedPackageInstallationSpec();
+		spec.setName(theName);
+		spec.setVersion("1.0.0");
+		spec.setInstallMode(PackageInstallationSpec.InstallModeEnum.STORE_AND_INSTALL);
+		return spec;
+	}
+}
@@ -0,0 +1,111 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.Application;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Boots the server with two configured guides, one depending on the other, installed by more than one thread.
+ */
+@ActiveProfiles("test")
+@SpringBootTest(
+		webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		classes = {Application.class},
+		properties = {
+			"spring.datasource.url=jdbc:h2:mem:dbr4-ig",
+			"spring.jpa.properties.hibernate.search.backend.directory.type=local-heap",
+			"hapi.fhir.fhir_version=r4",
+			"hapi.fhir.cr.enabled=false",
+			"hapi.fhir.ig_install_threads=4"
+		})
+class ImplementationGuideStartupIT {
+
+	@LocalServerPort
+	private int myPort;
+
+	private IGenericClient myClient;
+
+	@DynamicPropertySource
+	static void implementationGuides(DynamicPropertyRegistry theRegistry) throws IOException {
+		Path folder = Files.createTempDirectory("ig-startup-it");
+		guide(theRegistry, folder, "base", null);
+		guide(theRegistry, folder, "derived", "example.base");
+	}
+
+	@BeforeEach
+	void setUp() {
+		FhirContext fhirContext = FhirContext.forR4Cached();
+		fhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		myClient = fhirContext.newRestfulGenericClient("http://localhost:" + myPort + "/fhir/");
+	}
+
+	@Test
+	void configuredGuidesAreInstalledAtStartup() {
+		Bundle codeSystems = myClient.search()
+				.forResource(CodeSystem.class)
+				.where(CodeSystem.URL
+						.matches()
+						.values("http://example.org/CodeSystem/base", "http://example.org/CodeSystem/derived"))
+				.returnBundle(Bundle.class)
+				.execute();
+
+		assertThat(codeSystems.getEntry())
+				.extracting(entry -> ((CodeSystem) entry.getResource()).getUrl())
+				.containsExactlyInAnyOrder("http://example.org/CodeSystem/base", "http://example.org/CodeSystem/derived");
+	}
+
+	private static void guide(DynamicPropertyRegistry theRegistry, Path theFolder, String theName, String theDependency)
+			throws IOException {
+		String name = "example." + theName;
+		Path file = theFolder.resolve(name + ".tgz");
+		try (OutputStream out = Files.newOutputStream(file);
+				TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(out))) {
+			entry(
+					tar,
+					"package/package.json",
+					"{\"name\":\"" + name + "\",\"version\":\"1.0.0\",\"fhirVersions\":[\"4.0.1\"],\"dependencies\":{"
+							+ (theDependency == null ? "" : "\"" + theDependency + "\":\"1.0.0\"") + "}}");
+			entry(
+					tar,
+					"package/CodeSystem-" + theName + ".json",
+					"{\"resourceType\":\"CodeSystem\",\"id\":\"" + theName + "\",\"url\":\"http://example.org/CodeSystem/"
+							+ theName + "\",\"version\":\"1.0.0\",\"status\":\"active\",\"content\":\"complete\","
+							+ "\"concept\":[{\"code\":\"a\"}]}");
+		}
+		String prefix = "hapi.fhir.implementationguides." + theName + ".";
+		theRegistry.add(prefix + "name", () -> name);
+		theRegistry.add(prefix + "version", () -> "1.0.0");
+		theRegistry.add(prefix + "packageUrl", () -> file.toUri().toString());
+		theRegistry.add(prefix + "installMode", () -> "STORE_AND_INSTALL");
+	}
+
+	private static void entry(TarArchiveOutputStream theTar, String theName, String theContent) throws IOException {
+		byte[] content = theContent.getBytes(StandardCharsets.UTF_8);
+		TarArchiveEntry entry = new TarArchiveEntry(theName);
+		entry.setSize(content.length);
+		theTar.putArchiveEntry(entry);
+		theTar.write(content);
+		theTar.closeArchiveEntry();
+	}
+}
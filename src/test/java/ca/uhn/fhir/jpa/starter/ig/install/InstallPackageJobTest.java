@@ -0,0 +1,456 @@
+package ca.uhn.fhir.jpa.starter.ig.install;
+
+import ca.uhn.fhir.batch2.api.ChunkExecutionDetails;
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.api.IJobDataSink;
+import ca.uhn.fhir.batch2.api.IWarningProcessor;
+import ca.uhn.fhir.batch2.api.JobExecutionFailedException;
+import ca.uhn.fhir.batch2.api.StepExecutionDetails;
+import ca.uhn.fhir.batch2.api.VoidModel;
+import ca.uhn.fhir.batch2.model.JobDefinition;
+import ca.uhn.fhir.batch2.model.JobDefinitionStep;
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.batch2.model.JobInstanceStartRequest;
+import ca.uhn.fhir.batch2.model.WorkChunk;
+import ca.uhn.fhir.batch2.model.WorkChunkData;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.interceptor.executor.InterceptorService;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.batch.models.Batch2JobStartResponse;
+import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
+import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
+import ca.uhn.fhir.jpa.packages.PackageInstallOutcomeJson;
+import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+import ca.uhn.fhir.jpa.partition.IRequestPartitionHelperSvc;
+import ca.uhn.fhir.jpa.starter.validation.ValidationOutcomeCache;
+import ca.uhn.fhir.model.api.IModelJson;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.auth.PolicyEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.JsonUtil;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.hl7.fhir.r4.model.Base64BinaryType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class InstallPackageJobTest {
+
+	private final FhirContext myFhirContext = FhirContext.forR4Cached();
+	private final IJobCoordinator myJobCoordinator = mock(IJobCoordinator.class);
+	private final IHapiPackageCacheManager myPackageCacheManager = mock(IHapiPackageCacheManager.class);
+	private final IPackageInstallerSvc myPackageInstallerSvc = mock(IPackageInstallerSvc.class);
+	private final IValidationSupport myValidationSupport = mock(IValidationSupport.class);
+	private final IRequestPartitionHelperSvc myRequestPartitionHelperSvc = mock(IRequestPartitionHelperSvc.class);
+	private final ValidationOutcomeCache myValidationOutcomeCache = mock(ValidationOutcomeCache.class);
+
+	@TempDir
+	private Path mySpoolDirectory;
+
+	@Test
+	void definitionStoresThenInstallsThenReports() {
+		JobDefinition<InstallPackageJobParameters> definition = InstallPackageJob.definition(
+				mock(DaoRegistry.class),
+				myPackageCacheManager,
+				myPackageInstallerSvc,
+				myValidationSupport,
+				myValidationOutcomeCache);
+
+		assertThat(definition.getSteps())
+				.extracting(JobDefinitionStep::getStepId)
+				.containsExactly("store-package", "install-resources", "report");
+		assertThat(definition.isLastStepReduction()).isTrue();
+	}
+
+	@Test
+	void gzipUploadIsSpooledToAFileAndInstalledAsAJob() throws Exception {
+		Batch2JobStartResponse started = new Batch2JobStartResponse();
+		started.setInstanceId("job-1");
+		ArgumentCaptor<JobInstanceStartRequest> startRequest = ArgumentCaptor.forClass(JobInstanceStartRequest.class);
+		when(myJobCoordinator.startInstance(any(RequestDetails.class), startRequest.capture()))
+				.thenReturn(started);
+		MockHttpServletRequest servletRequest =
+				new MockHttpServletRequest("POST", "/fhir/ImplementationGuide/$install");
+		byte[] tgz = tgz("example.ig", "1.2.3", (String[]) null);
+		servletRequest.setContent(tgz);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		when(myRequestPartitionHelperSvc.determineReadPartitionForRequestForServerOperation(any(), any()))
+				.thenReturn(RequestPartitionId.fromPartitionId(1));
+
+		boolean proceed = provider().startJob(request("application/gzip", Map.of()), servletRequest, response);
+
+		assertThat(proceed).isFalse();
+		verify(response).setStatus(202);
+		verify(response)
+				.addHeader(
+						Constants.HEADER_CONTENT_LOCATION,
+						"http://localhost/fhir/ImplementationGuide/$install-poll-status?_jobId=job-1");
+		InstallPackageJobParameters parameters =
+				startRequest.getValue().getParameters(InstallPackageJobParameters.class);
+		Path spooled = Path.of(parameters.getPackageFile());
+		assertThat(spooled).hasParent(mySpoolDirectory).hasBinaryContent(tgz);
+		assertThat(parameters.getRequestPartitionId()).isEqualTo(RequestPartitionId.fromPartitionId(1));
+		assertThat(InstallPackageJob.requestDetails(parameters).getRequestPartitionId())
+				.isEqualTo(RequestPartitionId.fromPartitionId(1));
+
+		ListSink<InstallPackageJson> sink = new ListSink<>();
+		new InstallPackageStoreStep(mock(DaoRegistry.class), myPackageCacheManager)
+				.run(details(parameters, new VoidModel()), sink);
+
+		ArgumentCaptor<PackageInstallationSpec> stored = ArgumentCaptor.forClass(PackageInstallationSpec.class);
+		verify(myPackageCacheManager).installPackage(stored.capture());
+		assertThat(stored.getValue().getName()).isEqualTo("example.ig");
+		assertThat(stored.getValue().getVersion()).isEqualTo("1.2.3");
+		assertThat(stored.getValue().getPackageUrl()).isEqualTo(spooled.toUri().toString());
+		assertThat(stored.getValue().getPackageContents()).isNull();
+		assertThat(spooled).doesNotExist();
+		assertThat(sink.myData).singleElement().satisfies(chunk -> {
+			assertThat(chunk.getName()).isEqualTo("example.ig");
+			assertThat(chunk.getResourceTypes()).isEmpty();
+		});
+	}
+
+	@Test
+	void noUploadIsSpooledForARequestTheAuthorizationInterceptorDenies() throws Exception {
+		RequestDetails request = request("application/gzip", Map.of());
+		InterceptorService interceptors = new InterceptorService();
+		interceptors.registerInterceptor(new AuthorizationInterceptor(PolicyEnum.DENY));
+		when(request.getInterceptorBroadcaster()).thenReturn(interceptors);
+		when(request.getRestOperationType()).thenReturn(RestOperationTypeEnum.EXTENDED_OPERATION_TYPE);
+		when(request.getFhirContext()).thenReturn(myFhirContext);
+		MockHttpServletRequest servletRequest = new MockHttpServletRequest();
+		servletRequest.setContent(tgz("example.ig", "1.2.3", (String[]) null));
+
+		assertThatThrownBy(() -> provider().startJob(request, servletRequest, mock(HttpServletResponse.class)))
+				.isInstanceOf(ForbiddenOperationException.class);
+		assertThat(mySpoolDirectory).isEmptyDirectory();
+		verify(myJobCoordinator, never()).startInstance(any(RequestDetails.class), any());
+	}
+
+	@Test
+	void uploadsLargerThanTheMaximumAreRejectedAndNotKept() throws Exception {
+		MockHttpServletRequest servletRequest = new MockHttpServletRequest();
+		servletRequest.setContent(new byte[1025]);
+		InstallPackageAsyncProvider provider = new InstallPackageAsyncProvider(
+				myJobCoordinator, myFhirContext, myRequestPartitionHelperSvc, mySpoolDirectory, 1024);
+
+		assertThatThrownBy(() -> provider.startJob(
+						request("application/gzip", Map.of()), servletRequest, mock(HttpServletResponse.class)))
+				.isInstanceOf(PayloadTooLargeException.class);
+		assertThat(mySpoolDirectory).isEmptyDirectory();
+
+		// without a content length, the upload is cut off as it is spooled
+		HttpServletRequest chunked = mock(HttpServletRequest.class);
+		when(chunked.getContentLengthLong()).thenReturn(-1L);
+		when(chunked.getInputStream()).thenReturn(servletRequest.getInputStream());
+		assertThatThrownBy(() -> provider.startJob(
+						request("application/gzip", Map.of()), chunked, mock(HttpServletResponse.class)))
+				.isInstanceOf(PayloadTooLargeException.class);
+		assertThat(mySpoolDirectory).isEmptyDirectory();
+		verify(myJobCoordinator, never()).startInstance(any(RequestDetails.class), any());
+	}
+
+	@Test
+	void theSpooledUploadIsDeletedWhenTheJobCannotBeStarted() throws Exception {
+		when(myJobCoordinator.startInstance(any(RequestDetails.class), any()))
+				.thenThrow(new IllegalStateException("no job definition"));
+		MockHttpServletRequest servletRequest = new MockHttpServletRequest();
+		servletRequest.setContent(tgz("example.ig", "1.2.3", (String[]) null));
+
+		RequestDetails request = request("application/gzip", Map.of());
+
+		assertThatThrownBy(() -> provider().startJob(request, servletRequest, mock(HttpServletResponse.class)))
+				.isInstanceOf(IllegalStateException.class);
+		assertThat(mySpoolDirectory).isEmptyDirectory();
+	}
+
+	@Test
+	void theSpooledUploadIsDeletedWhenItCannotBeStored() throws Exception {
+		Path spooled = mySpoolDirectory.resolve("broken.tgz");
+		Files.write(spooled, "not a tarball".getBytes(StandardCharsets.UTF_8));
+
+		assertThatThrownBy(() -> new InstallPackageStoreStep(mock(DaoRegistry.class), myPackageCacheManager)
+						.run(
+								details(
+										new InstallPackageJobParameters().setPackageFile(spooled.toString()),
+										new VoidModel()),
+								new ListSink<>()))
+				.isInstanceOf(JobExecutionFailedException.class);
+		assertThat(spooled).doesNotExist();
+	}
+
+	@Test
+	void onlyTheRequesterCanPollTheJob() {
+		JobInstance instance = new JobInstance();
+		instance.setInstanceId("job-1");
+		instance.setJobDefinitionId(InstallPackageJob.JOB_DEFINITION_ID);
+		instance.setParameters(new InstallPackageJobParameters().setRequester("user:alice"));
+		when(myJobCoordinator.getInstance("job-1")).thenReturn(instance);
+		ServletRequestDetails request = mock(ServletRequestDetails.class);
+		HttpServletRequest servletRequest = mock(HttpServletRequest.class);
+		when(request.getServletRequest()).thenReturn(servletRequest);
+		when(servletRequest.getUserPrincipal()).thenReturn(() -> "mallory");
+
+		assertThatThrownBy(() -> provider().pollStatus(new StringType("job-1"), request))
+				.isInstanceOf(ForbiddenOperationException.class);
+	}
+
+	@Test
+	void indexedPackagesAreInstalledInTheDefaultInstallOrder() throws Exception {
+		Path spooled = mySpoolDirectory.resolve("indexed.tgz");
+		Files.write(
+				spooled, tgz("indexed.ig", "1.0.0", "ValueSet", "Patient", "StructureDefinition", "CodeSystem"));
+		ListSink<InstallPackageJson> sink = new ListSink<>();
+
+		new InstallPackageStoreStep(mock(DaoRegistry.class), myPackageCacheManager)
+				.run(details(new InstallPackageJobParameters().setPackageFile(spooled.toString()), new VoidModel()), sink);
+
+		assertThat(sink.myData)
+				.extracting(InstallPackageJson::getResourceTypes)
+				.containsExactly(List.of("CodeSystem", "ValueSet", "StructureDefinition"));
+	}
+
+	@Test
+	void respondAsyncInstallDecodesTheNpmContentToASpooledFile() throws Exception {
+		Batch2JobStartResponse started = new Batch2JobStartResponse();
+		started.setInstanceId("job-2");
+		ArgumentCaptor<JobInstanceStartRequest> startRequest = ArgumentCaptor.forClass(JobInstanceStartRequest.class);
+		when(myJobCoordinator.startInstance(any(RequestDetails.class), startRequest.capture()))
+				.thenReturn(started);
+		byte[] tgz = tgz("example.ig", "1.2.3", (String[]) null);
+		Parameters body = new Parameters();
+		body.addParameter().setName("npmContent").setValue(new Base64BinaryType(tgz));
+		RequestDetails request = request(Constants.CT_FHIR_JSON_NEW, Map.of());
+		when(request.getHeader(Constants.HEADER_PREFER)).thenReturn(Constants.HEADER_PREFER_RESPOND_ASYNC);
+		when(request.loadRequestContents())
+				.thenReturn(myFhirContext.newJsonParser().encodeResourceToString(body).getBytes(StandardCharsets.UTF_8));
+
+		boolean proceed = provider().startJob(request, new MockHttpServletRequest(), mock(HttpServletResponse.class));
+
+		assertThat(proceed).isFalse();
+		assertThat(startRequest.getValue().getJobDefinitionId()).isEqualTo(InstallPackageJob.JOB_DEFINITION_ID);
+		assertThat(Path.of(startRequest.getValue()
+						.getParameters(InstallPackageJobParameters.class)
+						.getPackageFile()))
+				.hasBinaryContent(tgz);
+	}
+
+	@Test
+	void respondAsyncUninstallRunsAsAJob() throws Exception {
+		Batch2JobStartResponse started = new Batch2JobStartResponse();
+		started.setInstanceId("job-3");
+		ArgumentCaptor<JobInstanceStartRequest> startRequest = ArgumentCaptor.forClass(JobInstanceStartRequest.class);
+		when(myJobCoordinator.startInstance(any(RequestDetails.class), startRequest.capture()))
+				.thenReturn(started);
+		RequestDetails request =
+				request(null, Map.of("name", new String[] {"example.ig"}, "version", new String[] {"1.2.3"}));
+		when(request.getOperation()).thenReturn("$uninstall");
+		when(request.getHeader(Constants.HEADER_PREFER)).thenReturn(Constants.HEADER_PREFER_RESPOND_ASYNC);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		boolean proceed = provider().startJob(request, new MockHttpServletRequest(), response);
+
+		assertThat(proceed).isFalse();
+		verify(response)
+				.addHeader(
+						Constants.HEADER_CONTENT_LOCATION,
+						"http://localhost/fhir/ImplementationGuide/$uninstall-poll-status?_jobId=job-3");
+		UninstallPackageJobParameters parameters =
+				startRequest.getValue().getParameters(UninstallPackageJobParameters.class);
+		assertThat(parameters.getName()).isEqualTo("example.ig");
+		assertThat(parameters.getVersion()).isEqualTo("1.2.3");
+
+		ListSink<InstallPackageJson> uninstalledPackage = new ListSink<>();
+		new UninstallPackageStep(myPackageInstallerSvc).run(details(parameters, new VoidModel()), uninstalledPackage);
+		new UninstallPackageRefreshStep(myValidationSupport, myValidationOutcomeCache)
+				.run(details(parameters, uninstalledPackage.myData.get(0)), new ListSink<>());
+
+		ArgumentCaptor<PackageInstallationSpec> uninstalled = ArgumentCaptor.forClass(PackageInstallationSpec.class);
+		verify(myPackageInstallerSvc).uninstall(uninstalled.capture());
+		assertThat(uninstalled.getValue().getName()).isEqualTo("example.ig");
+		verify(myValidationSupport).invalidateCaches();
+		verify(myValidationOutcomeCache).invalidate();
+	}
+
+	@Test
+	void getRequestsAreLeftToTheSynchronousOperation() throws Exception {
+		RequestDetails request = request("application/gzip", Map.of());
+		when(request.getRequestType()).thenReturn(RequestTypeEnum.GET);
+
+		boolean proceed =
+				provider().startJob(request, new MockHttpServletRequest(), mock(HttpServletResponse.class));
+
+		assertThat(proceed).isTrue();
+		assertThat(mySpoolDirectory).isEmptyDirectory();
+		verify(myJobCoordinator, never()).startInstance(any(RequestDetails.class), any());
+	}
+
+	@Test
+	void noUninstallJobIsStartedForARequestTheAuthorizationInterceptorDenies() {
+		RequestDetails request =
+				request(null, Map.of("name", new String[] {"example.ig"}, "version", new String[] {"1.2.3"}));
+		when(request.getOperation()).thenReturn("$uninstall");
+		when(request.getHeader(Constants.HEADER_PREFER)).thenReturn(Constants.HEADER_PREFER_RESPOND_ASYNC);
+		InterceptorService interceptors = new InterceptorService();
+		interceptors.registerInterceptor(new AuthorizationInterceptor(PolicyEnum.DENY));
+		when(request.getInterceptorBroadcaster()).thenReturn(interceptors);
+		when(request.getRestOperationType()).thenReturn(RestOperationTypeEnum.EXTENDED_OPERATION_TYPE);
+		when(request.getFhirContext()).thenReturn(myFhirContext);
+
+		assertThatThrownBy(() ->
+						provider().startJob(request, new MockHttpServletRequest(), mock(HttpServletResponse.class)))
+				.isInstanceOf(ForbiddenOperationException.class);
+		verify(myJobCoordinator, never()).startInstance(any(RequestDetails.class), any());
+	}
+
+	@Test
+	void fhirRequestsAreLeftToTheSynchronousOperation() throws Exception {
+		boolean proceed = provider()
+				.startJob(
+						request(Constants.CT_FHIR_JSON_NEW, Map.of()),
+						new MockHttpServletRequest(),
+						mock(HttpServletResponse.class));
+
+		assertThat(proceed).isTrue();
+		assertThat(mySpoolDirectory).isEmptyDirectory();
+	}
+
+	@Test
+	void resourceTypesAreInstalledInOrderAndSummedUpInTheReport() {
+		when(myPackageInstallerSvc.install(any())).thenAnswer(invocation -> {
+			PackageInstallOutcomeJson outcome = new PackageInstallOutcomeJson();
+			for (String type : invocation.getArgument(0, PackageInstallationSpec.class).getInstallResourceTypes()) {
+				outcome.incrementResourcesInstalled(type);
+				outcome.incrementResourcesInstalled(type);
+			}
+			return outcome;
+		});
+		InstallPackageJobParameters parameters = new InstallPackageJobParameters().setBinaryId("Binary/b");
+		InstallPackageReducer reducer = new InstallPackageReducer(myValidationSupport, myValidationOutcomeCache);
+		InstallPackageJson chunk = new InstallPackageJson("example.ig", "1.2.3");
+		chunk.setResourceTypes(List.of("ValueSet", "StructureDefinition"));
+		ListSink<InstallPackageReportJson> installed = new ListSink<>();
+		new InstallPackageResourcesStep(myPackageInstallerSvc).run(details(parameters, chunk), installed);
+		reducer.consume(new ChunkExecutionDetails<>(installed.myData.get(0), parameters, "i", "c"));
+		ListSink<InstallPackageReportJson> sink = new ListSink<>();
+
+		reducer.run(details(parameters, null), sink);
+
+		// one installation, loading the package once, of the types in the order given
+		ArgumentCaptor<PackageInstallationSpec> spec = ArgumentCaptor.forClass(PackageInstallationSpec.class);
+		verify(myPackageInstallerSvc, times(1)).install(spec.capture());
+		assertThat(spec.getValue().getInstallResourceTypes()).containsExactly("ValueSet", "StructureDefinition");
+		assertThat(spec.getValue().getPackageContents()).isNull();
+		assertThat(spec.getValue().getInstallMode())
+				.isEqualTo(PackageInstallationSpec.InstallModeEnum.STORE_AND_INSTALL);
+		verify(myValidationSupport).invalidateCaches();
+		verify(myValidationOutcomeCache).invalidate();
+		JobInstance instance = new JobInstance();
+		instance.setReport(JsonUtil.serialize(sink.myData.get(0)));
+		Parameters report = (Parameters) provider().report(instance);
+		assertThat(report.getParameter("version").getValue().primitiveValue()).isEqualTo("1.2.3");
+		assertThat(report.getParameters("resourcesInstalled"))
+				.extracting(parameter -> parameter.getPart().get(0).getValue().primitiveValue()
+						+ "=" + parameter.getPart().get(1).getValue().primitiveValue())
+				.containsExactly("StructureDefinition=2", "ValueSet=2");
+	}
+
+	private InstallPackageAsyncProvider provider() {
+		return new InstallPackageAsyncProvider(
+				myJobCoordinator, myFhirContext, myRequestPartitionHelperSvc, mySpoolDirectory, Long.MAX_VALUE);
+	}
+
+	private static RequestDetails request(String theContentType, Map<String, String[]> theParameters) {
+		RequestDetails request = mock(RequestDetails.class);
+		when(request.getOperation()).thenReturn("$install");
+		when(request.getRequestType()).thenReturn(RequestTypeEnum.POST);
+		when(request.getResourceName()).thenReturn("ImplementationGuide");
+		when(request.getHeader(Constants.HEADER_CONTENT_TYPE)).thenReturn(theContentType);
+		when(request.getFhirServerBase()).thenReturn("http://localhost/fhir");
+		when(request.getParameters()).thenReturn(theParameters);
+		return request;
+	}
+
+	private static byte[] tgz(String theName, String theVersion, String... theIndexedTypes) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(bytes))) {
+			entry(tar, "package/other/ignored.json", "{}");
+			entry(tar, "package/package.json", "{\"name\":\"" + theName + "\",\"version\":\"" + theVersion + "\"}");
+			if (theIndexedTypes != null) {
+				entry(
+						tar,
+						"package/.index.json",
+						Arrays.stream(theIndexedTypes)
+								.map(type -> "{\"filename\":\"" + type + "-x.json\",\"resourceType\":\"" + type + "\"}")
+								.collect(Collectors.joining(",", "{\"index-version\":2,\"files\":[", "]}")));
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void entry(TarArchiveOutputStream theTar, String theName, String theContent) throws IOException {
+		byte[] content = theContent.getBytes(StandardCharsets.UTF_8);
+		TarArchiveEntry entry = new TarArchiveEntry(theName);
+		entry.setSize(content.length);
+		theTar.putArchiveEntry(entry);
+		theTar.write(content);
+		theTar.closeArchiveEntry();
+	}
+
+	private static <PT extends IModelJson, T extends IModelJson> StepExecutionDetails<PT, T> details(
+			PT theParameters, T theData) {
+		JobInstance instance = new JobInstance();
+		instance.setInstanceId("i");
+		return new StepExecutionDetails<>(theParameters, theData, instance, new WorkChunk());
+	}
+
+	private static class ListSink<T extends IModelJson> implements IJobDataSink<T> {
+		private final List<T> myData = new ArrayList<>();
+
+		@Override
+		public void accept(WorkChunkData<T> theData) {
+			myData.add(theData.getData());
+		}
+
+		@Override
+		public void recoveredError(String theMessage) {}
+
+		@Override
+		public void setWarningProcessor(IWarningProcessor theWarningProcessor) {}
+	}
+}
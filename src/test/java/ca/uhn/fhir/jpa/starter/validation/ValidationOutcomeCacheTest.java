@@ -0,0 +1,96 @@
+package ca.uhn.fhir.jpa.starter.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ValidationOutcomeCacheTest {
+
+	private static final String OBSERVATION =
+			"{\"resourceType\":\"Observation\",\"status\":\"final\",\"valueQuantity\":{\"value\":1.0}}";
+
+	private final FhirContext myFhirContext = FhirContext.forR4Cached();
+	private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+	private final ValidationOutcomeCache myCache = new ValidationOutcomeCache(100, myMeterRegistry);
+	private final AtomicInteger myValidations = new AtomicInteger();
+	private final FhirValidator myValidator =
+			myFhirContext.newValidator().registerValidatorModule(myCache.cached(theContext -> {
+				myValidations.incrementAndGet();
+				SingleValidationMessage message = new SingleValidationMessage();
+				message.setSeverity(ResultSeverityEnum.WARNING);
+				message.setMessage("validated");
+				theContext.addValidationMessage(message);
+			}));
+
+	@Test
+	void identicalResourcesAreValidatedOnceWhateverTheirFormatting() {
+		ValidationResult first = myValidator.validateWithResult(OBSERVATION);
+		ValidationResult second = myValidator.validateWithResult(
+				"{ \"status\": \"final\",\n  \"valueQuantity\": { \"value\": 1.0 },\n  \"resourceType\": \"Observation\" }");
+
+		assertThat(myValidations).hasValue(1);
+		assertThat(second.getMessages())
+				.extracting(SingleValidationMessage::getMessage)
+				.isEqualTo(first.getMessages().stream()
+						.map(SingleValidationMessage::getMessage)
+						.toList());
+		assertThat(myMeterRegistry
+						.get("cache.gets")
+						.tag("cache", "validation.outcomes")
+						.tag("result", "hit")
+						.functionCounter()
+						.count())
+				.isEqualTo(1);
+	}
+
+	@Test
+	void differentContentOrProfilesAreValidatedAgain() {
+		myValidator.validateWithResult(OBSERVATION);
+		myValidator.validateWithResult(OBSERVATION.replace("1.0", "1.00"));
+		myValidator.validateWithResult(OBSERVATION.replace(
+				"\"status\"", "\"meta\":{\"profile\":[\"http://example.org/StructureDefinition/vitals\"]},\"status\""));
+
+		assertThat(myValidations).hasValue(3);
+	}
+
+	@Test
+	void outcomesAreCachedPerRequestPartition() {
+		for (int partition : new int[] {1, 2, 1}) {
+			myCache.inPartition(
+					RequestPartitionId.fromPartitionId(partition), () -> myValidator.validateWithResult(OBSERVATION));
+		}
+
+		assertThat(myValidations).hasValue(2);
+	}
+
+	@Test
+	void conformanceChangesDropAllOutcomes() {
+		myValidator.validateWithResult(OBSERVATION);
+
+		myCache.resourceUpdated(new StructureDefinition(), new StructureDefinition());
+		myValidator.validateWithResult(OBSERVATION);
+
+		assertThat(myValidations).hasValue(2);
+	}
+
+	@Test
+	void otherWritesKeepTheOutcomes() {
+		myValidator.validateWithResult(OBSERVATION);
+
+		myCache.resourceCreated(new Observation());
+		myValidator.validateWithResult(OBSERVATION);
+
+		assertThat(myValidations).hasValue(1);
+	}
+}